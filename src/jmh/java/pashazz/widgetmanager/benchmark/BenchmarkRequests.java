@@ -0,0 +1,42 @@
+package pashazz.widgetmanager.benchmark;
+
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Requests used by benchmarks
+ */
+public class BenchmarkRequests {
+
+  public static final int PAGE_SIZE = 50;
+
+  public static WidgetUpdateRequest creationRequest(Integer z) {
+    return new WidgetUpdateRequest(30, 20, 100, 200, z);
+  }
+
+  /**
+   * @return a request that changes everything but z
+   */
+  public static WidgetUpdateRequest moveRequest() {
+    var random = ThreadLocalRandom.current();
+    return WidgetUpdateRequest.builder()
+      .x(random.nextInt(1000))
+      .y(random.nextInt(1000))
+      .build();
+  }
+
+  public static WidgetUpdateRequest zOrderRequest(int z) {
+    return WidgetUpdateRequest.builder()
+      .z(z)
+      .build();
+  }
+
+  public static int randomIndex(int size) {
+    return ThreadLocalRandom.current().nextInt(size);
+  }
+
+  public static int randomPage(int size) {
+    return randomIndex(Math.max(1, size / PAGE_SIZE));
+  }
+}
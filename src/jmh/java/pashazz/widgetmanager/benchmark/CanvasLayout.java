@@ -0,0 +1,19 @@
+package pashazz.widgetmanager.benchmark;
+
+/**
+ * The way z-orders are distributed on a canvas prepared for a benchmark
+ */
+public enum CanvasLayout {
+  /**
+   * z = 2 * i: there is a gap after each widget, so inserting at an occupied z shifts exactly one widget
+   */
+  SPARSE,
+  /**
+   * z = i: there are no gaps, so inserting at an occupied z shifts every widget above it (worst-case shift chain)
+   */
+  DENSE;
+
+  public int zOrderOf(int i) {
+    return this == SPARSE ? 2 * i : i;
+  }
+}
@@ -0,0 +1,108 @@
+package pashazz.widgetmanager.collection;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.randomIndex;
+
+/**
+ * The index of the memory storage from the ids of the widgets to their labels in the z-order:
+ * {@link LongHashTrie} against a {@link HashMap} of boxed longs.
+ * Ids are even numbers, the way the widget factory gives them.
+ * <p>
+ * A write of the storage is a version, so besides the plain operations there are the puts of a version
+ * (a snapshot after every few puts, the way a shift relabels a few widgets). A HashMap cannot do them,
+ * as it would have to be copied for every version.
+ * Run with {@code -prof gc} to see the allocations
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class IdIndexBenchmark {
+
+  public enum Index {
+    HASH_MAP,
+    TRIE
+  }
+
+  /**
+   * Puts of a version in {@link #putVersion()}
+   */
+  private static final int PUTS_PER_VERSION = 4;
+
+  @Param({"10000", "1000000"})
+  private int size;
+
+  @Param({"HASH_MAP", "TRIE"})
+  private Index index;
+
+  private HashMap<Long, Long> hashMap;
+
+  private LongHashTrie trie;
+
+  @Setup(Level.Trial)
+  public void fill() {
+    hashMap = new HashMap<>();
+    trie = new LongHashTrie();
+    for (int i = 0; i < size; ++i) {
+      hashMap.put(2L * i, (long) i);
+      trie.put(2L * i, i);
+    }
+    trie.snapshot();
+  }
+
+  @Benchmark
+  public long get() {
+    long id = 2L * randomIndex(size);
+    return index == Index.TRIE ? trie.get(id, -1) : hashMap.get(id);
+  }
+
+  /**
+   * Changes the value of an existing key, the way relabeling does
+   */
+  @Benchmark
+  public void put() {
+    long id = 2L * randomIndex(size);
+    long label = randomIndex(size);
+    if (index == Index.TRIE) {
+      trie.put(id, label);
+    } else {
+      hashMap.put(id, label);
+    }
+  }
+
+  /**
+   * Adds a new key and removes it, the way creating and deleting a widget does
+   */
+  @Benchmark
+  public void addAndRemove() {
+    long id = 2L * randomIndex(size) + 1;
+    if (index == Index.TRIE) {
+      trie.put(id, 0);
+      trie.remove(id);
+    } else {
+      hashMap.put(id, 0L);
+      hashMap.remove(id);
+    }
+  }
+
+  @Benchmark
+  public Object putVersion() {
+    if (index == Index.HASH_MAP) {
+      // a copy per version
+      for (int i = 0; i < PUTS_PER_VERSION; ++i) {
+        hashMap.put(2L * randomIndex(size), (long) randomIndex(size));
+      }
+      return new HashMap<>(hashMap);
+    }
+    for (int i = 0; i < PUTS_PER_VERSION; ++i) {
+      trie.put(2L * randomIndex(size), randomIndex(size));
+    }
+    return trie.snapshot();
+  }
+}
@@ -0,0 +1,136 @@
+package pashazz.widgetmanager.repository;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import pashazz.widgetmanager.WidgetmanagerApplication;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.rest.request.WidgetBatchOperation;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Spatial queries on a canvas where widgets of 50-250 x 50-250 are scattered so that about 20 of them
+ * are visible in a full HD viewport: reads the widgets visible in the viewport at a random place,
+ * or hit tests a random point.
+ * Uses the spatial index of the repository (INDEX), or reads all the widgets and filters them (SCAN).
+ * <p>
+ * Besides the time, prints the mean number of widgets found per query for the trial
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class ViewportQueryBenchmark {
+
+  public enum Query {
+    INDEX,
+    SCAN
+  }
+
+  private static final int VIEWPORT_WIDTH = 1920;
+  private static final int VIEWPORT_HEIGHT = 1080;
+
+  /**
+   * Canvas area per widget
+   */
+  private static final int AREA_PER_WIDGET = VIEWPORT_WIDTH * VIEWPORT_HEIGHT / 20;
+
+  @Param({"10000", "100000"})
+  private int canvasSize;
+
+  @Param({"memory", "db"})
+  private String profile;
+
+  @Param({"INDEX", "SCAN"})
+  private Query query;
+
+  private ConfigurableApplicationContext context;
+
+  private WidgetRepository<Long> repo;
+
+  private int canvasSide;
+
+  private final Random random = new Random(42);
+
+  private long queries;
+  private long found;
+
+  @Setup(Level.Trial)
+  public void fillCanvas() {
+    context = new SpringApplicationBuilder(WidgetmanagerApplication.class)
+      .profiles(profile)
+      .web(WebApplicationType.NONE)
+      .run("--spring.main.banner-mode=off", "--logging.level.pashazz.widgetmanager=WARN");
+    @SuppressWarnings("unchecked")
+    WidgetRepository<Long> repo = context.getBean(WidgetRepository.class);
+    this.repo = repo;
+    canvasSide = (int) Math.sqrt((double) canvasSize * AREA_PER_WIDGET);
+    var operations = new ArrayList<WidgetBatchOperation<Long>>(canvasSize);
+    for (int i = 0; i < canvasSize; ++i) {
+      operations.add(WidgetBatchOperation.<Long>builder()
+        .type(WidgetBatchOperation.Type.CREATE)
+        .widget(new WidgetUpdateRequest(random.nextInt(canvasSide), random.nextInt(canvasSide),
+          50 + random.nextInt(200), 50 + random.nextInt(200), null))
+        .build());
+    }
+    repo.applyBatch(WidgetBatchRequest.<Long>builder().operations(operations).build());
+  }
+
+  @TearDown(Level.Trial)
+  public void closeContext() {
+    context.close();
+    System.out.printf("%n%s %s: %.1f widgets per query%n", profile, query, (double) found / queries);
+  }
+
+  @Benchmark
+  public List<Widget<Long>> listWidgetsInViewport() {
+    int minX = random.nextInt(canvasSide - VIEWPORT_WIDTH);
+    int minY = random.nextInt(canvasSide - VIEWPORT_HEIGHT);
+    int maxX = minX + VIEWPORT_WIDTH;
+    int maxY = minY + VIEWPORT_HEIGHT;
+    var widgets = query == Query.INDEX
+      ? repo.listWidgetsIn(minX, minY, maxX, maxY)
+      : repo.listWidgets().stream()
+      .filter(widget -> widget.getX() <= maxX && widget.getX() + widget.getWidth() >= minX
+        && widget.getY() <= maxY && widget.getY() + widget.getHeight() >= minY)
+      .collect(Collectors.toList());
+    ++queries;
+    found += widgets.size();
+    return widgets;
+  }
+
+  /**
+   * SCAN goes down from the top of the z-order to the first widget containing the point
+   */
+  @Benchmark
+  public Widget<Long> findWidgetAtPoint() {
+    int x = random.nextInt(canvasSide);
+    int y = random.nextInt(canvasSide);
+    Widget<Long> widget = null;
+    if (query == Query.INDEX) {
+      widget = repo.findWidgetAt(x, y);
+    } else {
+      var widgets = repo.listWidgets();
+      for (int i = widgets.size() - 1; i >= 0 && widget == null; --i) {
+        var candidate = widgets.get(i);
+        if (candidate.getX() <= x && candidate.getX() + candidate.getWidth() >= x
+          && candidate.getY() <= y && candidate.getY() + candidate.getHeight() >= y) {
+          widget = candidate;
+        }
+      }
+    }
+    ++queries;
+    found += widget == null ? 0 : 1;
+    return widget;
+  }
+}
@@ -0,0 +1,115 @@
+package pashazz.widgetmanager.repository.db;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import pashazz.widgetmanager.WidgetmanagerApplication;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.rest.request.WidgetBatchOperation;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.creationRequest;
+
+/**
+ * Cost of inserting a lot of widgets on top of the canvas on the db profile: one by one, and as a single batch.
+ * <p>
+ * Besides the time, reports the number of JDBC statements prepared by Hibernate ({@code statements})
+ * for the number of widgets inserted ({@code widgets}) in the iteration.
+ * Statements added to a JDBC batch are prepared once per batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class DbBulkInsertBenchmark {
+
+  public enum Insert {
+    ONE_BY_ONE,
+    BATCH
+  }
+
+  @Param({"10000"})
+  private int widgets;
+
+  @Param({"ONE_BY_ONE", "BATCH"})
+  private Insert insert;
+
+  private ConfigurableApplicationContext context;
+
+  private WidgetRepository<Long> repo;
+
+  private Statistics statistics;
+
+  private WidgetBatchRequest<Long> batch;
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Statements {
+    public long statements;
+    public long widgets;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      statements = 0;
+      widgets = 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void startContext() {
+    context = new SpringApplicationBuilder(WidgetmanagerApplication.class)
+      .profiles("db")
+      .web(WebApplicationType.NONE)
+      .run("--spring.main.banner-mode=off", "--logging.level.pashazz.widgetmanager=WARN",
+        "--spring.jpa.properties.hibernate.generate_statistics=true",
+        "--logging.level.org.hibernate.engine.internal.StatisticalLoggingSessionEventListener=WARN");
+    @SuppressWarnings("unchecked")
+    WidgetRepository<Long> bean = context.getBean(WidgetRepository.class);
+    repo = bean;
+    statistics = context.getBean(EntityManagerFactory.class).unwrap(SessionFactory.class).getStatistics();
+
+    var operations = new ArrayList<WidgetBatchOperation<Long>>(widgets);
+    for (int i = 0; i < widgets; ++i) {
+      operations.add(WidgetBatchOperation.<Long>builder()
+        .type(WidgetBatchOperation.Type.CREATE)
+        .widget(creationRequest(null))
+        .build());
+    }
+    batch = WidgetBatchRequest.<Long>builder().operations(operations).ids(List.of()).build();
+  }
+
+  @TearDown(Level.Trial)
+  public void closeContext() {
+    context.close();
+  }
+
+  /**
+   * Every widget goes on top, so nothing is shifted
+   */
+  @Benchmark
+  public Object insertOnTop(Statements counters) {
+    long before = statistics.getPrepareStatementCount();
+    Object result = insert == Insert.BATCH ? repo.applyBatch(batch) : insertOneByOne();
+    counters.statements += statistics.getPrepareStatementCount() - before;
+    counters.widgets += widgets;
+    return result;
+  }
+
+  private Object insertOneByOne() {
+    Object last = null;
+    for (int i = 0; i < widgets; ++i) {
+      last = repo.createWidget(creationRequest(null));
+    }
+    return last;
+  }
+}
@@ -0,0 +1,82 @@
+package pashazz.widgetmanager.repository.db;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import pashazz.widgetmanager.WidgetmanagerApplication;
+import pashazz.widgetmanager.benchmark.CanvasLayout;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.cache.WidgetCache;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.*;
+
+/**
+ * A read-heavy mix on the db profile, with the read cache and without it: of every 20 operations,
+ * one moves a widget and the others read a widget by id, a page by offset or a page after a z-order.
+ * The hits and misses of the cache are printed at the end of a trial
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class DbReadCacheBenchmark {
+
+  @Param({"10000"})
+  private int canvasSize;
+
+  @Param({"0", "100000"})
+  private int cacheSize;
+
+  private ConfigurableApplicationContext context;
+
+  private WidgetRepository<Long> repo;
+
+  private Long[] ids;
+
+  @Setup(Level.Trial)
+  public void fillCanvas() {
+    context = new SpringApplicationBuilder(WidgetmanagerApplication.class)
+      .profiles("db")
+      .web(WebApplicationType.NONE)
+      .run("--spring.main.banner-mode=off", "--logging.level.pashazz.widgetmanager=WARN",
+        "--widgetmanager.db-cache-size=" + cacheSize);
+    @SuppressWarnings("unchecked")
+    WidgetRepository<Long> bean = context.getBean(WidgetRepository.class);
+    repo = bean;
+
+    ids = new Long[canvasSize];
+    for (int i = 0; i < canvasSize; ++i) {
+      ids[i] = repo.createWidget(creationRequest(CanvasLayout.SPARSE.zOrderOf(i))).getId();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void closeContext() {
+    var cache = context.getBeanProvider(WidgetCache.class).getIfAvailable();
+    if (cache != null) {
+      System.out.printf("%ncache: %d hits, %d misses, %d evictions%n", cache.getHits(), cache.getMisses(), cache.getEvictions());
+    }
+    context.close();
+  }
+
+  @Benchmark
+  public Object readHeavyMix() {
+    int operation = ThreadLocalRandom.current().nextInt(20);
+    if (operation == 0) {
+      return repo.updateWidget(ids[randomIndex(canvasSize)], moveRequest());
+    }
+    if (operation < 9) {
+      return repo.getWidget(ids[randomIndex(canvasSize)]);
+    }
+    if (operation < 15) {
+      return repo.listWidgets(randomPage(canvasSize), PAGE_SIZE);
+    }
+    return repo.listWidgetsAfter(CanvasLayout.SPARSE.zOrderOf(randomIndex(canvasSize / PAGE_SIZE) * PAGE_SIZE), PAGE_SIZE);
+  }
+}
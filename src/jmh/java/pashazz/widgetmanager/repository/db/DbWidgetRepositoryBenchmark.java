@@ -0,0 +1,123 @@
+package pashazz.widgetmanager.repository.db;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import pashazz.widgetmanager.WidgetmanagerApplication;
+import pashazz.widgetmanager.benchmark.CanvasLayout;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.repository.WidgetRepository;
+
+import java.util.concurrent.TimeUnit;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.*;
+
+/**
+ * Single-threaded cost of every {@link WidgetRepository} operation on the db profile,
+ * measured through the repository bean the application uses (the one behind the concurrent decorator).
+ * <p>
+ * Every trial starts a fresh application context, so the in-memory H2 database is empty.
+ * Run bigger canvases explicitly: {@code -p canvasSize=100000}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class DbWidgetRepositoryBenchmark {
+
+  @Param({"1000", "10000"})
+  private int canvasSize;
+
+  @Param({"SPARSE", "DENSE"})
+  private CanvasLayout layout;
+
+  private ConfigurableApplicationContext context;
+
+  private WidgetRepository<Long> repo;
+
+  private Long[] ids;
+
+  @Setup(Level.Trial)
+  public void fillCanvas() {
+    context = new SpringApplicationBuilder(WidgetmanagerApplication.class)
+      .profiles("db")
+      .web(WebApplicationType.NONE)
+      .run("--spring.main.banner-mode=off", "--logging.level.pashazz.widgetmanager=WARN");
+    @SuppressWarnings("unchecked")
+    WidgetRepository<Long> bean = context.getBean(WidgetRepository.class);
+    repo = bean;
+
+    ids = new Long[canvasSize];
+    for (int i = 0; i < canvasSize; ++i) {
+      ids[i] = repo.createWidget(creationRequest(layout.zOrderOf(i))).getId();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void closeContext() {
+    context.close();
+  }
+
+  @Benchmark
+  public void createAndDeleteOnTop() {
+    var widget = repo.createWidget(creationRequest(null));
+    repo.deleteWidget(widget.getId());
+  }
+
+  /**
+   * Worst case for a dense canvas: every widget gets shifted
+   */
+  @Benchmark
+  public void createAndDeleteAtBottom() {
+    int bottomZ = repo.listWidgets(0, 1).get(0).getZ();
+    var widget = repo.createWidget(creationRequest(bottomZ));
+    repo.deleteWidget(widget.getId());
+  }
+
+  @Benchmark
+  public Widget<Long> updateWidgetWithoutZChange() {
+    return repo.updateWidget(ids[randomIndex(canvasSize)], moveRequest());
+  }
+
+  /**
+   * Moves a random widget to the z-order of another one, which shifts the latter (and the chain above it on a dense canvas)
+   */
+  @Benchmark
+  public Widget<Long> updateWidgetWithZChange() {
+    int z = repo.getWidget(ids[randomIndex(canvasSize)]).getZ();
+    return repo.updateWidget(ids[randomIndex(canvasSize)], zOrderRequest(z));
+  }
+
+  @Benchmark
+  public Widget<Long> getWidget() {
+    return repo.getWidget(ids[randomIndex(canvasSize)]);
+  }
+
+  @Benchmark
+  public void listWidgets(Blackhole blackhole) {
+    for (var widget : repo.listWidgets()) {
+      blackhole.consume(widget);
+    }
+  }
+
+  @Benchmark
+  public void listWidgetsPage(Blackhole blackhole) {
+    for (var widget : repo.listWidgets(randomPage(canvasSize), PAGE_SIZE)) {
+      blackhole.consume(widget);
+    }
+  }
+
+  /**
+   * A page of the same size as listWidgetsPage, at a random depth, requested by a cursor
+   */
+  @Benchmark
+  public void listWidgetsAfterZ(Blackhole blackhole) {
+    for (var widget : repo.listWidgetsAfter(layout.zOrderOf(randomIndex(canvasSize)), PAGE_SIZE)) {
+      blackhole.consume(widget);
+    }
+  }
+}
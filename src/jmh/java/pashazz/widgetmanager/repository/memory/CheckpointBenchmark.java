@@ -0,0 +1,110 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.openjdk.jmh.annotations.*;
+import pashazz.widgetmanager.benchmark.CanvasLayout;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryLongWidgetBuilder;
+import pashazz.widgetmanager.entity.validator.CreationRequestValidator;
+import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
+import pashazz.widgetmanager.factory.StandardWidgetFactory;
+import pashazz.widgetmanager.generator.CounterSupplier;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.wal.CheckpointFile;
+import pashazz.widgetmanager.repository.wal.WriteAheadLog;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cold start of the memory storage: loading a checkpoint, plain and compressed, against replaying a write-ahead log
+ * with a version per widget. And writing the checkpoint
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class CheckpointBenchmark {
+
+  @Param({"1000000"})
+  private int canvasSize;
+
+  private Path directory;
+
+  @Setup(Level.Trial)
+  public void fillCanvas() throws IOException {
+    directory = Files.createTempDirectory("checkpoint-benchmark");
+    try (var log = new WriteAheadLog(directory.resolve("widgets.wal"), Duration.ZERO, Integer.MAX_VALUE)) {
+      var repo = repository(log, checkpointFile(false));
+      for (int i = 0; i < canvasSize; ++i) {
+        // side by side, so that the cells of the spatial index stay small
+        repo.createWidget(new WidgetUpdateRequest(i % 1000 * 300, i / 1000 * 300, 100, 200, CanvasLayout.SPARSE.zOrderOf(i)));
+      }
+      repo.checkpoint();
+      // a copy of the log, as the next write would discard it up to the checkpoint
+      Files.copy(directory.resolve("widgets.wal"), directory.resolve("full.wal"));
+      checkpointFile(true).write(repo.getVersion(), 0, canvasSize, repo.listWidgets());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteFiles() throws IOException {
+    try (var files = Files.list(directory)) {
+      for (var file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+
+  @Benchmark
+  public Object loadCheckpoint() {
+    return repository(null, checkpointFile(false));
+  }
+
+  @Benchmark
+  public Object loadCompressedCheckpoint() {
+    return repository(null, checkpointFile(true));
+  }
+
+  @Benchmark
+  public Object replayLog() throws IOException {
+    try (var log = new WriteAheadLog(directory.resolve("full.wal"), Duration.ZERO, 1)) {
+      return repository(log, null);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Loaded {
+    private InMemoryWidgetRepository repo;
+
+    @Setup(Level.Trial)
+    public void load(CheckpointBenchmark benchmark) {
+      repo = benchmark.repository(null, benchmark.checkpointFile(false));
+    }
+  }
+
+  @Benchmark
+  public void writeCheckpoint(Loaded loaded) {
+    var repo = loaded.repo;
+    checkpointFile(false).write(repo.getVersion(), 0, canvasSize, repo.listWidgets());
+  }
+
+  private CheckpointFile checkpointFile(boolean compress) {
+    return new CheckpointFile(directory.resolve(compress ? "compressed.checkpoint" : "widgets.checkpoint"), Duration.ZERO, compress);
+  }
+
+  private InMemoryWidgetRepository repository(WriteAheadLog log, CheckpointFile checkpointFile) {
+    return new InMemoryWidgetRepository(new StandardWidgetFactory<Long, Widget<Long>>(
+      new CounterSupplier(),
+      new CreationRequestValidator(),
+      new UpdateRequestValidator(),
+      InMemoryLongWidgetBuilder::new),
+      new WidgetChangeLog<>(InMemoryWidgetRepositoryBenchmark.CHANGE_LOG_SIZE), log, checkpointFile);
+  }
+}
@@ -0,0 +1,90 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+import pashazz.widgetmanager.benchmark.CanvasLayout;
+import pashazz.widgetmanager.repository.canvas.WidgetCanvas;
+import pashazz.widgetmanager.repository.canvas.WidgetCanvases;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.concurrent.WriteMode;
+import pashazz.widgetmanager.rest.SerializedWidgetsCache;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.*;
+
+/**
+ * Write throughput of the memory profile when the writers share a canvas, against a canvas per writer
+ * (up to the number of canvases), with the canvas acquired for every write like the REST API does.
+ * The writes are inserts into a dense z-order, so every one shifts the rest of the canvas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+@Threads(8)
+public class InMemoryCanvasWriteBenchmark {
+
+  @Param({"10000"})
+  private int canvasSize;
+
+  @Param({"1", "8"})
+  private int canvasCount;
+
+  private WidgetCanvases canvases;
+
+  private final AtomicInteger writers = new AtomicInteger();
+
+  @Setup(Level.Trial)
+  public void openCanvases() {
+    canvases = new WidgetCanvases(canvas(WidgetCanvases.DEFAULT_CANVAS), new WidgetCanvases.Factory() {
+      @Override
+      public @NotNull WidgetCanvas create(@NotNull String id, long version) {
+        return canvas(id);
+      }
+
+      @Override
+      public boolean exists(@NotNull String id) {
+        return false;
+      }
+    }, Duration.ofHours(1));
+  }
+
+  private WidgetCanvas canvas(String id) {
+    var repo = InMemoryWidgetRepositoryBenchmark.filledRepository(CanvasLayout.DENSE, new Long[canvasSize]);
+    return new WidgetCanvas(id, WriteMode.LOCK.decorate(repo), new WidgetChangeLog<>(1), new SerializedWidgetsCache(0),
+      false, List.of());
+  }
+
+  @TearDown(Level.Trial)
+  public void close() {
+    canvases.close();
+  }
+
+  @State(Scope.Thread)
+  public static class Writer {
+    String canvas;
+
+    @Setup(Level.Trial)
+    public void pickCanvas(InMemoryCanvasWriteBenchmark benchmark) {
+      canvas = "canvas-" + benchmark.writers.getAndIncrement() % benchmark.canvasCount;
+    }
+  }
+
+  @Benchmark
+  public void createAndDeleteInMiddle(Writer writer) {
+    var canvas = canvases.acquire(writer.canvas);
+    try {
+      var repo = canvas.getRepository();
+      var widget = repo.createWidget(creationRequest(randomIndex(canvasSize)));
+      repo.deleteWidget(widget.getId());
+    } finally {
+      canvas.release();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.openjdk.jmh.annotations.*;
+import pashazz.widgetmanager.benchmark.CanvasLayout;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.concurrent.WriteMode;
+
+import java.util.concurrent.TimeUnit;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.*;
+
+/**
+ * Write throughput of the memory profile when many threads write at once, for every {@link WriteMode}.
+ * Change the number of writers with {@code -t}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+@Threads(32)
+public class InMemoryConcurrentWriteBenchmark {
+
+  @Param({"100000"})
+  private int canvasSize;
+
+  @Param({"SPARSE"})
+  private CanvasLayout layout;
+
+  @Param({"LOCK", "GROUP_COMMIT"})
+  private WriteMode writeMode;
+
+  private WidgetRepository<Long> repo;
+
+  private Long[] ids;
+
+  @Setup(Level.Trial)
+  public void fillCanvas() {
+    ids = new Long[canvasSize];
+    repo = writeMode.decorate(InMemoryWidgetRepositoryBenchmark.filledRepository(layout, ids));
+  }
+
+  @TearDown(Level.Trial)
+  public void close() throws Exception {
+    if (repo instanceof AutoCloseable) {
+      ((AutoCloseable) repo).close();
+    }
+  }
+
+  @Benchmark
+  public void createAndDeleteOnTop() {
+    var widget = repo.createWidget(creationRequest(null));
+    repo.deleteWidget(widget.getId());
+  }
+
+  @Benchmark
+  public Widget<Long> updateWidgetWithZChange() {
+    int z = repo.getWidget(ids[randomIndex(canvasSize)]).getZ();
+    return repo.updateWidget(ids[randomIndex(canvasSize)], zOrderRequest(z));
+  }
+}
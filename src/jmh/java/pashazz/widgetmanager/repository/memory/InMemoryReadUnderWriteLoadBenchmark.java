@@ -0,0 +1,121 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+import pashazz.widgetmanager.benchmark.CanvasLayout;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.concurrent.ConcurrentWidgetRepository;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.*;
+
+/**
+ * Latency distribution of getWidget on the memory profile, with and without a thread writing to the same canvas.
+ * Compare the p0.99 of {@code idle} and {@code loaded} groups: with lock-free reads it stays flat,
+ * with reads behind the read lock (how the memory profile used to be set up) it grows with the write load.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class InMemoryReadUnderWriteLoadBenchmark {
+
+  public enum Reads {
+    LOCK_FREE,
+    READ_LOCK
+  }
+
+  @Param({"100000"})
+  private int canvasSize;
+
+  @Param({"DENSE"})
+  private CanvasLayout layout;
+
+  @Param({"LOCK_FREE", "READ_LOCK"})
+  private Reads reads;
+
+  private WidgetRepository<Long> repo;
+
+  private Long[] ids;
+
+  @Setup(Level.Trial)
+  public void fillCanvas() {
+    ids = new Long[canvasSize];
+    var memoryRepo = InMemoryWidgetRepositoryBenchmark.filledRepository(layout, ids);
+    repo = reads == Reads.READ_LOCK ? new ReadLockingWidgetRepository<>(memoryRepo) : new ConcurrentWidgetRepository<>(memoryRepo);
+  }
+
+  @Benchmark
+  @Group("idle")
+  @GroupThreads(3)
+  public Widget<Long> getWidget() {
+    return repo.getWidget(ids[randomIndex(canvasSize)]);
+  }
+
+  @Benchmark
+  @Group("loaded")
+  @GroupThreads(3)
+  public Widget<Long> getWidgetUnderWriteLoad() {
+    return repo.getWidget(ids[randomIndex(canvasSize)]);
+  }
+
+  /**
+   * Inserts at the bottom of the canvas, shifting it, and deletes the widget
+   */
+  @Benchmark
+  @Group("loaded")
+  @GroupThreads(1)
+  public void write() {
+    int bottomZ = repo.listWidgets(0, 1).get(0).getZ();
+    var widget = repo.createWidget(creationRequest(bottomZ));
+    repo.deleteWidget(widget.getId());
+  }
+
+  /**
+   * Takes the read lock on getWidget, and the write lock on the writes of the benchmark
+   */
+  private static class ReadLockingWidgetRepository<T> extends ConcurrentWidgetRepository<T> {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    ReadLockingWidgetRepository(WidgetRepository<T> repo) {
+      super(repo);
+    }
+
+    @Override
+    public @NotNull Widget<T> getWidget(@NotNull T id) {
+      lock.readLock().lock();
+      try {
+        return super.getWidget(id);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public @NotNull Widget<T> createWidget(@NotNull WidgetUpdateRequest request) {
+      lock.writeLock().lock();
+      try {
+        return super.createWidget(request);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    @Override
+    public void deleteWidget(@NotNull T id) {
+      lock.writeLock().lock();
+      try {
+        super.deleteWidget(id);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import pashazz.widgetmanager.benchmark.CanvasLayout;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryLongWidgetBuilder;
+import pashazz.widgetmanager.entity.validator.CreationRequestValidator;
+import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
+import pashazz.widgetmanager.factory.StandardWidgetFactory;
+import pashazz.widgetmanager.factory.interfaces.WidgetFactory;
+import pashazz.widgetmanager.generator.CounterSupplier;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.concurrent.ConcurrentWidgetRepository;
+
+import java.util.concurrent.TimeUnit;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.*;
+
+/**
+ * Single-threaded cost of every {@link WidgetRepository} operation on the memory storage,
+ * optionally behind one of the concurrent decorators.
+ * <p>
+ * Write benchmarks keep the canvas size constant: a created widget is deleted in the same invocation
+ * and an updated widget stays on the canvas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class InMemoryWidgetRepositoryBenchmark {
+
+  public enum Decorator {
+    NONE,
+    CONCURRENT
+  }
+
+  /**
+   * The default of widgetmanager.change-log-size
+   */
+  static final int CHANGE_LOG_SIZE = 10_000;
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  private int canvasSize;
+
+  @Param({"SPARSE", "DENSE"})
+  private CanvasLayout layout;
+
+  @Param({"NONE", "CONCURRENT"})
+  private Decorator decorator;
+
+  private WidgetRepository<Long> repo;
+
+  private Long[] ids;
+
+  @Setup(Level.Trial)
+  public void fillCanvas() {
+    ids = new Long[canvasSize];
+    var memoryRepo = filledRepository(layout, ids);
+    repo = decorator == Decorator.CONCURRENT ? new ConcurrentWidgetRepository<>(memoryRepo) : memoryRepo;
+  }
+
+  /**
+   * @param ids ids of the created widgets in the order of creation; the length of the array is the canvas size
+   */
+  static InMemoryWidgetRepository filledRepository(CanvasLayout layout, Long[] ids) {
+    WidgetFactory<Long, Widget<Long>> widgetFactory = new StandardWidgetFactory<>(
+      new CounterSupplier(),
+      new CreationRequestValidator(),
+      new UpdateRequestValidator(),
+      InMemoryLongWidgetBuilder::new);
+    var memoryRepo = new InMemoryWidgetRepository(widgetFactory, new WidgetChangeLog<>(CHANGE_LOG_SIZE));
+
+    // publishing a version per widget is wasteful, so we fill the canvas under the hood and commit once
+    for (int i = 0; i < ids.length; ++i) {
+      var widget = widgetFactory.createNewWidget(creationRequest(layout.zOrderOf(i)), 0);
+      memoryRepo.makeWidgetCreate(widget);
+      ids[i] = widget.getId();
+    }
+    memoryRepo.commitNewVersion();
+    return memoryRepo;
+  }
+
+  @Benchmark
+  public void createAndDeleteOnTop() {
+    var widget = repo.createWidget(creationRequest(null));
+    repo.deleteWidget(widget.getId());
+  }
+
+  /**
+   * Worst case for a dense canvas: every widget gets shifted
+   */
+  @Benchmark
+  public void createAndDeleteAtBottom() {
+    int bottomZ = repo.listWidgets().get(0).getZ();
+    var widget = repo.createWidget(creationRequest(bottomZ));
+    repo.deleteWidget(widget.getId());
+  }
+
+  @Benchmark
+  public Widget<Long> updateWidgetWithoutZChange() {
+    return repo.updateWidget(ids[randomIndex(canvasSize)], moveRequest());
+  }
+
+  /**
+   * Moves a random widget to the z-order of another one, which shifts the latter (and the chain above it on a dense canvas)
+   */
+  @Benchmark
+  public Widget<Long> updateWidgetWithZChange() {
+    int z = repo.listWidgets().get(randomIndex(canvasSize)).getZ();
+    return repo.updateWidget(ids[randomIndex(canvasSize)], zOrderRequest(z));
+  }
+
+  @Benchmark
+  public Widget<Long> getWidget() {
+    return repo.getWidget(ids[randomIndex(canvasSize)]);
+  }
+
+  /**
+   * Lists all widgets and reads every one of them, the way serialization does
+   */
+  @Benchmark
+  public void listWidgets(Blackhole blackhole) {
+    for (var widget : repo.listWidgets()) {
+      blackhole.consume(widget);
+    }
+  }
+
+  @Benchmark
+  public void listWidgetsPage(Blackhole blackhole) {
+    for (var widget : repo.listWidgets(randomPage(canvasSize), PAGE_SIZE)) {
+      blackhole.consume(widget);
+    }
+  }
+
+  /**
+   * A page of the same size as listWidgetsPage, at a random depth, requested by a cursor
+   */
+  @Benchmark
+  public void listWidgetsAfterZ(Blackhole blackhole) {
+    for (var widget : repo.listWidgetsAfter(layout.zOrderOf(randomIndex(canvasSize)), PAGE_SIZE)) {
+      blackhole.consume(widget);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryLongWidgetBuilder;
+import pashazz.widgetmanager.entity.validator.CreationRequestValidator;
+import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
+import pashazz.widgetmanager.factory.StandardWidgetFactory;
+import pashazz.widgetmanager.generator.CounterSupplier;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.rest.request.WidgetBatchOperation;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.*;
+
+/**
+ * The operations of the memory storage that do not move the widgets in the z-order, for both memory engines,
+ * on a canvas of widgets side by side (so that the spatial index of the tree engine has few widgets per cell).
+ * Run with {@code -prof gc} to compare the allocations, e.g.
+ * {@code -Djmh.args="MemoryEngineBenchmark -prof gc"}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class MemoryEngineBenchmark {
+
+  @Param({"100000", "1000000"})
+  private int canvasSize;
+
+  @Param({"TREE", "COLUMNS"})
+  private MemoryEngine engine;
+
+  private WidgetRepository<Long> repo;
+
+  private Long[] ids;
+
+  @Setup(Level.Trial)
+  public void fillCanvas() {
+    repo = engine.create(new StandardWidgetFactory<Long, Widget<Long>>(
+      new CounterSupplier(),
+      new CreationRequestValidator(),
+      new UpdateRequestValidator(),
+      InMemoryLongWidgetBuilder::new), new WidgetChangeLog<>(InMemoryWidgetRepositoryBenchmark.CHANGE_LOG_SIZE));
+    var operations = new ArrayList<WidgetBatchOperation<Long>>(canvasSize);
+    for (int i = 0; i < canvasSize; ++i) {
+      operations.add(WidgetBatchOperation.<Long>builder()
+        .type(WidgetBatchOperation.Type.CREATE)
+        .widget(new WidgetUpdateRequest((i % 1000) * 100, i / 1000 * 100, 100, 200, null))
+        .build());
+    }
+    List<Widget<Long>> widgets = repo.applyBatch(WidgetBatchRequest.<Long>builder().operations(operations).build())
+      .getResults();
+    ids = widgets.stream().map(Widget::getId).toArray(Long[]::new);
+  }
+
+  @Benchmark
+  public void createAndDeleteOnTop() {
+    var widget = repo.createWidget(creationRequest(null));
+    repo.deleteWidget(widget.getId());
+  }
+
+  @Benchmark
+  public Widget<Long> updateWidgetWithoutZChange() {
+    return repo.updateWidget(ids[randomIndex(canvasSize)], moveRequest());
+  }
+
+  @Benchmark
+  public Widget<Long> getWidget() {
+    return repo.getWidget(ids[randomIndex(canvasSize)]);
+  }
+
+  @Benchmark
+  public void listWidgetsAfterZ(Blackhole blackhole) {
+    for (var widget : repo.listWidgetsAfter(randomIndex(canvasSize), PAGE_SIZE)) {
+      blackhole.consume(widget);
+    }
+  }
+
+  /**
+   * Reads every widget, the way streaming all the widgets does
+   */
+  @Benchmark
+  public void forEachWidget(Blackhole blackhole) {
+    repo.forEachWidget(blackhole::consume);
+  }
+}
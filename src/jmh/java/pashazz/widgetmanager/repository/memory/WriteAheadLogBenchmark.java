@@ -0,0 +1,100 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.openjdk.jmh.annotations.*;
+import pashazz.widgetmanager.benchmark.CanvasLayout;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryLongWidgetBuilder;
+import pashazz.widgetmanager.entity.validator.CreationRequestValidator;
+import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
+import pashazz.widgetmanager.factory.StandardWidgetFactory;
+import pashazz.widgetmanager.generator.CounterSupplier;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.wal.WriteAheadLog;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.*;
+
+/**
+ * Writes of the memory storage without a write-ahead log (NONE), with the log synced every 100ms or 1000 records
+ * (BATCHED, the defaults), and with the log synced on every write (EVERY_WRITE)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class WriteAheadLogBenchmark {
+
+  public enum Sync {
+    NONE,
+    BATCHED,
+    EVERY_WRITE
+  }
+
+  @Param({"10000"})
+  private int canvasSize;
+
+  @Param({"NONE", "BATCHED", "EVERY_WRITE"})
+  private Sync sync;
+
+  private Path directory;
+
+  private WriteAheadLog writeAheadLog;
+
+  private InMemoryWidgetRepository repo;
+
+  private Long[] ids;
+
+  @Setup(Level.Trial)
+  public void fillCanvas() throws IOException {
+    directory = Files.createTempDirectory("wal-benchmark");
+    if (sync != Sync.NONE) {
+      writeAheadLog = sync == Sync.BATCHED
+        ? new WriteAheadLog(directory.resolve("widgets.wal"), Duration.ofMillis(100), 1000)
+        : new WriteAheadLog(directory.resolve("widgets.wal"), Duration.ZERO, 1);
+    }
+    var widgetFactory = new StandardWidgetFactory<Long, Widget<Long>>(
+      new CounterSupplier(),
+      new CreationRequestValidator(),
+      new UpdateRequestValidator(),
+      InMemoryLongWidgetBuilder::new);
+    repo = new InMemoryWidgetRepository(widgetFactory,
+      new WidgetChangeLog<>(InMemoryWidgetRepositoryBenchmark.CHANGE_LOG_SIZE), writeAheadLog);
+    ids = new Long[canvasSize];
+    for (int i = 0; i < canvasSize; ++i) {
+      // side by side, so that the cells of the spatial index stay small
+      var widget = widgetFactory.createNewWidget(
+        new WidgetUpdateRequest(i % 100 * 300, i / 100 * 300, 100, 200, CanvasLayout.SPARSE.zOrderOf(i)), 0);
+      repo.makeWidgetCreate(widget);
+      ids[i] = widget.getId();
+    }
+    repo.commitNewVersion();
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteLog() throws IOException {
+    if (writeAheadLog != null) {
+      writeAheadLog.close();
+      Files.delete(directory.resolve("widgets.wal"));
+    }
+    Files.delete(directory);
+  }
+
+  @Benchmark
+  public void createAndDeleteOnTop() {
+    var widget = repo.createWidget(creationRequest(null));
+    repo.deleteWidget(widget.getId());
+  }
+
+  @Benchmark
+  public Widget<Long> updateWidgetWithoutZChange() {
+    return repo.updateWidget(ids[randomIndex(canvasSize)], moveRequest());
+  }
+}
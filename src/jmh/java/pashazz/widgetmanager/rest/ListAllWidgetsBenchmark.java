@@ -0,0 +1,163 @@
+package pashazz.widgetmanager.rest;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.ThreadMXBean;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.MediaType;
+import pashazz.widgetmanager.WidgetmanagerApplication;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.rest.binary.WidgetBinaryFormat;
+import pashazz.widgetmanager.rest.request.WidgetBatchOperation;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.creationRequest;
+
+/**
+ * Reads the whole canvas through GET /widgets/all over HTTP, as a JSON array (the list endpoint),
+ * as NDJSON (the streaming endpoint) and in {@link pashazz.widgetmanager.rest.binary.WidgetBinaryFormat},
+ * for both storage profiles.
+ * <p>
+ * The server runs in the benchmark JVM. Besides the time to read the whole response, prints for the trial (warmup included):
+ * <ul>
+ *   <li>size - of the response</li>
+ *   <li>first byte - mean time to the first byte of the response</li>
+ *   <li>allocated - mean heap allocated by all the threads per request</li>
+ *   <li>live heap - the highest heap usage right after a garbage collection that happened during a request.
+ *   The young generation is small, so there are a few collections per request and this follows the live data
+ *   (which includes the canvas itself)</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g", "-Xmn32m"})
+public class ListAllWidgetsBenchmark {
+
+  public enum Format {
+    JSON(MediaType.APPLICATION_JSON_VALUE),
+    NDJSON(MediaType.APPLICATION_NDJSON_VALUE),
+    BINARY(WidgetBinaryFormat.MEDIA_TYPE_VALUE);
+
+    private final String mediaType;
+
+    Format(String mediaType) {
+      this.mediaType = mediaType;
+    }
+  }
+
+  @Param({"100000"})
+  private int canvasSize;
+
+  @Param({"memory", "db"})
+  private String profile;
+
+  @Param({"JSON", "NDJSON", "BINARY"})
+  private Format format;
+
+  /**
+   * Size of the cache of serialized responses, 0 turns it off
+   */
+  @Param({"64MB"})
+  private String responseCacheSize;
+
+  private ConfigurableApplicationContext context;
+
+  private URL url;
+
+  private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  /**
+   * Heap used after the last garbage collection while a request is running, -1 when no request is running
+   */
+  private final AtomicLong heapAfterGc = new AtomicLong(-1);
+
+  private final byte[] buffer = new byte[64 * 1024];
+
+  private long requests;
+  private long responseBytes;
+  private long firstByteNanos;
+  private long allocatedBytes;
+  private long liveHeapBytes;
+
+  @Setup(Level.Trial)
+  public void fillCanvas() throws IOException {
+    context = new SpringApplicationBuilder(WidgetmanagerApplication.class)
+      .run("--spring.profiles.active=" + profile, "--server.port=0", "--widgetmanager.response-cache-size=" + responseCacheSize,
+        "--spring.main.banner-mode=off",
+        "--logging.level.pashazz.widgetmanager=WARN", "--logging.level.org.springframework=WARN");
+    @SuppressWarnings("unchecked")
+    WidgetRepository<Long> repo = context.getBean(WidgetRepository.class);
+    var operations = new ArrayList<WidgetBatchOperation<Long>>(canvasSize);
+    for (int i = 0; i < canvasSize; ++i) {
+      operations.add(WidgetBatchOperation.<Long>builder()
+        .type(WidgetBatchOperation.Type.CREATE)
+        .widget(creationRequest(null))
+        .build());
+    }
+    repo.applyBatch(WidgetBatchRequest.<Long>builder().operations(operations).build());
+
+    int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+    url = new URL("http://localhost:" + port + "/widgets/all");
+
+    for (var collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+        var info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        long used = info.getGcInfo().getMemoryUsageAfterGc().values().stream().mapToLong(MemoryUsage::getUsed).sum();
+        heapAfterGc.accumulateAndGet(used, (current, after) -> current < 0 ? current : Math.max(current, after));
+      }, notification -> notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION), null);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void closeContext() {
+    context.close();
+    System.out.printf("%n%s %s, %d requests: size %.1f MB, first byte %.1f ms, allocated %.1f MB, live heap up to %.1f MB%n",
+      profile, format, requests, responseBytes / 1024.0 / 1024.0, firstByteNanos / 1e6 / requests,
+      allocatedBytes / 1024.0 / 1024.0 / requests, liveHeapBytes / 1024.0 / 1024.0);
+  }
+
+  @Benchmark
+  public long listAll() throws IOException {
+    long allocatedBefore = allocatedBytes();
+    heapAfterGc.set(0);
+    long start = System.nanoTime();
+    var connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestProperty("Accept", format.mediaType);
+    long bytes = 0;
+    try (InputStream in = connection.getInputStream()) {
+      int read = in.read(buffer);
+      firstByteNanos += System.nanoTime() - start;
+      while (read >= 0) {
+        bytes += read;
+        read = in.read(buffer);
+      }
+    }
+    allocatedBytes += allocatedBytes() - allocatedBefore;
+    liveHeapBytes = Math.max(liveHeapBytes, heapAfterGc.getAndSet(-1));
+    ++requests;
+    responseBytes = bytes;
+    return bytes;
+  }
+
+  private long allocatedBytes() {
+    return Arrays.stream(threads.getThreadAllocatedBytes(threads.getAllThreadIds())).filter(bytes -> bytes > 0).sum();
+  }
+}
@@ -0,0 +1,119 @@
+package pashazz.widgetmanager.rest;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import pashazz.widgetmanager.WidgetmanagerApplication;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.rest.request.WidgetBatchOperation;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static pashazz.widgetmanager.benchmark.BenchmarkRequests.creationRequest;
+
+/**
+ * A client that follows the canvas by polling over HTTP, while a write moves one widget to the bottom between the polls
+ * (so a run of widgets is shifted): it reads all the widgets again (FULL), or the changes since the version it has (CHANGES).
+ * <p>
+ * Besides the time of a write and a poll, prints the mean size of a poll for the trial
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class PollChangesBenchmark {
+
+  public enum Poll {
+    FULL,
+    CHANGES
+  }
+
+  @Param({"100000"})
+  private int canvasSize;
+
+  @Param({"memory", "db"})
+  private String profile;
+
+  @Param({"FULL", "CHANGES"})
+  private Poll poll;
+
+  private ConfigurableApplicationContext context;
+
+  private WidgetRepository<Long> repo;
+
+  private List<Widget<Long>> widgets;
+
+  private String baseUrl;
+
+  private long version;
+
+  private final Random random = new Random(42);
+
+  private final byte[] buffer = new byte[64 * 1024];
+
+  private long polls;
+  private long polledBytes;
+
+  @Setup(Level.Trial)
+  public void fillCanvas() {
+    context = new SpringApplicationBuilder(WidgetmanagerApplication.class)
+      .run("--spring.profiles.active=" + profile, "--server.port=0", "--spring.main.banner-mode=off",
+        "--logging.level.pashazz.widgetmanager=WARN", "--logging.level.org.springframework=WARN");
+    @SuppressWarnings("unchecked")
+    WidgetRepository<Long> repo = context.getBean(WidgetRepository.class);
+    this.repo = repo;
+    var operations = new ArrayList<WidgetBatchOperation<Long>>(canvasSize);
+    for (int i = 0; i < canvasSize; ++i) {
+      operations.add(WidgetBatchOperation.<Long>builder()
+        .type(WidgetBatchOperation.Type.CREATE)
+        .widget(creationRequest(null))
+        .build());
+    }
+    widgets = repo.applyBatch(WidgetBatchRequest.<Long>builder().operations(operations).build()).getResults();
+    version = repo.getVersion();
+    baseUrl = "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+  }
+
+  @TearDown(Level.Trial)
+  public void closeContext() {
+    context.close();
+    System.out.printf("%n%s %s, %d polls: %.1f KB per poll%n", profile, poll, polls, polledBytes / 1024.0 / polls);
+  }
+
+  @Benchmark
+  public long writeAndPoll() throws IOException {
+    var widget = widgets.get(random.nextInt(widgets.size()));
+    int bottom = repo.listWidgetsAfter(null, 1).get(0).getZ();
+    repo.updateWidget(widget.getId(), WidgetUpdateRequest.builder().z(bottom).build());
+
+    long bytes = read(poll == Poll.FULL ? "/widgets/all" : "/widgets/changes?since=" + version);
+    version = repo.getVersion();
+    ++polls;
+    polledBytes += bytes;
+    return bytes;
+  }
+
+  private long read(String path) throws IOException {
+    var connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+    long bytes = 0;
+    try (InputStream in = connection.getInputStream()) {
+      for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+        bytes += read;
+      }
+    }
+    return bytes;
+  }
+}
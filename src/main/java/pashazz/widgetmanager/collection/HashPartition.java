@@ -0,0 +1,101 @@
+package pashazz.widgetmanager.collection;
+
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Orders entries by the hashes of their keys the way {@link LongHashTrie} and {@link SpatialGrid} lay them out,
+ * so that a trie is built from them in a single pass, every node at its final size.
+ * The entries are partitioned level by level by the 5 bits of their hashes that the level takes, like in an MSD radix sort.
+ * Partitioning is stable: entries with the same hash keep their order.
+ * <p>
+ * The keys and the values are moved along with the hashes, rather than reached through a permutation,
+ * so that reading the entries in their final order reads the arrays in order
+ */
+class HashPartition {
+
+  static final int BITS = 5;
+
+  static final int WIDTH = 1 << BITS;
+
+  private static final int MASK = WIDTH - 1;
+
+  private final long[] hashes;
+
+  private final long[] keys;
+
+  private final long[] values;
+
+  private final long[] hashBuffer;
+
+  private final long[] keyBuffer;
+
+  private final long[] valueBuffer;
+
+  /**
+   * @param keys   keys of the entries, reordered by the partitions
+   * @param values values of the entries, reordered by the partitions
+   * @param hash   the hash function of the keys
+   */
+  HashPartition(long[] keys, long[] values, int size, LongUnaryOperator hash) {
+    this.keys = keys;
+    this.values = values;
+    hashes = new long[size];
+    for (int i = 0; i < size; ++i) {
+      hashes[i] = hash.applyAsLong(keys[i]);
+    }
+    hashBuffer = new long[size];
+    keyBuffer = new long[size];
+    valueBuffer = new long[size];
+  }
+
+  /**
+   * Partitions the entries at the positions [from, to) by the bits of their hashes at the shift
+   *
+   * @return the position of the first entry of every part, and then {@code to}
+   */
+  int[] partition(int from, int to, int shift) {
+    var starts = new int[WIDTH + 1];
+    for (int i = from; i < to; ++i) {
+      ++starts[chunk(hashes[i], shift) + 1];
+    }
+    starts[0] = from;
+    for (int chunk = 0; chunk < WIDTH; ++chunk) {
+      starts[chunk + 1] += starts[chunk];
+    }
+    var next = starts.clone();
+    for (int i = from; i < to; ++i) {
+      int position = next[chunk(hashes[i], shift)]++;
+      hashBuffer[position] = hashes[i];
+      keyBuffer[position] = keys[i];
+      valueBuffer[position] = values[i];
+    }
+    System.arraycopy(hashBuffer, from, hashes, from, to - from);
+    System.arraycopy(keyBuffer, from, keys, from, to - from);
+    System.arraycopy(valueBuffer, from, values, from, to - from);
+    return starts;
+  }
+
+  long keyAt(int position) {
+    return keys[position];
+  }
+
+  long valueAt(int position) {
+    return values[position];
+  }
+
+  /**
+   * @return whether the entries at the positions [from, to) have the same hash
+   */
+  boolean isSameHash(int from, int to) {
+    for (int i = from + 1; i < to; ++i) {
+      if (hashes[i] != hashes[from]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int chunk(long hash, int shift) {
+    return (int) (hash >>> shift) & MASK;
+  }
+}
@@ -0,0 +1,346 @@
+package pashazz.widgetmanager.collection;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * A hash array mapped trie from long keys to long values.
+ * <p>
+ * Every level of the trie takes 5 bits of the key's hash. A node keeps its entries inline, keys and values interleaved
+ * in a single array, and its subtries separately, each group indexed by a 32-bit bitmap,
+ * so lookups take O(log32 n) array reads.
+ * The hash function is a bijection on longs, so different keys always part at some level and there are no collisions.
+ * <p>
+ * The trie is persistent in the same way as {@link ZOrderTree}: {@link #snapshot()} returns an immutable version in O(1),
+ * writes copy the O(log32 n) nodes on their path that belong to an earlier snapshot.
+ * <p>
+ * This class is NOT thread safe, its snapshots are.
+ */
+public class LongHashTrie {
+
+  private static final int BITS = 5;
+
+  private static final int MASK = (1 << BITS) - 1;
+
+  private static final long[] NO_LONGS = new long[0];
+
+  private static final Node[] NO_NODES = new Node[0];
+
+  private Node root;
+
+  private int size;
+
+  /**
+   * Nodes having this owner may be changed in place. Null for snapshots, which may not be changed at all
+   */
+  private Object owner;
+
+  public LongHashTrie() {
+    this(new Node(null), 0, new Object());
+  }
+
+  private LongHashTrie(Node root, int size, Object owner) {
+    this.root = root;
+    this.size = size;
+    this.owner = owner;
+  }
+
+  /**
+   * Builds a trie of the entries in a single pass, every node at its final size: O(n log32 n) like putting them
+   * one by one, but without copying a node for every entry put into it
+   *
+   * @param keys   distinct keys
+   * @param values the value of every key
+   * @param size   the number of entries
+   */
+  public static @NotNull LongHashTrie of(long @NotNull [] keys, long @NotNull [] values, int size) {
+    var owner = new Object();
+    if (size == 0) {
+      return new LongHashTrie(new Node(owner), 0, owner);
+    }
+    var partition = new HashPartition(Arrays.copyOf(keys, size), Arrays.copyOf(values, size), size, LongHashTrie::hash);
+    return new LongHashTrie(build(partition, 0, size, 0, owner), size, owner);
+  }
+
+  private static Node build(HashPartition partition, int from, int to, int shift, Object owner) {
+    if (shift >= Long.SIZE) {
+      throw new IllegalArgumentException("duplicate key " + partition.keyAt(from));
+    }
+    var starts = partition.partition(from, to, shift);
+    int entryCount = 0;
+    int subtrieCount = 0;
+    for (int chunk = 0; chunk < HashPartition.WIDTH; ++chunk) {
+      int count = starts[chunk + 1] - starts[chunk];
+      if (count == 1) {
+        ++entryCount;
+      } else if (count > 1) {
+        ++subtrieCount;
+      }
+    }
+    var node = new Node(owner);
+    node.entries = entryCount == 0 ? NO_LONGS : new long[2 * entryCount];
+    node.nodes = subtrieCount == 0 ? NO_NODES : new Node[subtrieCount];
+    int entryIndex = 0;
+    int subtrieIndex = 0;
+    for (int chunk = 0; chunk < HashPartition.WIDTH; ++chunk) {
+      int count = starts[chunk + 1] - starts[chunk];
+      if (count == 1) {
+        node.dataMap |= 1 << chunk;
+        node.entries[2 * entryIndex] = partition.keyAt(starts[chunk]);
+        node.entries[2 * entryIndex + 1] = partition.valueAt(starts[chunk]);
+        ++entryIndex;
+      } else if (count > 1) {
+        node.nodeMap |= 1 << chunk;
+        node.nodes[subtrieIndex++] = build(partition, starts[chunk], starts[chunk + 1], shift + BITS, owner);
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Freezes the current state of the trie.
+   * Subsequent writes to this trie copy the nodes they change, so the returned version never changes.
+   *
+   * @return an immutable version of this trie
+   */
+  public @NotNull LongHashTrie snapshot() {
+    if (owner == null) {
+      return this;
+    }
+    owner = new Object();
+    return new LongHashTrie(root, size, null);
+  }
+
+  /**
+   * @return a trie that starts with the contents of this one, and then changes independently of it. O(1)
+   */
+  public @NotNull LongHashTrie mutableCopy() {
+    var snapshot = snapshot();
+    return new LongHashTrie(snapshot.root, snapshot.size, new Object());
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return the value of the key, or defaultValue if there is none
+   */
+  public long get(long key, long defaultValue) {
+    long hash = hash(key);
+    var node = root;
+    for (int shift = 0; ; shift += BITS) {
+      int bit = bit(hash, shift);
+      if ((node.dataMap & bit) != 0) {
+        int index = index(node.dataMap, bit);
+        return node.keyAt(index) == key ? node.valueAt(index) : defaultValue;
+      }
+      if ((node.nodeMap & bit) == 0) {
+        return defaultValue;
+      }
+      node = node.nodes[index(node.nodeMap, bit)];
+    }
+  }
+
+  public void put(long key, long value) {
+    checkWritable();
+    root = put(root, key, hash(key), 0, value);
+  }
+
+  public void remove(long key) {
+    checkWritable();
+    root = remove(root, key, hash(key), 0);
+  }
+
+  public void clear() {
+    checkWritable();
+    root = new Node(owner);
+    size = 0;
+  }
+
+  private void checkWritable() {
+    if (owner == null) {
+      throw new UnsupportedOperationException("snapshot is immutable");
+    }
+  }
+
+  private Node put(Node node, long key, long hash, int shift, long value) {
+    int bit = bit(hash, shift);
+    if ((node.dataMap & bit) != 0) {
+      int index = index(node.dataMap, bit);
+      if (node.keyAt(index) == key) {
+        if (node.valueAt(index) == value) {
+          return node;
+        }
+        node = editable(node);
+        node.entries[2 * index + 1] = value;
+        return node;
+      }
+      // two keys in one slot: move both to a subtrie
+      var subtrie = pair(node.keyAt(index), node.valueAt(index), key, value, shift + BITS);
+      ++size;
+      node = editable(node);
+      node.removeEntry(bit, index);
+      node.insertSubtrie(bit, subtrie);
+      return node;
+    }
+    if ((node.nodeMap & bit) != 0) {
+      int index = index(node.nodeMap, bit);
+      var subtrie = put(node.nodes[index], key, hash, shift + BITS, value);
+      if (subtrie != node.nodes[index]) {
+        node = editable(node);
+        node.nodes[index] = subtrie;
+      }
+      return node;
+    }
+    ++size;
+    node = editable(node);
+    node.insertEntry(bit, key, value);
+    return node;
+  }
+
+  private Node pair(long key1, long value1, long key2, long value2, int shift) {
+    var node = new Node(owner);
+    int bit1 = bit(hash(key1), shift);
+    int bit2 = bit(hash(key2), shift);
+    if (bit1 == bit2) {
+      node.insertSubtrie(bit1, pair(key1, value1, key2, value2, shift + BITS));
+    } else {
+      node.insertEntry(bit1, key1, value1);
+      node.insertEntry(bit2, key2, value2);
+    }
+    return node;
+  }
+
+  private Node remove(Node node, long key, long hash, int shift) {
+    int bit = bit(hash, shift);
+    if ((node.dataMap & bit) != 0) {
+      int index = index(node.dataMap, bit);
+      if (node.keyAt(index) != key) {
+        return node;
+      }
+      --size;
+      node = editable(node);
+      node.removeEntry(bit, index);
+      return node;
+    }
+    if ((node.nodeMap & bit) == 0) {
+      return node;
+    }
+    int index = index(node.nodeMap, bit);
+    var subtrie = remove(node.nodes[index], key, hash, shift + BITS);
+    if (subtrie == node.nodes[index]) {
+      return node;
+    }
+    node = editable(node);
+    if (subtrie.nodeMap == 0 && subtrie.entries.length == 2) {
+      // a single entry goes back to the parent, so every subtrie has at least two entries
+      node.removeSubtrie(bit, index);
+      node.insertEntry(bit, subtrie.keyAt(0), subtrie.valueAt(0));
+    } else {
+      node.nodes[index] = subtrie;
+    }
+    return node;
+  }
+
+  /**
+   * @return the node itself if this version owns it, otherwise its copy owned by this version
+   */
+  private Node editable(Node node) {
+    if (node.owner == owner) {
+      return node;
+    }
+    var copy = new Node(owner);
+    copy.dataMap = node.dataMap;
+    copy.nodeMap = node.nodeMap;
+    copy.entries = node.entries.clone();
+    copy.nodes = node.nodes.clone();
+    return copy;
+  }
+
+  /**
+   * A bijection on longs that spreads consecutive ids over the trie (the finalizer of MurmurHash3)
+   */
+  static long hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  private static int bit(long hash, int shift) {
+    return 1 << ((int) (hash >>> shift) & MASK);
+  }
+
+  /**
+   * @return position of the bit among the bits set in the bitmap
+   */
+  private static int index(int bitmap, int bit) {
+    return Integer.bitCount(bitmap & (bit - 1));
+  }
+
+  private static class Node {
+    private final Object owner;
+    private int dataMap;
+    private int nodeMap;
+    /**
+     * The key of the entry i at 2 * i, its value at 2 * i + 1
+     */
+    private long[] entries = NO_LONGS;
+    private Node[] nodes = NO_NODES;
+
+    Node(Object owner) {
+      this.owner = owner;
+    }
+
+    long keyAt(int index) {
+      return entries[2 * index];
+    }
+
+    long valueAt(int index) {
+      return entries[2 * index + 1];
+    }
+
+    void insertEntry(int bit, long key, long value) {
+      int index = index(dataMap, bit);
+      dataMap |= bit;
+      var result = new long[entries.length + 2];
+      System.arraycopy(entries, 0, result, 0, 2 * index);
+      result[2 * index] = key;
+      result[2 * index + 1] = value;
+      System.arraycopy(entries, 2 * index, result, 2 * index + 2, entries.length - 2 * index);
+      entries = result;
+    }
+
+    void removeEntry(int bit, int index) {
+      dataMap ^= bit;
+      var result = Arrays.copyOf(entries, entries.length - 2);
+      System.arraycopy(entries, 2 * index + 2, result, 2 * index, entries.length - 2 * index - 2);
+      entries = result;
+    }
+
+    void insertSubtrie(int bit, Node subtrie) {
+      int index = index(nodeMap, bit);
+      nodeMap |= bit;
+      var result = new Node[nodes.length + 1];
+      System.arraycopy(nodes, 0, result, 0, index);
+      result[index] = subtrie;
+      System.arraycopy(nodes, index, result, index + 1, nodes.length - index);
+      nodes = result;
+    }
+
+    void removeSubtrie(int bit, int index) {
+      nodeMap ^= bit;
+      var result = Arrays.copyOf(nodes, nodes.length - 1);
+      System.arraycopy(nodes, index + 1, result, index, nodes.length - index - 1);
+      nodes = result;
+    }
+  }
+}
@@ -0,0 +1,828 @@
+package pashazz.widgetmanager.collection;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A uniform grid of square cells over the plane, which finds the rectangles intersecting a given one.
+ * <p>
+ * A rectangle is given by its key, position and size, and covers [x, x + width] x [y, y + height].
+ * It is kept in every cell it overlaps, along with its bounds, so a query checks the rectangles of the cells
+ * it overlaps and nothing else. A rectangle that overlaps more than {@link #MAX_CELLS} cells is kept in a separate list
+ * instead, which every query checks.
+ * <p>
+ * Non-empty cells are kept in a hash array mapped trie by their coordinates, laid out like {@link LongHashTrie}
+ * with a cell in place of a value. A cell is a persistent tree of chunks of its rectangles with their bounding boxes,
+ * so a change copies O(log m) chunks of a cell of m rectangles, and a query skips the chunks it misses, see {@link Cell}.
+ * <p>
+ * The grid is persistent in the same way as {@link LongHashTrie}: {@link #snapshot()} returns an immutable version in O(1),
+ * writes copy the O(log32 n) nodes on their path that belong to an earlier snapshot.
+ * <p>
+ * This class is NOT thread safe, its snapshots are.
+ */
+public class SpatialGrid {
+
+  /**
+   * Rectangles overlapping more cells are not put into cells
+   */
+  static final int MAX_CELLS = 64;
+
+  private static final int BITS = 5;
+
+  private static final int MASK = (1 << BITS) - 1;
+
+  /**
+   * The rectangles of a chunk of a cell, and the chunks of a chunk
+   */
+  static final int CHUNK = 32;
+
+  private static final long[] NO_LONGS = new long[0];
+
+  private static final int[] NO_INTS = new int[0];
+
+  private static final Node[] NO_NODES = new Node[0];
+
+  private static final Cell[] NO_CELLS = new Cell[0];
+
+  private final int cellSize;
+
+  private Node root;
+
+  private int cellCount;
+
+  private Cell large;
+
+  /**
+   * Nodes having this owner may be changed in place. Null for snapshots, which may not be changed at all
+   */
+  private Object owner;
+
+  /**
+   * @param cellSize the side of a cell
+   */
+  public SpatialGrid(int cellSize) {
+    this(cellSize, new Node(null), 0, Cell.EMPTY, new Object());
+    if (cellSize <= 0) {
+      throw new IllegalArgumentException("cell size must be positive: " + cellSize);
+    }
+  }
+
+  private SpatialGrid(int cellSize, Node root, int cellCount, Cell large, Object owner) {
+    this.cellSize = cellSize;
+    this.root = root;
+    this.cellCount = cellCount;
+    this.large = large;
+    this.owner = owner;
+  }
+
+  /**
+   * Builds a grid of the rectangles in a single pass, every cell and node at its final size,
+   * rather than copying a cell for every rectangle added to it
+   *
+   * @param keys   distinct keys
+   * @param bounds x, y, width and height of every rectangle
+   * @param size   the number of rectangles
+   */
+  public static @NotNull SpatialGrid of(int cellSize, long @NotNull [] keys, int @NotNull [] bounds, int size) {
+    var grid = new SpatialGrid(cellSize);
+    int placements = 0;
+    int largeCount = 0;
+    for (int i = 0; i < size; ++i) {
+      long cells = grid.cellsOf(bounds[4 * i], bounds[4 * i + 2]) * grid.cellsOf(bounds[4 * i + 1], bounds[4 * i + 3]);
+      if (cells > MAX_CELLS) {
+        ++largeCount;
+      } else {
+        placements += cells;
+      }
+    }
+    // a rectangle is placed into every cell it overlaps
+    var cellKeys = new long[placements];
+    var rectangles = new long[placements];
+    var largeKeys = new long[largeCount];
+    var largeBounds = new int[4 * largeCount];
+    int placement = 0;
+    int large = 0;
+    for (int i = 0; i < size; ++i) {
+      int x = bounds[4 * i];
+      int y = bounds[4 * i + 1];
+      int width = bounds[4 * i + 2];
+      int height = bounds[4 * i + 3];
+      if (grid.cellsOf(x, width) * grid.cellsOf(y, height) > MAX_CELLS) {
+        largeKeys[large] = keys[i];
+        System.arraycopy(bounds, 4 * i, largeBounds, 4 * large, 4);
+        ++large;
+        continue;
+      }
+      for (int cx = grid.cell(x); cx <= grid.cell(right(x, width)); ++cx) {
+        for (int cy = grid.cell(y); cy <= grid.cell(right(y, height)); ++cy) {
+          cellKeys[placement] = cellKey(cx, cy);
+          rectangles[placement++] = i;
+        }
+      }
+    }
+    grid.large = Cell.of(largeKeys, largeBounds);
+    if (placements > 0) {
+      var partition = new HashPartition(cellKeys, rectangles, placements, SpatialGrid::hash);
+      grid.root = grid.build(partition, keys, bounds, 0, placements, 0);
+    }
+    return grid;
+  }
+
+  /**
+   * Builds the node of the placements at the positions [from, to) of the partition.
+   * The placements into a cell have the same hash, and become an entry of the first node where no other cell shares their bits
+   */
+  private Node build(HashPartition partition, long[] keys, int[] bounds, int from, int to, int shift) {
+    var starts = partition.partition(from, to, shift);
+    int entryCount = 0;
+    int subtrieCount = 0;
+    for (int chunk = 0; chunk < HashPartition.WIDTH; ++chunk) {
+      if (starts[chunk + 1] == starts[chunk]) {
+        continue;
+      }
+      if (partition.isSameHash(starts[chunk], starts[chunk + 1])) {
+        ++entryCount;
+      } else {
+        ++subtrieCount;
+      }
+    }
+    var node = new Node(owner);
+    node.keys = entryCount == 0 ? NO_LONGS : new long[entryCount];
+    node.cells = entryCount == 0 ? NO_CELLS : new Cell[entryCount];
+    node.nodes = subtrieCount == 0 ? NO_NODES : new Node[subtrieCount];
+    int entryIndex = 0;
+    int subtrieIndex = 0;
+    for (int chunk = 0; chunk < HashPartition.WIDTH; ++chunk) {
+      int start = starts[chunk];
+      int end = starts[chunk + 1];
+      if (start == end) {
+        continue;
+      }
+      if (partition.isSameHash(start, end)) {
+        var cellRectangles = new long[end - start];
+        var cellBounds = new int[4 * (end - start)];
+        for (int i = start; i < end; ++i) {
+          int rectangle = (int) partition.valueAt(i);
+          cellRectangles[i - start] = keys[rectangle];
+          System.arraycopy(bounds, 4 * rectangle, cellBounds, 4 * (i - start), 4);
+        }
+        node.dataMap |= 1 << chunk;
+        node.keys[entryIndex] = partition.keyAt(start);
+        node.cells[entryIndex++] = Cell.of(cellRectangles, cellBounds);
+        ++cellCount;
+      } else {
+        node.nodeMap |= 1 << chunk;
+        node.nodes[subtrieIndex++] = build(partition, keys, bounds, start, end, shift + BITS);
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Freezes the current state of the grid.
+   * Subsequent writes to this grid copy the nodes they change, so the returned version never changes.
+   *
+   * @return an immutable version of this grid
+   */
+  public @NotNull SpatialGrid snapshot() {
+    if (owner == null) {
+      return this;
+    }
+    owner = new Object();
+    return new SpatialGrid(cellSize, root, cellCount, large, null);
+  }
+
+  /**
+   * @return a grid that starts with the contents of this one, and then changes independently of it. O(1)
+   */
+  public @NotNull SpatialGrid mutableCopy() {
+    var snapshot = snapshot();
+    return new SpatialGrid(cellSize, snapshot.root, snapshot.cellCount, snapshot.large, new Object());
+  }
+
+  /**
+   * Adds a rectangle. The key must not be in the grid already
+   */
+  public void add(long key, int x, int y, int width, int height) {
+    checkWritable();
+    if (cellsOf(x, width) * cellsOf(y, height) > MAX_CELLS) {
+      large = large.with(key, x, y, width, height);
+      return;
+    }
+    for (int cx = cell(x); cx <= cell(right(x, width)); ++cx) {
+      for (int cy = cell(y); cy <= cell(right(y, height)); ++cy) {
+        long cellKey = cellKey(cx, cy);
+        root = put(root, cellKey, hash(cellKey), 0, get(cellKey).with(key, x, y, width, height));
+      }
+    }
+  }
+
+  /**
+   * Removes a rectangle, which must be given by the same position and size it was added with
+   */
+  public void remove(long key, int x, int y, int width, int height) {
+    checkWritable();
+    if (cellsOf(x, width) * cellsOf(y, height) > MAX_CELLS) {
+      large = large.without(key, x);
+      return;
+    }
+    for (int cx = cell(x); cx <= cell(right(x, width)); ++cx) {
+      for (int cy = cell(y); cy <= cell(right(y, height)); ++cy) {
+        long cellKey = cellKey(cx, cy);
+        var cell = get(cellKey).without(key, x);
+        root = cell.isEmpty() ? remove(root, cellKey, hash(cellKey), 0) : put(root, cellKey, hash(cellKey), 0, cell);
+      }
+    }
+  }
+
+  /**
+   * Passes the key of every rectangle intersecting [minX, maxX] x [minY, maxY] to the action, once, in no particular order.
+   * Takes O(k) for k rectangles found, plus the number of cells the query overlaps,
+   * but no more than the number of the non-empty ones, plus the chunks of these cells whose bounding boxes it overlaps
+   */
+  public void forEachIntersecting(int minX, int minY, int maxX, int maxY, @NotNull LongConsumer action) {
+    if (minX > maxX || minY > maxY) {
+      return;
+    }
+    var query = new Query(minX, minY, maxX, maxY, action);
+    large.forEachIntersecting(query, false, 0, 0);
+    long queryCells = ((long) cell(maxX) - cell(minX) + 1) * ((long) cell(maxY) - cell(minY) + 1);
+    if (queryCells > cellCount) {
+      forEachCell(root, query);
+      return;
+    }
+    for (int cx = cell(minX); cx <= cell(maxX); ++cx) {
+      for (int cy = cell(minY); cy <= cell(maxY); ++cy) {
+        get(cellKey(cx, cy)).forEachIntersecting(query, true, cx, cy);
+      }
+    }
+  }
+
+  /**
+   * Passes the key of every rectangle containing the point to the action, once, in no particular order.
+   * Reads the chunks of a single cell whose bounding boxes have the point, and allocates nothing
+   */
+  public void forEachContaining(int x, int y, @NotNull LongConsumer action) {
+    large.forEachContaining(x, y, action);
+    get(cellKey(cell(x), cell(y))).forEachContaining(x, y, action);
+  }
+
+  /**
+   * @return the number of non-empty cells
+   */
+  public int cellCount() {
+    return cellCount;
+  }
+
+  private void forEachCell(Node node, Query query) {
+    for (int i = 0; i < node.keys.length; ++i) {
+      long cellKey = node.keys[i];
+      int cx = (int) (cellKey >> 32);
+      int cy = (int) cellKey;
+      if (cx >= cell(query.minX) && cx <= cell(query.maxX) && cy >= cell(query.minY) && cy <= cell(query.maxY)) {
+        node.cells[i].forEachIntersecting(query, true, cx, cy);
+      }
+    }
+    for (var subtrie : node.nodes) {
+      forEachCell(subtrie, query);
+    }
+  }
+
+  private void checkWritable() {
+    if (owner == null) {
+      throw new UnsupportedOperationException("snapshot is immutable");
+    }
+  }
+
+  private int cell(int coordinate) {
+    return Math.floorDiv(coordinate, cellSize);
+  }
+
+  private long cellsOf(int from, int length) {
+    return (long) cell(right(from, length)) - cell(from) + 1;
+  }
+
+  /**
+   * The far edge, clamped to int: nothing beyond it can be queried anyway
+   */
+  private static int right(int from, int length) {
+    return (int) Math.min((long) from + length, Integer.MAX_VALUE);
+  }
+
+  private static long cellKey(int cx, int cy) {
+    return ((long) cx << 32) | (cy & 0xffffffffL);
+  }
+
+  private @NotNull Cell get(long cellKey) {
+    long hash = hash(cellKey);
+    var node = root;
+    for (int shift = 0; ; shift += BITS) {
+      int bit = bit(hash, shift);
+      if ((node.dataMap & bit) != 0) {
+        int index = index(node.dataMap, bit);
+        return node.keys[index] == cellKey ? node.cells[index] : Cell.EMPTY;
+      }
+      if ((node.nodeMap & bit) == 0) {
+        return Cell.EMPTY;
+      }
+      node = node.nodes[index(node.nodeMap, bit)];
+    }
+  }
+
+  private Node put(Node node, long cellKey, long hash, int shift, Cell cell) {
+    int bit = bit(hash, shift);
+    if ((node.dataMap & bit) != 0) {
+      int index = index(node.dataMap, bit);
+      node = editable(node);
+      if (node.keys[index] == cellKey) {
+        node.cells[index] = cell;
+        return node;
+      }
+      // two cells in one slot: move both to a subtrie
+      var subtrie = pair(node.keys[index], node.cells[index], cellKey, cell, shift + BITS);
+      ++cellCount;
+      node.removeEntry(bit, index);
+      node.insertSubtrie(bit, subtrie);
+      return node;
+    }
+    if ((node.nodeMap & bit) != 0) {
+      int index = index(node.nodeMap, bit);
+      var subtrie = put(node.nodes[index], cellKey, hash, shift + BITS, cell);
+      if (subtrie != node.nodes[index]) {
+        node = editable(node);
+        node.nodes[index] = subtrie;
+      }
+      return node;
+    }
+    ++cellCount;
+    node = editable(node);
+    node.insertEntry(bit, cellKey, cell);
+    return node;
+  }
+
+  private Node pair(long key1, Cell cell1, long key2, Cell cell2, int shift) {
+    var node = new Node(owner);
+    int bit1 = bit(hash(key1), shift);
+    int bit2 = bit(hash(key2), shift);
+    if (bit1 == bit2) {
+      node.insertSubtrie(bit1, pair(key1, cell1, key2, cell2, shift + BITS));
+    } else {
+      node.insertEntry(bit1, key1, cell1);
+      node.insertEntry(bit2, key2, cell2);
+    }
+    return node;
+  }
+
+  private Node remove(Node node, long cellKey, long hash, int shift) {
+    int bit = bit(hash, shift);
+    if ((node.dataMap & bit) != 0) {
+      int index = index(node.dataMap, bit);
+      if (node.keys[index] != cellKey) {
+        return node;
+      }
+      --cellCount;
+      node = editable(node);
+      node.removeEntry(bit, index);
+      return node;
+    }
+    if ((node.nodeMap & bit) == 0) {
+      return node;
+    }
+    int index = index(node.nodeMap, bit);
+    var subtrie = remove(node.nodes[index], cellKey, hash, shift + BITS);
+    if (subtrie == node.nodes[index]) {
+      return node;
+    }
+    node = editable(node);
+    if (subtrie.nodeMap == 0 && subtrie.keys.length == 1) {
+      // a single cell goes back to the parent, so every subtrie has at least two cells
+      node.removeSubtrie(bit, index);
+      node.insertEntry(bit, subtrie.keys[0], subtrie.cells[0]);
+    } else {
+      node.nodes[index] = subtrie;
+    }
+    return node;
+  }
+
+  /**
+   * @return the node itself if this version owns it, otherwise its copy owned by this version
+   */
+  private Node editable(Node node) {
+    if (node.owner == owner) {
+      return node;
+    }
+    var copy = new Node(owner);
+    copy.dataMap = node.dataMap;
+    copy.nodeMap = node.nodeMap;
+    copy.keys = node.keys.clone();
+    copy.cells = node.cells.clone();
+    copy.nodes = node.nodes.clone();
+    return copy;
+  }
+
+  private static long hash(long key) {
+    return LongHashTrie.hash(key);
+  }
+
+  private static int bit(long hash, int shift) {
+    return 1 << ((int) (hash >>> shift) & MASK);
+  }
+
+  /**
+   * @return position of the bit among the bits set in the bitmap
+   */
+  private static int index(int bitmap, int bit) {
+    return Integer.bitCount(bitmap & (bit - 1));
+  }
+
+  private class Query {
+    final int minX;
+    final int minY;
+    final int maxX;
+    final int maxY;
+    final LongConsumer action;
+
+    Query(int minX, int minY, int maxX, int maxY, LongConsumer action) {
+      this.minX = minX;
+      this.minY = minY;
+      this.maxX = maxX;
+      this.maxY = maxY;
+      this.action = action;
+    }
+
+    /**
+     * A rectangle is in every cell it overlaps, so it is reported only from the cell that has the lower left corner
+     * of its intersection with the query
+     */
+    boolean isReportedFrom(int x, int y, int cx, int cy) {
+      return cell(Math.max(x, minX)) == cx && cell(Math.max(y, minY)) == cy;
+    }
+  }
+
+  /**
+   * Rectangles of a cell: a persistent B+ tree of chunks of at most {@link #CHUNK} rectangles, sorted by x and then by key.
+   * Every chunk has the bounding box of its rectangles, so a query skips the chunks it misses, and stops at the first one
+   * that starts to the right of it. A change copies the O(log m) chunks on its path for m rectangles, rather than
+   * all of them, so a crowded cell, like the one every widget created at the default position goes to, stays cheap
+   * to change. Chunks that become empty are dropped, the others are not merged
+   */
+  private abstract static class Cell {
+    static final Cell EMPTY = new Leaf(NO_LONGS, NO_INTS);
+
+    /**
+     * The first rectangle, by which the chunks are sorted
+     */
+    long firstKey;
+    /**
+     * The bounding box: the least x is the x of the first rectangle
+     */
+    int minX;
+    int minY;
+    long maxX;
+    long maxY;
+
+    /**
+     * @param keys   distinct keys, in no particular order
+     * @param bounds x, y, width and height of every rectangle
+     */
+    static @NotNull Cell of(long @NotNull [] keys, int @NotNull [] bounds) {
+      var order = new Integer[keys.length];
+      for (int i = 0; i < order.length; ++i) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> compare(bounds[4 * a], keys[a], bounds[4 * b], keys[b]));
+      var level = new ArrayList<Cell>((keys.length + CHUNK - 1) / CHUNK);
+      for (int from = 0; from < keys.length; from += CHUNK) {
+        int size = Math.min(CHUNK, keys.length - from);
+        var leafKeys = new long[size];
+        var leafBounds = new int[4 * size];
+        for (int i = 0; i < size; ++i) {
+          leafKeys[i] = keys[order[from + i]];
+          System.arraycopy(bounds, 4 * order[from + i], leafBounds, 4 * i, 4);
+        }
+        level.add(new Leaf(leafKeys, leafBounds));
+      }
+      while (level.size() > 1) {
+        var parents = new ArrayList<Cell>((level.size() + CHUNK - 1) / CHUNK);
+        for (int from = 0; from < level.size(); from += CHUNK) {
+          parents.add(new Inner(level.subList(from, Math.min(level.size(), from + CHUNK)).toArray(NO_CELLS)));
+        }
+        level = parents;
+      }
+      return level.isEmpty() ? EMPTY : level.get(0);
+    }
+
+    Cell with(long key, int x, int y, int width, int height) {
+      var chunks = insert(key, x, y, width, height);
+      return chunks.length == 1 ? chunks[0] : new Inner(chunks);
+    }
+
+    /**
+     * @param x the x the rectangle was added with
+     */
+    Cell without(long key, int x) {
+      var cell = delete(key, x);
+      if (cell == null) {
+        return EMPTY;
+      }
+      while (cell instanceof Inner && ((Inner) cell).children.length == 1) {
+        cell = ((Inner) cell).children[0];
+      }
+      return cell;
+    }
+
+    abstract boolean isEmpty();
+
+    /**
+     * @return this chunk changed, or split in two if it has grown too large
+     */
+    abstract Cell[] insert(long key, int x, int y, int width, int height);
+
+    /**
+     * @return this chunk if the rectangle is not in it, null if it has become empty
+     */
+    abstract Cell delete(long key, int x);
+
+    abstract void forEachContaining(int x, int y, LongConsumer action);
+
+    /**
+     * @param inCell whether the cell is (cx, cy) of the grid, rather than the list of large rectangles
+     */
+    abstract void forEachIntersecting(SpatialGrid.Query query, boolean inCell, int cx, int cy);
+
+    boolean contains(int x, int y) {
+      return minX <= x && maxX >= x && minY <= y && maxY >= y;
+    }
+
+    boolean intersects(SpatialGrid.Query query) {
+      return minX <= query.maxX && maxX >= query.minX && minY <= query.maxY && maxY >= query.minY;
+    }
+
+    static int compare(int x1, long key1, int x2, long key2) {
+      return x1 != x2 ? Integer.compare(x1, x2) : Long.compare(key1, key2);
+    }
+  }
+
+  /**
+   * Keys, and positions and sizes, 4 ints per rectangle
+   */
+  private static class Leaf extends Cell {
+    final long[] keys;
+    final int[] bounds;
+
+    Leaf(long[] keys, int[] bounds) {
+      this.keys = keys;
+      this.bounds = bounds;
+      if (keys.length == 0) {
+        return;
+      }
+      firstKey = keys[0];
+      minX = bounds[0];
+      minY = Integer.MAX_VALUE;
+      maxX = Long.MIN_VALUE;
+      maxY = Long.MIN_VALUE;
+      for (int i = 0; i < keys.length; ++i) {
+        minY = Math.min(minY, bounds[4 * i + 1]);
+        maxX = Math.max(maxX, (long) bounds[4 * i] + bounds[4 * i + 2]);
+        maxY = Math.max(maxY, (long) bounds[4 * i + 1] + bounds[4 * i + 3]);
+      }
+    }
+
+    @Override
+    boolean isEmpty() {
+      return keys.length == 0;
+    }
+
+    @Override
+    Cell[] insert(long key, int x, int y, int width, int height) {
+      int index = 0;
+      while (index < keys.length && compare(bounds[4 * index], keys[index], x, key) < 0) {
+        ++index;
+      }
+      var newKeys = new long[keys.length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, index);
+      newKeys[index] = key;
+      System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+      var newBounds = new int[bounds.length + 4];
+      System.arraycopy(bounds, 0, newBounds, 0, 4 * index);
+      newBounds[4 * index] = x;
+      newBounds[4 * index + 1] = y;
+      newBounds[4 * index + 2] = width;
+      newBounds[4 * index + 3] = height;
+      System.arraycopy(bounds, 4 * index, newBounds, 4 * index + 4, bounds.length - 4 * index);
+      if (newKeys.length <= CHUNK) {
+        return new Cell[]{new Leaf(newKeys, newBounds)};
+      }
+      int half = newKeys.length / 2;
+      return new Cell[]{
+        new Leaf(Arrays.copyOfRange(newKeys, 0, half), Arrays.copyOfRange(newBounds, 0, 4 * half)),
+        new Leaf(Arrays.copyOfRange(newKeys, half, newKeys.length), Arrays.copyOfRange(newBounds, 4 * half, newBounds.length))};
+    }
+
+    @Override
+    Cell delete(long key, int x) {
+      for (int i = 0; i < keys.length; ++i) {
+        if (keys[i] == key && bounds[4 * i] == x) {
+          if (keys.length == 1) {
+            return null;
+          }
+          var newKeys = new long[keys.length - 1];
+          System.arraycopy(keys, 0, newKeys, 0, i);
+          System.arraycopy(keys, i + 1, newKeys, i, keys.length - i - 1);
+          var newBounds = new int[bounds.length - 4];
+          System.arraycopy(bounds, 0, newBounds, 0, 4 * i);
+          System.arraycopy(bounds, 4 * i + 4, newBounds, 4 * i, bounds.length - 4 * i - 4);
+          return new Leaf(newKeys, newBounds);
+        }
+      }
+      return this;
+    }
+
+    @Override
+    void forEachContaining(int x, int y, LongConsumer action) {
+      for (int i = 0; i < keys.length; ++i) {
+        int left = bounds[4 * i];
+        if (left > x) {
+          return;
+        }
+        int bottom = bounds[4 * i + 1];
+        if ((long) left + bounds[4 * i + 2] >= x && bottom <= y && (long) bottom + bounds[4 * i + 3] >= y) {
+          action.accept(keys[i]);
+        }
+      }
+    }
+
+    @Override
+    void forEachIntersecting(SpatialGrid.Query query, boolean inCell, int cx, int cy) {
+      for (int i = 0; i < keys.length; ++i) {
+        int x = bounds[4 * i];
+        if (x > query.maxX) {
+          return;
+        }
+        int y = bounds[4 * i + 1];
+        if ((long) x + bounds[4 * i + 2] >= query.minX
+          && y <= query.maxY && (long) y + bounds[4 * i + 3] >= query.minY
+          && (!inCell || query.isReportedFrom(x, y, cx, cy))) {
+          query.action.accept(keys[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Chunks of the rectangles that follow one another in the order of the cell
+   */
+  private static class Inner extends Cell {
+    final Cell[] children;
+
+    Inner(Cell[] children) {
+      this.children = children;
+      firstKey = children[0].firstKey;
+      minX = children[0].minX;
+      minY = Integer.MAX_VALUE;
+      maxX = Long.MIN_VALUE;
+      maxY = Long.MIN_VALUE;
+      for (var child : children) {
+        minY = Math.min(minY, child.minY);
+        maxX = Math.max(maxX, child.maxX);
+        maxY = Math.max(maxY, child.maxY);
+      }
+    }
+
+    @Override
+    boolean isEmpty() {
+      return false;
+    }
+
+    /**
+     * @return the last child whose first rectangle is not after the given one, or the first child
+     */
+    private int route(long key, int x) {
+      int index = children.length - 1;
+      while (index > 0 && compare(x, key, children[index].minX, children[index].firstKey) < 0) {
+        --index;
+      }
+      return index;
+    }
+
+    @Override
+    Cell[] insert(long key, int x, int y, int width, int height) {
+      int index = route(key, x);
+      var chunks = children[index].insert(key, x, y, width, height);
+      var newChildren = new Cell[children.length + chunks.length - 1];
+      System.arraycopy(children, 0, newChildren, 0, index);
+      System.arraycopy(chunks, 0, newChildren, index, chunks.length);
+      System.arraycopy(children, index + 1, newChildren, index + chunks.length, children.length - index - 1);
+      if (newChildren.length <= CHUNK) {
+        return new Cell[]{new Inner(newChildren)};
+      }
+      int half = newChildren.length / 2;
+      return new Cell[]{
+        new Inner(Arrays.copyOfRange(newChildren, 0, half)),
+        new Inner(Arrays.copyOfRange(newChildren, half, newChildren.length))};
+    }
+
+    @Override
+    Cell delete(long key, int x) {
+      int index = route(key, x);
+      var child = children[index].delete(key, x);
+      if (child == children[index]) {
+        return this;
+      }
+      if (child != null) {
+        var newChildren = children.clone();
+        newChildren[index] = child;
+        return new Inner(newChildren);
+      }
+      if (children.length == 1) {
+        return null;
+      }
+      var newChildren = new Cell[children.length - 1];
+      System.arraycopy(children, 0, newChildren, 0, index);
+      System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+      return new Inner(newChildren);
+    }
+
+    @Override
+    void forEachContaining(int x, int y, LongConsumer action) {
+      for (var child : children) {
+        if (child.minX > x) {
+          return;
+        }
+        if (child.contains(x, y)) {
+          child.forEachContaining(x, y, action);
+        }
+      }
+    }
+
+    @Override
+    void forEachIntersecting(SpatialGrid.Query query, boolean inCell, int cx, int cy) {
+      for (var child : children) {
+        if (child.minX > query.maxX) {
+          return;
+        }
+        if (child.intersects(query)) {
+          child.forEachIntersecting(query, inCell, cx, cy);
+        }
+      }
+    }
+  }
+
+  private static class Node {
+    private final Object owner;
+    private int dataMap;
+    private int nodeMap;
+    private long[] keys = NO_LONGS;
+    private Cell[] cells = NO_CELLS;
+    private Node[] nodes = NO_NODES;
+
+    Node(Object owner) {
+      this.owner = owner;
+    }
+
+    void insertEntry(int bit, long key, Cell cell) {
+      int index = index(dataMap, bit);
+      dataMap |= bit;
+      var newKeys = new long[keys.length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, index);
+      newKeys[index] = key;
+      System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+      keys = newKeys;
+      var newCells = new Cell[cells.length + 1];
+      System.arraycopy(cells, 0, newCells, 0, index);
+      newCells[index] = cell;
+      System.arraycopy(cells, index, newCells, index + 1, cells.length - index);
+      cells = newCells;
+    }
+
+    void removeEntry(int bit, int index) {
+      dataMap ^= bit;
+      var newKeys = Arrays.copyOf(keys, keys.length - 1);
+      System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+      keys = newKeys;
+      var newCells = Arrays.copyOf(cells, cells.length - 1);
+      System.arraycopy(cells, index + 1, newCells, index, cells.length - index - 1);
+      cells = newCells;
+    }
+
+    void insertSubtrie(int bit, Node subtrie) {
+      int index = index(nodeMap, bit);
+      nodeMap |= bit;
+      var result = new Node[nodes.length + 1];
+      System.arraycopy(nodes, 0, result, 0, index);
+      result[index] = subtrie;
+      System.arraycopy(nodes, index, result, index + 1, nodes.length - index);
+      nodes = result;
+    }
+
+    void removeSubtrie(int bit, int index) {
+      nodeMap ^= bit;
+      var result = Arrays.copyOf(nodes, nodes.length - 1);
+      System.arraycopy(nodes, index + 1, result, index, nodes.length - index - 1);
+      nodes = result;
+    }
+  }
+}
@@ -0,0 +1,779 @@
+package pashazz.widgetmanager.collection;
+
+import org.jetbrains.annotations.NotNull;
+import pashazz.widgetmanager.entity.interfaces.ZOrderable;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An order-statistic tree (treap) of z-ordered elements.
+ * <p>
+ * Elements are addressed by their rank (index) like in a list, but insertion, removal,
+ * access by index and lookup by z-order take O(log n) instead of shifting an array.
+ * <p>
+ * The tree does not sort elements itself: the caller inserts an element at the position found by {@link #indexOfZOrder(int)},
+ * so z-orders stay sorted and unique.
+ * <p>
+ * Z-orders of a range of elements are changed lazily by {@link #shift(int, int, int)}: the offset is stored at the top
+ * of the range and added to the z-order of an element when it is read. An element whose stored z-order differs from
+ * its effective one is returned as a copy made by {@link Relocator}.
+ * <p>
+ * Every element has a label: a number that grows with the rank, but unlike the rank and the z-order is not changed by
+ * insertions, removals and shifts of other elements. Labels let the caller find an element in O(log n) by remembering
+ * its label. Rarely, an insertion relabels its neighbours to make room; {@link LabelListener} is notified then.
+ * <p>
+ * The tree is persistent: {@link #snapshot()} returns an immutable version in O(1), which shares all its nodes with this tree.
+ * Every node is owned by the version that created it; a write copies the nodes on its path that belong to
+ * an earlier snapshot (O(log n) nodes), and changes the nodes created since the last snapshot in place.
+ * <p>
+ * This class is NOT thread safe, its snapshots are.
+ *
+ * @param <W> element type
+ */
+public class ZOrderTree<W extends ZOrderable> extends AbstractList<W> {
+
+  /**
+   * Labels are within [0, LABEL_LIMIT)
+   */
+  static final long LABEL_LIMIT = 1L << 62;
+
+  /**
+   * Distance between the labels of elements appended to either end of the tree
+   */
+  private static final long LABEL_GAP = 1L << 24;
+
+  /**
+   * The maximum number of labels in an aligned label range of 2^level values that may be spread evenly over it.
+   * It is 2^level / 1.4^level, so the gaps between labels grow with the range,
+   * and the number of labels changed per insertion is O(log n) amortized
+   */
+  private static final long[] RELABEL_CAPACITY = new long[63];
+
+  static {
+    for (int level = 0; level < RELABEL_CAPACITY.length; ++level) {
+      RELABEL_CAPACITY[level] = (long) Math.pow(2 / 1.4, level);
+    }
+  }
+
+  /**
+   * Makes a copy of an element with another z-order
+   */
+  @FunctionalInterface
+  public interface Relocator<W> {
+    @NotNull
+    W relocate(@NotNull W element, int z);
+  }
+
+  /**
+   * Is notified when the label of an element is changed to make room for an insertion
+   */
+  @FunctionalInterface
+  public interface LabelListener<W> {
+    void labelChanged(@NotNull W element, long label);
+  }
+
+  private final Relocator<W> relocator;
+
+  private final LabelListener<W> labelListener;
+
+  private Node<W> root;
+
+  /**
+   * Nodes having this owner may be changed in place. Null for snapshots, which may not be changed at all
+   */
+  private Object owner;
+
+  public ZOrderTree(@NotNull Relocator<W> relocator, @NotNull LabelListener<W> labelListener) {
+    this(relocator, labelListener, null, new Object());
+  }
+
+  private ZOrderTree(Relocator<W> relocator, LabelListener<W> labelListener, Node<W> root, Object owner) {
+    this.relocator = relocator;
+    this.labelListener = labelListener;
+    this.root = root;
+    this.owner = owner;
+  }
+
+  /**
+   * Freezes the current state of the tree.
+   * Subsequent writes to this tree copy the nodes they change, so the returned version never changes.
+   *
+   * @return an immutable version of this tree
+   */
+  public @NotNull ZOrderTree<W> snapshot() {
+    if (owner == null) {
+      return this;
+    }
+    owner = new Object();
+    return new ZOrderTree<>(relocator, labelListener, root, null);
+  }
+
+  /**
+   * @return a tree that starts with the contents of this one, and then changes independently of it. O(1)
+   */
+  public @NotNull ZOrderTree<W> mutableCopy() {
+    return new ZOrderTree<>(relocator, labelListener, snapshot().root, new Object());
+  }
+
+  @Override
+  public int size() {
+    return size(root);
+  }
+
+  @Override
+  public W get(int index) {
+    checkIndex(index);
+    var node = root;
+    int shift = 0;
+    while (true) {
+      int leftSize = size(node.left);
+      if (index == leftSize) {
+        return valueOf(node, shift);
+      }
+      shift += node.shift;
+      if (index < leftSize) {
+        node = node.left;
+      } else {
+        index -= leftSize + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  /**
+   * Replaces an element, keeping its label. The new element must have the same z-order as the old one
+   */
+  @Override
+  public W set(int index, W element) {
+    checkWritable();
+    W old = get(index);
+    root = set(root, index, element);
+    return old;
+  }
+
+  @Override
+  public void add(int index, W element) {
+    insert(index, element);
+  }
+
+  /**
+   * Inserts an element at the position, which must keep z-orders sorted
+   *
+   * @return label of the inserted element
+   */
+  public long insert(int index, @NotNull W element) {
+    if (index < 0 || index > size()) {
+      throw new IndexOutOfBoundsException(outOfBoundsMessage(index));
+    }
+    checkWritable();
+    long label = newLabel(index);
+    root = insert(root, index, new Node<>(element, element.getZ(), label, ThreadLocalRandom.current().nextInt(), owner));
+    modCount++;
+    return label;
+  }
+
+  @Override
+  public W remove(int index) {
+    checkWritable();
+    W old = get(index);
+    root = remove(root, index);
+    modCount++;
+    return old;
+  }
+
+  @Override
+  public void clear() {
+    checkWritable();
+    root = null;
+    modCount++;
+  }
+
+  /**
+   * Adds delta to the z-orders of a range of elements in O(log n). The caller must keep z-orders sorted and unique.
+   *
+   * @param fromIndex low endpoint (inclusive)
+   * @param toIndex   high endpoint (exclusive)
+   * @param delta     z-order change
+   */
+  public void shift(int fromIndex, int toIndex, int delta) {
+    if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException(rangeOutOfBoundsMessage(fromIndex, toIndex));
+    }
+    checkWritable();
+    if (fromIndex == toIndex || delta == 0) {
+      return;
+    }
+    var right = split(root, toIndex);
+    var middle = split(right.left, fromIndex);
+    var shifted = withShift(middle.right, delta);
+    root = merge(merge(middle.left, shifted), right.right);
+    modCount++;
+  }
+
+  /**
+   * Finds the end of a run of consecutive z-orders: z, z + 1, z + 2...
+   *
+   * @param index the start of the run
+   * @return index of the first element after the run (its z-order is not consecutive, or it is the size of the tree)
+   */
+  public int runEnd(int index) {
+    checkIndex(index);
+    // z - index does not decrease in a sorted tree, and stays the same within a run
+    long runStart = (long) get(index).getZ() - index;
+    var node = root;
+    int shift = 0;
+    int offset = 0;
+    int result = size();
+    while (node != null) {
+      int rank = offset + size(node.left);
+      long z = (long) node.z + shift;
+      shift += node.shift;
+      if (z - rank > runStart) {
+        result = rank;
+        node = node.left;
+      } else {
+        offset = rank + 1;
+        node = node.right;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Looks up an element by its z-order, the same way {@link java.util.Collections#binarySearch} does
+   *
+   * @param z z-order to find
+   * @return index of the element with this z-order, or (-(insertion point) - 1) if there is none
+   */
+  public int indexOfZOrder(int z) {
+    var node = root;
+    int shift = 0;
+    int offset = 0;
+    while (node != null) {
+      int nodeZ = node.z + shift;
+      shift += node.shift;
+      if (z < nodeZ) {
+        node = node.left;
+      } else if (z > nodeZ) {
+        offset += size(node.left) + 1;
+        node = node.right;
+      } else {
+        return offset + size(node.left);
+      }
+    }
+    return -offset - 1;
+  }
+
+  /**
+   * Looks up an element by its label
+   *
+   * @return index of the element with this label, or -1 if there is none
+   */
+  public int indexOfLabel(long label) {
+    var node = root;
+    int offset = 0;
+    while (node != null) {
+      if (label < node.label) {
+        node = node.left;
+      } else if (label > node.label) {
+        offset += size(node.left) + 1;
+        node = node.right;
+      } else {
+        return offset + size(node.left);
+      }
+    }
+    return -1;
+  }
+
+  public long labelAt(int index) {
+    checkIndex(index);
+    var node = root;
+    while (true) {
+      int leftSize = size(node.left);
+      if (index < leftSize) {
+        node = node.left;
+      } else if (index > leftSize) {
+        index -= leftSize + 1;
+        node = node.right;
+      } else {
+        return node.label;
+      }
+    }
+  }
+
+  /**
+   * Copies a range of elements in O(log n + k), unlike {@link #subList(int, int)} which costs O(log n) per element
+   *
+   * @param fromIndex low endpoint (inclusive)
+   * @param toIndex   high endpoint (exclusive)
+   * @return a new list with the elements of the range
+   * @throws IndexOutOfBoundsException if the range is not within the tree
+   */
+  public @NotNull List<W> range(int fromIndex, int toIndex) {
+    if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException(rangeOutOfBoundsMessage(fromIndex, toIndex));
+    }
+    var result = new ArrayList<W>(toIndex - fromIndex);
+    var iterator = iterator(fromIndex);
+    for (int i = fromIndex; i < toIndex; ++i) {
+      result.add(iterator.next());
+    }
+    return result;
+  }
+
+  /**
+   * In-order iterator: O(1) amortized per element instead of O(log n) per {@link #get(int)}
+   */
+  @Override
+  public @NotNull Iterator<W> iterator() {
+    return iterator(0);
+  }
+
+  private Iterator<W> iterator(int fromIndex) {
+    return new Iterator<>() {
+      // nodes that come next, and the sums of the shifts of their ancestors
+      private Node<W>[] path = newPath();
+      private int[] shifts = new int[path.length];
+      private int depth = 0;
+      private final int expectedModCount = modCount;
+
+      {
+        // descend to the starting element, remembering the nodes that come after it
+        var node = root;
+        int shift = 0;
+        int index = fromIndex;
+        while (node != null) {
+          int leftSize = size(node.left);
+          if (index <= leftSize) {
+            push(node, shift);
+            if (index == leftSize) {
+              break;
+            }
+            shift += node.shift;
+            node = node.left;
+          } else {
+            index -= leftSize + 1;
+            shift += node.shift;
+            node = node.right;
+          }
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return depth > 0;
+      }
+
+      @Override
+      public W next() {
+        if (expectedModCount != modCount) {
+          throw new ConcurrentModificationException();
+        }
+        if (depth == 0) {
+          throw new NoSuchElementException();
+        }
+        var node = path[--depth];
+        int shift = shifts[depth];
+        path[depth] = null;
+        int childShift = shift + node.shift;
+        for (var next = node.right; next != null; next = next.left) {
+          push(next, childShift);
+          childShift += next.shift;
+        }
+        return valueOf(node, shift);
+      }
+
+      private void push(Node<W> node, int shift) {
+        if (depth == path.length) {
+          path = Arrays.copyOf(path, depth * 2);
+          shifts = Arrays.copyOf(shifts, depth * 2);
+        }
+        path[depth] = node;
+        shifts[depth++] = shift;
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <W> Node<W>[] newPath() {
+    return (Node<W>[]) new Node[32];
+  }
+
+  /**
+   * @param shift sum of the shifts of the node's ancestors
+   * @return the element of the node with its effective z-order
+   */
+  private W valueOf(Node<W> node, int shift) {
+    int z = node.z + shift;
+    return node.value.getZ() == z ? node.value : relocator.relocate(node.value, z);
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException(outOfBoundsMessage(index));
+    }
+  }
+
+  private void checkWritable() {
+    if (owner == null) {
+      throw new UnsupportedOperationException("snapshot is immutable");
+    }
+  }
+
+  private String outOfBoundsMessage(int index) {
+    return String.format("Index: %s, Size: %s", index, size());
+  }
+
+  private String rangeOutOfBoundsMessage(int fromIndex, int toIndex) {
+    return String.format("Range: [%s, %s), Size: %s", fromIndex, toIndex, size());
+  }
+
+  //region labels
+
+  /**
+   * Picks a label between the labels of the neighbours of the position, relabeling them if there is no room
+   */
+  private long newLabel(int index) {
+    long before = index > 0 ? labelAt(index - 1) : -1;
+    long after = index < size() ? labelAt(index) : LABEL_LIMIT;
+    if (after - before > 1) {
+      long half = (after - before) / 2;
+      if (after == LABEL_LIMIT) {
+        return before + Math.min(LABEL_GAP, half);
+      }
+      if (before == -1) {
+        return after - Math.min(LABEL_GAP, half);
+      }
+      return before + half;
+    }
+    return relabel(index, before >= 0 ? before : after);
+  }
+
+  /**
+   * Finds the smallest aligned label range around the anchor that is sparse enough,
+   * and spreads its labels evenly, leaving a free label at the position
+   *
+   * @return the free label
+   */
+  private long relabel(int index, long anchor) {
+    for (int level = 1; level < RELABEL_CAPACITY.length; ++level) {
+      long from = (anchor >> level) << level;
+      long to = from + (1L << level);
+      int fromIndex = countLabelsBelow(from);
+      int count = countLabelsBelow(to) - fromIndex;
+      if (count + 1 <= RELABEL_CAPACITY[level]) {
+        var relabeling = new Relabeling(fromIndex, fromIndex + count, index, from, (to - from) / (count + 1));
+        root = relabel(root, 0, relabeling);
+        return relabeling.labelOf(index);
+      }
+    }
+    throw new IllegalStateException(String.format("unable to label %s elements", size() + 1));
+  }
+
+  private int countLabelsBelow(long label) {
+    var node = root;
+    int count = 0;
+    while (node != null) {
+      if (label <= node.label) {
+        node = node.left;
+      } else {
+        count += size(node.left) + 1;
+        node = node.right;
+      }
+    }
+    return count;
+  }
+
+  private Node<W> relabel(Node<W> tree, int offset, Relabeling relabeling) {
+    if (tree == null || offset >= relabeling.toIndex || offset + tree.size <= relabeling.fromIndex) {
+      return tree;
+    }
+    tree = editable(tree);
+    int rank = offset + size(tree.left);
+    tree.left = relabel(tree.left, offset, relabeling);
+    if (rank >= relabeling.fromIndex && rank < relabeling.toIndex) {
+      tree.label = relabeling.labelOf(rank < relabeling.freeIndex ? rank : rank + 1);
+      labelListener.labelChanged(tree.value, tree.label);
+    }
+    tree.right = relabel(tree.right, rank + 1, relabeling);
+    return tree;
+  }
+
+  /**
+   * Elements [fromIndex, toIndex) get evenly spaced labels; freeIndex is where an element is going to be inserted
+   */
+  private static class Relabeling {
+    private final int fromIndex;
+    private final int toIndex;
+    private final int freeIndex;
+    private final long firstLabel;
+    private final long step;
+
+    Relabeling(int fromIndex, int toIndex, int freeIndex, long firstLabel, long step) {
+      this.fromIndex = fromIndex;
+      this.toIndex = toIndex;
+      this.freeIndex = freeIndex;
+      this.firstLabel = firstLabel;
+      this.step = step;
+    }
+
+    long labelOf(int slot) {
+      return firstLabel + step * (slot - fromIndex);
+    }
+  }
+
+  //endregion
+
+  //region tree operations. Every node changed must be editable, and its shift must be pushed down before its children change
+
+  /**
+   * @return the node itself if this version owns it, otherwise its copy owned by this version
+   */
+  private Node<W> editable(Node<W> node) {
+    if (node == null || node.owner == owner) {
+      return node;
+    }
+    var copy = new Node<>(node.value, node.z, node.label, node.priority, owner);
+    copy.shift = node.shift;
+    copy.left = node.left;
+    copy.right = node.right;
+    copy.size = node.size;
+    return copy;
+  }
+
+  /**
+   * @return the subtree with delta added to all its z-orders
+   */
+  private Node<W> withShift(Node<W> tree, int delta) {
+    if (tree == null || delta == 0) {
+      return tree;
+    }
+    tree = editable(tree);
+    tree.z += delta;
+    tree.shift += delta;
+    return tree;
+  }
+
+  private void pushDown(Node<W> node) {
+    if (node.shift != 0) {
+      node.left = withShift(node.left, node.shift);
+      node.right = withShift(node.right, node.shift);
+      node.shift = 0;
+    }
+  }
+
+  private Node<W> set(Node<W> tree, int index, W element) {
+    tree = editable(tree);
+    int leftSize = size(tree.left);
+    if (index < leftSize) {
+      tree.left = set(tree.left, index, element);
+    } else if (index > leftSize) {
+      tree.right = set(tree.right, index - leftSize - 1, element);
+    } else {
+      tree.value = element;
+    }
+    return tree;
+  }
+
+  private Node<W> insert(Node<W> tree, int index, Node<W> node) {
+    if (tree == null) {
+      return node;
+    }
+    if (node.priority > tree.priority) {
+      // the new node becomes the root of this subtree
+      var parts = split(tree, index);
+      node.left = parts.left;
+      node.right = parts.right;
+      return node.update();
+    }
+    tree = editable(tree);
+    pushDown(tree);
+    int leftSize = size(tree.left);
+    if (index <= leftSize) {
+      tree.left = insert(tree.left, index, node);
+    } else {
+      tree.right = insert(tree.right, index - leftSize - 1, node);
+    }
+    return tree.update();
+  }
+
+  private Node<W> remove(Node<W> tree, int index) {
+    int leftSize = size(tree.left);
+    if (index == leftSize) {
+      return merge(withShift(tree.left, tree.shift), withShift(tree.right, tree.shift));
+    }
+    tree = editable(tree);
+    pushDown(tree);
+    if (index < leftSize) {
+      tree.left = remove(tree.left, index);
+    } else {
+      tree.right = remove(tree.right, index - leftSize - 1);
+    }
+    return tree.update();
+  }
+
+  /**
+   * Splits the tree into the first {@code index} elements and the rest
+   */
+  private Split<W> split(Node<W> tree, int index) {
+    if (tree == null) {
+      return new Split<>(null, null);
+    }
+    tree = editable(tree);
+    pushDown(tree);
+    int leftSize = size(tree.left);
+    if (index <= leftSize) {
+      var parts = split(tree.left, index);
+      tree.left = parts.right;
+      parts.right = tree.update();
+      return parts;
+    }
+    var parts = split(tree.right, index - leftSize - 1);
+    tree.right = parts.left;
+    parts.left = tree.update();
+    return parts;
+  }
+
+  /**
+   * Merges two trees where every element of {@code left} goes before every element of {@code right}
+   */
+  private Node<W> merge(Node<W> left, Node<W> right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      left = editable(left);
+      pushDown(left);
+      left.right = merge(left.right, right);
+      return left.update();
+    }
+    right = editable(right);
+    pushDown(right);
+    right.left = merge(left, right.left);
+    return right.update();
+  }
+
+  //endregion
+
+  private static int size(Node<?> node) {
+    return node == null ? 0 : node.size;
+  }
+
+  /**
+   * Builds a tree of elements given in z-order in O(n), rather than O(n log n) of inserting them one by one.
+   * An element is appended to the right spine of the treap: the spine nodes of lower priority become its left subtree.
+   * Labels are spaced the way appending to the tree spaces them.
+   * <p>
+   * A builder builds a single tree.
+   */
+  public static class Builder<W extends ZOrderable> {
+    private final Relocator<W> relocator;
+    private final LabelListener<W> labelListener;
+    private final Object owner = new Object();
+    /**
+     * The right spine of the tree built so far, from the root down. The subtrees left of it are complete
+     */
+    private Node<W>[] spine = newPath();
+    private int depth;
+    private long lastLabel = -1;
+    private int lastZ;
+
+    public Builder(@NotNull Relocator<W> relocator, @NotNull LabelListener<W> labelListener) {
+      this.relocator = relocator;
+      this.labelListener = labelListener;
+    }
+
+    /**
+     * Appends an element, whose z-order must be greater than that of the previous one. O(1) amortized
+     *
+     * @return label of the element
+     */
+    public long append(@NotNull W element) {
+      if (lastLabel >= 0 && element.getZ() <= lastZ) {
+        throw new IllegalArgumentException(String.format("z-order %s does not follow %s", element.getZ(), lastZ));
+      }
+      long label = lastLabel + LABEL_GAP;
+      if (label >= LABEL_LIMIT) {
+        throw new IllegalStateException(String.format("unable to label %s elements", label / LABEL_GAP));
+      }
+      var node = new Node<>(element, element.getZ(), label, ThreadLocalRandom.current().nextInt(), owner);
+      Node<W> below = null;
+      while (depth > 0 && spine[depth - 1].priority < node.priority) {
+        // its right child, if any, has just been popped, so its size is final
+        below = spine[--depth].update();
+        spine[depth] = null;
+      }
+      node.left = below;
+      if (depth > 0) {
+        spine[depth - 1].right = node;
+      }
+      if (depth == spine.length) {
+        spine = Arrays.copyOf(spine, depth * 2);
+      }
+      spine[depth++] = node;
+      lastLabel = label;
+      lastZ = element.getZ();
+      return label;
+    }
+
+    public @NotNull ZOrderTree<W> build() {
+      Node<W> root = null;
+      while (depth > 0) {
+        root = spine[--depth].update();
+        spine[depth] = null;
+      }
+      return new ZOrderTree<>(relocator, labelListener, root, owner);
+    }
+  }
+
+  private static class Split<W> {
+    private Node<W> left;
+    private Node<W> right;
+
+    Split(Node<W> left, Node<W> right) {
+      this.left = left;
+      this.right = right;
+    }
+  }
+
+  private static class Node<W> {
+    private final int priority;
+    private final Object owner;
+    private W value;
+    /**
+     * Effective z-order of the element minus the shifts of the node's ancestors
+     */
+    private int z;
+    /**
+     * Pending shift of the z-orders of the node's descendants
+     */
+    private int shift;
+    private long label;
+    private int size = 1;
+    private Node<W> left;
+    private Node<W> right;
+
+    Node(W value, int z, long label, int priority, Object owner) {
+      this.value = value;
+      this.z = z;
+      this.label = label;
+      this.priority = priority;
+      this.owner = owner;
+    }
+
+    Node<W> update() {
+      size = 1 + size(left) + size(right);
+      return this;
+    }
+  }
+}
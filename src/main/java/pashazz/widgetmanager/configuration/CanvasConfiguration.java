@@ -0,0 +1,36 @@
+package pashazz.widgetmanager.configuration;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.canvas.WidgetCanvas;
+import pashazz.widgetmanager.repository.canvas.WidgetCanvases;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.rest.SerializedWidgetsCache;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * The canvases of any storage: the repository of the storage is the default canvas,
+ * and the storage may provide a {@link WidgetCanvases.Factory} of the others
+ */
+@Configuration
+public class CanvasConfiguration {
+
+  /**
+   * Closed before the repository of the storage, which it depends on
+   */
+  @Bean
+  public WidgetCanvases widgetCanvases(WidgetRepository<Long> widgetRepository, WidgetChangeLog<Long> widgetChangeLog,
+                                       ObjectProvider<WidgetCanvases.Factory> canvasFactory,
+                                       @Value("${widgetmanager.response-cache-size:64MB}") DataSize responseCacheSize,
+                                       @Value("${widgetmanager.canvas-idle-timeout:10m}") Duration idleTimeout) {
+    var defaultCanvas = new WidgetCanvas(WidgetCanvases.DEFAULT_CANVAS, widgetRepository, widgetChangeLog,
+      new SerializedWidgetsCache(responseCacheSize.toBytes()), true, List.of());
+    return new WidgetCanvases(defaultCanvas, canvasFactory.getIfAvailable(), idleTimeout);
+  }
+}
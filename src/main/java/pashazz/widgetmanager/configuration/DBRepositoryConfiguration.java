@@ -1,12 +1,16 @@
 package pashazz.widgetmanager.configuration;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.transaction.PlatformTransactionManager;
 import pashazz.widgetmanager.entity.db.JPAWidgetBuilder;
 import pashazz.widgetmanager.entity.db.JpaWidgetImpl;
 import pashazz.widgetmanager.entity.interfaces.WidgetBuilder;
@@ -16,11 +20,17 @@ import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
 import pashazz.widgetmanager.factory.MutableWidgetFactory;
 import pashazz.widgetmanager.generator.CounterSupplier;
 import pashazz.widgetmanager.repository.WidgetRepository;
-import pashazz.widgetmanager.repository.concurrent.ConcurrentWidgetRepository;
+import pashazz.widgetmanager.repository.cache.CachingWidgetRepository;
+import pashazz.widgetmanager.repository.cache.WidgetCache;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.concurrent.WriteMode;
 import pashazz.widgetmanager.repository.db.DbWidgetRepository;
+import pashazz.widgetmanager.repository.db.StoragePoller;
 import pashazz.widgetmanager.repository.db.jpa.JpaWidgetRepository;
+import pashazz.widgetmanager.repository.db.jpa.JpaWidgetsVersionRepository;
 
 import javax.persistence.EntityManager;
+import java.time.Duration;
 import java.util.function.Supplier;
 
 @Configuration
@@ -33,22 +43,72 @@ public class DBRepositoryConfiguration {
   @Autowired
   private JpaWidgetRepository jpaWidgetRepository;
 
+  @Autowired
+  private JpaWidgetsVersionRepository jpaWidgetsVersionRepository;
+
   @Autowired
   private EntityManager entityManager;
 
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @Value("${widgetmanager.write-mode:lock}")
+  private WriteMode writeMode;
+
+  @Value("${widgetmanager.change-log-size:10000}")
+  private int changeLogSize;
+
+  @Value("${widgetmanager.db-cache-size:100000}")
+  private long cacheSize;
+
+  /**
+   * Several instances of the application may share the database, see {@link DbWidgetRepository}
+   */
+  @Bean
+  public WidgetRepository<Long> widgetRepository(ObjectProvider<WidgetCache<Long>> widgetCache) {
+    var cache = widgetCache.getIfAvailable();
+    WidgetRepository<Long> repo = new DbWidgetRepository(
+      jpaWidgetRepository,
+      jpaWidgetsVersionRepository,
+      new MutableWidgetFactory<>(
+        idGenerator(),
+        creationValidator(),
+        updateValidator(),
+        builderSupplier()
+      ),
+      entityManager,
+      transactionManager,
+      widgetChangeLog(),
+      cache
+    );
+    if (cache != null) {
+      repo = new CachingWidgetRepository<>(repo, cache);
+    }
+    // the database serializes the writes, of the other instances too, so the lock of this one would add nothing
+    return writeMode == WriteMode.LOCK ? repo : writeMode.decorate(repo);
+  }
+
+  /**
+   * Unless widgetmanager.db-cache-size is 0
+   */
+  @Bean
+  @ConditionalOnExpression("${widgetmanager.db-cache-size:100000} > 0")
+  public WidgetCache<Long> widgetCache() {
+    return new WidgetCache<>(cacheSize);
+  }
+
+  /**
+   * Several instances of the application may share the database: polls it for their writes
+   */
+  @Bean
+  public StoragePoller storagePoller(WidgetRepository<Long> widgetRepository,
+                                     @Value("${widgetmanager.db-sync-interval:1s}") Duration interval) {
+    return new StoragePoller(widgetRepository, interval);
+  }
+
   @Bean
-  public WidgetRepository<Long> widgetRepository() {
-    return new ConcurrentWidgetRepository<>(
-      new DbWidgetRepository(
-        jpaWidgetRepository,
-        new MutableWidgetFactory<>(
-          idGenerator(),
-          creationValidator(),
-          updateValidator(),
-          builderSupplier()
-        ),
-        entityManager
-      ));
+  public WidgetChangeLog<Long> widgetChangeLog() {
+    return new WidgetChangeLog<>(changeLogSize);
   }
 
   private Supplier<WidgetBuilder<Long, JpaWidgetImpl>> builderSupplier() {
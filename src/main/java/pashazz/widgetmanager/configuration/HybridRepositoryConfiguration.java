@@ -0,0 +1,110 @@
+package pashazz.widgetmanager.configuration;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.transaction.PlatformTransactionManager;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.interfaces.WidgetBuilder;
+import pashazz.widgetmanager.entity.memory.InMemoryLongWidgetBuilder;
+import pashazz.widgetmanager.entity.validator.CreationRequestValidator;
+import pashazz.widgetmanager.entity.validator.RequestValidator;
+import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
+import pashazz.widgetmanager.factory.StandardWidgetFactory;
+import pashazz.widgetmanager.generator.CounterSupplier;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.concurrent.WriteMode;
+import pashazz.widgetmanager.repository.db.jpa.JpaWidgetRepository;
+import pashazz.widgetmanager.repository.db.jpa.JpaWidgetsVersionRepository;
+import pashazz.widgetmanager.repository.hybrid.DbWriteBehind;
+import pashazz.widgetmanager.repository.memory.InMemoryWidgetRepository;
+
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * The memory storage, loaded from the database at startup and writing its versions to it behind, see {@link DbWriteBehind}
+ */
+@Configuration
+@Profile("hybrid")
+@EnableJpaRepositories("pashazz.widgetmanager.repository.db.jpa")
+@EntityScan("pashazz.widgetmanager.entity.db")
+@EnableAutoConfiguration
+public class HybridRepositoryConfiguration {
+
+  @Autowired
+  private JpaWidgetRepository jpaWidgetRepository;
+
+  @Autowired
+  private JpaWidgetsVersionRepository jpaWidgetsVersionRepository;
+
+  @Autowired
+  private EntityManager entityManager;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @Value("${widgetmanager.write-mode:lock}")
+  private WriteMode writeMode;
+
+  @Value("${widgetmanager.change-log-size:10000}")
+  private int changeLogSize;
+
+  @Value("${widgetmanager.hydrate-chunk-size:10000}")
+  private int hydrateChunkSize;
+
+  /**
+   * Depends on the write-behind, so it is closed after the repository and writes its last versions
+   */
+  @Bean
+  public WidgetRepository<Long> widgetRepository(DbWriteBehind writeBehind) {
+    var idGenerator = idGenerator();
+    var changeLog = widgetChangeLog();
+    var repo = new InMemoryWidgetRepository(
+      new StandardWidgetFactory<Long, Widget<Long>>(idGenerator,
+        creationValidator(),
+        updateValidator(),
+        builderSupplier()
+      ),
+      changeLog);
+    idGenerator.advanceTo(writeBehind.hydrate(repo, hydrateChunkSize));
+    changeLog.addChangesListener(writeBehind::enqueue);
+    writeBehind.start();
+    return writeMode.decorate(repo);
+  }
+
+  @Bean
+  public DbWriteBehind dbWriteBehind(@Value("${widgetmanager.write-behind-batch-size:1000}") int batchSize,
+                                     @Value("${widgetmanager.write-behind-interval:100ms}") Duration interval) {
+    return new DbWriteBehind(jpaWidgetRepository, jpaWidgetsVersionRepository, entityManager, transactionManager,
+      batchSize, interval);
+  }
+
+  @Bean
+  public WidgetChangeLog<Long> widgetChangeLog() {
+    return new WidgetChangeLog<>(changeLogSize);
+  }
+
+  private Supplier<WidgetBuilder<Long, Widget<Long>>> builderSupplier() {
+    return InMemoryLongWidgetBuilder::new;
+  }
+
+  private RequestValidator updateValidator() {
+    return new UpdateRequestValidator();
+  }
+
+  private CounterSupplier idGenerator() {
+    return new CounterSupplier();
+  }
+
+  private RequestValidator creationValidator() {
+    return new CreationRequestValidator();
+  }
+}
@@ -1,12 +1,18 @@
 package pashazz.widgetmanager.configuration;
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceTransactionManagerAutoConfiguration;
 import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.util.unit.DataSize;
 import pashazz.widgetmanager.entity.interfaces.Widget;
 import pashazz.widgetmanager.entity.interfaces.WidgetBuilder;
 import pashazz.widgetmanager.entity.memory.InMemoryLongWidgetBuilder;
@@ -16,9 +22,19 @@ import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
 import pashazz.widgetmanager.factory.StandardWidgetFactory;
 import pashazz.widgetmanager.generator.CounterSupplier;
 import pashazz.widgetmanager.repository.WidgetRepository;
-import pashazz.widgetmanager.repository.concurrent.ConcurrentWidgetRepositoryWithGetByIdLock;
-import pashazz.widgetmanager.repository.memory.InMemoryWidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.canvas.WidgetCanvas;
+import pashazz.widgetmanager.repository.canvas.WidgetCanvases;
+import pashazz.widgetmanager.repository.concurrent.WriteMode;
+import pashazz.widgetmanager.repository.memory.MemoryEngine;
+import pashazz.widgetmanager.repository.wal.CheckpointFile;
+import pashazz.widgetmanager.repository.wal.WriteAheadLog;
+import pashazz.widgetmanager.rest.SerializedWidgetsCache;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.function.Supplier;
 
 @Configuration
@@ -30,16 +46,139 @@ import java.util.function.Supplier;
 @Profile("memory")
 public class InMemoryRepositoryConfiguration {
 
+  @Value("${widgetmanager.write-mode:lock}")
+  private WriteMode writeMode;
+
+  @Value("${widgetmanager.memory-engine:tree}")
+  private MemoryEngine memoryEngine;
+
+  @Value("${widgetmanager.change-log-size:10000}")
+  private int changeLogSize;
+
+  @Value("${widgetmanager.canvas-response-cache-size:4MB}")
+  private DataSize canvasResponseCacheSize;
+
+  @Bean
+  public WidgetRepository<Long> widgetRepository(ObjectProvider<WriteAheadLog> writeAheadLog,
+                                                 ObjectProvider<CheckpointFile> checkpointFile) {
+    return writeMode.decorate(createRepository(widgetChangeLog(), writeAheadLog.getIfAvailable(), checkpointFile.getIfAvailable(), 0));
+  }
+
+  /**
+   * The canvases other than the default one, see {@link WidgetCanvases}. Each has a write-ahead log and checkpoints
+   * of its own next to those of the default canvas, if they are set, and is loaded from them once evicted.
+   * Without them, a canvas is evicted only while it is empty, and then it is not there for the reads until it is written to
+   */
+  @Bean
+  public WidgetCanvases.Factory canvasFactory(@Value("${widgetmanager.wal-path:#{null}}") Path walPath,
+                                              @Value("${widgetmanager.wal-sync-interval:100ms}") Duration syncInterval,
+                                              @Value("${widgetmanager.wal-sync-batch:1000}") int syncBatch,
+                                              @Value("${widgetmanager.checkpoint-path:#{null}}") Path checkpointPath,
+                                              @Value("${widgetmanager.checkpoint-interval:5m}") Duration checkpointInterval,
+                                              @Value("${widgetmanager.checkpoint-compression:false}") boolean compress) {
+    return new WidgetCanvases.Factory() {
+      @Override
+      public @NotNull WidgetCanvas create(@NotNull String id, long version) {
+        return createCanvas(id, version, walPath, syncInterval, syncBatch, checkpointPath, checkpointInterval, compress);
+      }
+
+      @Override
+      public boolean exists(@NotNull String id) {
+        return walPath != null && Files.exists(canvasPath(walPath, id))
+          || checkpointPath != null && Files.exists(canvasPath(checkpointPath, id));
+      }
+    };
+  }
+
+  private WidgetCanvas createCanvas(String id, long version, @Nullable Path walPath, Duration syncInterval, int syncBatch,
+                                    @Nullable Path checkpointPath, Duration checkpointInterval, boolean compress) {
+    var resources = new ArrayList<AutoCloseable>();
+    try {
+      var log = walPath == null ? null : new WriteAheadLog(canvasPath(walPath, id), syncInterval, syncBatch);
+      if (log != null) {
+        resources.add(log);
+      }
+      var checkpoint = checkpointPath == null ? null : new CheckpointFile(canvasPath(checkpointPath, id), checkpointInterval, compress);
+      if (checkpoint != null) {
+        resources.add(0, checkpoint);
+      }
+      var changeLog = new WidgetChangeLog<Long>(changeLogSize);
+      var repo = writeMode.decorate(createRepository(changeLog, log, checkpoint, version));
+      // the repository is closed first, then the last checkpoint is taken, then the log is closed
+      if (repo instanceof AutoCloseable) {
+        resources.add(0, (AutoCloseable) repo);
+      }
+      return new WidgetCanvas(id, repo, changeLog, new SerializedWidgetsCache(canvasResponseCacheSize.toBytes()),
+        log != null, resources);
+    } catch (RuntimeException e) {
+      for (var resource : resources) {
+        try {
+          resource.close();
+        } catch (Exception closeFailure) {
+          e.addSuppressed(closeFailure);
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @param version the version to start at without a checkpoint and a log
+   * @return the repository with the widgets of the checkpoint and the log, if any
+   */
+  private WidgetRepository<Long> createRepository(WidgetChangeLog<Long> changeLog, @Nullable WriteAheadLog log,
+                                                  @Nullable CheckpointFile checkpoint, long version) {
+    var idGenerator = idGenerator();
+    var widgetFactory = new StandardWidgetFactory<Long, Widget<Long>>(idGenerator,
+      creationValidator(),
+      updateValidator(),
+      builderSupplier()
+    );
+    var repo = log == null && checkpoint == null
+      ? memoryEngine.create(widgetFactory, changeLog, version)
+      : memoryEngine.create(widgetFactory, changeLog, log, checkpoint);
+    // the checkpoint has been loaded and the log has been replayed by now
+    if (checkpoint != null) {
+      idGenerator.advanceTo(checkpoint.getLastId());
+    }
+    if (log != null) {
+      idGenerator.advanceTo(log.getLastId());
+    }
+    return repo;
+  }
+
+  /**
+   * The file of a canvas next to the file of the default canvas, e.g. board-1.widgets.wal next to widgets.wal
+   */
+  private static Path canvasPath(Path path, String canvasId) {
+    return path.resolveSibling(canvasId + "." + path.getFileName());
+  }
+
+  /**
+   * Only if widgetmanager.wal-path is set. Closed after the repository, so the last writes are synced
+   */
+  @Bean
+  @ConditionalOnProperty("widgetmanager.wal-path")
+  public WriteAheadLog writeAheadLog(@Value("${widgetmanager.wal-path}") Path path,
+                                     @Value("${widgetmanager.wal-sync-interval:100ms}") Duration syncInterval,
+                                     @Value("${widgetmanager.wal-sync-batch:1000}") int syncBatch) {
+    return new WriteAheadLog(path, syncInterval, syncBatch);
+  }
+
+  /**
+   * Only if widgetmanager.checkpoint-path is set. Closed after the repository, taking the last checkpoint
+   */
+  @Bean
+  @ConditionalOnProperty("widgetmanager.checkpoint-path")
+  public CheckpointFile checkpointFile(@Value("${widgetmanager.checkpoint-path}") Path path,
+                                       @Value("${widgetmanager.checkpoint-interval:5m}") Duration interval,
+                                       @Value("${widgetmanager.checkpoint-compression:false}") boolean compress) {
+    return new CheckpointFile(path, interval, compress);
+  }
+
   @Bean
-  public WidgetRepository<Long> widgetRepository() {
-    return new ConcurrentWidgetRepositoryWithGetByIdLock<>(
-      new InMemoryWidgetRepository(
-        new StandardWidgetFactory<Long, Widget<Long>>(idGenerator(),
-          creationValidator(),
-          updateValidator(),
-          builderSupplier()
-        )
-      ));
+  public WidgetChangeLog<Long> widgetChangeLog() {
+    return new WidgetChangeLog<>(changeLogSize);
   }
 
   private Supplier<WidgetBuilder<Long, Widget<Long>>> builderSupplier() {
@@ -50,7 +189,7 @@ public class InMemoryRepositoryConfiguration {
     return new UpdateRequestValidator();
   }
 
-  private Supplier<Long> idGenerator() {
+  private CounterSupplier idGenerator() {
     return new CounterSupplier();
   }
 
@@ -2,6 +2,7 @@ package pashazz.widgetmanager.entity.db;
 
 import lombok.ToString;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import pashazz.widgetmanager.entity.interfaces.MutableWidget;
 
 import javax.persistence.*;
@@ -10,10 +11,23 @@ import java.time.LocalDateTime;
 @Entity
 @ToString // it's ok, we don't use lazy load here
 @Table(name = "widgets",
-  indexes = @Index(name = "zOrderIndex", columnList = "z ASC"))
+  indexes = {
+    @Index(name = "zOrderIndex", columnList = "z ASC"),
+    @Index(name = "tileIndex", columnList = "tile ASC")
+  })
 public class JpaWidgetImpl implements MutableWidget<Long> {
+  /**
+   * The side of a tile of the canvas. A widget no larger than a tile reaches from its tile into the next one at most
+   */
+  public static final int TILE_SIZE = 1024;
+
+  /**
+   * Hibernate takes ids from the sequence in blocks of allocationSize (the pooled optimizer),
+   * so inserts don't need a round trip to the database for every id
+   */
   @Id
-  @GeneratedValue(strategy = GenerationType.SEQUENCE)
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "widgetIdSequence")
+  @SequenceGenerator(name = "widgetIdSequence", sequenceName = "widget_id_sequence", allocationSize = 50)
   private Long id;
   @Column(nullable = false)
   private int x;
@@ -44,6 +58,41 @@ public class JpaWidgetImpl implements MutableWidget<Long> {
     this.lastUpdatedAt = lastUpdatedAt;
   }
 
+  /**
+   * @return the tile of the lower left corner of a widget, null if the widget is larger than a tile
+   */
+  public static @Nullable Long tileOf(int x, int y, int width, int height) {
+    if (width > TILE_SIZE || height > TILE_SIZE) {
+      return null;
+    }
+    return tileKey(Math.floorDiv(x, TILE_SIZE), Math.floorDiv(y, TILE_SIZE));
+  }
+
+  /**
+   * Tiles are ordered by column, then by row, so the tiles of the columns from tileX to toTileX are the keys
+   * from tileKey(tileX, 0) to tileKey(toTileX, -1)
+   */
+  public static long tileKey(int tileX, int tileY) {
+    return (long) tileX << 32 | tileY & 0xFFFFFFFFL;
+  }
+
+  /**
+   * The tile of the lower left corner, null for a widget larger than a tile: the area queries read such widgets
+   * on their own. Computed from the position and the size, so it is never out of date
+   */
+  @Access(AccessType.PROPERTY)
+  @Column(name = "tile")
+  protected Long getTile() {
+    return tileOf(x, y, width, height);
+  }
+
+  /**
+   * This setter is used by Hibernate, the tile is computed
+   */
+  protected void setTile(Long tile) {
+
+  }
+
   @Override
   public Long getId() {
     return id;
@@ -0,0 +1,51 @@
+package pashazz.widgetmanager.entity.db;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * The single row that holds the version of the widgets table.
+ * Every write transaction increments it, so reading it is a primary key lookup rather than a scan of the widgets.
+ * <p>
+ * The hybrid storage keeps here the version of memory it has written and the greatest id ever given,
+ * as it gives the ids itself
+ */
+@Entity
+@Table(name = "widgets_version")
+public class JpaWidgetsVersion {
+
+  public static final int ID = 1;
+
+  @Id
+  private int id;
+  @Column(nullable = false)
+  private long version;
+  @Column(name = "last_id", nullable = false)
+  private long lastId;
+
+  /**
+   * This constructor is used by Hibernate
+   **/
+  public JpaWidgetsVersion() {
+
+  }
+
+  public JpaWidgetsVersion(int id, long version) {
+    this.id = id;
+    this.version = version;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public long getLastId() {
+    return lastId;
+  }
+}
@@ -0,0 +1,7 @@
+package pashazz.widgetmanager.exception;
+
+public class CanvasNotFoundException extends RuntimeException {
+  public CanvasNotFoundException(String message) {
+    super(message);
+  }
+}
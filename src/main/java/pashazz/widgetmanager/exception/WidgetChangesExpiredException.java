@@ -0,0 +1,10 @@
+package pashazz.widgetmanager.exception;
+
+/**
+ * The changes a client asks for are no longer retained, so it has to read all the widgets again
+ */
+public class WidgetChangesExpiredException extends RuntimeException {
+  public WidgetChangesExpiredException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,10 @@
+package pashazz.widgetmanager.exception;
+
+/**
+ * A page limit out of its bounds: the request is malformed
+ */
+public class WidgetLimitException extends RuntimeException {
+  public WidgetLimitException(String message) {
+    super(message);
+  }
+}
@@ -7,7 +7,6 @@ import pashazz.widgetmanager.entity.interfaces.WidgetBuilder;
 import pashazz.widgetmanager.entity.validator.RequestValidator;
 import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
 
-import java.time.LocalDateTime;
 import java.util.Optional;
 import java.util.function.Supplier;
 
@@ -36,7 +35,7 @@ public class MutableWidgetFactory<ID, T extends MutableWidget<ID>> extends Stand
     Optional.ofNullable(request.getZ()).ifPresent(existingWidget::setZ);
     Optional.ofNullable(request.getWidth()).ifPresent(existingWidget::setWidth);
     Optional.ofNullable(request.getHeight()).ifPresent(existingWidget::setHeight);
-    existingWidget.setLastUpdatedAt(LocalDateTime.now());
+    existingWidget.setLastUpdatedAt(now());
     return existingWidget;
   }
 }
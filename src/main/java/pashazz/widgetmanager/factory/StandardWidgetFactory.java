@@ -9,6 +9,7 @@ import pashazz.widgetmanager.factory.interfaces.WidgetFactory;
 import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
 
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.Optional;
 import java.util.function.Supplier;
 
@@ -56,7 +57,7 @@ public class StandardWidgetFactory<ID, T extends Widget<ID>>
       .z(Optional.ofNullable(request.getZ()).orElse(defaultZ))
       .width(request.getWidth())
       .height(request.getHeight())
-      .lastUpdatedAt(LocalDateTime.now())
+      .lastUpdatedAt(now())
       .build();
   }
 
@@ -71,7 +72,20 @@ public class StandardWidgetFactory<ID, T extends Widget<ID>>
       .z(Optional.ofNullable(request.getZ()).orElse(existingWidget.getZ()))
       .width(Optional.ofNullable(request.getWidth()).orElse(existingWidget.getWidth()))
       .height(Optional.ofNullable(request.getHeight()).orElse(existingWidget.getHeight()))
-      .lastUpdatedAt(LocalDateTime.now())
+      .lastUpdatedAt(now())
+      .build();
+  }
+
+  @Override
+  public @NotNull T moveWidget(@NotNull T existingWidget, int z) {
+    return builderSupplier.get()
+      .id(existingWidget.getId())
+      .x(existingWidget.getX())
+      .y(existingWidget.getY())
+      .z(z)
+      .width(existingWidget.getWidth())
+      .height(existingWidget.getHeight())
+      .lastUpdatedAt(existingWidget.getLastUpdatedAt())
       .build();
   }
 
@@ -79,5 +93,13 @@ public class StandardWidgetFactory<ID, T extends Widget<ID>>
     return updateValidator;
   }
 
+  /**
+   * Current time truncated to microseconds: the DB timestamp column does not keep nanoseconds,
+   * so a widget read back from the DB has to compare equal to the one we have returned after saving
+   */
+  protected static LocalDateTime now() {
+    return LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+  }
+
 
 }
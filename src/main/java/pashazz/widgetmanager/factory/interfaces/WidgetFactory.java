@@ -26,4 +26,15 @@ public interface WidgetFactory<ID, T extends Widget<ID>> {
    */
   @NotNull
   T updateWidget(@NotNull T existingWidget, @NotNull WidgetUpdateRequest request);
+
+  /**
+   * Makes a copy of a widget with another z-order, e.g. when the widget is shifted to make room for another one.
+   * It is not an update of the widget, so lastUpdatedAt is kept
+   *
+   * @param existingWidget a widget to move
+   * @param z              new z-order
+   * @return a new widget
+   */
+  @NotNull
+  T moveWidget(@NotNull T existingWidget, int z);
 }
@@ -12,4 +12,11 @@ public class CounterSupplier implements Supplier<Long> {
   public Long get() {
     return ++counter;
   }
+
+  /**
+   * Makes the ids given from now on greater than this one, e.g. the last id of the widgets restored at startup
+   */
+  public void advanceTo(long id) {
+    counter = Math.max(counter, id);
+  }
 }
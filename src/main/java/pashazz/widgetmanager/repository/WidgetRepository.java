@@ -1,11 +1,18 @@
 package pashazz.widgetmanager.repository;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.exception.WidgetCreationException;
 import pashazz.widgetmanager.exception.WidgetNotFoundException;
+import pashazz.widgetmanager.rest.request.Point;
+import pashazz.widgetmanager.rest.request.WidgetBatchOperation;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
 import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+import pashazz.widgetmanager.rest.response.WidgetBatchResponse;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface WidgetRepository<T> {
 
@@ -41,6 +48,14 @@ public interface WidgetRepository<T> {
   @NotNull
   List<Widget<T>> listWidgets();
 
+  /**
+   * Passes the widgets sorted by their Z-order to the action one by one, without collecting them,
+   * so that a large canvas can be written out with bounded memory
+   *
+   * @param action called for every widget, in the calling thread
+   */
+  void forEachWidget(@NotNull Consumer<? super Widget<T>> action);
+
   /**
    * get a page of widgets sorted by their Z-order
    *
@@ -51,6 +66,107 @@ public interface WidgetRepository<T> {
   @NotNull
   List<Widget<T>> listWidgets(int page, int pageSize);
 
+  /**
+   * get widgets sorted by their Z-order, starting right after a z-order (keyset pagination).
+   * Unlike {@link #listWidgets(int, int)}, the cost does not depend on how deep the page is
+   *
+   * @param afterZ z-order of the last widget of the previous page, or null for the first page
+   * @param limit  max number of widgets
+   * @return at most limit widgets with z-order greater than afterZ
+   */
+  @NotNull
+  List<Widget<T>> listWidgetsAfter(@Nullable Integer afterZ, int limit);
+
+  /**
+   * get the widgets intersecting a rectangle, sorted by their Z-order.
+   * A widget covers [x, x + width] x [y, y + height], so the widgets touching the rectangle are included.
+   * The cost depends on the number of widgets found rather than on the number of all widgets
+   *
+   * @return widgets intersecting [minX, maxX] x [minY, maxY], none if the rectangle is empty (minX > maxX or minY > maxY)
+   */
+  @NotNull
+  List<Widget<T>> listWidgetsIn(int minX, int minY, int maxX, int maxY);
+
+  /**
+   * Hit test: get the widget that is on top at a point
+   *
+   * @return the widget with the highest Z-order among those containing the point (borders included), or null if there is none
+   */
+  @Nullable
+  Widget<T> findWidgetAt(int x, int y);
+
+  /**
+   * Hit test of many points at once, against the same version of the widgets
+   *
+   * @return a widget per point, in the same order, as {@link #findWidgetAt(int, int)} returns it
+   */
+  @NotNull
+  List<Widget<T>> findWidgetsAt(@NotNull List<Point> points);
+
   void deleteWidget(@NotNull T id);
 
+  /**
+   * The version of the widgets that the reads see. It grows with every committed write, so if it has not changed,
+   * neither have the widgets. A write may change the version without changing the widgets (e.g. a failed batch)
+   *
+   * @return the current version, cheap to get: no widget is read
+   */
+  long getVersion();
+
+  /**
+   * Catches up with the writes others have made to a storage shared with them: drops what is cached of it
+   * and moves the change log past them. By default, nothing else writes to the storage, so there is nothing to do
+   */
+  default void syncWithStorage() {
+  }
+
+  /**
+   * Runs a group of writes, making their results visible to readers at once, when all of them are done.
+   * The group is not atomic: a write that throws does not undo the others.
+   * <p>
+   * By default, every write is made visible on its own.
+   *
+   * @param writes calls to the write methods of this repository
+   */
+  default void groupCommit(@NotNull Runnable writes) {
+    writes.run();
+  }
+
+  /**
+   * Applies a batch of writes in order, atomically: if one of them throws, none is applied and the exception is rethrown.
+   * Readers see the results of all the writes at once.
+   * Then gets the widgets requested by the batch
+   *
+   * @return results of the writes and the requested widgets
+   */
+  @NotNull
+  WidgetBatchResponse<T> applyBatch(@NotNull WidgetBatchRequest<T> batch);
+
+  /**
+   * Applies a single operation of a batch by calling the corresponding write method of the repository
+   *
+   * @return the created or updated widget, or null for a deletion
+   * @throws WidgetCreationException if the operation is malformed
+   */
+  static <T> Widget<T> applyOperation(@NotNull WidgetRepository<T> repo, @NotNull WidgetBatchOperation<T> operation) {
+    if (operation.getType() == null) {
+      throw new WidgetCreationException("batch operation type is missing");
+    }
+    if (operation.getType() != WidgetBatchOperation.Type.CREATE && operation.getId() == null) {
+      throw new WidgetCreationException(operation.getType() + ": id is missing");
+    }
+    if (operation.getType() != WidgetBatchOperation.Type.DELETE && operation.getWidget() == null) {
+      throw new WidgetCreationException(operation.getType() + ": widget is missing");
+    }
+    switch (operation.getType()) {
+      case CREATE:
+        return repo.createWidget(operation.getWidget());
+      case UPDATE:
+        return repo.updateWidget(operation.getId(), operation.getWidget());
+      default:
+        repo.deleteWidget(operation.getId());
+        return null;
+    }
+  }
+
 }
@@ -0,0 +1,120 @@
+package pashazz.widgetmanager.repository.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.rest.request.Point;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+import pashazz.widgetmanager.rest.response.WidgetBatchResponse;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * This is a decorator that reads the widgets by id and the z-ordered lists of widgets through a {@link WidgetCache}.
+ * The repository it decorates must tell the cache what every committed write touches,
+ * see {@link pashazz.widgetmanager.repository.db.DbWidgetRepository}: the writes only pass through.
+ * <p>
+ * Every cached read syncs the repository with its storage first, see {@link WidgetRepository#syncWithStorage()},
+ * so that a repository whose storage is written by others too drops the entries they may have changed.
+ * The queries by area and the hit tests are not cached, as they rarely repeat
+ */
+public class CachingWidgetRepository<T> implements WidgetRepository<T> {
+
+  private final WidgetRepository<T> repo;
+
+  private final WidgetCache<T> cache;
+
+  public CachingWidgetRepository(@NotNull WidgetRepository<T> repo, @NotNull WidgetCache<T> cache) {
+    this.repo = repo;
+    this.cache = cache;
+  }
+
+  @Override
+  public @NotNull Widget<T> createWidget(@NotNull WidgetUpdateRequest request) {
+    return repo.createWidget(request);
+  }
+
+  @Override
+  public @NotNull Widget<T> updateWidget(@NotNull T id, @NotNull WidgetUpdateRequest request) {
+    return repo.updateWidget(id, request);
+  }
+
+  @Override
+  public @NotNull Widget<T> getWidget(@NotNull T id) {
+    // drops the cache if the storage has been written by others
+    repo.syncWithStorage();
+    return cache.getWidget(id, () -> repo.getWidget(id));
+  }
+
+  @Override
+  public @NotNull List<Widget<T>> listWidgets() {
+    // drops the cache if the storage has been written by others
+    repo.syncWithStorage();
+    return cache.listWidgets(repo::listWidgets);
+  }
+
+  /**
+   * Not cached: it is for the canvases too large to be listed at once
+   */
+  @Override
+  public void forEachWidget(@NotNull Consumer<? super Widget<T>> action) {
+    repo.forEachWidget(action);
+  }
+
+  @Override
+  public @NotNull List<Widget<T>> listWidgets(int page, int pageSize) {
+    // drops the cache if the storage has been written by others
+    repo.syncWithStorage();
+    return cache.listWidgets(page, pageSize, () -> repo.listWidgets(page, pageSize));
+  }
+
+  @Override
+  public @NotNull List<Widget<T>> listWidgetsAfter(@Nullable Integer afterZ, int limit) {
+    // drops the cache if the storage has been written by others
+    repo.syncWithStorage();
+    return cache.listWidgetsAfter(afterZ, limit, () -> repo.listWidgetsAfter(afterZ, limit));
+  }
+
+  @Override
+  public @NotNull List<Widget<T>> listWidgetsIn(int minX, int minY, int maxX, int maxY) {
+    return repo.listWidgetsIn(minX, minY, maxX, maxY);
+  }
+
+  @Override
+  public @Nullable Widget<T> findWidgetAt(int x, int y) {
+    return repo.findWidgetAt(x, y);
+  }
+
+  @Override
+  public @NotNull List<Widget<T>> findWidgetsAt(@NotNull List<Point> points) {
+    return repo.findWidgetsAt(points);
+  }
+
+  @Override
+  public void deleteWidget(@NotNull T id) {
+    repo.deleteWidget(id);
+  }
+
+  @Override
+  public long getVersion() {
+    return repo.getVersion();
+  }
+
+  @Override
+  public void syncWithStorage() {
+    repo.syncWithStorage();
+  }
+
+  @Override
+  public void groupCommit(@NotNull Runnable writes) {
+    repo.groupCommit(writes);
+  }
+
+  @Override
+  public @NotNull WidgetBatchResponse<T> applyBatch(@NotNull WidgetBatchRequest<T> batch) {
+    return repo.applyBatch(batch);
+  }
+}
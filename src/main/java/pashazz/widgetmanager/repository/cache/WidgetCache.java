@@ -0,0 +1,382 @@
+package pashazz.widgetmanager.repository.cache;
+
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryWidgetImpl;
+import pashazz.widgetmanager.rest.response.CacheStatusResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Widgets and z-ordered lists of widgets read from a repository, for a repository whose reads are expensive,
+ * see {@link CachingWidgetRepository}.
+ * <p>
+ * The repository reports what every committed write has touched, see {@link Invalidation}, and the cache drops
+ * exactly the entries the write could have changed: the widgets written or shifted, the lists the z-orders written
+ * fall into, and the pages by offset after a widget created or deleted, as the widgets after it change their positions.
+ * Writes that are not known, like the ones of another instance on the same database, drop all the entries, see {@link #clear()}.
+ * A read that has started before an invalidation is not cached: it may have read the rows before the write.
+ * <p>
+ * The size is the number of widgets held, a list counting as many as it has. The least recently used entries
+ * are evicted to stay within it, a list larger than the cache is not cached.
+ * <p>
+ * This class is thread safe. The loads run outside of the lock, so a slow read does not hold up the others
+ */
+public class WidgetCache<T> {
+
+  private final long maxSize;
+
+  /**
+   * Widgets by id, lists by {@link ListKey}, least recently used first
+   */
+  private final LinkedHashMap<Object, Entry<T>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * The ids of the cached widgets by z-order
+   */
+  private final TreeMap<Integer, T> idsByZ = new TreeMap<>();
+
+  /**
+   * The cached lists, for invalidations to go through without touching the order of use
+   */
+  private final Map<ListKey, Entry<T>> lists = new HashMap<>();
+
+  private long size;
+
+  /**
+   * Incremented by every invalidation and clear
+   */
+  private long generation;
+
+  private long hits;
+
+  private long misses;
+
+  private long evictions;
+
+  /**
+   * @param maxSize the number of widgets to hold, positive
+   */
+  public WidgetCache(long maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("the size of the cache must be positive: " + maxSize);
+    }
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @param loader reads the widget from the repository, if it is not cached
+   */
+  public @NotNull Widget<T> getWidget(@NotNull T id, @NotNull Supplier<? extends Widget<T>> loader) {
+    long loadGeneration;
+    synchronized (this) {
+      var entry = entries.get(id);
+      if (entry != null) {
+        ++hits;
+        return entry.widget;
+      }
+      ++misses;
+      loadGeneration = generation;
+    }
+    var widget = copyOf(loader.get());
+    synchronized (this) {
+      if (loadGeneration == generation) {
+        putWidget(widget);
+      }
+    }
+    return widget;
+  }
+
+  /**
+   * All the widgets, sorted by z-order
+   */
+  public @NotNull List<Widget<T>> listWidgets(@NotNull Supplier<? extends List<? extends Widget<T>>> loader) {
+    return list(new ListKey(true, null, 0, Integer.MAX_VALUE), loader);
+  }
+
+  /**
+   * A page of the widgets sorted by z-order, by its offset
+   */
+  public @NotNull List<Widget<T>> listWidgets(int page, int pageSize,
+                                              @NotNull Supplier<? extends List<? extends Widget<T>>> loader) {
+    return list(new ListKey(true, null, page, pageSize), loader);
+  }
+
+  /**
+   * The widgets sorted by z-order after a z-order
+   */
+  public @NotNull List<Widget<T>> listWidgetsAfter(@Nullable Integer afterZ, int limit,
+                                                   @NotNull Supplier<? extends List<? extends Widget<T>>> loader) {
+    return list(new ListKey(false, afterZ, 0, limit), loader);
+  }
+
+  private List<Widget<T>> list(ListKey key, Supplier<? extends List<? extends Widget<T>>> loader) {
+    long loadGeneration;
+    synchronized (this) {
+      var entry = entries.get(key);
+      if (entry != null) {
+        ++hits;
+        return entry.widgets;
+      }
+      ++misses;
+      loadGeneration = generation;
+    }
+    var loaded = loader.get();
+    var widgets = new ArrayList<Widget<T>>(loaded.size());
+    loaded.forEach(widget -> widgets.add(copyOf(widget)));
+    var list = Collections.unmodifiableList(widgets);
+    synchronized (this) {
+      if (loadGeneration == generation && list.size() <= maxSize) {
+        put(key, new Entry<>(null, list, fromZ(key, list), toZ(key, list)));
+      }
+    }
+    return list;
+  }
+
+  /**
+   * The least z-order a change must reach to change the list
+   */
+  private static long fromZ(ListKey key, List<? extends Widget<?>> list) {
+    if (!key.byOffset) {
+      return key.afterZ == null ? Long.MIN_VALUE : key.afterZ + 1L;
+    }
+    if (key.page == 0) {
+      return Long.MIN_VALUE;
+    }
+    // an empty page past the end is changed by a creation only
+    return list.isEmpty() ? Long.MAX_VALUE : list.get(0).getZ();
+  }
+
+  /**
+   * The greatest z-order a change must reach to change the list: a list shorter than its limit takes everything above
+   */
+  private static long toZ(ListKey key, List<? extends Widget<?>> list) {
+    return list.size() < key.limit ? Long.MAX_VALUE : list.get(list.size() - 1).getZ();
+  }
+
+  /**
+   * Drops the entries the write could have changed. Called once the write is committed
+   */
+  public synchronized void invalidate(@NotNull Invalidation<T> invalidation) {
+    ++generation;
+    invalidation.ids.forEach(this::remove);
+    for (var range : invalidation.ranges) {
+      if (range.shifted) {
+        // the shifted widgets are the ones in [fromZ, toZ - 1], toZ is the top of the run after the shift
+        new ArrayList<>(idsByZ.subMap((int) range.fromZ, true, (int) (range.toZ - 1), true).values()).forEach(this::remove);
+      }
+    }
+    var changedLists = new ArrayList<ListKey>();
+    lists.forEach((key, entry) -> {
+      for (var range : invalidation.ranges) {
+        if (range.changes(key, entry)) {
+          changedLists.add(key);
+          return;
+        }
+      }
+    });
+    changedLists.forEach(this::remove);
+  }
+
+  /**
+   * Drops all the entries, when the writes are not known
+   */
+  public synchronized void clear() {
+    ++generation;
+    entries.clear();
+    idsByZ.clear();
+    lists.clear();
+    size = 0;
+  }
+
+  private void putWidget(Widget<T> widget) {
+    var sameZ = idsByZ.get(widget.getZ());
+    if (sameZ != null && !sameZ.equals(widget.getId())) {
+      // one of them is read before a write that has not been invalidated yet, and it is not known which
+      remove(sameZ);
+      return;
+    }
+    put(widget.getId(), new Entry<>(widget, null, 0, 0));
+  }
+
+  private void put(Object key, Entry<T> entry) {
+    remove(key);
+    entries.put(key, entry);
+    index(key, entry);
+    size += entry.weight();
+    for (var iterator = entries.entrySet().iterator(); size > maxSize; ) {
+      var eldest = iterator.next();
+      iterator.remove();
+      unindex(eldest.getKey(), eldest.getValue());
+      size -= eldest.getValue().weight();
+      ++evictions;
+    }
+  }
+
+  private void remove(Object key) {
+    var entry = entries.remove(key);
+    if (entry != null) {
+      unindex(key, entry);
+      size -= entry.weight();
+    }
+  }
+
+  private void index(Object key, Entry<T> entry) {
+    if (entry.widget != null) {
+      idsByZ.put(entry.widget.getZ(), entry.widget.getId());
+    } else {
+      lists.put((ListKey) key, entry);
+    }
+  }
+
+  private void unindex(Object key, Entry<T> entry) {
+    if (entry.widget != null) {
+      idsByZ.remove(entry.widget.getZ(), entry.widget.getId());
+    } else {
+      lists.remove((ListKey) key);
+    }
+  }
+
+  private static <T> Widget<T> copyOf(Widget<T> widget) {
+    // an entity may be changed by whoever has it, so the cache keeps its own copy
+    return widget instanceof InMemoryWidgetImpl ? widget : new InMemoryWidgetImpl<>(widget.getId(), widget.getX(), widget.getY(),
+      widget.getZ(), widget.getWidth(), widget.getHeight(), widget.getLastUpdatedAt());
+  }
+
+  /**
+   * @return the number of widgets held
+   */
+  public synchronized long size() {
+    return size;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * The counters at once, see {@link pashazz.widgetmanager.rest.CacheController}
+   */
+  public synchronized @NotNull CacheStatusResponse getStatus() {
+    return new CacheStatusResponse(size, maxSize, hits, misses, evictions);
+  }
+
+  /**
+   * What a write has touched, collected while it runs and passed to {@link #invalidate(Invalidation)} once it is committed.
+   * Not thread safe
+   */
+  public static class Invalidation<T> {
+
+    private final List<T> ids = new ArrayList<>();
+
+    private final List<Range> ranges = new ArrayList<>();
+
+    public void created(@NotNull T id, int z) {
+      ids.add(id);
+      var last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+      if (last != null && last.resized && !last.shifted && last.toZ + 1 == z) {
+        // widgets created one above another, like a bulk insert on top, take a single range
+        ranges.set(ranges.size() - 1, new Range(last.fromZ, z, true, false, false));
+      } else {
+        ranges.add(new Range(z, z, true, false, false));
+      }
+    }
+
+    public void updated(@NotNull T id, int oldZ, int newZ) {
+      ids.add(id);
+      ranges.add(new Range(Math.min(oldZ, newZ), Math.max(oldZ, newZ), false, false, true));
+    }
+
+    public void deleted(@NotNull T id, int z) {
+      ids.add(id);
+      ranges.add(new Range(z, z, true, false, false));
+    }
+
+    /**
+     * The z-order of every widget in [fromZ, toZ] is increased by 1
+     */
+    public void shifted(int fromZ, int toZ) {
+      ranges.add(new Range(fromZ, toZ + 1L, false, true, false));
+    }
+
+    public boolean isEmpty() {
+      return ids.isEmpty() && ranges.isEmpty();
+    }
+  }
+
+  /**
+   * The z-orders written by a change
+   */
+  @Value
+  private static class Range {
+    long fromZ;
+    long toZ;
+    /**
+     * A widget is created or deleted, so the widgets above it change their positions
+     */
+    boolean resized;
+    boolean shifted;
+    /**
+     * A widget is moved from one end of the range to the other, so the widgets between change their positions
+     */
+    boolean moved;
+
+    boolean changes(ListKey key, Entry<?> list) {
+      if (resized && key.byOffset) {
+        return fromZ <= list.toZ;
+      }
+      if (moved && !key.byOffset) {
+        // the widgets between keep their z-orders
+        return list.covers(fromZ) || list.covers(toZ);
+      }
+      return fromZ <= list.toZ && toZ >= list.fromZ;
+    }
+  }
+
+  /**
+   * A page by offset, or a page after a z-order
+   */
+  @Value
+  private static class ListKey {
+    boolean byOffset;
+    Integer afterZ;
+    int page;
+    int limit;
+  }
+
+  /**
+   * A widget, or a list with the range of z-orders that changes it
+   */
+  @Value
+  private static class Entry<T> {
+    Widget<T> widget;
+    List<Widget<T>> widgets;
+    long fromZ;
+    long toZ;
+
+    boolean covers(long z) {
+      return fromZ <= z && z <= toZ;
+    }
+
+    long weight() {
+      return widgets == null ? 1 : Math.max(1, widgets.size());
+    }
+  }
+}
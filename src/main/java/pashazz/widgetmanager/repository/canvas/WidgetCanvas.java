@@ -0,0 +1,109 @@
+package pashazz.widgetmanager.repository.canvas;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.rest.SerializedWidgetsCache;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A canvas (board): widgets with a z-order of their own, kept by a repository of their own, which serializes its writes
+ * on its own, so the writes to different canvases do not wait for each other. See {@link WidgetCanvases}.
+ * <p>
+ * The canvas is used between {@link WidgetCanvases#acquire(String)} and {@link #release()}, and is not evicted meanwhile
+ */
+@Slf4j
+public class WidgetCanvas {
+
+  private final String id;
+
+  private final WidgetRepository<Long> repository;
+
+  private final WidgetChangeLog<Long> changeLog;
+
+  private final SerializedWidgetsCache responses;
+
+  /**
+   * Whether the widgets are loaded again once the canvas is evicted, like from a write-ahead log
+   */
+  private final boolean durable;
+
+  /**
+   * Closed in order when the canvas is evicted
+   */
+  private final List<AutoCloseable> resources;
+
+  private final AtomicInteger users = new AtomicInteger();
+
+  /**
+   * When it was released last, by {@link System#nanoTime()}
+   */
+  private volatile long releasedAt = System.nanoTime();
+
+  /**
+   * @param repository a thread-safe repository, see {@link pashazz.widgetmanager.repository.concurrent.WriteMode}
+   * @param changeLog  the log the repository appends to
+   * @param responses  the serialized reads of the repository
+   */
+  public WidgetCanvas(@NotNull String id, @NotNull WidgetRepository<Long> repository, @NotNull WidgetChangeLog<Long> changeLog,
+                      @NotNull SerializedWidgetsCache responses, boolean durable, @NotNull List<? extends AutoCloseable> resources) {
+    this.id = id;
+    this.repository = repository;
+    this.changeLog = changeLog;
+    this.responses = responses;
+    this.durable = durable;
+    this.resources = List.copyOf(resources);
+  }
+
+  public @NotNull String getId() {
+    return id;
+  }
+
+  public @NotNull WidgetRepository<Long> getRepository() {
+    return repository;
+  }
+
+  public @NotNull WidgetChangeLog<Long> getChangeLog() {
+    return changeLog;
+  }
+
+  public @NotNull SerializedWidgetsCache getResponses() {
+    return responses;
+  }
+
+  /**
+   * Called by {@link WidgetCanvases}, so that the canvas is not evicted in between
+   */
+  void acquire() {
+    users.incrementAndGet();
+  }
+
+  /**
+   * Lets the canvas be evicted once it is idle. Called once per {@link WidgetCanvases#acquire(String)}
+   */
+  public void release() {
+    releasedAt = System.nanoTime();
+    users.decrementAndGet();
+  }
+
+  /**
+   * @return whether nobody uses the canvas, and nobody has for idleNanos, and it can be evicted without losing widgets
+   */
+  boolean isEvictable(long idleNanos) {
+    return users.get() == 0 && System.nanoTime() - releasedAt >= idleNanos
+      && (durable || repository.listWidgetsAfter(null, 1).isEmpty());
+  }
+
+  void close() {
+    for (var resource : resources) {
+      try {
+        resource.close();
+      } catch (Exception e) {
+        log.error("canvas {}: {} is not closed", id, resource, e);
+      }
+    }
+  }
+}
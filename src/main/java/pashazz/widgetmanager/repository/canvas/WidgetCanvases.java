@@ -0,0 +1,186 @@
+package pashazz.widgetmanager.repository.canvas;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pashazz.widgetmanager.exception.CanvasNotFoundException;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * The canvases, by id. The default canvas is the repository of the storage, and always there.
+ * The others are created by the factory when they are first written to, and evicted once they have not been used
+ * for the idle timeout: if the factory has not made them durable, only while they are empty, so no widgets are lost.
+ * A read does not create a canvas, so the ids made up by the clients do not become state.
+ * A canvas created again after it has been evicted starts at the greatest version of the evicted canvases, so it has
+ * no version of its previous incarnation but the last one, with the same (no) widgets: the ETags of the previous one
+ * do not match, and its change versions are older than those retained, see {@link Factory#create(String, long)}
+ * <p>
+ * Every canvas has a repository, and hence a z-order and a write lock, of its own, so the writes to different canvases
+ * run in parallel, and a long shift of one canvas holds up only the writes to it.
+ * <p>
+ * This class is thread safe. A canvas is created and evicted under the lock of its entry in the map,
+ * so an acquire waits for the eviction of the same canvas to finish, and then creates it again
+ */
+@Slf4j
+public class WidgetCanvases implements Closeable {
+
+  public static final String DEFAULT_CANVAS = "default";
+
+  /**
+   * Ids are safe to be a part of a file name
+   */
+  private static final Pattern CANVAS_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+  private final ConcurrentHashMap<String, WidgetCanvas> canvases = new ConcurrentHashMap<>();
+
+  private final @Nullable Factory factory;
+
+  private final long idleNanos;
+
+  /**
+   * The greatest version of the evicted canvases
+   */
+  private final AtomicLong evictedVersion = new AtomicLong();
+
+  private final @Nullable ScheduledExecutorService evictor;
+
+  /**
+   * @param factory creates the other canvases, null if the storage has the default canvas only
+   */
+  public WidgetCanvases(@NotNull WidgetCanvas defaultCanvas, @Nullable Factory factory, @NotNull Duration idleTimeout) {
+    canvases.put(DEFAULT_CANVAS, defaultCanvas);
+    this.factory = factory;
+    this.idleNanos = idleTimeout.toNanos();
+    if (factory == null) {
+      evictor = null;
+      return;
+    }
+    evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "canvas-evictor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long period = Math.max(TimeUnit.MILLISECONDS.toNanos(10), idleNanos / 2);
+    evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Gets the canvas, creating it if it is not there. The caller must {@link WidgetCanvas#release()} it
+   *
+   * @param id null for the default canvas
+   * @throws CanvasNotFoundException if the id is not valid, or the storage has the default canvas only
+   */
+  public @NotNull WidgetCanvas acquire(@Nullable String id) {
+    return acquire(id, true);
+  }
+
+  /**
+   * Gets the canvas for a read: loads it if it has been evicted with widgets to load, but does not create a new one.
+   * The caller must {@link WidgetCanvas#release()} it
+   *
+   * @param id null for the default canvas
+   * @throws CanvasNotFoundException if there is no such canvas
+   */
+  public @NotNull WidgetCanvas acquireExisting(@Nullable String id) {
+    return acquire(id, false);
+  }
+
+  private @NotNull WidgetCanvas acquire(@Nullable String id, boolean create) {
+    var canvasId = id == null ? DEFAULT_CANVAS : id;
+    if (!DEFAULT_CANVAS.equals(canvasId)) {
+      if (factory == null) {
+        throw new CanvasNotFoundException(format("canvas %s is not found: this storage has the %s canvas only", canvasId, DEFAULT_CANVAS));
+      }
+      if (!CANVAS_ID.matcher(canvasId).matches()) {
+        throw new CanvasNotFoundException(format("canvas id %s is not valid: 1 to 64 letters, digits, _ and -", canvasId));
+      }
+    }
+    var acquired = canvases.compute(canvasId, (key, canvas) -> {
+      if (canvas == null) {
+        if (!create && !factory.exists(key)) {
+          return null;
+        }
+        canvas = factory.create(key, evictedVersion.get());
+        log.info("canvas {} is opened", key);
+      }
+      canvas.acquire();
+      return canvas;
+    });
+    if (acquired == null) {
+      throw new CanvasNotFoundException(format("canvas %s is not found", canvasId));
+    }
+    return acquired;
+  }
+
+  /**
+   * Evicts the canvases that are idle, but the default one. Called every half of the idle timeout
+   */
+  public void evictIdle() {
+    for (var id : canvases.keySet()) {
+      if (DEFAULT_CANVAS.equals(id)) {
+        continue;
+      }
+      canvases.computeIfPresent(id, (key, canvas) -> {
+        if (!canvas.isEvictable(idleNanos)) {
+          return canvas;
+        }
+        evictedVersion.accumulateAndGet(canvas.getRepository().getVersion(), Math::max);
+        canvas.close();
+        log.info("canvas {} is evicted", key);
+        return null;
+      });
+    }
+  }
+
+  /**
+   * @return the ids of the canvases in memory
+   */
+  public @NotNull Set<String> getIds() {
+    return Set.copyOf(canvases.keySet());
+  }
+
+  /**
+   * Closes every canvas but the default one, which belongs to the storage
+   */
+  @Override
+  public void close() {
+    if (evictor != null) {
+      evictor.shutdownNow();
+    }
+    for (var id : canvases.keySet()) {
+      if (!DEFAULT_CANVAS.equals(id)) {
+        canvases.computeIfPresent(id, (key, canvas) -> {
+          canvas.close();
+          return null;
+        });
+      }
+    }
+  }
+
+  /**
+   * Creates a canvas with no widgets, or with the widgets it had when it was evicted, if it is durable
+   */
+  public interface Factory {
+    /**
+     * @param version the version to start at if the canvas has no widgets to load: not older than the versions
+     *                of its evicted incarnations, which are empty at their last version
+     */
+    @NotNull WidgetCanvas create(@NotNull String id, long version);
+
+    /**
+     * @return whether the canvas has widgets to load, like a write-ahead log, though it is not in memory
+     */
+    boolean exists(@NotNull String id);
+  }
+}
@@ -0,0 +1,56 @@
+package pashazz.widgetmanager.repository.changes;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+
+/**
+ * A change made by a write, see {@link WidgetChangeLog}. Applied in order to the widgets of the previous version,
+ * the changes of a version give the widgets of this version:
+ * 1. CREATED, UPDATED - widget is the widget in its new state, which replaces the one with the same id, if any
+ * 2. DELETED - the widget with this id is removed
+ * 3. SHIFTED - the z-order of every widget in [fromZ, toZ] is increased by 1 (a shift moves a run of consecutive z-orders,
+ * so a single change stands for all the widgets of the run). Their lastUpdatedAt is not changed
+ */
+@Value
+@AllArgsConstructor
+@Builder(toBuilder = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class WidgetChange<T> {
+
+  public enum Type {
+    CREATED,
+    UPDATED,
+    DELETED,
+    SHIFTED
+  }
+
+  /**
+   * The version committed by the write, assigned by {@link WidgetChangeLog#append}
+   */
+  long version;
+  Type type;
+  T id;
+  Widget<T> widget;
+  Integer fromZ;
+  Integer toZ;
+
+  public static <T> @NotNull WidgetChange<T> created(@NotNull Widget<T> widget) {
+    return WidgetChange.<T>builder().type(Type.CREATED).id(widget.getId()).widget(widget).build();
+  }
+
+  public static <T> @NotNull WidgetChange<T> updated(@NotNull Widget<T> widget) {
+    return WidgetChange.<T>builder().type(Type.UPDATED).id(widget.getId()).widget(widget).build();
+  }
+
+  public static <T> @NotNull WidgetChange<T> deleted(@NotNull T id) {
+    return WidgetChange.<T>builder().type(Type.DELETED).id(id).build();
+  }
+
+  public static <T> @NotNull WidgetChange<T> shifted(int fromZ, int toZ) {
+    return WidgetChange.<T>builder().type(Type.SHIFTED).fromZ(fromZ).toZ(toZ).build();
+  }
+}
@@ -0,0 +1,168 @@
+package pashazz.widgetmanager.repository.changes;
+
+import org.jetbrains.annotations.NotNull;
+import pashazz.widgetmanager.exception.WidgetChangesExpiredException;
+import pashazz.widgetmanager.rest.response.WidgetChangesResponse;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.lang.String.format;
+
+/**
+ * The changes of the latest committed versions, in order: at most capacity of them, the oldest are dropped.
+ * A repository appends the changes of a version when it commits it, so a client that has the widgets of a version
+ * can follow the writes with {@link #since(long)} instead of reading all the widgets again.
+ * <p>
+ * This class is thread safe. Listeners are called after every append, in the appending thread,
+ * so they should only schedule the work. {@link ChangesListener}s get every version with all of its changes,
+ * for a consumer that must not miss any, like a replica
+ */
+public class WidgetChangeLog<T> {
+
+  private final int capacity;
+
+  private final ArrayDeque<WidgetChange<T>> changes = new ArrayDeque<>();
+
+  private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+  private final List<ChangesListener<T>> changesListeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * The last appended version
+   */
+  private long version;
+
+  /**
+   * Changes of the versions up to this one (inclusive) may have been dropped
+   */
+  private long truncatedVersion;
+
+  public WidgetChangeLog(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * Drops all the changes: the log starts at this version of the repository, the changes before it are unknown
+   */
+  public synchronized void startAt(long version) {
+    changes.clear();
+    this.version = version;
+    this.truncatedVersion = version;
+  }
+
+  /**
+   * Appends the changes of a version. Called even if there are no changes, so that the log knows the version.
+   * Of a version with more changes than the log retains, only the last ones are copied, so a bulk load does not grow the log.
+   * <p>
+   * If the version does not follow the last appended one, the changes of the versions in between are not known,
+   * like the ones of another instance on the same storage: the log starts over before this version.
+   * A version the log has already been moved past by {@link #skipTo(long)} is ignored
+   */
+  public void append(long version, @NotNull Collection<WidgetChange<T>> newChanges) {
+    synchronized (this) {
+      if (!changesListeners.isEmpty()) {
+        var appended = List.copyOf(newChanges);
+        changesListeners.forEach(listener -> listener.appended(version, appended));
+      }
+      if (version <= this.version) {
+        return;
+      }
+      if (version > this.version + 1) {
+        changes.clear();
+        truncatedVersion = version - 1;
+      }
+      int skipped = Math.max(0, newChanges.size() - capacity);
+      if (skipped > 0) {
+        changes.clear();
+        truncatedVersion = version;
+      }
+      for (var change : newChanges) {
+        if (skipped > 0) {
+          --skipped;
+          continue;
+        }
+        changes.addLast(change.toBuilder().version(version).build());
+      }
+      while (changes.size() > capacity) {
+        truncatedVersion = changes.removeFirst().getVersion();
+      }
+      this.version = version;
+    }
+    listeners.forEach(Runnable::run);
+  }
+
+  /**
+   * @param since the version the client has. If it is newer than the last appended one,
+   *              the response is empty and of this version, so the client waits for the log to catch up
+   * @return the changes of the versions after since, in order, and the version they bring the client to
+   * @throws WidgetChangesExpiredException if some of these changes are dropped: the client has to read all the widgets
+   */
+  public synchronized @NotNull WidgetChangesResponse<T> since(long since) {
+    if (since < truncatedVersion) {
+      throw new WidgetChangesExpiredException(format("changes since version %s are not retained, the oldest retained are of version %s",
+        since, truncatedVersion + 1));
+    }
+    var newer = new ArrayList<WidgetChange<T>>();
+    for (var iterator = changes.descendingIterator(); iterator.hasNext(); ) {
+      var change = iterator.next();
+      if (change.getVersion() <= since) {
+        break;
+      }
+      newer.add(change);
+    }
+    Collections.reverse(newer);
+    return new WidgetChangesResponse<>(Math.max(since, version), newer);
+  }
+
+  public synchronized long getVersion() {
+    return version;
+  }
+
+  /**
+   * Moves the log to a version whose changes are not known, like one written by another instance on the same storage:
+   * the clients behind it have to read all the widgets
+   */
+  public void skipTo(long version) {
+    synchronized (this) {
+      if (version <= this.version) {
+        return;
+      }
+      changes.clear();
+      this.version = version;
+      this.truncatedVersion = version;
+    }
+    listeners.forEach(Runnable::run);
+  }
+
+  public void addListener(@NotNull Runnable listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(@NotNull Runnable listener) {
+    listeners.remove(listener);
+  }
+
+  public void addChangesListener(@NotNull ChangesListener<T> listener) {
+    changesListeners.add(listener);
+  }
+
+  public void removeChangesListener(@NotNull ChangesListener<T> listener) {
+    changesListeners.remove(listener);
+  }
+
+  /**
+   * Gets the versions under the lock of the log, so in the order of the versions, and must only queue them
+   */
+  @FunctionalInterface
+  public interface ChangesListener<T> {
+    /**
+     * @param changes all the changes of the version, none dropped, their version not assigned
+     */
+    void appended(long version, @NotNull List<WidgetChange<T>> changes);
+  }
+}
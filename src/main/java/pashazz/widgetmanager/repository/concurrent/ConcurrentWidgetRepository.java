@@ -1,23 +1,28 @@
 package pashazz.widgetmanager.repository.concurrent;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import pashazz.widgetmanager.aspect.annotation.Measure;
 import pashazz.widgetmanager.entity.interfaces.Widget;
 import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.rest.request.Point;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
 import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+import pashazz.widgetmanager.rest.response.WidgetBatchResponse;
 
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 /**
  * This is a decorator around InMemoryWidgetRepository that locks the write operations.
  * The assumptions are the following:
- * 1. Our InMemoryWidgetRepository has an internal list of Z-ordered widgets and a map id -> widget
- * 2. Our WriteLock locks write operations to prevent concurrent access to both the list and the map
- * 3. The listWidgets() operation is thread-safe in InMemoryWidgetRepository due to the underlying variable being volatile
- * and it is only accessed by us through assignment, so no locks
+ * 1. Our InMemoryWidgetRepository has an internal tree of Z-ordered widgets and an index id -> widget
+ * 2. Our WriteLock locks write operations to prevent concurrent access to both the tree and the index
+ * 3. The read operations are thread-safe in InMemoryWidgetRepository: they use immutable snapshots of both,
+ * published through a volatile variable, so no locks
  * <p>
  * The assumption on database is that we always get a consistent listWidgets list (isolation level read-committed) and therefore it won't need a lock.
  * <p>
@@ -26,11 +31,11 @@ public class ConcurrentWidgetRepository<T> implements WidgetRepository<T> {
 
   private final WidgetRepository<T> repo;
 
-  private final ReadWriteLock lock;
+  private final Lock lock;
 
   public ConcurrentWidgetRepository(WidgetRepository<T> repo) {
     this.repo = repo;
-    this.lock = new ReentrantReadWriteLock();
+    this.lock = new ReentrantLock();
   }
 
   @Measure
@@ -57,12 +62,42 @@ public class ConcurrentWidgetRepository<T> implements WidgetRepository<T> {
     return repo.listWidgets();
   }
 
+  @Measure
+  @Override
+  public void forEachWidget(@NotNull Consumer<? super Widget<T>> action) {
+    repo.forEachWidget(action);
+  }
+
   @Measure
   @Override
   public @NotNull List<Widget<T>> listWidgets(int page, int pageSize) {
     return repo.listWidgets(page, pageSize);
   }
 
+  @Measure
+  @Override
+  public @NotNull List<Widget<T>> listWidgetsAfter(@Nullable Integer afterZ, int limit) {
+    return repo.listWidgetsAfter(afterZ, limit);
+  }
+
+  @Measure
+  @Override
+  public @NotNull List<Widget<T>> listWidgetsIn(int minX, int minY, int maxX, int maxY) {
+    return repo.listWidgetsIn(minX, minY, maxX, maxY);
+  }
+
+  @Measure
+  @Override
+  public @Nullable Widget<T> findWidgetAt(int x, int y) {
+    return repo.findWidgetAt(x, y);
+  }
+
+  @Measure
+  @Override
+  public @NotNull List<Widget<T>> findWidgetsAt(@NotNull List<Point> points) {
+    return repo.findWidgetsAt(points);
+  }
+
   @Measure
   @Override
   public void deleteWidget(@NotNull T id) {
@@ -72,13 +107,30 @@ public class ConcurrentWidgetRepository<T> implements WidgetRepository<T> {
     });
   }
 
-  protected <O> O readSafely(@NotNull Supplier<O> execute) {
-    acquireReadLock();
-    try {
-      return execute.get();
-    } finally {
-      releaseReadLock();
-    }
+  @Measure
+  @Override
+  public long getVersion() {
+    return repo.getVersion();
+  }
+
+  @Override
+  public void syncWithStorage() {
+    repo.syncWithStorage();
+  }
+
+  @Measure
+  @Override
+  public @NotNull WidgetBatchResponse<T> applyBatch(@NotNull WidgetBatchRequest<T> batch) {
+    return writeSafely(() -> repo.applyBatch(batch));
+  }
+
+  @Measure
+  @Override
+  public void groupCommit(@NotNull Runnable writes) {
+    writeSafely(() -> {
+      repo.groupCommit(writes);
+      return null;
+    });
   }
 
   protected <O> O writeSafely(@NotNull Supplier<O> execute) {
@@ -91,19 +143,11 @@ public class ConcurrentWidgetRepository<T> implements WidgetRepository<T> {
   }
 
 
-  private void acquireReadLock() {
-    lock.readLock().lock();
-  }
-
   private void acquireWriteLock() {
-    lock.writeLock().lock();
-  }
-
-  private void releaseReadLock() {
-    lock.readLock().unlock();
+    lock.lock();
   }
 
   private void releaseWriteLock() {
-    lock.writeLock().unlock();
+    lock.unlock();
   }
 }
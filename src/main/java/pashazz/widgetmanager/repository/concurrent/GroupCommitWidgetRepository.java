@@ -0,0 +1,267 @@
+package pashazz.widgetmanager.repository.concurrent;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pashazz.widgetmanager.aspect.annotation.Measure;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.rest.request.Point;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+import pashazz.widgetmanager.rest.response.WidgetBatchResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * This is a decorator that applies all the writes on a single writer thread, in groups.
+ * <p>
+ * A write is put into a queue, and the calling thread waits for its result. The writer thread takes
+ * all the writes queued so far (up to {@link #MAX_GROUP_SIZE}) and applies them in one {@link WidgetRepository#groupCommit(Runnable)},
+ * so the memory repository publishes a single version per group. When the group is committed, every caller gets its own
+ * result or exception: a failed write does not affect the others.
+ * <p>
+ * Writers never contend for a lock, and under bursty load the cost of a commit is shared by the whole group.
+ * Reads are passed to the repository as they are, so it must support concurrent reads during a write
+ * (both our repositories do).
+ */
+@Slf4j
+public class GroupCommitWidgetRepository<T> implements WidgetRepository<T>, AutoCloseable {
+
+  static final int MAX_GROUP_SIZE = 1024;
+
+  private final WidgetRepository<T> repo;
+
+  private final BlockingQueue<Write<?>> queue = new LinkedBlockingQueue<>();
+
+  private final Thread writer;
+
+  private volatile boolean closed;
+
+  public GroupCommitWidgetRepository(WidgetRepository<T> repo) {
+    this.repo = repo;
+    this.writer = new Thread(this::writeLoop, "widget-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @Measure
+  @Override
+  public @NotNull Widget<T> createWidget(@NotNull WidgetUpdateRequest request) {
+    return write(() -> repo.createWidget(request));
+  }
+
+  @Measure
+  @Override
+  public @NotNull Widget<T> updateWidget(@NotNull T id, @NotNull WidgetUpdateRequest request) {
+    return write(() -> repo.updateWidget(id, request));
+  }
+
+  @Measure
+  @Override
+  public @NotNull Widget<T> getWidget(@NotNull T id) {
+    return repo.getWidget(id);
+  }
+
+  @Measure
+  @Override
+  public @NotNull List<Widget<T>> listWidgets() {
+    return repo.listWidgets();
+  }
+
+  @Measure
+  @Override
+  public void forEachWidget(@NotNull Consumer<? super Widget<T>> action) {
+    repo.forEachWidget(action);
+  }
+
+  @Measure
+  @Override
+  public @NotNull List<Widget<T>> listWidgets(int page, int pageSize) {
+    return repo.listWidgets(page, pageSize);
+  }
+
+  @Measure
+  @Override
+  public @NotNull List<Widget<T>> listWidgetsAfter(@Nullable Integer afterZ, int limit) {
+    return repo.listWidgetsAfter(afterZ, limit);
+  }
+
+  @Measure
+  @Override
+  public @NotNull List<Widget<T>> listWidgetsIn(int minX, int minY, int maxX, int maxY) {
+    return repo.listWidgetsIn(minX, minY, maxX, maxY);
+  }
+
+  @Measure
+  @Override
+  public @Nullable Widget<T> findWidgetAt(int x, int y) {
+    return repo.findWidgetAt(x, y);
+  }
+
+  @Measure
+  @Override
+  public @NotNull List<Widget<T>> findWidgetsAt(@NotNull List<Point> points) {
+    return repo.findWidgetsAt(points);
+  }
+
+  @Measure
+  @Override
+  public void deleteWidget(@NotNull T id) {
+    write(() -> {
+      repo.deleteWidget(id);
+      return null;
+    });
+  }
+
+  @Measure
+  @Override
+  public long getVersion() {
+    return repo.getVersion();
+  }
+
+  @Override
+  public void syncWithStorage() {
+    repo.syncWithStorage();
+  }
+
+  @Measure
+  @Override
+  public @NotNull WidgetBatchResponse<T> applyBatch(@NotNull WidgetBatchRequest<T> batch) {
+    return write(() -> repo.applyBatch(batch));
+  }
+
+  /**
+   * Applies the writes on the writer thread, in a group of their own
+   */
+  @Measure
+  @Override
+  public void groupCommit(@NotNull Runnable writes) {
+    write(() -> {
+      repo.groupCommit(writes);
+      return null;
+    });
+  }
+
+  /**
+   * Stops accepting writes, applies the queued ones and stops the writer thread
+   */
+  @Override
+  public void close() throws InterruptedException {
+    closed = true;
+    writer.join();
+  }
+
+  private <O> O write(@NotNull Supplier<O> execute) {
+    if (Thread.currentThread() == writer) {
+      // a write issued by another write of the group
+      return execute.get();
+    }
+    if (closed) {
+      throw new IllegalStateException("repository is closed");
+    }
+    var write = new Write<>(execute);
+    queue.add(write);
+    if (closed) {
+      // the writer may have stopped before it could see our write
+      awaitWriter();
+      if (queue.remove(write)) {
+        throw new IllegalStateException("repository is closed");
+      }
+    }
+    try {
+      return write.result.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private void awaitWriter() {
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while the repository is closing", e);
+    }
+  }
+
+  private void writeLoop() {
+    var group = new ArrayList<Write<?>>(MAX_GROUP_SIZE);
+    while (!closed || !queue.isEmpty()) {
+      try {
+        var first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        group.add(first);
+        queue.drainTo(group, MAX_GROUP_SIZE - 1);
+        log.trace("committing a group of {} writes", group.size());
+        try {
+          repo.groupCommit(() -> group.forEach(Write::apply));
+        } catch (RuntimeException | Error e) {
+          // the commit itself has failed: nobody's write is known to be visible
+          group.forEach(write -> write.fail(e));
+        }
+        // callers are let go only after the commit, so they read their own writes
+        group.forEach(Write::complete);
+        group.clear();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        closed = true;
+        log.warn("writer thread is interrupted, {} writes are not applied", queue.size());
+        var interrupted = new IllegalStateException("writer thread is interrupted");
+        queue.forEach(write -> write.fail(interrupted));
+        queue.forEach(Write::complete);
+        return;
+      }
+    }
+  }
+
+  /**
+   * A queued write and its outcome, which is kept until the group is committed
+   */
+  private static class Write<O> {
+    private final Supplier<O> execute;
+    private final CompletableFuture<O> result = new CompletableFuture<>();
+    private O value;
+    private Throwable failure;
+
+    Write(Supplier<O> execute) {
+      this.execute = execute;
+    }
+
+    void apply() {
+      try {
+        value = execute.get();
+      } catch (RuntimeException | Error e) {
+        failure = e;
+      }
+    }
+
+    void fail(Throwable e) {
+      failure = e;
+    }
+
+    void complete() {
+      if (failure != null) {
+        result.completeExceptionally(failure);
+      } else {
+        result.complete(value);
+      }
+    }
+  }
+}
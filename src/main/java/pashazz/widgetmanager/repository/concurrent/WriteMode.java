@@ -0,0 +1,33 @@
+package pashazz.widgetmanager.repository.concurrent;
+
+import org.jetbrains.annotations.NotNull;
+import pashazz.widgetmanager.repository.WidgetRepository;
+
+/**
+ * How concurrent writes to a repository are serialized. Set by the {@code widgetmanager.write-mode} property
+ */
+public enum WriteMode {
+  /**
+   * Every write takes the write lock, see {@link ConcurrentWidgetRepository}
+   */
+  LOCK {
+    @Override
+    public <T> @NotNull WidgetRepository<T> decorate(@NotNull WidgetRepository<T> repo) {
+      return new ConcurrentWidgetRepository<>(repo);
+    }
+  },
+  /**
+   * Writes are applied in groups by a single writer thread, see {@link GroupCommitWidgetRepository}
+   */
+  GROUP_COMMIT {
+    @Override
+    public <T> @NotNull WidgetRepository<T> decorate(@NotNull WidgetRepository<T> repo) {
+      return new GroupCommitWidgetRepository<>(repo);
+    }
+  };
+
+  /**
+   * @return a thread-safe repository that writes to the given one
+   */
+  public abstract <T> @NotNull WidgetRepository<T> decorate(@NotNull WidgetRepository<T> repo);
+}
@@ -1,122 +1,524 @@
 package pashazz.widgetmanager.repository.db;
 
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import pashazz.widgetmanager.entity.db.JpaWidgetImpl;
+import pashazz.widgetmanager.entity.db.JpaWidgetsVersion;
 import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryWidgetImpl;
 import pashazz.widgetmanager.exception.WidgetNotFoundException;
 import pashazz.widgetmanager.factory.interfaces.WidgetFactory;
 import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.cache.CachingWidgetRepository;
+import pashazz.widgetmanager.repository.cache.WidgetCache;
+import pashazz.widgetmanager.repository.changes.WidgetChange;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
 import pashazz.widgetmanager.repository.db.jpa.JpaWidgetRepository;
+import pashazz.widgetmanager.repository.db.jpa.JpaWidgetsVersionRepository;
+import pashazz.widgetmanager.rest.request.Point;
+import pashazz.widgetmanager.rest.request.WidgetBatchOperation;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
 import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+import pashazz.widgetmanager.rest.response.WidgetBatchResponse;
 
 import javax.persistence.EntityManager;
-import javax.transaction.Transactional;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
-
+/**
+ * The widgets in a database. It is safe to run several instances of the application on the same database:
+ * every write transaction locks the version row first, see {@link JpaWidgetsVersionRepository#lock()},
+ * so the writes are serialized by the database rather than by a lock of the JVM, and a write reads the z-orders
+ * committed by the writes before it. The reads take no lock.
+ * <p>
+ * A transaction takes a single version, however many writes it makes. The cache is told what the writes
+ * of this instance touch; a version it has not written drops the whole cache, once {@link #syncWithStorage()} or a write sees it.
+ * The change log has the changes of this instance only, so such a version starts it over: the clients behind it
+ * get {@link pashazz.widgetmanager.exception.WidgetChangesExpiredException} and read all the widgets
+ */
 @Slf4j
 public class DbWidgetRepository implements WidgetRepository<Long> {
 
+  /**
+   * Smaller batches go one operation at a time
+   */
+  static final int BULK_INSERT_MIN_SIZE = 100;
+
+  /**
+   * A larger area query reads the columns of its tiles as a single range of tileIndex instead of a list of tiles
+   */
+  static final int MAX_TILES_PER_QUERY = 64;
+
   private final JpaWidgetRepository repo;
+  private final JpaWidgetsVersionRepository versionRepo;
   private final WidgetFactory<Long, JpaWidgetImpl> widgetFactory;
   private final EntityManager em;
+  private final TransactionTemplate transactionTemplate;
+  private final TransactionTemplate readOnlyTransactionTemplate;
+  private final WidgetChangeLog<Long> changeLog;
+  private final @Nullable WidgetCache<Long> cache;
 
+  /**
+   * The transactions that are committing, in the order of their versions, see {@link #completeCommit(PendingWrites, boolean)}
+   */
+  private final ArrayDeque<PendingWrites> committing = new ArrayDeque<>();
+
+  /**
+   * The greatest version committing or committed by this instance, or read by {@link #syncWithStorage()}:
+   * a greater one is written by another instance, which the cache and the change log have not seen.
+   * Guarded by the queue of the committing transactions
+   */
+  private long knownVersion;
+
+  /**
+   * @param cache told what every committed write has touched, if the reads are cached, see {@link CachingWidgetRepository}
+   */
   public DbWidgetRepository(JpaWidgetRepository repo,
+                            JpaWidgetsVersionRepository versionRepo,
                             WidgetFactory<Long, JpaWidgetImpl> widgetFactory,
-                            EntityManager em) {
+                            EntityManager em,
+                            PlatformTransactionManager transactionManager,
+                            WidgetChangeLog<Long> changeLog,
+                            @Nullable WidgetCache<Long> cache) {
     this.repo = repo;
+    this.versionRepo = versionRepo;
     this.widgetFactory = widgetFactory;
     this.em = em;
+    this.changeLog = changeLog;
+    this.cache = cache;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+    readOnlyTransactionTemplate.setReadOnly(true);
+    try {
+      transactionTemplate.executeWithoutResult(status -> {
+        if (!versionRepo.existsById(JpaWidgetsVersion.ID)) {
+          versionRepo.save(new JpaWidgetsVersion(JpaWidgetsVersion.ID, 0));
+        }
+      });
+    } catch (DataIntegrityViolationException e) {
+      log.debug("the version row is inserted by another instance", e);
+    }
+    knownVersion = getVersion();
+    changeLog.startAt(knownVersion);
   }
 
+  /**
+   * This object is not a Spring proxy, so the writes use transactionTemplate rather than @Transactional:
+   * the shift, the save and the version increment are a single transaction.
+   * A read of a single query runs in the transaction of the query, and a read of several in readOnlyTransactionTemplate
+   */
   @Override
-  @Transactional
   public @NotNull Widget<Long> createWidget(@NotNull WidgetUpdateRequest request) {
-    var widget = widgetFactory.createNewWidget(request, getDefaultZ());
-    shiftZ(widget.getZ());
-    return repo.save(widget);
+    return transactionTemplate.execute(status -> {
+      lockWrites();
+      var widget = widgetFactory.createNewWidget(request, getDefaultZ());
+      shiftZ(widget.getZ());
+      incrementVersion();
+      var saved = repo.save(widget);
+      recordChange(WidgetChange.created(copyOf(saved)));
+      return saved;
+    });
   }
 
   @Override
-  @Transactional
   public @NotNull Widget<Long> updateWidget(@NotNull Long id, @NotNull WidgetUpdateRequest request) {
-    var widget = _getWidget(id);
-    int oldZ = widget.getZ();
-    // here, we use the entity manager to make widget unmanaged to avoid side effects on Z order calculation
-    em.detach(widget);
-    var newWidget = widgetFactory.updateWidget(widget, request);
-    if (oldZ != newWidget.getZ()) {
-      shiftZ(newWidget.getZ());
-    }
-
-    return repo.save(newWidget);
+    return transactionTemplate.execute(status -> {
+      lockWrites();
+      var widget = _getWidget(id);
+      int oldZ = widget.getZ();
+      // here, we use the entity manager to make widget unmanaged to avoid side effects on Z order calculation
+      em.detach(widget);
+      var newWidget = widgetFactory.updateWidget(widget, request);
+      if (oldZ != newWidget.getZ()) {
+        shiftZ(newWidget.getZ());
+      }
+      incrementVersion();
+      var saved = repo.save(newWidget);
+      recordChange(WidgetChange.updated(copyOf(saved)));
+      pendingWrites().invalidation.updated(id, oldZ, saved.getZ());
+      return saved;
+    });
   }
 
   @Override
-  @Transactional
   public @NotNull Widget<Long> getWidget(@NotNull Long id) {
     return _getWidget(id);
   }
 
   @Override
-  @Transactional
   public @NotNull List<Widget<Long>> listWidgets() {
     return Collections.unmodifiableList(repo.findAllOrderByZAsc());
   }
 
 
+  /**
+   * Reads the widgets through a database cursor in a read-only transaction, which is open until the action
+   * is done with the last widget. Every entity is detached once the action is done with it,
+   * so the persistence context does not grow with the canvas
+   */
+  @Override
+  public void forEachWidget(@NotNull Consumer<? super Widget<Long>> action) {
+    readOnlyTransactionTemplate.executeWithoutResult(status -> {
+      try (var widgets = repo.streamAllByOrderByZAsc()) {
+        widgets.forEach(widget -> {
+          action.accept(widget);
+          em.detach(widget);
+        });
+      }
+    });
+  }
+
   @Override
-  @Transactional
   public @NotNull List<Widget<Long>> listWidgets(int page, int pageSize) {
-    return Collections.unmodifiableList(repo.findAllOrderByZAsc(Pageable.ofSize(pageSize).withPage(page)).toList());
+    // the page and the count query
+    return readOnlyTransactionTemplate.execute(status ->
+      Collections.unmodifiableList(repo.findAllOrderByZAsc(Pageable.ofSize(pageSize).withPage(page)).toList()));
+  }
+
+  /**
+   * A seek on zOrderIndex: the first page and every next one take the same time, no count query runs
+   */
+  @Override
+  public @NotNull List<Widget<Long>> listWidgetsAfter(@Nullable Integer afterZ, int limit) {
+    var firstRows = Pageable.ofSize(limit);
+    var widgets = afterZ == null ? repo.findByOrderByZAsc(firstRows) : repo.findByZGreaterThanOrderByZAsc(afterZ, firstRows);
+    return Collections.unmodifiableList(widgets);
+  }
+
+  /**
+   * The tiles of tileIndex the rectangle and the widgets reaching into it from the left and from below start in,
+   * and the widgets larger than a tile, read on their own
+   */
+  @Override
+  public @NotNull List<Widget<Long>> listWidgetsIn(int minX, int minY, int maxX, int maxY) {
+    if (minX > maxX || minY > maxY) {
+      return Collections.emptyList();
+    }
+    return readOnlyTransactionTemplate.execute(status ->
+      Collections.unmodifiableList(findIntersecting(minX, minY, maxX, maxY)));
+  }
+
+  /**
+   * The widgets containing the point, read like {@link #listWidgetsIn(int, int, int, int)}: there are few of them
+   */
+  @Override
+  public @Nullable Widget<Long> findWidgetAt(int x, int y) {
+    return findWidgetsAt(List.of(new Point(x, y))).get(0);
+  }
+
+  /**
+   * A single read-only transaction for all the points, 4 tiles each
+   */
+  @Override
+  public @NotNull List<Widget<Long>> findWidgetsAt(@NotNull List<Point> points) {
+    return readOnlyTransactionTemplate.execute(status -> {
+      var widgets = new ArrayList<Widget<Long>>(points.size());
+      for (var point : points) {
+        var found = findIntersecting(point.getX(), point.getY(), point.getX(), point.getY());
+        widgets.add(found.isEmpty() ? null : found.get(found.size() - 1));
+      }
+      return widgets;
+    });
+  }
+
+  /**
+   * @return the widgets intersecting the rectangle, sorted by z-order
+   */
+  private List<JpaWidgetImpl> findIntersecting(int minX, int minY, int maxX, int maxY) {
+    // a widget no larger than a tile reaches into the rectangle from the previous column or row of tiles at most
+    int fromTileX = Math.floorDiv(minX, JpaWidgetImpl.TILE_SIZE) - 1;
+    int fromTileY = Math.floorDiv(minY, JpaWidgetImpl.TILE_SIZE) - 1;
+    int toTileX = Math.floorDiv(maxX, JpaWidgetImpl.TILE_SIZE);
+    int toTileY = Math.floorDiv(maxY, JpaWidgetImpl.TILE_SIZE);
+    List<JpaWidgetImpl> widgets;
+    if ((long) (toTileX - fromTileX + 1) * (toTileY - fromTileY + 1) <= MAX_TILES_PER_QUERY) {
+      var tiles = new ArrayList<Long>();
+      for (int tileX = fromTileX; tileX <= toTileX; ++tileX) {
+        for (int tileY = fromTileY; tileY <= toTileY; ++tileY) {
+          tiles.add(JpaWidgetImpl.tileKey(tileX, tileY));
+        }
+      }
+      widgets = repo.findIntersectingInTiles(tiles, minX, minY, maxX, maxY);
+    } else {
+      widgets = repo.findIntersectingInTileRange(JpaWidgetImpl.tileKey(fromTileX, 0), JpaWidgetImpl.tileKey(toTileX, -1),
+        minX, minY, maxX, maxY);
+    }
+    var large = repo.findLargeIntersecting(minX, minY, maxX, maxY);
+    if (large.isEmpty()) {
+      return widgets;
+    }
+    var all = new ArrayList<JpaWidgetImpl>(widgets.size() + large.size());
+    all.addAll(widgets);
+    all.addAll(large);
+    all.sort(Comparator.comparingInt(JpaWidgetImpl::getZ));
+    return all;
   }
 
   @Override
-  @Transactional
   public void deleteWidget(@NotNull Long id) {
-    try {
-      repo.deleteById(id);
-    } catch (Exception e) {
-      log.debug("Unable to delete widget by id {}: {}", id, e.getMessage());
+    transactionTemplate.executeWithoutResult(status -> {
+      lockWrites();
+      // not deleteById: it throws on a missing id, which would mark an enclosing batch transaction as rollback-only
+      repo.findById(id).ifPresentOrElse(widget -> {
+        repo.delete(widget);
+        incrementVersion();
+        recordChange(WidgetChange.deleted(id));
+        pendingWrites().invalidation.deleted(id, widget.getZ());
+      }, () -> log.debug("deleteWidget: id not found: {}", id));
+    });
+  }
+
+  /**
+   * A primary key lookup of the version row. Read-committed, so a write that is not committed yet is not counted
+   */
+  @Override
+  public long getVersion() {
+    return versionRepo.findVersion();
+  }
+
+  /**
+   * Reads the version row: a version greater than any this instance knows of is written by another instance,
+   * so the cache is dropped and the change log is moved to it
+   */
+  @Override
+  public void syncWithStorage() {
+    if (TransactionSynchronizationManager.hasResource(this)) {
+      // a write of this thread is running, the version it reads is not committed yet
+      return;
+    }
+    long version = versionRepo.findVersion();
+    synchronized (committing) {
+      if (version > knownVersion) {
+        log.debug("version {} is written by another instance", version);
+        knownVersion = version;
+        clearCache();
+        changeLog.skipTo(version);
+      }
     }
   }
 
 
   /**
-   * Will shift current widget to the next zOrder until there is a gap or end of the list
-   * <p>
-   * Normally would require a repeatable read transaction isolation, but we
-   * lock ourselves manually so don't care
+   * The whole batch is a single transaction, which is rolled back if an operation throws.
+   * A large batch that only puts new widgets on top of the canvas takes the bulk path, see {@link #insertOnTop(List)}
+   */
+  @Override
+  public @NotNull WidgetBatchResponse<Long> applyBatch(@NotNull WidgetBatchRequest<Long> batch) {
+    return transactionTemplate.execute(status -> {
+      lockWrites();
+      var results = insertOnTop(batch.getOperations());
+      if (results == null) {
+        results = new ArrayList<>(batch.getOperations().size());
+        for (var operation : batch.getOperations()) {
+          results.add(WidgetRepository.applyOperation(this, operation));
+        }
+        // a shift clears the persistence context, so the widgets of earlier operations may be stale
+        results.replaceAll(widget -> widget == null ? null : repo.findById(widget.getId()).orElse(null));
+      }
+      var widgets = new ArrayList<Widget<Long>>(batch.getIds().size());
+      for (var id : batch.getIds()) {
+        widgets.add(id == null ? null : repo.findById(id).orElse(null));
+      }
+      return new WidgetBatchResponse<>(results, widgets);
+    });
+  }
+
+
+  /**
+   * Bulk path for creations that need no shift: every widget goes above the ones created before it.
+   * Then z-orders are known in advance, so the widgets are inserted through a stateless session,
+   * in JDBC batches, without the persistence context and the queries for the top z-order and the shift of each widget.
    *
-   * @param z z order that needs to be shifted + 1
+   * @return created widgets, or null if the operations are not all creations, there are too few of them to bother,
+   * or one of them needs a shift
    */
+  private List<Widget<Long>> insertOnTop(@NotNull List<WidgetBatchOperation<Long>> operations) {
+    if (operations.size() < BULK_INSERT_MIN_SIZE || !operations.stream().allMatch(DbWidgetRepository::isCreation)) {
+      return null;
+    }
+    var topZ = repo.getTopZ();
+    var widgets = new ArrayList<JpaWidgetImpl>(operations.size());
+    for (var operation : operations) {
+      var widget = widgetFactory.createNewWidget(operation.getWidget(), Optional.ofNullable(topZ).orElse(0) + 1);
+      if (topZ != null && widget.getZ() <= topZ) {
+        return null;
+      }
+      topZ = widget.getZ();
+      widgets.add(widget);
+    }
+    em.unwrap(Session.class).doWork(connection -> {
+      // the connection of our transaction, so the inserts are a part of it
+      var sessionFactory = em.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class);
+      try (var session = sessionFactory.openStatelessSession(connection)) {
+        // a stateless session on a given connection ignores the configured batch size
+        session.setJdbcBatchSize(sessionFactory.getSessionFactoryOptions().getJdbcBatchSize());
+        widgets.forEach(session::insert);
+        // nor does it execute the last batch on close
+        ((SharedSessionContractImplementor) session).getJdbcCoordinator().executeBatch();
+      }
+    });
+    incrementVersion();
+    widgets.forEach(widget -> recordChange(WidgetChange.created(copyOf(widget))));
+    log.debug("inserted {} widgets in bulk", widgets.size());
+    return new ArrayList<>(widgets);
+  }
 
-  private void shiftZ(int z) {
-    shiftZAlgo(repo.findByZ(z));
+  private static boolean isCreation(@NotNull WidgetBatchOperation<Long> operation) {
+    return operation.getType() == WidgetBatchOperation.Type.CREATE && operation.getWidget() != null;
   }
 
   /**
-   * This will first find a widget with index == z + 1 and then increment widgetOpt's zIndex
+   * Shifts the run of consecutive z-orders that starts at z by 1, up to the first gap
+   * <p>
+   * Takes a constant number of statements regardless of the length of the run: the run is found with one query
+   * and moved with one bulk update.
+   * Read-committed is enough: the transaction holds the lock of the writes, so no other one changes the z-orders
+   * between the query and the update
    *
-   * @param widgetOpt
+   * @param z z order that needs to be shifted + 1
    */
-  private void shiftZAlgo(@NotNull Optional<JpaWidgetImpl> widgetOpt) {
-    if (widgetOpt.isEmpty()) {
+  private void shiftZ(int z) {
+    if (!repo.existsByZ(z)) {
       return;
     }
-    int z = widgetOpt.get().getZ();
-    log.trace("shifting zOrder at widget: {}: {} -> {}", widgetOpt.get(), z, z + 1);
-    Optional<JpaWidgetImpl> widgetOptNext = repo.findByZ(z + 1);
+    int top = repo.findRunTop(z, Pageable.ofSize(1)).get(0);
+    int shifted = repo.shiftZ(z, top);
+    recordChange(WidgetChange.shifted(z, top));
+    log.trace("shifted {} widgets with zOrder in [{}, {}]", shifted, z, top);
+  }
+
+  /**
+   * Collects the change in the running transaction. The changes of the transaction are appended to the change log
+   * once it is committed, with the version it has committed; they are dropped if it is rolled back.
+   * A creation and a shift tell the cache what they touch too, an update and a deletion add the z-order they had
+   */
+  private void recordChange(@NotNull WidgetChange<Long> change) {
+    var writes = pendingWrites();
+    writes.changes.add(change);
+    if (change.getType() == WidgetChange.Type.CREATED) {
+      writes.invalidation.created(change.getId(), change.getWidget().getZ());
+    } else if (change.getType() == WidgetChange.Type.SHIFTED) {
+      writes.invalidation.shifted(change.getFromZ(), change.getToZ());
+    }
+  }
+
+  private @NotNull PendingWrites pendingWrites() {
+    var writes = (PendingWrites) TransactionSynchronizationManager.getResource(this);
+    if (writes == null) {
+      var newWrites = new PendingWrites();
+      TransactionSynchronizationManager.bindResource(this, newWrites);
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void beforeCommit(boolean readOnly) {
+          newWrites.version = getVersion();
+          // the version row is locked until the commit, so the transactions get here in the order of their versions
+          synchronized (committing) {
+            if (newWrites.version > knownVersion + 1) {
+              log.debug("versions up to {} are written by another instance", newWrites.version - 1);
+              clearCache();
+            }
+            knownVersion = Math.max(knownVersion, newWrites.version);
+            committing.addLast(newWrites);
+          }
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+          TransactionSynchronizationManager.unbindResource(DbWidgetRepository.this);
+          // the cache first, so that whoever follows the change log reads the new rows
+          if (status == STATUS_COMMITTED && cache != null) {
+            cache.invalidate(newWrites.invalidation);
+          }
+          completeCommit(newWrites, status == STATUS_COMMITTED);
+        }
+      });
+      writes = newWrites;
+    }
+    return writes;
+  }
+
+  /**
+   * Appends the changes of the committed transactions to the change log in the order of their versions.
+   * Transactions that have committed one after another may complete in either order, so a transaction waits
+   * in the queue until the ones before it have completed.
+   * A transaction that fails to commit after taking its place in the queue gives its version up,
+   * so that {@link #syncWithStorage()} notices another instance committing it
+   */
+  private void completeCommit(@NotNull PendingWrites writes, boolean committed) {
+    synchronized (committing) {
+      writes.completed = true;
+      writes.committed = committed;
+      while (!committing.isEmpty() && committing.peekFirst().completed) {
+        var completed = committing.removeFirst();
+        if (completed.committed) {
+          changeLog.append(completed.version, completed.changes);
+        } else if (knownVersion == completed.version) {
+          knownVersion = completed.version - 1;
+        }
+      }
+    }
+  }
+
+  private void clearCache() {
+    if (cache != null) {
+      cache.clear();
+    }
+  }
 
-    widgetOpt.get().setZ(z + 1);
-    repo.save(widgetOpt.get());
+  /**
+   * Takes the lock of the writes of all the instances, held until the transaction ends
+   */
+  private void lockWrites() {
+    versionRepo.lock();
+  }
+
+  /**
+   * The writes of the running transaction
+   */
+  private static class PendingWrites {
+    private final List<WidgetChange<Long>> changes = new ArrayList<>();
+    private final WidgetCache.Invalidation<Long> invalidation = new WidgetCache.Invalidation<>();
+    private long version;
+    private boolean versionIncremented;
+    /**
+     * Guarded by the queue of the committing transactions
+     */
+    private boolean completed;
+    private boolean committed;
+  }
 
-    shiftZAlgo(widgetOptNext);
+  /**
+   * Entities may be changed later in the transaction, so the changes keep copies
+   */
+  private static @NotNull Widget<Long> copyOf(@NotNull Widget<Long> widget) {
+    return new InMemoryWidgetImpl<>(widget.getId(), widget.getX(), widget.getY(), widget.getZ(),
+      widget.getWidth(), widget.getHeight(), widget.getLastUpdatedAt());
+  }
 
+  /**
+   * Once per transaction, so that the versions of this instance follow one another
+   */
+  private void incrementVersion() {
+    var writes = pendingWrites();
+    if (!writes.versionIncremented) {
+      versionRepo.increment();
+      writes.versionIncremented = true;
+    }
   }
 
   private @NotNull JpaWidgetImpl _getWidget(@NotNull Long id) {
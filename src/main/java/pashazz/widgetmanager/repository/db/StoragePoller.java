@@ -0,0 +1,51 @@
+package pashazz.widgetmanager.repository.db;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pashazz.widgetmanager.repository.WidgetRepository;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Syncs a repository with its storage every interval, see {@link WidgetRepository#syncWithStorage()}, so that
+ * the subscribers of the change stream learn of the writes of other instances without a request to this one.
+ * A zero interval turns it off
+ */
+@Slf4j
+public class StoragePoller implements Closeable {
+
+  private final @Nullable ScheduledExecutorService scheduler;
+
+  public StoragePoller(@NotNull WidgetRepository<?> repo, @NotNull Duration interval) {
+    if (interval.isZero() || interval.isNegative()) {
+      scheduler = null;
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "storage-poller");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long period = interval.toNanos();
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        repo.syncWithStorage();
+      } catch (RuntimeException e) {
+        // the next attempt may succeed, a thrown exception would cancel them all
+        log.warn("failed to sync with the storage", e);
+      }
+    }, period, period, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+}
@@ -2,12 +2,22 @@ package pashazz.widgetmanager.repository.db.jpa;
 
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.Repository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 import pashazz.widgetmanager.entity.db.JpaWidgetImpl;
 
+import javax.persistence.QueryHint;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
 
 public interface JpaWidgetRepository extends Repository<JpaWidgetImpl, Long> {
 
@@ -20,18 +30,110 @@ public interface JpaWidgetRepository extends Repository<JpaWidgetImpl, Long> {
   Page<JpaWidgetImpl> findAllOrderByZAsc(Pageable pageable);
 
 
+  /**
+   * All the widgets sorted by z-order, read by a cursor in batches of the fetch size.
+   * Must be closed, and consumed in a transaction
+   */
+  @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+  Stream<JpaWidgetImpl> streamAllByOrderByZAsc();
+
+  /**
+   * The first rows of the z-order, without a count query unlike {@link #findAllOrderByZAsc(Pageable)}
+   *
+   * @param pageable the first page
+   */
+  List<JpaWidgetImpl> findByOrderByZAsc(Pageable pageable);
+
+  /**
+   * The first rows of the z-order after z, without a count query
+   *
+   * @param pageable the first page
+   */
+  List<JpaWidgetImpl> findByZGreaterThanOrderByZAsc(int z, Pageable pageable);
+
+  /**
+   * The widgets of the tiles given intersecting [minX, maxX] x [minY, maxY], sorted by z-order.
+   * The database reads tileIndex for every tile, and the rest of the conditions filter it
+   */
+  @Query("select w from JpaWidgetImpl w where w.tile in :tiles and w.x <= :maxX and w.y <= :maxY " +
+    "and cast(w.x as long) + w.width >= :minX and cast(w.y as long) + w.height >= :minY order by w.z asc")
+  List<JpaWidgetImpl> findIntersectingInTiles(@Param("tiles") Collection<Long> tiles,
+                                              @Param("minX") long minX, @Param("minY") long minY,
+                                              @Param("maxX") int maxX, @Param("maxY") int maxY);
+
+  /**
+   * The widgets of the tiles from fromTile to toTile intersecting [minX, maxX] x [minY, maxY], sorted by z-order:
+   * a range of tileIndex, for a rectangle of too many tiles to list
+   */
+  @Query("select w from JpaWidgetImpl w where w.tile between :fromTile and :toTile and w.x <= :maxX and w.y <= :maxY " +
+    "and cast(w.x as long) + w.width >= :minX and cast(w.y as long) + w.height >= :minY order by w.z asc")
+  List<JpaWidgetImpl> findIntersectingInTileRange(@Param("fromTile") long fromTile, @Param("toTile") long toTile,
+                                                  @Param("minX") long minX, @Param("minY") long minY,
+                                                  @Param("maxX") int maxX, @Param("maxY") int maxY);
+
+  /**
+   * The widgets larger than a tile intersecting [minX, maxX] x [minY, maxY], sorted by z-order.
+   * The database reads the few of them from tileIndex, where they have no tile
+   */
+  @Query("select w from JpaWidgetImpl w where w.tile is null and w.x <= :maxX and w.y <= :maxY " +
+    "and cast(w.x as long) + w.width >= :minX and cast(w.y as long) + w.height >= :minY order by w.z asc")
+  List<JpaWidgetImpl> findLargeIntersecting(@Param("minX") long minX, @Param("minY") long minY,
+                                            @Param("maxX") int maxX, @Param("maxY") int maxY);
+
   Optional<JpaWidgetImpl> findById(Long id);
 
   @Query("select max(w.z) from JpaWidgetImpl w")
   Integer getTopZ();
 
 
-  Optional<JpaWidgetImpl> findByZ(int z);
+  boolean existsByZ(int z);
+
+  /**
+   * Finds the top of the run of consecutive z-orders that starts at z:
+   * the smallest z-order at or above z that is not followed by z-order + 1.
+   * Ordered and limited by the pageable (not min), so the database walks the z index up to the first gap and stops
+   *
+   * @param pageable the first page of size 1
+   */
+  @Query("select w.z from JpaWidgetImpl w where w.z >= :z " +
+    "and not exists (select v.id from JpaWidgetImpl v where v.z = w.z + 1) order by w.z asc")
+  List<Integer> findRunTop(@Param("z") int z, Pageable pageable);
+
+  /**
+   * Adds 1 to the z-orders in the range with a single statement.
+   * Pending changes are flushed before, and the persistence context is cleared after, as it does not see the update
+   *
+   * @return number of widgets shifted
+   */
+  @Transactional
+  @Modifying(flushAutomatically = true, clearAutomatically = true)
+  @Query("update JpaWidgetImpl w set w.z = w.z + 1 where w.z between :from and :to")
+  int shiftZ(@Param("from") int from, @Param("to") int to);
 
   JpaWidgetImpl save(JpaWidgetImpl entity);
 
+  List<JpaWidgetImpl> findAllByIdIn(Collection<Long> ids);
+
+  /**
+   * Inserts a widget with the id given, not one from the sequence: the hybrid storage gives the ids itself.
+   * The tile must be {@link JpaWidgetImpl#tileOf}
+   */
+  @Modifying(flushAutomatically = true)
+  @Query(nativeQuery = true, value = "insert into widgets (id, x, y, z, width, height, last_updated_at, tile) " +
+    "values (:id, :x, :y, :z, :width, :height, :lastUpdatedAt, :tile)")
+  int insert(@Param("id") long id, @Param("x") int x, @Param("y") int y, @Param("z") int z,
+             @Param("width") int width, @Param("height") int height, @Param("lastUpdatedAt") LocalDateTime lastUpdatedAt,
+             @Param("tile") Long tile);
+
+  /**
+   * Deletes with a single statement. Pending changes are flushed before, and the persistence context is cleared after
+   */
+  @Modifying(flushAutomatically = true, clearAutomatically = true)
+  @Query("delete from JpaWidgetImpl w where w.id in :ids")
+  int deleteAllByIdIn(@Param("ids") Collection<Long> ids);
+
 
-  void deleteById(Long id);
+  void delete(JpaWidgetImpl entity);
 
 
 }
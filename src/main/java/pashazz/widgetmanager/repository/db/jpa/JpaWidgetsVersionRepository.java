@@ -0,0 +1,47 @@
+package pashazz.widgetmanager.repository.db.jpa;
+
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.Repository;
+import org.springframework.data.repository.query.Param;
+import pashazz.widgetmanager.entity.db.JpaWidgetsVersion;
+
+import javax.persistence.LockModeType;
+import java.util.Optional;
+
+public interface JpaWidgetsVersionRepository extends Repository<JpaWidgetsVersion, Integer> {
+
+  @Query("select v.version from JpaWidgetsVersion v where v.id = " + JpaWidgetsVersion.ID)
+  Long findVersion();
+
+  /**
+   * Locks the version row (select for update) until the transaction ends. Every write transaction of the db storage
+   * takes this lock first, so the writes of all the instances on the database are serialized by the database
+   */
+  @Lock(LockModeType.PESSIMISTIC_WRITE)
+  @Query("select v from JpaWidgetsVersion v where v.id = " + JpaWidgetsVersion.ID)
+  JpaWidgetsVersion lock();
+
+  /**
+   * Must be called in the transaction of the write. The row stays locked until it ends
+   *
+   * @return 1 if the version row exists
+   */
+  @Modifying
+  @Query("update JpaWidgetsVersion v set v.version = v.version + 1 where v.id = " + JpaWidgetsVersion.ID)
+  int increment();
+
+  /**
+   * Sets the version of memory the hybrid storage has written, in the transaction that writes it
+   */
+  @Modifying
+  @Query("update JpaWidgetsVersion v set v.version = :version, v.lastId = :lastId where v.id = " + JpaWidgetsVersion.ID)
+  int setReplicated(@Param("version") long version, @Param("lastId") long lastId);
+
+  Optional<JpaWidgetsVersion> findById(Integer id);
+
+  boolean existsById(Integer id);
+
+  JpaWidgetsVersion save(JpaWidgetsVersion entity);
+}
@@ -0,0 +1,497 @@
+package pashazz.widgetmanager.repository.hybrid;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import pashazz.widgetmanager.entity.db.JpaWidgetImpl;
+import pashazz.widgetmanager.entity.db.JpaWidgetsVersion;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryWidgetImpl;
+import pashazz.widgetmanager.repository.changes.WidgetChange;
+import pashazz.widgetmanager.repository.db.jpa.JpaWidgetRepository;
+import pashazz.widgetmanager.repository.db.jpa.JpaWidgetsVersionRepository;
+import pashazz.widgetmanager.repository.memory.InMemoryWidgetRepository;
+import pashazz.widgetmanager.rest.response.ReplicationStatusResponse;
+
+import javax.persistence.EntityManager;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the versions of the memory storage to the database behind it, in a thread of its own,
+ * so the writes of the memory storage never wait for the database: it only queues their changes, see {@link #enqueue}.
+ * <p>
+ * The changes are coalesced per id as they are queued: only the last state of a widget is written, or its deletion.
+ * A shift is written as it is made, a single bulk update of its run, so the writes are split into segments by the shifts,
+ * and the last state of a widget goes with the segment of its last change: the shifts before it are overwritten by it,
+ * and the shifts after it move it like they moved it in memory. Hence the queue holds at most a write per widget
+ * and a shift per shifting write, however long the database is slow.
+ * <p>
+ * The queue is written when it has batch size writes, or when its oldest change is interval old, in a transaction
+ * per batch that sets the version of memory it brings the database to, see {@link JpaWidgetsVersion}.
+ * A batch only ends where no write has been moved past it to a later segment, so the database is always left
+ * at a state memory has had, see {@link #takeBatch()}.
+ * A failed batch is retried until it is written. {@link #hydrate} starts the memory storage from that version.
+ * <p>
+ * {@link #getStatus()} tells how far the database is behind. This class is thread safe
+ */
+@Slf4j
+public class DbWriteBehind implements Closeable {
+
+  private static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(5);
+
+  /**
+   * Attempts to write a batch after the writer is closed, before its changes are given up
+   */
+  private static final int CLOSING_ATTEMPTS = 3;
+
+  /**
+   * Ids per query of the widgets a segment updates
+   */
+  private static final int IDS_PER_QUERY = 500;
+
+  private final JpaWidgetRepository widgetRepository;
+
+  private final JpaWidgetsVersionRepository versionRepository;
+
+  private final EntityManager entityManager;
+
+  private final PlatformTransactionManager transactionManager;
+
+  private final TransactionTemplate transactionTemplate;
+
+  private final int batchSize;
+
+  private final long intervalNanos;
+
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+  /**
+   * The queued segment every queued widget is written by
+   */
+  private final Map<Long, Segment> segmentsById = new HashMap<>();
+
+  /**
+   * The number of the last segment opened
+   */
+  private long segmentNumber;
+
+  /**
+   * Writes and shifts queued and being written
+   */
+  private int queueDepth;
+
+  /**
+   * The last version queued
+   */
+  private long version;
+
+  private long lastId;
+
+  /**
+   * The last version written to the database
+   */
+  private long replicatedVersion;
+
+  /**
+   * When the oldest segment of the batch being written was queued, by {@link System#nanoTime()}, 0 if none is
+   */
+  private long writingSince;
+
+  private long failures;
+
+  private boolean closed;
+
+  private Thread writer;
+
+  /**
+   * @param batchSize the writes and shifts of a transaction, unless a single segment has more
+   * @param interval  how long a change waits for others to be coalesced and batched with
+   */
+  public DbWriteBehind(@NotNull JpaWidgetRepository widgetRepository, @NotNull JpaWidgetsVersionRepository versionRepository,
+                       @NotNull EntityManager entityManager, @NotNull PlatformTransactionManager transactionManager,
+                       int batchSize, @NotNull Duration interval) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("the batch size must be positive: " + batchSize);
+    }
+    this.widgetRepository = widgetRepository;
+    this.versionRepository = versionRepository;
+    this.entityManager = entityManager;
+    this.transactionManager = transactionManager;
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.batchSize = batchSize;
+    this.intervalNanos = interval.toNanos();
+  }
+
+  /**
+   * Loads the widgets of the database into an empty memory storage, reading them in chunks sorted by z-order,
+   * a transaction per chunk: nothing else writes to the database. The storage starts at the version of the database
+   *
+   * @return the greatest id ever given, for the id generator
+   */
+  public long hydrate(@NotNull InMemoryWidgetRepository repo, int chunkSize) {
+    var state = transactionTemplate.execute(status -> versionRepository.findById(JpaWidgetsVersion.ID)
+      .orElseGet(() -> versionRepository.save(new JpaWidgetsVersion(JpaWidgetsVersion.ID, 0))));
+    var widgets = new ArrayList<Widget<Long>>();
+    var readOnly = new TransactionTemplate(transactionManager);
+    readOnly.setReadOnly(true);
+    List<Widget<Long>> chunk;
+    do {
+      Integer afterZ = widgets.isEmpty() ? null : widgets.get(widgets.size() - 1).getZ();
+      chunk = readOnly.execute(status -> readChunk(afterZ, chunkSize));
+      widgets.addAll(chunk);
+    } while (chunk.size() == chunkSize);
+    long maxId = widgets.stream().mapToLong(Widget::getId).max().orElse(0);
+    synchronized (this) {
+      version = replicatedVersion = state.getVersion();
+      lastId = Math.max(state.getLastId(), maxId);
+    }
+    repo.load(version, lastId, widgets);
+    log.info("{} widgets of version {} loaded from the database", widgets.size(), version);
+    return lastId;
+  }
+
+  private List<Widget<Long>> readChunk(Integer afterZ, int chunkSize) {
+    var entities = afterZ == null ? widgetRepository.findByOrderByZAsc(Pageable.ofSize(chunkSize))
+      : widgetRepository.findByZGreaterThanOrderByZAsc(afterZ, Pageable.ofSize(chunkSize));
+    var chunk = new ArrayList<Widget<Long>>(entities.size());
+    for (var entity : entities) {
+      chunk.add(new InMemoryWidgetImpl<>(entity.getId(), entity.getX(), entity.getY(), entity.getZ(),
+        entity.getWidth(), entity.getHeight(), entity.getLastUpdatedAt()));
+    }
+    return chunk;
+  }
+
+  /**
+   * Starts the thread that writes the queue
+   */
+  public synchronized void start() {
+    if (writer != null) {
+      throw new IllegalStateException("the writer is started already");
+    }
+    writer = new Thread(this::run, "db-write-behind");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues the changes of a version, see {@link pashazz.widgetmanager.repository.changes.WidgetChangeLog.ChangesListener}.
+   * Takes no longer than the changes take to be put into a few maps
+   */
+  public synchronized void enqueue(long version, @NotNull List<WidgetChange<Long>> changes) {
+    if (closed) {
+      log.error("version {} is not written to the database: the writer is closed", version);
+      return;
+    }
+    boolean wasEmpty = segments.isEmpty();
+    for (var change : changes) {
+      switch (change.getType()) {
+        case CREATED:
+          lastId = Math.max(lastId, change.getId());
+          write(change.getId(), change.getWidget());
+          break;
+        case UPDATED:
+          write(change.getId(), change.getWidget());
+          break;
+        case DELETED:
+          write(change.getId(), null);
+          break;
+        case SHIFTED:
+          openSegment().shift = change;
+          ++queueDepth;
+          break;
+      }
+    }
+    this.version = version;
+    if (!segments.isEmpty()) {
+      segments.peekLast().version = version;
+      segments.peekLast().lastId = lastId;
+    }
+    if (wasEmpty || queueDepth >= batchSize) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * @param widget null for a deletion
+   */
+  private void write(Long id, Widget<Long> widget) {
+    var segment = openSegment();
+    var previous = segmentsById.put(id, segment);
+    if (previous != null) {
+      previous.writes.remove(id);
+      previous.movedTo = Math.max(previous.movedTo, segment.number);
+      --queueDepth;
+    }
+    segment.writes.put(id, widget);
+    ++queueDepth;
+  }
+
+  /**
+   * The last segment, unless it is closed by a shift
+   */
+  private Segment openSegment() {
+    var last = segments.peekLast();
+    if (last == null || last.shift != null) {
+      last = new Segment(++segmentNumber);
+      segments.addLast(last);
+    }
+    return last;
+  }
+
+  private void run() {
+    try {
+      boolean written;
+      do {
+        written = writeBatch();
+      } while (written);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Waits for a batch to be due and writes it, in the thread of the writer once it is started
+   *
+   * @return false once the writer is closed and everything is written
+   */
+  boolean writeBatch() throws InterruptedException {
+    List<Segment> batch;
+    synchronized (this) {
+      batch = takeBatch();
+    }
+    if (batch.isEmpty()) {
+      return false;
+    }
+    writeWithRetries(batch);
+    return true;
+  }
+
+  /**
+   * Waits for a batch to be due: empty once the writer is closed and everything is written.
+   * <p>
+   * The batch takes the first segments, up to batch size writes and shifts, but it only ends after a segment
+   * whose writes, and the writes of the segments before it, are all still there: a write moved to a later segment
+   * would leave its widget in a state older than the version of the batch, where it may take the z-order
+   * of another widget. So a batch is larger than batch size if it has to be, at worst the whole queue
+   */
+  private List<Segment> takeBatch() throws InterruptedException {
+    while (true) {
+      if (segments.isEmpty()) {
+        if (closed) {
+          return List.of();
+        }
+        wait();
+        continue;
+      }
+      long waitNanos = segments.peekFirst().queuedAt + intervalNanos - System.nanoTime();
+      if (closed || queueDepth >= batchSize || waitNanos <= 0) {
+        break;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+    }
+    int size = 0;
+    int count = 0;
+    int end = 0;
+    long movedTo = 0;
+    for (var segment : segments) {
+      if (end > 0 && size + segment.size() > batchSize) {
+        break;
+      }
+      size += segment.size();
+      ++count;
+      movedTo = Math.max(movedTo, segment.movedTo);
+      if (movedTo <= segment.number) {
+        end = count;
+      }
+    }
+    var batch = new ArrayList<Segment>(end);
+    for (int i = 0; i < end; ++i) {
+      var segment = segments.removeFirst();
+      // the writes of the widgets from now on go to the new segments
+      segment.writes.keySet().forEach(id -> segmentsById.remove(id, segment));
+      batch.add(segment);
+    }
+    writingSince = batch.get(0).queuedAt;
+    return batch;
+  }
+
+  private void writeWithRetries(List<Segment> batch) {
+    var last = batch.get(batch.size() - 1);
+    int size = batch.stream().mapToInt(Segment::size).sum();
+    long delayNanos = Math.min(intervalNanos, MAX_RETRY_DELAY.toNanos());
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        long start = System.nanoTime();
+        transactionTemplate.executeWithoutResult(status -> {
+          batch.forEach(this::writeSegment);
+          versionRepository.setReplicated(last.version, last.lastId);
+        });
+        log.debug("version {} written to the database: {} writes and shifts in {} ms", last.version, size,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        break;
+      } catch (RuntimeException e) {
+        boolean givingUp;
+        synchronized (this) {
+          ++failures;
+          givingUp = closed && attempt >= CLOSING_ATTEMPTS;
+        }
+        if (givingUp) {
+          log.error("versions up to {} are not written to the database, giving up as the writer is closed", last.version, e);
+          break;
+        }
+        log.warn("versions up to {} are not written to the database, retrying (attempt {})", last.version, attempt, e);
+        try {
+          TimeUnit.NANOSECONDS.sleep(delayNanos);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        delayNanos = Math.min(2 * delayNanos, MAX_RETRY_DELAY.toNanos());
+      }
+    }
+    synchronized (this) {
+      queueDepth -= size;
+      replicatedVersion = last.version;
+      writingSince = 0;
+      notifyAll();
+    }
+  }
+
+  /**
+   * The widgets that exist are loaded and changed, so Hibernate updates them in JDBC batches,
+   * and the rest are inserted with their ids. The shift goes after, flushing them
+   */
+  private void writeSegment(Segment segment) {
+    var deleted = new ArrayList<Long>();
+    var written = new LinkedHashMap<Long, Widget<Long>>();
+    segment.writes.forEach((id, widget) -> {
+      if (widget == null) {
+        deleted.add(id);
+      } else {
+        written.put(id, widget);
+      }
+    });
+    if (!deleted.isEmpty()) {
+      widgetRepository.deleteAllByIdIn(deleted);
+    }
+    var ids = new ArrayList<>(written.keySet());
+    for (int from = 0; from < ids.size(); from += IDS_PER_QUERY) {
+      for (var entity : widgetRepository.findAllByIdIn(ids.subList(from, Math.min(ids.size(), from + IDS_PER_QUERY)))) {
+        copy(written.remove(entity.getId()), entity);
+      }
+    }
+    written.values().forEach(widget -> widgetRepository.insert(widget.getId(), widget.getX(), widget.getY(), widget.getZ(),
+      widget.getWidth(), widget.getHeight(), widget.getLastUpdatedAt(),
+      JpaWidgetImpl.tileOf(widget.getX(), widget.getY(), widget.getWidth(), widget.getHeight())));
+    if (segment.shift != null) {
+      widgetRepository.shiftZ(segment.shift.getFromZ(), segment.shift.getToZ());
+    } else {
+      entityManager.flush();
+      entityManager.clear();
+    }
+  }
+
+  private static void copy(Widget<Long> widget, JpaWidgetImpl entity) {
+    entity.setX(widget.getX());
+    entity.setY(widget.getY());
+    entity.setZ(widget.getZ());
+    entity.setWidth(widget.getWidth());
+    entity.setHeight(widget.getHeight());
+    entity.setLastUpdatedAt(widget.getLastUpdatedAt());
+  }
+
+  /**
+   * Waits until the database has the version
+   *
+   * @return false if the time is out
+   */
+  public synchronized boolean awaitReplicated(long version, @NotNull Duration timeout) throws InterruptedException {
+    long deadline = System.nanoTime() + timeout.toNanos();
+    while (replicatedVersion < version) {
+      long waitNanos = deadline - System.nanoTime();
+      if (waitNanos <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+    }
+    return true;
+  }
+
+  public synchronized @NotNull ReplicationStatusResponse getStatus() {
+    long oldest = writingSince != 0 ? writingSince : segments.isEmpty() ? System.nanoTime() : segments.peekFirst().queuedAt;
+    long lagMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+    return new ReplicationStatusResponse(version, replicatedVersion, version - replicatedVersion, lagMillis, queueDepth, failures);
+  }
+
+  /**
+   * Writes what is queued and stops the writer. The versions queued after are not written
+   */
+  @Override
+  public void close() {
+    Thread writer;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+      writer = this.writer;
+    }
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    var status = getStatus();
+    if (status.getLag() > 0) {
+      log.error("the database is left at version {} of {}", status.getReplicatedVersion(), status.getVersion());
+    }
+  }
+
+  /**
+   * The coalesced writes between two shifts
+   */
+  private static class Segment {
+    /**
+     * Widgets in their last state by id, null for a deletion
+     */
+    final LinkedHashMap<Long, Widget<Long>> writes = new LinkedHashMap<>();
+    /**
+     * The shift that closes the segment, the writes after it go to the next one
+     */
+    WidgetChange<Long> shift;
+    final long queuedAt = System.nanoTime();
+    final long number;
+    /**
+     * The number of the last segment a write of this one has been moved to, its own if none has
+     */
+    long movedTo;
+    /**
+     * The version of the last change, and the greatest id given by then
+     */
+    long version;
+    long lastId;
+
+    Segment(long number) {
+      this.number = number;
+      this.movedTo = number;
+    }
+
+    int size() {
+      return writes.size() + (shift == null ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,573 @@
+package pashazz.widgetmanager.repository.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryWidgetImpl;
+import pashazz.widgetmanager.exception.WidgetNotFoundException;
+import pashazz.widgetmanager.exception.WidgetPageException;
+import pashazz.widgetmanager.factory.interfaces.WidgetFactory;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChange;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.rest.request.Point;
+import pashazz.widgetmanager.rest.request.WidgetBatchOperation;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+import pashazz.widgetmanager.rest.response.WidgetBatchResponse;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * A memory storage that keeps the fields of the widgets in parallel primitive arrays (columns) sorted by z-order,
+ * rather than a widget object per widget: 32 bytes per widget, plus 4 bytes of the id index,
+ * against ~290 bytes of {@link InMemoryWidgetRepository}. Widget objects are made only for the widgets a call returns.
+ * <p>
+ * The price is O(n) writes: a widget put into the middle of the z-order moves the rest of the columns,
+ * and the reads that search by area scan the columns.
+ * <p>
+ * This class is thread safe: reads take the read lock, writes the write lock, and a group commit or a batch holds
+ * the write lock until its end, so readers never see a part of it.
+ * <p>
+ * Ids must fit into an int, which the counter supplier gives for the first 2^31 ids.
+ * lastUpdatedAt is kept to microseconds, the precision the widget factory gives
+ */
+@Slf4j
+public class ColumnarWidgetRepository implements WidgetRepository<Long> {
+
+  /**
+   * {@link #forEachWidget(Consumer)} reads the widgets in chunks of this size, taking the read lock for every chunk
+   */
+  static final int CHUNK_SIZE = 1000;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final WidgetFactory<Long, Widget<Long>> widgetFactory;
+
+  private final WidgetChangeLog<Long> changeLog;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private Columns columns = new Columns(INITIAL_CAPACITY);
+
+  private volatile long version;
+  /**
+   * True while {@link #groupCommit(Runnable)} runs: the writes are committed together at its end
+   */
+  private boolean inGroupCommit;
+  /**
+   * True if a write of the running group commit has changed something, so there is a version to commit at its end
+   */
+  private boolean groupChanged;
+  /**
+   * Changes of the writes that are not committed yet, appended to changeLog by {@link #commitNewVersion()}
+   */
+  private List<WidgetChange<Long>> uncommittedChanges = new ArrayList<>();
+
+  public ColumnarWidgetRepository(WidgetFactory<Long, Widget<Long>> widgetFactory, WidgetChangeLog<Long> changeLog) {
+    this(widgetFactory, changeLog, 0);
+  }
+
+  /**
+   * @param version the version the empty repository starts at
+   */
+  public ColumnarWidgetRepository(WidgetFactory<Long, Widget<Long>> widgetFactory, WidgetChangeLog<Long> changeLog, long version) {
+    this.widgetFactory = widgetFactory;
+    this.changeLog = changeLog;
+    this.version = version;
+    changeLog.startAt(version);
+  }
+
+  @Override
+  public @NotNull Widget<Long> createWidget(@NotNull WidgetUpdateRequest request) {
+    return write(() -> {
+      var widget = widgetFactory.createNewWidget(request, columns.size == 0 ? 0 : columns.zs[columns.size - 1] + 1);
+      insert(widget);
+      uncommittedChanges.add(WidgetChange.created(widget));
+      log.info("[{}]: CREATED with zOrder: {}", widget.getId(), widget.getZ());
+      commitNewVersion();
+      return widget;
+    });
+  }
+
+  @Override
+  public @NotNull Widget<Long> updateWidget(@NotNull Long id, @NotNull WidgetUpdateRequest request) {
+    return write(() -> {
+      int position = positionOf(id);
+      var oldWidget = columns.widgetAt(position);
+      var newWidget = widgetFactory.updateWidget(oldWidget, request);
+      if (oldWidget.getZ() == newWidget.getZ()) {
+        columns.set(position, newWidget);
+      } else {
+        columns.remove(position);
+        insert(newWidget);
+      }
+      uncommittedChanges.add(WidgetChange.updated(newWidget));
+      log.info("[{}]: UPDATED with zOrder: {} -> {}", id, oldWidget.getZ(), newWidget.getZ());
+      commitNewVersion();
+      return newWidget;
+    });
+  }
+
+  @Override
+  public void deleteWidget(@NotNull Long id) {
+    write(() -> {
+      int position = columns.positionOfId(id);
+      if (position < 0) {
+        log.debug("deleteWidget: id not found: {}", id);
+        return null;
+      }
+      columns.remove(position);
+      uncommittedChanges.add(WidgetChange.deleted(id));
+      commitNewVersion();
+      return null;
+    });
+  }
+
+  /**
+   * Puts the widget at its z-order, shifting the run of consecutive z-orders that starts there
+   */
+  private void insert(Widget<Long> widget) {
+    int z = widget.getZ();
+    int position = columns.positionOfZ(z);
+    if (position >= 0) {
+      int runEnd = columns.runEnd(position);
+      uncommittedChanges.add(WidgetChange.shifted(z, z + runEnd - position - 1));
+      for (int i = position; i < runEnd; ++i) {
+        ++columns.zs[i];
+      }
+    } else {
+      position = -position - 1;
+    }
+    columns.insert(position, widget);
+  }
+
+  /**
+   * Appends the changes to the change log, then publishes the version, so the log has the changes of every version
+   * a reader may see
+   */
+  private void commitNewVersion() {
+    if (inGroupCommit) {
+      groupChanged = true;
+      return;
+    }
+    long number = version + 1;
+    changeLog.append(number, uncommittedChanges);
+    if (uncommittedChanges.size() > CHUNK_SIZE) {
+      // the list of a large batch would keep its capacity
+      uncommittedChanges = new ArrayList<>();
+    } else {
+      uncommittedChanges.clear();
+    }
+    version = number;
+  }
+
+  @Override
+  public void groupCommit(@NotNull Runnable writes) {
+    write(() -> {
+      if (inGroupCommit) {
+        writes.run();
+        return null;
+      }
+      inGroupCommit = true;
+      try {
+        writes.run();
+      } finally {
+        inGroupCommit = false;
+        if (groupChanged) {
+          groupChanged = false;
+          commitNewVersion();
+        }
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Copies the columns to roll back to if an operation throws. The columns are sized for the creations of the batch
+   * beforehand, so a bulk load leaves no spare capacity
+   */
+  @Override
+  public @NotNull WidgetBatchResponse<Long> applyBatch(@NotNull WidgetBatchRequest<Long> batch) {
+    return write(() -> {
+      var before = columns.copy();
+      int changesBefore = uncommittedChanges.size();
+      // true if the batch runs in a group commit that has changed something before it
+      boolean changedBefore = groupChanged;
+      columns.ensureCapacity(columns.size + (int) batch.getOperations().stream()
+        .filter(operation -> operation.getType() == WidgetBatchOperation.Type.CREATE)
+        .count());
+      var results = new ArrayList<Widget<Long>>(batch.getOperations().size());
+      var widgets = new ArrayList<Widget<Long>>(batch.getIds().size());
+      groupCommit(() -> {
+        try {
+          for (var operation : batch.getOperations()) {
+            results.add(WidgetRepository.applyOperation(this, operation));
+          }
+        } catch (RuntimeException e) {
+          log.info("batch of {} operations failed, rolling back: {}", batch.getOperations().size(), e.getMessage());
+          columns = before;
+          uncommittedChanges.subList(changesBefore, uncommittedChanges.size()).clear();
+          // so that the group commit does not commit an empty version
+          groupChanged = changedBefore;
+          throw e;
+        }
+        // a later operation may have shifted or deleted the widget of an earlier one
+        results.replaceAll(widget -> widget == null ? null : findWidget(widget.getId()));
+        for (var id : batch.getIds()) {
+          widgets.add(findWidget(id));
+        }
+      });
+      return new WidgetBatchResponse<>(results, widgets);
+    });
+  }
+
+  @Override
+  public long getVersion() {
+    return version;
+  }
+
+  @Override
+  public @NotNull Widget<Long> getWidget(@NotNull Long id) {
+    return read(() -> columns.widgetAt(positionOf(id)));
+  }
+
+  @Override
+  public @NotNull List<Widget<Long>> listWidgets() {
+    return read(() -> columns.widgets(0, columns.size));
+  }
+
+  /**
+   * Reads the widgets in chunks by z-order, so the writers wait for a chunk at most, rather than for the action.
+   * Unlike {@link InMemoryWidgetRepository}, the widgets are not of a single version if writes are made meanwhile
+   */
+  @Override
+  public void forEachWidget(@NotNull Consumer<? super Widget<Long>> action) {
+    Integer afterZ = null;
+    while (true) {
+      var chunk = listWidgetsAfter(afterZ, CHUNK_SIZE);
+      chunk.forEach(action);
+      if (chunk.size() < CHUNK_SIZE) {
+        return;
+      }
+      afterZ = chunk.get(CHUNK_SIZE - 1).getZ();
+    }
+  }
+
+  @Override
+  public @NotNull List<Widget<Long>> listWidgets(int page, int pageSize) {
+    return read(() -> {
+      int startIndex = page * pageSize;
+      int endIndex = Math.min(startIndex + pageSize, columns.size);
+      if (startIndex < 0 || startIndex > endIndex) {
+        throw new WidgetPageException(format("page %s is out of bounds with size %s; output size: %s", page, pageSize, columns.size));
+      }
+      return columns.widgets(startIndex, endIndex);
+    });
+  }
+
+  /**
+   * Binary search for afterZ in the z-order column: O(log n + limit)
+   */
+  @Override
+  public @NotNull List<Widget<Long>> listWidgetsAfter(@Nullable Integer afterZ, int limit) {
+    return read(() -> {
+      int startIndex = 0;
+      if (afterZ != null) {
+        int position = columns.positionOfZ(afterZ);
+        startIndex = position >= 0 ? position + 1 : -position - 1;
+      }
+      return columns.widgets(startIndex, startIndex + Math.min(limit, columns.size - startIndex));
+    });
+  }
+
+  /**
+   * A scan of the position and size columns, which finds the widgets in z-order: O(n), but no widget is made
+   * for the widgets outside of the rectangle
+   */
+  @Override
+  public @NotNull List<Widget<Long>> listWidgetsIn(int minX, int minY, int maxX, int maxY) {
+    return read(() -> {
+      var widgets = new ArrayList<Widget<Long>>();
+      if (minX > maxX || minY > maxY) {
+        return widgets;
+      }
+      for (int i = 0; i < columns.size; ++i) {
+        if (columns.intersects(i, minX, minY, maxX, maxY)) {
+          widgets.add(columns.widgetAt(i));
+        }
+      }
+      return widgets;
+    });
+  }
+
+  /**
+   * A scan of the position and size columns from the top of the z-order down to the first widget containing the point
+   */
+  @Override
+  public @Nullable Widget<Long> findWidgetAt(int x, int y) {
+    return read(() -> columns.topmostAt(x, y));
+  }
+
+  @Override
+  public @NotNull List<Widget<Long>> findWidgetsAt(@NotNull List<Point> points) {
+    return read(() -> {
+      var widgets = new ArrayList<Widget<Long>>(points.size());
+      for (var point : points) {
+        widgets.add(columns.topmostAt(point.getX(), point.getY()));
+      }
+      return widgets;
+    });
+  }
+
+  /**
+   * @return a widget of the current (possibly uncommitted) state, or null if there is none
+   */
+  private Widget<Long> findWidget(Long id) {
+    int position = id == null ? -1 : columns.positionOfId(id);
+    return position < 0 ? null : columns.widgetAt(position);
+  }
+
+  private int positionOf(@NotNull Long id) {
+    int position = columns.positionOfId(id);
+    if (position < 0) {
+      throw new WidgetNotFoundException(id.toString());
+    }
+    return position;
+  }
+
+  private <O> O read(Supplier<O> read) {
+    lock.readLock().lock();
+    try {
+      return read.get();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private <O> O write(Supplier<O> write) {
+    lock.writeLock().lock();
+    try {
+      return write.get();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * The columns, position i of every array is the widget i of the z-order.
+   * byId has the positions sorted by the ids of the widgets there
+   */
+  private static class Columns {
+    private int size;
+    private int[] ids;
+    private int[] xs;
+    private int[] ys;
+    private int[] zs;
+    private int[] widths;
+    private int[] heights;
+    /**
+     * lastUpdatedAt as microseconds since the epoch, UTC
+     */
+    private long[] updatedAt;
+    private int[] byId;
+
+    Columns(int capacity) {
+      ids = new int[capacity];
+      xs = new int[capacity];
+      ys = new int[capacity];
+      zs = new int[capacity];
+      widths = new int[capacity];
+      heights = new int[capacity];
+      updatedAt = new long[capacity];
+      byId = new int[capacity];
+    }
+
+    Columns copy() {
+      var copy = new Columns(0);
+      copy.size = size;
+      copy.ids = ids.clone();
+      copy.xs = xs.clone();
+      copy.ys = ys.clone();
+      copy.zs = zs.clone();
+      copy.widths = widths.clone();
+      copy.heights = heights.clone();
+      copy.updatedAt = updatedAt.clone();
+      copy.byId = byId.clone();
+      return copy;
+    }
+
+    /**
+     * Grows the columns by half at least, so that appends take amortized O(1)
+     */
+    void ensureCapacity(int capacity) {
+      if (capacity <= ids.length) {
+        return;
+      }
+      int newCapacity = Math.max(capacity, ids.length + (ids.length >> 1));
+      ids = Arrays.copyOf(ids, newCapacity);
+      xs = Arrays.copyOf(xs, newCapacity);
+      ys = Arrays.copyOf(ys, newCapacity);
+      zs = Arrays.copyOf(zs, newCapacity);
+      widths = Arrays.copyOf(widths, newCapacity);
+      heights = Arrays.copyOf(heights, newCapacity);
+      updatedAt = Arrays.copyOf(updatedAt, newCapacity);
+      byId = Arrays.copyOf(byId, newCapacity);
+    }
+
+    /**
+     * @return the position of the z-order, or (-(insertion point) - 1) if there is none, like {@link Arrays#binarySearch(int[], int)}
+     */
+    int positionOfZ(int z) {
+      return Arrays.binarySearch(zs, 0, size, z);
+    }
+
+    /**
+     * @return the end (exclusive) of the run of consecutive z-orders that starts at the position
+     */
+    int runEnd(int position) {
+      int end = position + 1;
+      while (end < size && zs[end] == zs[end - 1] + 1) {
+        ++end;
+      }
+      return end;
+    }
+
+    /**
+     * @return the position of the widget, or -1 if there is none
+     */
+    int positionOfId(long id) {
+      if (id != (int) id) {
+        return -1;
+      }
+      int index = indexInById((int) id);
+      return index >= 0 ? byId[index] : -1;
+    }
+
+    /**
+     * Binary search for the id in byId
+     *
+     * @return the index in byId, or (-(insertion point) - 1) if the id is not there
+     */
+    private int indexInById(int id) {
+      int low = 0;
+      int high = size - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int middleId = ids[byId[middle]];
+        if (middleId < id) {
+          low = middle + 1;
+        } else if (middleId > id) {
+          high = middle - 1;
+        } else {
+          return middle;
+        }
+      }
+      return -(low + 1);
+    }
+
+    void insert(int position, Widget<Long> widget) {
+      long id = widget.getId();
+      if (id != (int) id) {
+        throw new IllegalStateException(format("id %s does not fit into the columns", id));
+      }
+      ensureCapacity(size + 1);
+      int tail = size - position;
+      System.arraycopy(ids, position, ids, position + 1, tail);
+      System.arraycopy(xs, position, xs, position + 1, tail);
+      System.arraycopy(ys, position, ys, position + 1, tail);
+      System.arraycopy(zs, position, zs, position + 1, tail);
+      System.arraycopy(widths, position, widths, position + 1, tail);
+      System.arraycopy(heights, position, heights, position + 1, tail);
+      System.arraycopy(updatedAt, position, updatedAt, position + 1, tail);
+      if (position < size) {
+        for (int i = 0; i < size; ++i) {
+          if (byId[i] >= position) {
+            ++byId[i];
+          }
+        }
+      }
+      set(position, widget);
+      int index = -indexInById((int) id) - 1;
+      System.arraycopy(byId, index, byId, index + 1, size - index);
+      byId[index] = position;
+      ++size;
+    }
+
+    void remove(int position) {
+      int index = indexInById(ids[position]);
+      System.arraycopy(byId, index + 1, byId, index, size - index - 1);
+      --size;
+      if (position < size) {
+        for (int i = 0; i < size; ++i) {
+          if (byId[i] > position) {
+            --byId[i];
+          }
+        }
+      }
+      int tail = size - position;
+      System.arraycopy(ids, position + 1, ids, position, tail);
+      System.arraycopy(xs, position + 1, xs, position, tail);
+      System.arraycopy(ys, position + 1, ys, position, tail);
+      System.arraycopy(zs, position + 1, zs, position, tail);
+      System.arraycopy(widths, position + 1, widths, position, tail);
+      System.arraycopy(heights, position + 1, heights, position, tail);
+      System.arraycopy(updatedAt, position + 1, updatedAt, position, tail);
+    }
+
+    /**
+     * Writes the fields of the widget at the position, which must be of the same id and z-order or empty
+     */
+    void set(int position, Widget<Long> widget) {
+      ids[position] = (int) (long) widget.getId();
+      xs[position] = widget.getX();
+      ys[position] = widget.getY();
+      zs[position] = widget.getZ();
+      widths[position] = widget.getWidth();
+      heights[position] = widget.getHeight();
+      var lastUpdatedAt = widget.getLastUpdatedAt();
+      updatedAt[position] = lastUpdatedAt.toEpochSecond(ZoneOffset.UTC) * 1_000_000 + lastUpdatedAt.getNano() / 1000;
+    }
+
+    Widget<Long> widgetAt(int position) {
+      long micros = updatedAt[position];
+      return new InMemoryWidgetImpl<>((long) ids[position], xs[position], ys[position], zs[position],
+        widths[position], heights[position],
+        LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000), (int) Math.floorMod(micros, 1_000_000) * 1000, ZoneOffset.UTC));
+    }
+
+    List<Widget<Long>> widgets(int from, int to) {
+      var widgets = new ArrayList<Widget<Long>>(to - from);
+      for (int i = from; i < to; ++i) {
+        widgets.add(widgetAt(i));
+      }
+      return Collections.unmodifiableList(widgets);
+    }
+
+    boolean intersects(int position, int minX, int minY, int maxX, int maxY) {
+      return xs[position] <= maxX && (long) xs[position] + widths[position] >= minX
+        && ys[position] <= maxY && (long) ys[position] + heights[position] >= minY;
+    }
+
+    Widget<Long> topmostAt(int x, int y) {
+      for (int i = size - 1; i >= 0; --i) {
+        if (intersects(i, x, y, x, y)) {
+          return widgetAt(i);
+        }
+      }
+      return null;
+    }
+  }
+}
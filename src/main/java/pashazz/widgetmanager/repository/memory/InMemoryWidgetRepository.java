@@ -2,15 +2,28 @@ package pashazz.widgetmanager.repository.memory;
 
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pashazz.widgetmanager.collection.LongHashTrie;
+import pashazz.widgetmanager.collection.SpatialGrid;
+import pashazz.widgetmanager.collection.ZOrderTree;
 import pashazz.widgetmanager.entity.interfaces.Widget;
 import pashazz.widgetmanager.exception.WidgetNotFoundException;
 import pashazz.widgetmanager.exception.WidgetPageException;
 import pashazz.widgetmanager.factory.interfaces.WidgetFactory;
 import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChange;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.wal.CheckpointFile;
+import pashazz.widgetmanager.repository.wal.WriteAheadLog;
+import pashazz.widgetmanager.rest.request.Point;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
 import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+import pashazz.widgetmanager.rest.response.WidgetBatchResponse;
 
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 import static java.lang.String.format;
 import static pashazz.widgetmanager.utils.Utils.getInsertionPosition;
@@ -18,35 +31,213 @@ import static pashazz.widgetmanager.utils.Utils.getInsertionPosition;
 /**
  * This repository provides services for accessing and updating the collection of widgets
  * <p>
- * This class is NOT thread safe
- * Thread-safety capabilities: concurrent read access to listWidgets method (widgetsById)
- * due to volatility of that variable
+ * This class is NOT thread safe for writes.
+ * Reads (getWidget and listWidgets) are thread safe and lock-free: they use the last committed version,
+ * an immutable snapshot of the z-order tree, the id index and the spatial index, which is published by a single volatile write
  * <p>
  * WidgetFactory must produce an immutable widget object for this class to be thread safe.
+ * <p>
+ * With a write-ahead log, the repository starts with the widgets replayed from it,
+ * and every version is written to it before it is published
+ * <p>
+ * With a checkpoint file, the repository starts with the widgets of the checkpoint, built into the trees in a single pass,
+ * and replays only the versions of the log after it. {@link #checkpoint()} writes the last committed version
+ * and discards the log up to it
+ * <p>
+ * {@link #load(long, long, List)} starts it with the widgets of another storage instead
  */
 @Slf4j
 public class InMemoryWidgetRepository implements WidgetRepository<Long> {
 
   /**
-   * Sorted list of widget ids by z-order
+   * The label of an id that is not in labelsById
+   */
+  private static final long NO_LABEL = -1;
+
+  /**
+   * The side of a cell of the spatial index: about the size of a typical widget,
+   * so that a widget is kept in a few cells and a cell has a few widgets
+   */
+  static final int GRID_CELL_SIZE = 256;
+
+  /**
+   * Widgets sorted by z-order. An order-statistic tree, so that inserting into the middle does not shift the rest
+   */
+  private ZOrderTree<Widget<Long>> widgetsByZOrder;
+  /**
+   * Labels of widgets in widgetsByZOrder. Unlike z-orders and positions, labels are not changed by shifting
+   */
+  private LongHashTrie labelsById;
+  /**
+   * Ids of the widgets in widgetsByZOrder by the area they cover
    */
-  private final ArrayList<Widget<Long>> widgetsByZOrder;
-  private final HashMap<Long, Widget<Long>> widgetsById;
+  private SpatialGrid idsByArea;
   private final WidgetFactory<Long, Widget<Long>> widgetFactory;
   /**
-   * This variable contains a list of widgets that our read operation uses
-   * This list contains only thread-safe objects
+   * This variable contains the widgets that our read operations use
+   * These are immutable snapshots of widgetsByZOrder, labelsById and idsByArea and contain only thread-safe objects
    * Controlled by {@link #commitNewVersion()}
    */
-  private volatile List<Widget<Long>> committedVersion;
+  private volatile Version committedVersion;
+  /**
+   * True while {@link #groupCommit(Runnable)} runs: the writes are committed together at its end
+   */
+  private boolean inGroupCommit;
+  /**
+   * True if a write of the running group commit has changed something, so there is a version to commit at its end
+   */
+  private boolean groupChanged;
+  private final WidgetChangeLog<Long> changeLog;
+  /**
+   * Changes of the writes that are not committed yet, appended to changeLog by {@link #commitNewVersion()}
+   */
+  private final List<WidgetChange<Long>> uncommittedChanges = new ArrayList<>();
+  private final @Nullable WriteAheadLog writeAheadLog;
+  private final @Nullable CheckpointFile checkpointFile;
+  /**
+   * The version of the last checkpoint
+   */
+  private volatile long checkpointedVersion;
+  /**
+   * The greatest id of the widgets ever created
+   */
+  private long lastId;
+
+  public InMemoryWidgetRepository(
+    WidgetFactory<Long, Widget<Long>> widgetFactory,
+    WidgetChangeLog<Long> changeLog
+  ) {
+    this(widgetFactory, changeLog, null);
+  }
+
+  public InMemoryWidgetRepository(
+    WidgetFactory<Long, Widget<Long>> widgetFactory,
+    WidgetChangeLog<Long> changeLog,
+    @Nullable WriteAheadLog writeAheadLog
+  ) {
+    this(widgetFactory, changeLog, writeAheadLog, null);
+  }
 
   public InMemoryWidgetRepository(
-    WidgetFactory<Long, Widget<Long>> widgetFactory
+    WidgetFactory<Long, Widget<Long>> widgetFactory,
+    WidgetChangeLog<Long> changeLog,
+    @Nullable WriteAheadLog writeAheadLog,
+    @Nullable CheckpointFile checkpointFile
   ) {
     this.widgetFactory = widgetFactory;
-    widgetsById = new HashMap<>();
-    widgetsByZOrder = new ArrayList<>();
-    committedVersion = Collections.emptyList();
+    this.changeLog = changeLog;
+    this.writeAheadLog = writeAheadLog;
+    this.checkpointFile = checkpointFile;
+    labelsById = new LongHashTrie();
+    idsByArea = new SpatialGrid(GRID_CELL_SIZE);
+    widgetsByZOrder = new ZOrderTree<>(widgetFactory::moveWidget, (widget, label) -> labelsById.put(widget.getId(), label));
+    long number = 0;
+    if (checkpointFile != null) {
+      number = load(checkpointFile);
+      checkpointedVersion = number;
+    }
+    long logPosition = 0;
+    if (writeAheadLog != null) {
+      number = replay(writeAheadLog, number);
+      logPosition = writeAheadLog.position();
+    }
+    committedVersion = new Version(widgetsByZOrder.snapshot(), labelsById.snapshot(), idsByArea.snapshot(), number, lastId, logPosition);
+    changeLog.startAt(committedVersion.number);
+    if (checkpointFile != null) {
+      checkpointFile.start(this::checkpoint);
+    }
+  }
+
+  /**
+   * @return the version of the checkpoint
+   */
+  private long load(CheckpointFile checkpointFile) {
+    var widgets = new ArrayList<Widget<Long>>();
+    long version = checkpointFile.load(widgets::add);
+    build(widgets);
+    lastId = checkpointFile.getLastId();
+    return version;
+  }
+
+  /**
+   * Starts an empty repository at a version of the widgets of another storage, like the database of the hybrid storage.
+   * Must be called before any write, and the widgets must be immutable
+   *
+   * @param lastId  the greatest id of the widgets ever created
+   * @param widgets sorted by z-order
+   */
+  public void load(long version, long lastId, @NotNull List<Widget<Long>> widgets) {
+    if (writeAheadLog != null || checkpointFile != null || committedVersion.number != 0 || widgetsByZOrder.size() != 0) {
+      throw new IllegalStateException("only an empty repository without a write-ahead log can be loaded");
+    }
+    build(widgets);
+    this.lastId = lastId;
+    committedVersion = new Version(widgetsByZOrder.snapshot(), labelsById.snapshot(), idsByArea.snapshot(), version, lastId, 0);
+    changeLog.startAt(version);
+  }
+
+  /**
+   * Builds the tree and the indexes of the widgets in a single pass each, rather than adding
+   * the widgets one by one: they come in z-order, so each is appended to the tree in O(1)
+   */
+  private void build(List<Widget<Long>> widgets) {
+    var builder = new ZOrderTree.Builder<Widget<Long>>(widgetFactory::moveWidget, (widget, label) -> labelsById.put(widget.getId(), label));
+    int size = widgets.size();
+    var ids = new long[size];
+    var labels = new long[size];
+    var bounds = new int[4 * size];
+    for (int i = 0; i < size; ++i) {
+      var widget = widgets.get(i);
+      ids[i] = widget.getId();
+      labels[i] = builder.append(widget);
+      bounds[4 * i] = widget.getX();
+      bounds[4 * i + 1] = widget.getY();
+      bounds[4 * i + 2] = widget.getWidth();
+      bounds[4 * i + 3] = widget.getHeight();
+    }
+    widgetsByZOrder = builder.build();
+    labelsById = LongHashTrie.of(ids, labels, size);
+    idsByArea = SpatialGrid.of(GRID_CELL_SIZE, ids, bounds, size);
+  }
+
+  /**
+   * Replays the versions of the log after the checkpoint. The log may still have the versions before it,
+   * if it has not been written to since
+   *
+   * @return the last version
+   */
+  private long replay(WriteAheadLog writeAheadLog, long checkpointed) {
+    long[] next = {checkpointed + 1};
+    long last = writeAheadLog.replay((changes, version) -> {
+      if (version < next[0]) {
+        return;
+      }
+      if (version > next[0]) {
+        throw new IllegalStateException(format("the write-ahead log goes on with version %s after version %s: the versions between are lost", version, next[0] - 1));
+      }
+      changes.forEach(this::replayChange);
+      ++next[0];
+    });
+    return Math.max(checkpointed, last);
+  }
+
+  /**
+   * Writes the last committed version to the checkpoint file, and discards the records of the write-ahead log up to it.
+   * Does not stop the writes, as the version is an immutable snapshot. Called by the checkpoint file, one call at a time
+   */
+  public void checkpoint() {
+    if (checkpointFile == null) {
+      throw new IllegalStateException("there is no checkpoint file");
+    }
+    var version = committedVersion;
+    if (version.number == checkpointedVersion) {
+      return;
+    }
+    checkpointFile.write(version.number, version.lastId, version.widgetsByZOrder.size(), version.widgetsByZOrder);
+    checkpointedVersion = version.number;
+    if (writeAheadLog != null) {
+      writeAheadLog.discardUpTo(version.logPosition);
+    }
   }
 
 
@@ -55,6 +246,7 @@ public class InMemoryWidgetRepository implements WidgetRepository<Long> {
   public Widget<Long> createWidget(@NotNull WidgetUpdateRequest request) {
     var widget = widgetFactory.createNewWidget(request, getDefaultZ());
     makeWidgetCreate(widget);
+    uncommittedChanges.add(WidgetChange.created(widget));
     log.info("[{}]: CREATED with zOrder: {}", widget.getId(), widget.getZ());
     commitNewVersion();
     return widget;
@@ -64,9 +256,10 @@ public class InMemoryWidgetRepository implements WidgetRepository<Long> {
   @Override
   @NotNull
   public Widget<Long> updateWidget(Long id, @NotNull WidgetUpdateRequest request) {
-    Widget<Long> oldWidget = widgetsById.get(id);
+    Widget<Long> oldWidget = widgetsByZOrder.get(indexOfId(id));
     Widget<Long> newWidget = widgetFactory.updateWidget(oldWidget, request);
     makeWidgetUpdate(oldWidget, newWidget);
+    uncommittedChanges.add(WidgetChange.updated(newWidget));
     log.info("[{}]: UPDATED with zOrder: {} -> {}", oldWidget.getId(), oldWidget.getZ(), newWidget.getZ());
     commitNewVersion();
     return newWidget;
@@ -76,9 +269,10 @@ public class InMemoryWidgetRepository implements WidgetRepository<Long> {
    * This method does under the hood work of injecting a widget new to our data structures
    */
   void makeWidgetCreate(Widget<Long> widget) {
-    addWidgetToIdMap(widget);
+    lastId = Math.max(lastId, widget.getId());
     int zIndex = indexOfZOrder(widget.getZ());
     updateZOrderArrayWithWidget(widget, zIndex);
+    addWidgetToAreaIndex(widget);
   }
 
   /**
@@ -88,8 +282,13 @@ public class InMemoryWidgetRepository implements WidgetRepository<Long> {
    * @param newWidget after update
    */
   void makeWidgetUpdate(Widget<Long> oldWidget, Widget<Long> newWidget) {
-    addWidgetToIdMap(newWidget);
-    int oldZOrderIndex = indexOfZOrder(oldWidget.getZ());
+    if (oldWidget.getX() != newWidget.getX() || oldWidget.getY() != newWidget.getY()
+      || oldWidget.getWidth() != newWidget.getWidth() || oldWidget.getHeight() != newWidget.getHeight()) {
+      removeWidgetFromAreaIndex(oldWidget);
+      addWidgetToAreaIndex(newWidget);
+    }
+    // by the id rather than the z-order: during a replay, a shift may have given another widget the same z-order
+    int oldZOrderIndex = indexOfId(oldWidget.getId());
     if (oldWidget.getZ() == newWidget.getZ()) {
       log.debug("[{}]: z-order is not changed: {}, replacing the object in the z-order list", oldWidget.getId(), oldWidget.getZ());
       replaceWidgetAtIndex(oldZOrderIndex, newWidget);
@@ -101,6 +300,44 @@ public class InMemoryWidgetRepository implements WidgetRepository<Long> {
     updateZOrderArrayWithWidget(newWidget, newZOrderIndex);
   }
 
+  /**
+   * @return false if there is no widget with the id
+   */
+  private boolean makeWidgetDelete(Long id) {
+    long label = labelsById.get(id, NO_LABEL);
+    if (label == NO_LABEL) {
+      return false;
+    }
+    labelsById.remove(id);
+    int index = widgetsByZOrder.indexOfLabel(label);
+    log.debug("[{}]: deleting from position {}", id, index);
+    removeWidgetFromAreaIndex(widgetsByZOrder.get(index));
+    removeWidgetAtIndex(index);
+    return true;
+  }
+
+  /**
+   * Applies a change read from the write-ahead log. The changes of a version come in the order they were made,
+   * so a shift makes room for the widget that follows it, and there is nothing to shift again
+   */
+  private void replayChange(WidgetChange<Long> change) {
+    switch (change.getType()) {
+      case CREATED:
+        makeWidgetCreate(change.getWidget());
+        break;
+      case UPDATED:
+        makeWidgetUpdate(widgetsByZOrder.get(indexOfId(change.getId())), change.getWidget());
+        break;
+      case DELETED:
+        makeWidgetDelete(change.getId());
+        break;
+      case SHIFTED:
+        int index = indexOfZOrder(change.getFromZ());
+        widgetsByZOrder.shift(index, index + change.getToZ() - change.getFromZ() + 1, 1);
+        break;
+    }
+  }
+
   private void removeWidgetAtIndex(int zOrderIndex) {
     widgetsByZOrder.remove(zOrderIndex);
   }
@@ -109,8 +346,16 @@ public class InMemoryWidgetRepository implements WidgetRepository<Long> {
     widgetsByZOrder.set(oldZOrderIndex, newWidget);
   }
 
-  protected void addWidgetToIdMap(Widget<Long> widget) {
-    widgetsById.put(widget.getId(), widget);
+  private void addWidgetToIdMap(Widget<Long> widget, long label) {
+    labelsById.put(widget.getId(), label);
+  }
+
+  private void addWidgetToAreaIndex(Widget<Long> widget) {
+    idsByArea.add(widget.getId(), widget.getX(), widget.getY(), widget.getWidth(), widget.getHeight());
+  }
+
+  private void removeWidgetFromAreaIndex(Widget<Long> widget) {
+    idsByArea.remove(widget.getId(), widget.getX(), widget.getY(), widget.getWidth(), widget.getHeight());
   }
 
 
@@ -118,48 +363,184 @@ public class InMemoryWidgetRepository implements WidgetRepository<Long> {
    * Commits (publishes) the new version of changes
    * <p>
    * Once we commit new version, we change the link that committedVersion possesses and replace it with the new
-   * shallow copy of our thread-safe non-mutable widgets
+   * snapshots of the tree and the indexes. The snapshots share their nodes with the previous versions, so this is O(1);
+   * the next write copies only the O(log n) nodes it changes.
    * <p>
    * volatility of committedVersion ensures happens-before guarantee
+   * <p>
+   * The changes are written to the write-ahead log, if any, and appended to the change log before the version is published,
+   * so the log has the changes of every version a reader may see. If the write-ahead log fails, the uncommitted writes
+   * are rolled back
    */
   protected void commitNewVersion() {
-    committedVersion = Collections.unmodifiableList((List<Widget<Long>>) widgetsByZOrder.clone());
+    if (inGroupCommit) {
+      groupChanged = true;
+      return;
+    }
+    long number = committedVersion.number + 1;
+    long logPosition = 0;
+    if (writeAheadLog != null) {
+      try {
+        logPosition = writeAheadLog.append(number, uncommittedChanges);
+      } catch (RuntimeException e) {
+        log.error("version {} is not written to the write-ahead log, rolling back", number, e);
+        rollback(committedVersion, 0);
+        throw e;
+      }
+    }
+    changeLog.append(number, uncommittedChanges);
+    uncommittedChanges.clear();
+    committedVersion = new Version(widgetsByZOrder.snapshot(), labelsById.snapshot(), idsByArea.snapshot(), number, lastId, logPosition);
     log.info("new version committed at {}", LocalDateTime.now());
   }
 
 
+  @Override
+  public void groupCommit(@NotNull Runnable writes) {
+    if (inGroupCommit) {
+      writes.run();
+      return;
+    }
+    inGroupCommit = true;
+    try {
+      writes.run();
+    } finally {
+      inGroupCommit = false;
+      if (groupChanged) {
+        groupChanged = false;
+        commitNewVersion();
+      }
+    }
+  }
+
+  @Override
+  public @NotNull WidgetBatchResponse<Long> applyBatch(@NotNull WidgetBatchRequest<Long> batch) {
+    var before = new Version(widgetsByZOrder.snapshot(), labelsById.snapshot(), idsByArea.snapshot(),
+      committedVersion.number, committedVersion.lastId, committedVersion.logPosition);
+    int changesBefore = uncommittedChanges.size();
+    // true if the batch runs in a group commit that has changed something before it
+    boolean changedBefore = groupChanged;
+    var results = new ArrayList<Widget<Long>>(batch.getOperations().size());
+    var widgets = new ArrayList<Widget<Long>>(batch.getIds().size());
+    groupCommit(() -> {
+      try {
+        for (var operation : batch.getOperations()) {
+          results.add(WidgetRepository.applyOperation(this, operation));
+        }
+      } catch (RuntimeException e) {
+        log.info("batch of {} operations failed, rolling back: {}", batch.getOperations().size(), e.getMessage());
+        rollback(before, changesBefore);
+        // so that the group commit does not commit an empty version
+        groupChanged = changedBefore;
+        throw e;
+      }
+      // a later operation may have shifted or deleted the widget of an earlier one
+      results.replaceAll(widget -> widget == null ? null : findWidget(widget.getId()));
+      for (var id : batch.getIds()) {
+        widgets.add(findWidget(id));
+      }
+    });
+    return new WidgetBatchResponse<>(results, widgets);
+  }
+
+  /**
+   * Discards the uncommitted writes made after the version. O(1): the version shares its nodes with the current state
+   *
+   * @param changesBefore the number of uncommitted changes made before the version
+   */
+  private void rollback(Version version, int changesBefore) {
+    widgetsByZOrder = version.widgetsByZOrder.mutableCopy();
+    labelsById = version.labelsById.mutableCopy();
+    idsByArea = version.idsByArea.mutableCopy();
+    uncommittedChanges.subList(changesBefore, uncommittedChanges.size()).clear();
+  }
+
+  @Override
+  public long getVersion() {
+    return committedVersion.number;
+  }
+
   @Override
   public @NotNull Widget<Long> getWidget(@NotNull Long id) {
-    return Optional.ofNullable(widgetsById.get(id))
-      .orElseThrow(() -> new WidgetNotFoundException(id.toString()));
+    return committedVersion.getWidget(id);
   }
 
   @Override
   public @NotNull List<Widget<Long>> listWidgets() {
-    return committedVersion;
+    return committedVersion.widgetsByZOrder;
+  }
+
+  /**
+   * Iterates the committed snapshot, so the writes made meanwhile are not seen
+   */
+  @Override
+  public void forEachWidget(@NotNull Consumer<? super Widget<Long>> action) {
+    committedVersion.widgetsByZOrder.forEach(action);
   }
 
   @Override
   public @NotNull List<Widget<Long>> listWidgets(int page, int pageSize) {
+    var snapshot = committedVersion.widgetsByZOrder;
     int startIndex = page * pageSize;
     try {
-      return Collections.unmodifiableList(committedVersion.subList(startIndex, Math.min(startIndex + pageSize, committedVersion.size())));
+      return Collections.unmodifiableList(snapshot.range(startIndex, Math.min(startIndex + pageSize, snapshot.size())));
     } catch (IndexOutOfBoundsException e) {
-      throw new WidgetPageException(format("page %s is out of bounds with size %s; output size: %s", page, pageSize, committedVersion.size()));
+      throw new WidgetPageException(format("page %s is out of bounds with size %s; output size: %s", page, pageSize, snapshot.size()));
+    }
+  }
+
+  /**
+   * Binary search for afterZ in the snapshot, then a range of it: O(log n + limit)
+   */
+  @Override
+  public @NotNull List<Widget<Long>> listWidgetsAfter(@Nullable Integer afterZ, int limit) {
+    var snapshot = committedVersion.widgetsByZOrder;
+    int startIndex = 0;
+    if (afterZ != null) {
+      int index = snapshot.indexOfZOrder(afterZ);
+      startIndex = index >= 0 ? index + 1 : getInsertionPosition(index);
     }
+    return Collections.unmodifiableList(snapshot.range(startIndex, startIndex + Math.min(limit, snapshot.size() - startIndex)));
+  }
+
+  /**
+   * The ids found by the spatial index of the snapshot are turned into positions in its z-order tree, which are sorted:
+   * O(k log n) for k widgets found
+   */
+  @Override
+  public @NotNull List<Widget<Long>> listWidgetsIn(int minX, int minY, int maxX, int maxY) {
+    var version = committedVersion;
+    var indexes = new IndexCollector(version);
+    version.idsByArea.forEachIntersecting(minX, minY, maxX, maxY, indexes);
+    return indexes.widgets();
+  }
+
+  /**
+   * Looks up the single cell of the spatial index that has the point: the ids found there are compared
+   * by their positions in the z-order tree, and only the topmost widget is read
+   */
+  @Override
+  public @Nullable Widget<Long> findWidgetAt(int x, int y) {
+    return new TopmostFinder(committedVersion).find(x, y);
+  }
+
+  @Override
+  public @NotNull List<Widget<Long>> findWidgetsAt(@NotNull List<Point> points) {
+    var finder = new TopmostFinder(committedVersion);
+    var widgets = new ArrayList<Widget<Long>>(points.size());
+    for (var point : points) {
+      widgets.add(finder.find(point.getX(), point.getY()));
+    }
+    return widgets;
   }
 
   @Override
   public void deleteWidget(@NotNull Long id) {
-    var widget = widgetsById.remove(id);
-    if (widget == null) {
+    if (!makeWidgetDelete(id)) {
       log.debug("deleteWidget: id not found: {}", id);
       return;
     }
-
-    int index = indexOfZOrder(widget.getZ());
-    log.debug("[{}]: deleting from position {}", widget.getId(), index);
-    removeWidgetAtIndex(index);
+    uncommittedChanges.add(WidgetChange.deleted(id));
     commitNewVersion();
   }
 
@@ -179,49 +560,133 @@ public class InMemoryWidgetRepository implements WidgetRepository<Long> {
    * @return
    */
   private int indexOfZOrder(int z) {
-    //This lambda implements ZOrderable like Widget<T>
-    return Collections.binarySearch(widgetsByZOrder, () -> z);
+    return widgetsByZOrder.indexOfZOrder(z);
+  }
+
+  /**
+   * @return a widget of the current (possibly uncommitted) state, or null if there is none
+   */
+  private Widget<Long> findWidget(Long id) {
+    if (id == null || labelsById.get(id, NO_LABEL) == NO_LABEL) {
+      return null;
+    }
+    return widgetsByZOrder.get(indexOfId(id));
+  }
+
+  private int indexOfId(@NotNull Long id) {
+    return indexOfId(widgetsByZOrder, labelsById, id);
+  }
 
+  private static int indexOfId(ZOrderTree<Widget<Long>> widgetsByZOrder, LongHashTrie labelsById, @NotNull Long id) {
+    long label = labelsById.get(id, NO_LABEL);
+    if (label == NO_LABEL) {
+      throw new WidgetNotFoundException(id.toString());
+    }
+    return widgetsByZOrder.indexOfLabel(label);
   }
 
   private void updateZOrderArrayWithWidget(@NotNull Widget<Long> widget, int index) {
     int z = widget.getZ();
 
     if (index >= 0) {
-      log.debug("[{}]: updateZOrderWithWidget: existing widget found with zOrder {} at position {}, shifting: {}", widget.getId(), z, index, widgetsByZOrder.get(index));
-      // we want element at position index to have zOrder = it's current zOrder + 1
-      shiftList(z + 1, index);
+      // we want element at position index to have zOrder = it's current zOrder + 1, and so on until there is a gap
+      int runEnd = widgetsByZOrder.runEnd(index);
+      log.debug("[{}]: updateZOrderWithWidget: existing widget found with zOrder {} at position {}, shifting positions [{}, {})", widget.getId(), z, index, index, runEnd);
+      uncommittedChanges.add(WidgetChange.shifted(z, z + runEnd - index - 1));
+      widgetsByZOrder.shift(index, runEnd, 1);
       log.debug("[{}]: inserting widget at position {} after shifting existing zOrder {}", widget.getId(), index, z);
-      widgetsByZOrder.add(index, widget);
+      addWidgetToIdMap(widget, widgetsByZOrder.insert(index, widget));
     } else { //negative index means that no element with this zOrder is found, but a position to insert is found
       // -> a gap in zOrders. No need to shift
       int insertionPosition = getInsertionPosition(index);
       log.debug("[{}]: inserting widget at position {}, no zOrder {} found", widget.getId(), insertionPosition, z);
-      widgetsByZOrder.add(insertionPosition, widget);
+      addWidgetToIdMap(widget, widgetsByZOrder.insert(insertionPosition, widget));
     }
   }
 
+  /**
+   * Immutable snapshots of the z-order tree and the indexes, which always agree with each other,
+   * and the number of the version: every commit adds one
+   */
+  private static class Version {
+    private ZOrderTree<Widget<Long>> widgetsByZOrder;
+    private LongHashTrie labelsById;
+    private SpatialGrid idsByArea;
+    private long number;
+    /**
+     * The greatest id of the widgets ever created, for the checkpoint
+     */
+    private long lastId;
+    /**
+     * The end of the record of the version in the write-ahead log
+     */
+    private long logPosition;
+
+    Version(ZOrderTree<Widget<Long>> widgetsByZOrder, LongHashTrie labelsById, SpatialGrid idsByArea, long number,
+            long lastId, long logPosition) {
+      this.widgetsByZOrder = widgetsByZOrder;
+      this.labelsById = labelsById;
+      this.idsByArea = idsByArea;
+      this.number = number;
+      this.lastId = lastId;
+      this.logPosition = logPosition;
+    }
+
+    Widget<Long> getWidget(@NotNull Long id) {
+      return widgetsByZOrder.get(indexOfId(widgetsByZOrder, labelsById, id));
+    }
+  }
 
   /**
-   * =
-   * Will shift current widget to the next zOrder until there is a gap or end of the list
-   *
-   * @param zOrder desirable zOrder at position pos
-   * @param pos    a correct position in the array
-   */
-  private void shiftList(int zOrder, int pos) {
-    log.trace("shifting zOrder at position {}: {}", pos, zOrder);
-    var widget = widgetsByZOrder.get(pos);
-    var newWidget = widgetFactory.updateWidget(
-      widget,
-      WidgetUpdateRequest.builder()
-        .z(zOrder)
-        .build()
-    );
-    replaceWidgetAtIndex(pos, newWidget);
-    addWidgetToIdMap(newWidget);
-    if (pos + 1 < widgetsByZOrder.size() && widgetsByZOrder.get(pos + 1).getZ() == zOrder) {
-      shiftList(zOrder + 1, pos + 1);
+   * Finds the topmost of the widgets of a version containing a point
+   */
+  private static class TopmostFinder implements LongConsumer {
+    private final Version version;
+    private int topIndex;
+
+    TopmostFinder(Version version) {
+      this.version = version;
+    }
+
+    Widget<Long> find(int x, int y) {
+      topIndex = -1;
+      version.idsByArea.forEachContaining(x, y, this);
+      return topIndex < 0 ? null : version.widgetsByZOrder.get(topIndex);
+    }
+
+    @Override
+    public void accept(long id) {
+      topIndex = Math.max(topIndex, version.widgetsByZOrder.indexOfLabel(version.labelsById.get(id, NO_LABEL)));
+    }
+  }
+
+  /**
+   * Collects the positions of the widgets in the z-order tree of a version by their ids
+   */
+  private static class IndexCollector implements LongConsumer {
+    private final Version version;
+    private int[] indexes = new int[16];
+    private int size;
+
+    IndexCollector(Version version) {
+      this.version = version;
+    }
+
+    @Override
+    public void accept(long id) {
+      if (size == indexes.length) {
+        indexes = Arrays.copyOf(indexes, 2 * size);
+      }
+      indexes[size++] = version.widgetsByZOrder.indexOfLabel(version.labelsById.get(id, NO_LABEL));
+    }
+
+    List<Widget<Long>> widgets() {
+      Arrays.sort(indexes, 0, size);
+      var widgets = new ArrayList<Widget<Long>>(size);
+      for (int i = 0; i < size; ++i) {
+        widgets.add(version.widgetsByZOrder.get(indexes[i]));
+      }
+      return widgets;
     }
   }
 }
@@ -0,0 +1,79 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.factory.interfaces.WidgetFactory;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.wal.CheckpointFile;
+import pashazz.widgetmanager.repository.wal.WriteAheadLog;
+
+import java.util.List;
+
+/**
+ * How the memory storage keeps the widgets. Set by the {@code widgetmanager.memory-engine} property
+ */
+public enum MemoryEngine {
+  /**
+   * Persistent trees of widget objects with lock-free reads and O(log n) writes, see {@link InMemoryWidgetRepository}
+   */
+  TREE {
+    @Override
+    public @NotNull WidgetRepository<Long> create(@NotNull WidgetFactory<Long, Widget<Long>> widgetFactory,
+                                                  @NotNull WidgetChangeLog<Long> changeLog,
+                                                  @Nullable WriteAheadLog writeAheadLog,
+                                                  @Nullable CheckpointFile checkpointFile) {
+      return new InMemoryWidgetRepository(widgetFactory, changeLog, writeAheadLog, checkpointFile);
+    }
+
+    @Override
+    public @NotNull WidgetRepository<Long> create(@NotNull WidgetFactory<Long, Widget<Long>> widgetFactory,
+                                                  @NotNull WidgetChangeLog<Long> changeLog, long version) {
+      var repo = new InMemoryWidgetRepository(widgetFactory, changeLog);
+      repo.load(version, 0, List.of());
+      return repo;
+    }
+  },
+  /**
+   * Primitive columns, several times smaller, with O(n) writes, see {@link ColumnarWidgetRepository}
+   */
+  COLUMNS {
+    @Override
+    public @NotNull WidgetRepository<Long> create(@NotNull WidgetFactory<Long, Widget<Long>> widgetFactory,
+                                                  @NotNull WidgetChangeLog<Long> changeLog,
+                                                  @Nullable WriteAheadLog writeAheadLog,
+                                                  @Nullable CheckpointFile checkpointFile) {
+      if (writeAheadLog != null || checkpointFile != null) {
+        throw new IllegalStateException("the write-ahead log and the checkpoints are supported by the tree memory engine only");
+      }
+      return new ColumnarWidgetRepository(widgetFactory, changeLog);
+    }
+
+    @Override
+    public @NotNull WidgetRepository<Long> create(@NotNull WidgetFactory<Long, Widget<Long>> widgetFactory,
+                                                  @NotNull WidgetChangeLog<Long> changeLog, long version) {
+      return new ColumnarWidgetRepository(widgetFactory, changeLog, version);
+    }
+  };
+
+  /**
+   * @param writeAheadLog  the log to replay the widgets from and to write the versions to, null for none
+   * @param checkpointFile the checkpoint to load the widgets from and to write them to, null for none
+   */
+  public abstract @NotNull WidgetRepository<Long> create(@NotNull WidgetFactory<Long, Widget<Long>> widgetFactory,
+                                                         @NotNull WidgetChangeLog<Long> changeLog,
+                                                         @Nullable WriteAheadLog writeAheadLog,
+                                                         @Nullable CheckpointFile checkpointFile);
+
+  /**
+   * @return an empty repository at the version, without a write-ahead log and checkpoints
+   */
+  public abstract @NotNull WidgetRepository<Long> create(@NotNull WidgetFactory<Long, Widget<Long>> widgetFactory,
+                                                         @NotNull WidgetChangeLog<Long> changeLog, long version);
+
+  public @NotNull WidgetRepository<Long> create(@NotNull WidgetFactory<Long, Widget<Long>> widgetFactory,
+                                                @NotNull WidgetChangeLog<Long> changeLog) {
+    return create(widgetFactory, changeLog, null, null);
+  }
+}
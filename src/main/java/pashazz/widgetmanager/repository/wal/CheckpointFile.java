@@ -0,0 +1,290 @@
+package pashazz.widgetmanager.repository.wal;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static java.lang.String.format;
+import static pashazz.widgetmanager.repository.wal.WriteAheadLog.WIDGET_SIZE;
+
+/**
+ * A file with the widgets of a version of a memory storage in z-order, so that a restart loads them
+ * rather than replays every write since the start.
+ * <p>
+ * The file is a header: the magic number, the format, the flags and the number of widgets (ints),
+ * the version and the greatest id given by then (longs); then the widgets, 40 bytes each as in a record of {@link WriteAheadLog};
+ * then the CRC32 of the widgets (int). If the file is compressed, the widgets and the CRC are deflated.
+ * <p>
+ * A checkpoint is written to a temporary file, synced and moved over the previous one, so a crash leaves one of them whole.
+ * An uncompressed file is read through a memory map, unless it is larger than 2GB.
+ * <p>
+ * The checkpoint given to {@link #start(Runnable)} is taken every interval by a background thread, and once more on close
+ */
+@Slf4j
+public class CheckpointFile implements Closeable {
+
+  /**
+   * "WCKP"
+   */
+  private static final int MAGIC = 0x57434b50;
+
+  private static final int FORMAT = 1;
+
+  private static final int COMPRESSED = 1;
+
+  private static final int HEADER_SIZE = 4 * Integer.BYTES + 2 * Long.BYTES;
+
+  /**
+   * Widgets are written and read this many at a time
+   */
+  private static final int CHUNK_SIZE = 1024 * WIDGET_SIZE;
+
+  private final Path path;
+
+  private final Duration interval;
+
+  private final boolean compress;
+
+  private ScheduledExecutorService scheduler;
+
+  private Runnable checkpoint;
+
+  private final Object writeLock = new Object();
+
+  /**
+   * The greatest id given by the version of the loaded checkpoint
+   */
+  private long lastId;
+
+  /**
+   * @param interval the period of checkpoints, zero for a checkpoint on close only
+   * @param compress deflate the widgets: the file is smaller, but takes longer to write and to load
+   */
+  public CheckpointFile(@NotNull Path path, @NotNull Duration interval, boolean compress) {
+    this.path = path;
+    this.interval = interval;
+    this.compress = compress;
+  }
+
+  /**
+   * Reads the widgets of the checkpoint, if there is one
+   *
+   * @param widgets called with every widget, in z-order
+   * @return the version of the checkpoint, 0 if there is none
+   * @throws IllegalStateException if the file is not a checkpoint, or it is damaged
+   */
+  public long load(@NotNull Consumer<Widget<Long>> widgets) {
+    if (!Files.exists(path)) {
+      return 0;
+    }
+    try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      var header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+      }
+      header.flip();
+      if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != FORMAT) {
+        throw new IllegalStateException(format("%s is not a checkpoint", path));
+      }
+      boolean compressed = (header.getInt() & COMPRESSED) != 0;
+      int size = header.getInt();
+      long version = header.getLong();
+      lastId = header.getLong();
+      long bodySize = (long) size * WIDGET_SIZE + Integer.BYTES;
+      if (compressed) {
+        readStream(new InflaterInputStream(Channels.newInputStream(channel)), size, widgets);
+      } else if (channel.size() != HEADER_SIZE + bodySize) {
+        throw new IllegalStateException(format("checkpoint %s of version %s is cut short", path, version));
+      } else if (bodySize > Integer.MAX_VALUE) {
+        readStream(Channels.newInputStream(channel), size, widgets);
+      } else {
+        readMapped(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, bodySize), size, widgets);
+      }
+      log.info("checkpoint {}: loaded {} widgets of version {}", path, size, version);
+      return version;
+    } catch (IOException e) {
+      throw new UncheckedIOException(format("cannot read the checkpoint %s", path), e);
+    }
+  }
+
+  private void readMapped(ByteBuffer body, int size, Consumer<Widget<Long>> widgets) {
+    var crc = new CRC32();
+    crc.update(body.slice().limit(size * WIDGET_SIZE));
+    for (int i = 0; i < size; ++i) {
+      widgets.accept(WriteAheadLog.readWidget(body));
+    }
+    checkCrc(crc, body.getInt());
+  }
+
+  private void readStream(InputStream stream, int size, Consumer<Widget<Long>> widgets) throws IOException {
+    var crc = new CRC32();
+    var in = new DataInputStream(new BufferedInputStream(stream, CHUNK_SIZE));
+    var chunk = new byte[CHUNK_SIZE];
+    for (int read = 0; read < size; ) {
+      int count = Math.min(size - read, CHUNK_SIZE / WIDGET_SIZE);
+      in.readFully(chunk, 0, count * WIDGET_SIZE);
+      crc.update(chunk, 0, count * WIDGET_SIZE);
+      var buffer = ByteBuffer.wrap(chunk, 0, count * WIDGET_SIZE);
+      for (int i = 0; i < count; ++i) {
+        widgets.accept(WriteAheadLog.readWidget(buffer));
+      }
+      read += count;
+    }
+    checkCrc(crc, in.readInt());
+  }
+
+  private void checkCrc(CRC32 crc, int expected) {
+    if ((int) crc.getValue() != expected) {
+      throw new IllegalStateException(format("checkpoint %s is damaged: CRC does not match", path));
+    }
+  }
+
+  /**
+   * Writes the widgets of a version over the previous checkpoint. Thread safe
+   *
+   * @param lastId  the greatest id given by the version, so that the ids of deleted widgets are not given again
+   * @param size    the number of widgets
+   * @param widgets in z-order
+   */
+  public void write(long version, long lastId, int size, @NotNull Iterable<? extends Widget<Long>> widgets) {
+    var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    synchronized (writeLock) {
+      writeTo(temporary, version, lastId, size, widgets);
+    }
+    log.info("checkpoint {}: written {} widgets of version {}", path, size, version);
+  }
+
+  private void writeTo(Path temporary, long version, long lastId, int size, Iterable<? extends Widget<Long>> widgets) {
+    try {
+      if (path.getParent() != null) {
+        Files.createDirectories(path.getParent());
+      }
+      try (var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        var header = ByteBuffer.allocate(HEADER_SIZE)
+          .putInt(MAGIC).putInt(FORMAT).putInt(compress ? COMPRESSED : 0).putInt(size).putLong(version).putLong(lastId)
+          .flip();
+        while (header.hasRemaining()) {
+          channel.write(header);
+        }
+        // the streams are not closed, so that the channel is synced before it is closed
+        var deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        try {
+          var out = Channels.newOutputStream(channel);
+          if (deflater != null) {
+            var deflated = new DeflaterOutputStream(out, deflater, CHUNK_SIZE);
+            writeWidgets(deflated, size, widgets);
+            deflated.finish();
+          } else {
+            writeWidgets(out, size, widgets);
+          }
+        } finally {
+          if (deflater != null) {
+            deflater.end();
+          }
+        }
+        channel.force(false);
+      }
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(format("cannot write the checkpoint %s of version %s", path, version), e);
+    }
+  }
+
+  private void writeWidgets(OutputStream out, int size, Iterable<? extends Widget<Long>> widgets) throws IOException {
+    var crc = new CRC32();
+    var chunk = ByteBuffer.allocate(CHUNK_SIZE);
+    int written = 0;
+    for (var widget : widgets) {
+      if (!chunk.hasRemaining()) {
+        crc.update(chunk.array(), 0, chunk.position());
+        out.write(chunk.array(), 0, chunk.position());
+        chunk.clear();
+      }
+      WriteAheadLog.putWidget(chunk, widget);
+      ++written;
+    }
+    if (written != size) {
+      throw new IllegalArgumentException(format("%s widgets given instead of %s", written, size));
+    }
+    crc.update(chunk.array(), 0, chunk.position());
+    chunk.putInt((int) crc.getValue());
+    out.write(chunk.array(), 0, chunk.position());
+  }
+
+  /**
+   * Starts taking the checkpoint every interval
+   *
+   * @param checkpoint takes a checkpoint, calling {@link #write(long, long, int, Iterable)}
+   */
+  public synchronized void start(@NotNull Runnable checkpoint) {
+    this.checkpoint = checkpoint;
+    if (interval.isZero() || scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "checkpoint");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::takeCheckpoint, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private void takeCheckpoint() {
+    try {
+      checkpoint.run();
+    } catch (RuntimeException e) {
+      // the previous checkpoint and the write-ahead log are still there
+      log.error("checkpoint {} failed", path, e);
+    }
+  }
+
+  /**
+   * @return the greatest id given by the version of the loaded checkpoint, 0 if there is none
+   */
+  public long getLastId() {
+    return lastId;
+  }
+
+  /**
+   * Waits for a running checkpoint, and takes the last one
+   */
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      try {
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      scheduler = null;
+    }
+    if (checkpoint != null) {
+      takeCheckpoint();
+      checkpoint = null;
+    }
+  }
+}
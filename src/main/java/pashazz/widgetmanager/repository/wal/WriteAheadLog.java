@@ -0,0 +1,429 @@
+package pashazz.widgetmanager.repository.wal;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryWidgetImpl;
+import pashazz.widgetmanager.repository.changes.WidgetChange;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+import static java.lang.String.format;
+
+/**
+ * An append-only file of the committed versions of a memory storage: a record per version with all its changes,
+ * the shifts included, so that replaying the records in order gives the widgets of the last version.
+ * <p>
+ * A record is the length of the payload and its CRC32 (ints), then the payload: the version (long),
+ * the number of changes (int) and the changes, each a type byte followed by
+ * <ul>
+ *   <li>CREATED, UPDATED - the widget: id (long), x, y, z, width, height (ints),
+ *   lastUpdatedAt as seconds since the epoch (long) and nanoseconds (int), taken as UTC</li>
+ *   <li>DELETED - the id (long)</li>
+ *   <li>SHIFTED - fromZ and toZ (ints)</li>
+ * </ul>
+ * A created widget takes 41 bytes.
+ * <p>
+ * A record is written to the file before its version is published, so a crash of the process loses nothing.
+ * The file is synced to the disk (fsync) in groups: once syncBatch records are written since the last sync,
+ * and every syncInterval by a background thread, so a crash of the machine loses the versions of the last interval at most.
+ * A record that is cut short or does not match its CRC ends the log: replay truncates the file there.
+ * <p>
+ * Once a checkpoint has the widgets of a version, the records up to it are discarded by {@link #discardUpTo(long)}:
+ * the next append copies the records after it to a new file, which replaces the log.
+ * <p>
+ * Appends are NOT thread safe: the repository calls them from its single writer
+ */
+@Slf4j
+public class WriteAheadLog implements Closeable {
+
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+  /**
+   * The bytes of a widget in a record, see {@link #putWidget(ByteBuffer, Widget)}
+   */
+  static final int WIDGET_SIZE = Long.BYTES + 5 * Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+  private static final byte CREATED = 0;
+  private static final byte UPDATED = 1;
+  private static final byte DELETED = 2;
+  private static final byte SHIFTED = 3;
+
+  private final Path path;
+
+  private FileChannel channel;
+
+  private final int syncBatch;
+
+  private final ScheduledExecutorService syncer;
+
+  private final CRC32 crc = new CRC32();
+
+  private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+  /**
+   * Records written since the last sync
+   */
+  private final AtomicInteger unsynced = new AtomicInteger();
+
+  /**
+   * The greatest id of the widgets created in the log, so that the ids are not given again
+   */
+  private long lastId;
+
+  /**
+   * Bytes discarded from the start of the log since it was opened: a position in the log is this plus the one in the file
+   */
+  private long discarded;
+
+  /**
+   * The position up to which the records are to be discarded by the next append
+   */
+  private volatile long discardRequested;
+
+  /**
+   * Set when a background sync fails, so that the following appends fail rather than pretend to be durable
+   */
+  private volatile IOException syncFailure;
+
+  /**
+   * @param syncInterval the period of background syncs, zero for none
+   * @param syncBatch    the number of records after which an append syncs the file, 1 to sync every record
+   */
+  public WriteAheadLog(@NotNull Path path, @NotNull Duration syncInterval, int syncBatch) {
+    this.path = path;
+    this.syncBatch = syncBatch;
+    try {
+      if (path.getParent() != null) {
+        Files.createDirectories(path.getParent());
+      }
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(format("cannot open the write-ahead log %s", path), e);
+    }
+    if (syncInterval.isZero()) {
+      syncer = null;
+    } else {
+      syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "wal-sync");
+        thread.setDaemon(true);
+        return thread;
+      });
+      syncer.scheduleWithFixedDelay(this::backgroundSync, syncInterval.toMillis(), syncInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Reads the records from the start of the file, and positions it after the last valid one for the appends
+   *
+   * @param versions called with the changes and the number of every version, in order
+   * @return the last version in the log, 0 if it is empty
+   */
+  public long replay(@NotNull ObjLongConsumer<List<WidgetChange<Long>>> versions) {
+    long version = 0;
+    long end = 0;
+    int records = 0;
+    try {
+      channel.position(0);
+      var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+      byte[] payload = new byte[4096];
+      while (true) {
+        int length;
+        int checksum;
+        try {
+          length = in.readInt();
+          checksum = in.readInt();
+          if (length < 0 || end + HEADER_SIZE + length > channel.size()) {
+            break;
+          }
+          if (payload.length < length) {
+            payload = new byte[Math.max(length, 2 * payload.length)];
+          }
+          in.readFully(payload, 0, length);
+        } catch (EOFException e) {
+          break;
+        }
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        var record = ByteBuffer.wrap(payload, 0, length);
+        version = record.getLong();
+        versions.accept(readChanges(record), version);
+        end += HEADER_SIZE + length;
+        ++records;
+      }
+      if (end < channel.size()) {
+        log.warn("write-ahead log {}: dropping {} bytes of an incomplete record after version {}", path, channel.size() - end, version);
+        channel.truncate(end);
+      }
+      channel.position(end);
+    } catch (IOException e) {
+      throw new UncheckedIOException(format("cannot read the write-ahead log %s", path), e);
+    }
+    log.info("write-ahead log {}: replayed {} versions up to {}", path, records, version);
+    return version;
+  }
+
+  /**
+   * Writes a record of the version, and syncs the file if the batch is full
+   *
+   * @return the position of the end of the record, for {@link #discardUpTo(long)}
+   * @throws UncheckedIOException if the record is not written, or a background sync has failed
+   */
+  public long append(long version, @NotNull Collection<WidgetChange<Long>> changes) {
+    if (syncFailure != null) {
+      throw new UncheckedIOException(format("write-ahead log %s is not synced", path), syncFailure);
+    }
+    buffer.clear();
+    buffer.position(HEADER_SIZE);
+    ensureRemaining(Long.BYTES + Integer.BYTES);
+    buffer.putLong(version);
+    buffer.putInt(changes.size());
+    for (var change : changes) {
+      writeChange(change);
+    }
+    int length = buffer.position() - HEADER_SIZE;
+    crc.reset();
+    crc.update(buffer.array(), HEADER_SIZE, length);
+    buffer.putInt(0, length);
+    buffer.putInt(Integer.BYTES, (int) crc.getValue());
+    buffer.flip();
+    long start = -1;
+    try {
+      if (discardRequested > discarded) {
+        discard(discardRequested - discarded);
+      }
+      start = channel.position();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      if (unsynced.incrementAndGet() >= syncBatch) {
+        sync();
+      }
+      return discarded + channel.position();
+    } catch (IOException e) {
+      discardFrom(start);
+      throw new UncheckedIOException(format("cannot write version %s to the write-ahead log %s", version, path), e);
+    }
+  }
+
+  /**
+   * @return the position of the end of the last record. Not thread safe, like the appends
+   */
+  public long position() {
+    try {
+      return discarded + channel.position();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Asks to discard the records up to the position, which a checkpoint has made unnecessary.
+   * Thread safe: the records are discarded by the next append, so that the writer is not stopped meanwhile
+   *
+   * @param position the end of the last record to discard, as returned by {@link #append(long, Collection)}
+   */
+  public void discardUpTo(long position) {
+    if (position > discardRequested) {
+      discardRequested = position;
+    }
+  }
+
+  /**
+   * Copies the records after the first bytes of the file to a new file, and replaces the log with it.
+   * The records after a checkpoint are few, so this takes a single fsync mostly
+   */
+  private void discard(long bytes) throws IOException {
+    long end = channel.position();
+    var rest = path.resolveSibling(path.getFileName() + ".rest");
+    try (var target = FileChannel.open(rest, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      for (long copied = 0; copied < end - bytes; ) {
+        copied += channel.transferTo(bytes + copied, end - bytes - copied, target);
+      }
+      target.force(false);
+    } catch (IOException e) {
+      log.warn("write-ahead log {}: cannot copy the records after the checkpoint, keeping them all", path, e);
+      discardRequested = discarded;
+      return;
+    }
+    // the background sync must not force the channel while it is replaced
+    synchronized (this) {
+      Files.move(rest, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      channel.close();
+      channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      channel.position(end - bytes);
+      // the records that are not synced have been copied to the new file, and it is synced
+      unsynced.set(0);
+    }
+    discarded += bytes;
+    log.info("write-ahead log {}: discarded {} bytes of the records before the checkpoint", path, bytes);
+  }
+
+  /**
+   * Forces the written records to the disk
+   */
+  public synchronized void sync() throws IOException {
+    if (unsynced.getAndSet(0) > 0) {
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Cuts off a record that is written in part, so that the next one follows the last complete record
+   */
+  private void discardFrom(long start) {
+    if (start < 0) {
+      return;
+    }
+    try {
+      channel.truncate(start);
+      channel.position(start);
+    } catch (IOException e) {
+      log.error("write-ahead log {}: cannot discard an incomplete record at {}", path, start, e);
+    }
+  }
+
+  private void backgroundSync() {
+    try {
+      sync();
+    } catch (IOException e) {
+      log.error("write-ahead log {}: sync failed", path, e);
+      syncFailure = e;
+    }
+  }
+
+  /**
+   * @return the greatest id of the widgets created in the replayed and appended records, 0 if there are none
+   */
+  public long getLastId() {
+    return lastId;
+  }
+
+  /**
+   * Syncs the file and closes it
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (syncer != null) {
+      syncer.shutdownNow();
+    }
+    if (channel.isOpen()) {
+      sync();
+      channel.close();
+    }
+  }
+
+  private void writeChange(WidgetChange<Long> change) {
+    switch (change.getType()) {
+      case CREATED:
+      case UPDATED:
+        var widget = change.getWidget();
+        ensureRemaining(1 + WIDGET_SIZE);
+        buffer.put(change.getType() == WidgetChange.Type.CREATED ? CREATED : UPDATED);
+        putWidget(buffer, widget);
+        lastId = Math.max(lastId, widget.getId());
+        break;
+      case DELETED:
+        ensureRemaining(1 + Long.BYTES);
+        buffer.put(DELETED);
+        buffer.putLong(change.getId());
+        break;
+      case SHIFTED:
+        ensureRemaining(1 + 2 * Integer.BYTES);
+        buffer.put(SHIFTED);
+        buffer.putInt(change.getFromZ());
+        buffer.putInt(change.getToZ());
+        break;
+    }
+  }
+
+  private List<WidgetChange<Long>> readChanges(ByteBuffer record) {
+    int count = record.getInt();
+    var changes = new ArrayList<WidgetChange<Long>>(count);
+    for (int i = 0; i < count; ++i) {
+      byte type = record.get();
+      switch (type) {
+        case CREATED:
+          var created = readWidget(record);
+          lastId = Math.max(lastId, created.getId());
+          changes.add(WidgetChange.created(created));
+          break;
+        case UPDATED:
+          changes.add(WidgetChange.updated(readWidget(record)));
+          break;
+        case DELETED:
+          changes.add(WidgetChange.deleted(record.getLong()));
+          break;
+        case SHIFTED:
+          changes.add(WidgetChange.shifted(record.getInt(), record.getInt()));
+          break;
+        default:
+          throw new IllegalStateException(format("write-ahead log %s: unknown change type %s", path, type));
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * Writes the WIDGET_SIZE bytes of a widget
+   */
+  static void putWidget(ByteBuffer buffer, Widget<Long> widget) {
+    var updatedAt = widget.getLastUpdatedAt();
+    buffer.putLong(widget.getId());
+    buffer.putInt(widget.getX());
+    buffer.putInt(widget.getY());
+    buffer.putInt(widget.getZ());
+    buffer.putInt(widget.getWidth());
+    buffer.putInt(widget.getHeight());
+    buffer.putLong(updatedAt.toEpochSecond(ZoneOffset.UTC));
+    buffer.putInt(updatedAt.getNano());
+  }
+
+  static Widget<Long> readWidget(ByteBuffer record) {
+    long id = record.getLong();
+    int x = record.getInt();
+    int y = record.getInt();
+    int z = record.getInt();
+    int width = record.getInt();
+    int height = record.getInt();
+    long seconds = record.getLong();
+    int nanos = record.getInt();
+    return new InMemoryWidgetImpl<>(id, x, y, z, width, height, LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC));
+  }
+
+  private void ensureRemaining(int bytes) {
+    if (buffer.remaining() < bytes) {
+      var larger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + bytes));
+      buffer.flip();
+      larger.put(buffer);
+      buffer = larger;
+    }
+  }
+}
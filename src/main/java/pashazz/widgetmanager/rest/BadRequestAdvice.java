@@ -4,7 +4,10 @@ import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
+import pashazz.widgetmanager.exception.CanvasNotFoundException;
+import pashazz.widgetmanager.exception.WidgetChangesExpiredException;
 import pashazz.widgetmanager.exception.WidgetCreationException;
+import pashazz.widgetmanager.exception.WidgetLimitException;
 import pashazz.widgetmanager.exception.WidgetNotFoundException;
 import pashazz.widgetmanager.exception.WidgetPageException;
 import pashazz.widgetmanager.rest.response.ErrorResponse;
@@ -21,6 +24,15 @@ public class BadRequestAdvice {
       .build();
   }
 
+  @ExceptionHandler(WidgetLimitException.class)
+  @ResponseStatus(value = HttpStatus.BAD_REQUEST)
+  public ErrorResponse badLimit(WidgetLimitException ex) {
+    return ErrorResponse.builder()
+      .type(HttpStatus.BAD_REQUEST.getReasonPhrase())
+      .message(ex.getMessage())
+      .build();
+  }
+
   @ExceptionHandler(WidgetNotFoundException.class)
   @ResponseStatus(value = HttpStatus.NOT_FOUND)
   public ErrorResponse notFound(WidgetNotFoundException ex) {
@@ -30,6 +42,15 @@ public class BadRequestAdvice {
       .build();
   }
 
+  @ExceptionHandler(CanvasNotFoundException.class)
+  @ResponseStatus(value = HttpStatus.NOT_FOUND)
+  public ErrorResponse canvasNotFound(CanvasNotFoundException ex) {
+    return ErrorResponse.builder()
+      .type(HttpStatus.NOT_FOUND.getReasonPhrase())
+      .message(ex.getMessage())
+      .build();
+  }
+
    @ExceptionHandler(WidgetPageException.class)
   @ResponseStatus(value = HttpStatus.NOT_FOUND)
   public ErrorResponse page(WidgetPageException ex) {
@@ -38,4 +59,16 @@ public class BadRequestAdvice {
       .message(ex.getMessage())
       .build();
   }
+
+  /**
+   * Tells the client to read all the widgets again
+   */
+  @ExceptionHandler(WidgetChangesExpiredException.class)
+  @ResponseStatus(value = HttpStatus.GONE)
+  public ErrorResponse changesExpired(WidgetChangesExpiredException ex) {
+    return ErrorResponse.builder()
+      .type(HttpStatus.GONE.getReasonPhrase())
+      .message(ex.getMessage())
+      .build();
+  }
 }
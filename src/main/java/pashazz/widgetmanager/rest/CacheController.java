@@ -0,0 +1,29 @@
+package pashazz.widgetmanager.rest;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Profile;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import pashazz.widgetmanager.repository.cache.WidgetCache;
+import pashazz.widgetmanager.rest.response.CacheStatusResponse;
+
+/**
+ * The counters of the read cache of the db storage, if it is on
+ */
+@RestController
+@Profile("db")
+@ConditionalOnExpression("${widgetmanager.db-cache-size:100000} > 0")
+public class CacheController {
+
+  private final WidgetCache<Long> cache;
+
+  public CacheController(@NotNull WidgetCache<Long> cache) {
+    this.cache = cache;
+  }
+
+  @GetMapping("/cache")
+  CacheStatusResponse status() {
+    return cache.getStatus();
+  }
+}
@@ -0,0 +1,27 @@
+package pashazz.widgetmanager.rest;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.context.annotation.Profile;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import pashazz.widgetmanager.repository.hybrid.DbWriteBehind;
+import pashazz.widgetmanager.rest.response.ReplicationStatusResponse;
+
+/**
+ * The state of the write-behind of the hybrid storage
+ */
+@RestController
+@Profile("hybrid")
+public class ReplicationController {
+
+  private final DbWriteBehind writeBehind;
+
+  public ReplicationController(@NotNull DbWriteBehind writeBehind) {
+    this.writeBehind = writeBehind;
+  }
+
+  @GetMapping("/replication")
+  ReplicationStatusResponse status() {
+    return writeBehind.getStatus();
+  }
+}
@@ -1,56 +1,374 @@
 package pashazz.widgetmanager.rest;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.jetbrains.annotations.NotNull;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import pashazz.widgetmanager.entity.interfaces.Widget;
-import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.exception.WidgetLimitException;
+import pashazz.widgetmanager.repository.canvas.WidgetCanvas;
+import pashazz.widgetmanager.repository.canvas.WidgetCanvases;
+import pashazz.widgetmanager.rest.binary.WidgetBinaryFormat;
 import pashazz.widgetmanager.rest.request.PaginationRequest;
+import pashazz.widgetmanager.rest.request.Point;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
 import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+import pashazz.widgetmanager.rest.response.WidgetBatchResponse;
+import pashazz.widgetmanager.rest.response.WidgetChangesResponse;
+import pashazz.widgetmanager.rest.response.WidgetCursorPageResponse;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Optional;
 
+import static java.lang.String.format;
+
+/**
+ * Every endpoint is served for the default canvas under /widgets, and for any canvas under /canvases/{canvas}/widgets,
+ * see {@link WidgetCanvases}. A canvas is created by a creation or a batch, the other endpoints answer 404 without it
+ */
 @RestController
 public class RestApiController {
   private static final int DEFAULT_PAGE_SIZE = 50;
+  private static final int MAX_LIMIT = 1000;
+
+  private final WidgetCanvases canvases;
+
+  private final ObjectMapper objectMapper;
+
+  private final WidgetChangeStream changeStream;
+
+  public RestApiController(@NotNull WidgetCanvases canvases, @NotNull ObjectMapper objectMapper,
+                           @NotNull WidgetChangeStream changeStream) {
+    this.canvases = canvases;
+    this.objectMapper = objectMapper;
+    this.changeStream = changeStream;
+  }
 
-  private final WidgetRepository<Long> repo;
+  /**
+   * Reads get an ETag of the repository version, which is taken before the widgets are read.
+   * If it matches If-None-Match, the response is 304 and the widgets are not read at all.
+   * Otherwise, JSON and binary reads are served from the cache of the version,
+   * see {@link #serialized(WidgetCanvas, long, String, Serializer)}
+   */
+  @GetMapping({"/widgets/all", "/canvases/{canvas}/widgets/all"})
+  ResponseEntity<byte[]> all(@PathVariable(required = false) String canvas, WebRequest request) throws IOException {
+    return inCanvas(canvas, current -> {
+      var repo = current.getRepository();
+      long version = repo.getVersion();
+      var etag = etag(version, "");
+      if (request.checkNotModified(etag)) {
+        return null;
+      }
+      return response(MediaType.APPLICATION_JSON, etag,
+        serialized(current, version, "all", () -> objectMapper.writeValueAsBytes(repo.listWidgets())));
+    });
+  }
+
+  @GetMapping(value = {"/widgets/all", "/canvases/{canvas}/widgets/all"}, produces = WidgetBinaryFormat.MEDIA_TYPE_VALUE)
+  ResponseEntity<byte[]> allAsBinary(@PathVariable(required = false) String canvas, WebRequest request) throws IOException {
+    return inCanvas(canvas, current -> {
+      var repo = current.getRepository();
+      long version = repo.getVersion();
+      var etag = etag(version, "-varint");
+      if (request.checkNotModified(etag)) {
+        return null;
+      }
+      return response(WidgetBinaryFormat.MEDIA_TYPE, etag,
+        serialized(current, version, "binary:all", () -> WidgetBinaryFormat.encode(repo.listWidgets())));
+    });
+  }
 
-  public RestApiController(@NotNull WidgetRepository<Long> repo) {
-    this.repo = repo;
+  /**
+   * All widgets as newline delimited JSON (a widget per line), written while they are read from the repository,
+   * so neither the list of widgets nor the response is held in memory
+   */
+  @GetMapping(value = {"/widgets/all", "/canvases/{canvas}/widgets/all"}, produces = MediaType.APPLICATION_NDJSON_VALUE)
+  ResponseEntity<StreamingResponseBody> allAsStream(@PathVariable(required = false) String canvas, WebRequest request) throws IOException {
+    var etag = etag(inCanvas(canvas, current -> current.getRepository().getVersion()), "-ndjson");
+    if (request.checkNotModified(etag)) {
+      return null;
+    }
+    // by default, every value would be flushed to the client on its own
+    var writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    // the body is written after this method returns, so it acquires the canvas again
+    StreamingResponseBody body = out -> inCanvas(canvas, current -> {
+      try (var generator = objectMapper.getFactory().createGenerator(out)) {
+        current.getRepository().forEachWidget(widget -> {
+          try {
+            writer.writeValue(generator, widget);
+            generator.writeRaw('\n');
+          } catch (IOException e) {
+            // most likely the client is gone
+            throw new UncheckedIOException(e);
+          }
+        });
+      }
+      return null;
+    });
+    return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).eTag(etag).body(body);
   }
 
-  @GetMapping("/widgets/all")
-  List<Widget<Long>> all() {
-    return repo.listWidgets();
+  @GetMapping({"/widgets", "/canvases/{canvas}/widgets"})
+  ResponseEntity<byte[]> page(@PathVariable(required = false) String canvas,
+                              @RequestBody Optional<PaginationRequest> request) throws IOException {
+    int page = request.map(PaginationRequest::getPage).orElse(0);
+    int size = request.map(PaginationRequest::getSize).orElse(DEFAULT_PAGE_SIZE);
+    return inCanvas(canvas, current -> {
+      var repo = current.getRepository();
+      long version = repo.getVersion();
+      return response(MediaType.APPLICATION_JSON, null, serialized(current, version, "page:" + page + ":" + size,
+        () -> objectMapper.writeValueAsBytes(repo.listWidgets(page, size))));
+    });
   }
 
-  @GetMapping("/widgets")
-  List<Widget<Long>> page(@RequestBody Optional<PaginationRequest> request) {
-    return repo.listWidgets(
-      request.map(PaginationRequest::getPage).orElse(0),
-      request.map(PaginationRequest::getSize).orElse(DEFAULT_PAGE_SIZE));
+  @GetMapping(value = {"/widgets", "/canvases/{canvas}/widgets"}, produces = WidgetBinaryFormat.MEDIA_TYPE_VALUE)
+  ResponseEntity<byte[]> pageAsBinary(@PathVariable(required = false) String canvas,
+                                      @RequestBody Optional<PaginationRequest> request) throws IOException {
+    int page = request.map(PaginationRequest::getPage).orElse(0);
+    int size = request.map(PaginationRequest::getSize).orElse(DEFAULT_PAGE_SIZE);
+    return inCanvas(canvas, current -> {
+      var repo = current.getRepository();
+      long version = repo.getVersion();
+      return response(WidgetBinaryFormat.MEDIA_TYPE, null, serialized(current, version, "binary:page:" + page + ":" + size,
+        () -> WidgetBinaryFormat.encode(repo.listWidgets(page, size))));
+    });
   }
 
-  @GetMapping("/widgets/{id}")
-  Widget<Long> one(@PathVariable Long id) {
-    return repo.getWidget(id);
+  /**
+   * The cursor API: the next page starts after the z-order given by nextAfterZ of the previous one
+   */
+  @GetMapping(value = {"/widgets", "/canvases/{canvas}/widgets"}, params = "limit")
+  ResponseEntity<byte[]> pageAfter(@PathVariable(required = false) String canvas,
+                                   @RequestParam(required = false) Integer afterZ, @RequestParam int limit) throws IOException {
+    checkLimit(limit);
+    return inCanvas(canvas, current -> {
+      long version = current.getRepository().getVersion();
+      return response(MediaType.APPLICATION_JSON, null, serialized(current, version, "after:" + afterZ + ":" + limit,
+        () -> objectMapper.writeValueAsBytes(readPageAfter(current, afterZ, limit))));
+    });
   }
 
-  @PostMapping("/widgets")
-  Widget<Long> createWidget(@RequestBody WidgetUpdateRequest request) {
-    return repo.createWidget(request);
+  @GetMapping(value = {"/widgets", "/canvases/{canvas}/widgets"}, params = "limit", produces = WidgetBinaryFormat.MEDIA_TYPE_VALUE)
+  ResponseEntity<byte[]> pageAfterAsBinary(@PathVariable(required = false) String canvas,
+                                           @RequestParam(required = false) Integer afterZ, @RequestParam int limit) throws IOException {
+    checkLimit(limit);
+    return inCanvas(canvas, current -> {
+      long version = current.getRepository().getVersion();
+      return response(WidgetBinaryFormat.MEDIA_TYPE, null, serialized(current, version, "binary:after:" + afterZ + ":" + limit, () -> {
+        var page = readPageAfter(current, afterZ, limit);
+        return WidgetBinaryFormat.encodePage(page.getWidgets(), page.getNextAfterZ());
+      }));
+    });
   }
 
-  @PutMapping("/widgets/{id}")
-  Widget<Long> updateWidget(@RequestBody WidgetUpdateRequest request, @PathVariable Long id) {
-    return repo.updateWidget(id, request);
+  /**
+   * The widgets visible in a viewport: those intersecting the rectangle [minX, maxX] x [minY, maxY], sorted by z-order
+   */
+  @GetMapping(value = {"/widgets", "/canvases/{canvas}/widgets"}, params = {"minX", "minY", "maxX", "maxY"})
+  ResponseEntity<byte[]> area(@PathVariable(required = false) String canvas,
+                              @RequestParam int minX, @RequestParam int minY,
+                              @RequestParam int maxX, @RequestParam int maxY) throws IOException {
+    return inCanvas(canvas, current -> {
+      var repo = current.getRepository();
+      long version = repo.getVersion();
+      return response(MediaType.APPLICATION_JSON, null, serialized(current, version, "area:" + minX + ":" + minY + ":" + maxX + ":" + maxY,
+        () -> objectMapper.writeValueAsBytes(repo.listWidgetsIn(minX, minY, maxX, maxY))));
+    });
   }
 
-  @DeleteMapping("/widgets/{id}")
-  void delete(@PathVariable Long id) {
-    repo.deleteWidget(id);
+  @GetMapping(value = {"/widgets", "/canvases/{canvas}/widgets"}, params = {"minX", "minY", "maxX", "maxY"},
+    produces = WidgetBinaryFormat.MEDIA_TYPE_VALUE)
+  ResponseEntity<byte[]> areaAsBinary(@PathVariable(required = false) String canvas,
+                                      @RequestParam int minX, @RequestParam int minY,
+                                      @RequestParam int maxX, @RequestParam int maxY) throws IOException {
+    return inCanvas(canvas, current -> {
+      var repo = current.getRepository();
+      long version = repo.getVersion();
+      return response(WidgetBinaryFormat.MEDIA_TYPE, null, serialized(current, version, "binary:area:" + minX + ":" + minY + ":" + maxX + ":" + maxY,
+        () -> WidgetBinaryFormat.encode(repo.listWidgetsIn(minX, minY, maxX, maxY))));
+    });
   }
 
+  /**
+   * Hit test: the topmost widget at the point, 404 if there is none
+   */
+  @GetMapping({"/widgets/at", "/canvases/{canvas}/widgets/at"})
+  ResponseEntity<Widget<Long>> at(@PathVariable(required = false) String canvas,
+                                  @RequestParam int x, @RequestParam int y) throws IOException {
+    return inCanvas(canvas, current -> ResponseEntity.of(Optional.ofNullable(current.getRepository().findWidgetAt(x, y))));
+  }
+
+  /**
+   * Hit test of many points: the topmost widget per point, in the same order, null if there is none
+   */
+  @PostMapping({"/widgets/at", "/canvases/{canvas}/widgets/at"})
+  List<Widget<Long>> atPoints(@PathVariable(required = false) String canvas, @RequestBody List<Point> points) throws IOException {
+    return inCanvas(canvas, current -> current.getRepository().findWidgetsAt(points));
+  }
 
+  /**
+   * The changes made after the version the client has: the version is the ETag of /widgets/all,
+   * or the version of the previous response of this endpoint.
+   * If they are no longer retained, the response is 410 Gone and the client has to read all the widgets again
+   */
+  @GetMapping({"/widgets/changes", "/canvases/{canvas}/widgets/changes"})
+  WidgetChangesResponse<Long> changes(@PathVariable(required = false) String canvas, @RequestParam long since) throws IOException {
+    return inCanvas(canvas, current -> {
+      current.getRepository().syncWithStorage();
+      return current.getChangeLog().since(since);
+    });
+  }
+
+  /**
+   * The changes as server-sent events, an event per version, see {@link WidgetChangeStream}.
+   * Starts after Last-Event-ID when the client reconnects, after since otherwise, or at the current version.
+   * The canvas is held until the stream ends, so it is not evicted under it
+   */
+  @GetMapping(value = {"/widgets/changes", "/canvases/{canvas}/widgets/changes"}, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  SseEmitter changeStream(@PathVariable(required = false) String canvas,
+                          @RequestParam(required = false) Long since,
+                          @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+    var current = canvases.acquireExisting(canvas);
+    try {
+      var changeLog = current.getChangeLog();
+      return changeStream.subscribe(changeLog,
+        Optional.ofNullable(lastEventId).or(() -> Optional.ofNullable(since)).orElseGet(changeLog::getVersion), current::release);
+    } catch (RuntimeException e) {
+      current.release();
+      throw e;
+    }
+  }
+
+  @GetMapping({"/widgets/{id}", "/canvases/{canvas}/widgets/{id}"})
+  ResponseEntity<Widget<Long>> one(@PathVariable(required = false) String canvas, @PathVariable Long id,
+                                   WebRequest request) throws IOException {
+    return inCanvas(canvas, current -> {
+      var repo = current.getRepository();
+      var etag = etag(repo.getVersion(), "");
+      if (request.checkNotModified(etag)) {
+        return null;
+      }
+      return ResponseEntity.ok().eTag(etag).body(repo.getWidget(id));
+    });
+  }
+
+  @PostMapping({"/widgets", "/canvases/{canvas}/widgets"})
+  Widget<Long> createWidget(@PathVariable(required = false) String canvas, @RequestBody WidgetUpdateRequest request) throws IOException {
+    return inNewCanvas(canvas, current -> current.getRepository().createWidget(request));
+  }
+
+  @PutMapping({"/widgets/{id}", "/canvases/{canvas}/widgets/{id}"})
+  Widget<Long> updateWidget(@PathVariable(required = false) String canvas, @RequestBody WidgetUpdateRequest request,
+                            @PathVariable Long id) throws IOException {
+    return inCanvas(canvas, current -> current.getRepository().updateWidget(id, request));
+  }
+
+  @PostMapping({"/widgets/batch", "/canvases/{canvas}/widgets/batch"})
+  WidgetBatchResponse<Long> batch(@PathVariable(required = false) String canvas,
+                                  @RequestBody WidgetBatchRequest<Long> request) throws IOException {
+    return inNewCanvas(canvas, current -> current.getRepository().applyBatch(request));
+  }
+
+  @DeleteMapping({"/widgets/{id}", "/canvases/{canvas}/widgets/{id}"})
+  void delete(@PathVariable(required = false) String canvas, @PathVariable Long id) throws IOException {
+    inCanvas(canvas, current -> {
+      current.getRepository().deleteWidget(id);
+      return null;
+    });
+  }
+
+  /**
+   * @param representation tells apart the ETags of the representations of a resource
+   */
+  private static String etag(long version, String representation) {
+    return "\"" + version + representation + "\"";
+  }
+
+  private static void checkLimit(int limit) {
+    if (limit < 1 || limit > MAX_LIMIT) {
+      throw new WidgetLimitException(format("limit %s is out of bounds [1, %s]", limit, MAX_LIMIT));
+    }
+  }
+
+  /**
+   * Reads one more widget than the limit to learn whether there is a next page
+   */
+  private static WidgetCursorPageResponse<Long> readPageAfter(WidgetCanvas canvas, Integer afterZ, int limit) {
+    List<Widget<Long>> widgets = canvas.getRepository().listWidgetsAfter(afterZ, limit + 1);
+    if (widgets.size() <= limit) {
+      return new WidgetCursorPageResponse<>(widgets, null);
+    }
+    var page = widgets.subList(0, limit);
+    return new WidgetCursorPageResponse<>(page, page.get(limit - 1).getZ());
+  }
+
+  /**
+   * Runs the request with the canvas acquired, see {@link WidgetCanvases#acquireExisting(String)}
+   *
+   * @param canvas null for the default canvas
+   */
+  private <R> R inCanvas(String canvas, CanvasRequest<R> request) throws IOException {
+    return run(canvases.acquireExisting(canvas), request);
+  }
+
+  /**
+   * Runs the request with the canvas acquired, created if it is not there, see {@link WidgetCanvases#acquire(String)}
+   *
+   * @param canvas null for the default canvas
+   */
+  private <R> R inNewCanvas(String canvas, CanvasRequest<R> request) throws IOException {
+    return run(canvases.acquire(canvas), request);
+  }
+
+  private static <R> R run(WidgetCanvas canvas, CanvasRequest<R> request) throws IOException {
+    try {
+      return request.run(canvas);
+    } finally {
+      canvas.release();
+    }
+  }
+
+  /**
+   * The response read and serialized at the repository version, cached until a newer version is committed.
+   * It is put into the cache only if no write has been committed while it was being read,
+   * so the cached response is surely of this version
+   *
+   * @param key tells apart the responses of a version
+   */
+  private static byte[] serialized(WidgetCanvas canvas, long version, String key, Serializer read) throws IOException {
+    var cache = canvas.getResponses();
+    var response = cache.get(version, key);
+    if (response == null) {
+      response = read.serialize();
+      if (canvas.getRepository().getVersion() == version) {
+        cache.put(version, key, response);
+      }
+    }
+    return response;
+  }
+
+  private static ResponseEntity<byte[]> response(MediaType contentType, String etag, byte[] response) {
+    var builder = ResponseEntity.ok().contentType(contentType);
+    if (etag != null) {
+      builder.eTag(etag);
+    }
+    return builder.body(response);
+  }
+
+  @FunctionalInterface
+  private interface Serializer {
+    byte[] serialize() throws IOException;
+  }
+
+  @FunctionalInterface
+  private interface CanvasRequest<R> {
+    R run(WidgetCanvas canvas) throws IOException;
+  }
 }
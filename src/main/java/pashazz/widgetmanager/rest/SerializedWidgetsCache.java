@@ -0,0 +1,67 @@
+package pashazz.widgetmanager.rest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Serialized responses of the reads of a single repository version, least recently used first.
+ * <p>
+ * An entry is served only for the version it was serialized from: as soon as a newer version is seen,
+ * the entries of the older one are dropped. The total size of the entries is at most maxBytes,
+ * the least recently used ones are evicted to stay within it.
+ * <p>
+ * This class is thread safe.
+ */
+@Slf4j
+public class SerializedWidgetsCache {
+
+  private final long maxBytes;
+
+  private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long version = -1;
+
+  private long bytes;
+
+  public SerializedWidgetsCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return the response cached for the key at this version, or null
+   */
+  public synchronized byte[] get(long version, @NotNull String key) {
+    if (version != this.version) {
+      return null;
+    }
+    return entries.get(key);
+  }
+
+  /**
+   * Caches the response unless it is bigger than the cache, or is of an older version than the cached ones
+   */
+  public synchronized void put(long version, @NotNull String key, byte @NotNull [] response) {
+    if (version < this.version || response.length > maxBytes) {
+      return;
+    }
+    if (version > this.version) {
+      log.trace("version {} is committed, dropping {} responses of version {}", version, entries.size(), this.version);
+      entries.clear();
+      bytes = 0;
+      this.version = version;
+    }
+    var replaced = entries.put(key, response);
+    bytes += response.length - (replaced == null ? 0 : replaced.length);
+    var iterator = entries.values().iterator();
+    while (bytes > maxBytes) {
+      bytes -= iterator.next().length;
+      iterator.remove();
+    }
+  }
+
+  public synchronized long size() {
+    return bytes;
+  }
+}
@@ -0,0 +1,149 @@
+package pashazz.widgetmanager.rest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import pashazz.widgetmanager.exception.WidgetChangesExpiredException;
+import pashazz.widgetmanager.repository.changes.WidgetChange;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes the changes of a {@link WidgetChangeLog} to its subscribers as server-sent events:
+ * an event "changes" per version, with the version as its id and the JSON array of its changes as data.
+ * <p>
+ * Writers only schedule a subscription when they append; its own thread reads the changes from the log and sends them,
+ * so a slow subscriber does not hold up the writes. One that falls behind the retained changes is sent a "resync" event,
+ * and the stream is completed: the subscriber has to read all the widgets again
+ */
+@Component
+@Slf4j
+public class WidgetChangeStream implements DisposableBean {
+
+  private static final long TIMEOUT = Duration.ofMinutes(10).toMillis();
+
+  private final ExecutorService executor;
+
+  public WidgetChangeStream() {
+    var threads = new AtomicInteger();
+    this.executor = Executors.newCachedThreadPool(runnable -> {
+      var thread = new Thread(runnable, "widget-changes-" + threads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @param since the version the subscriber has, the changes after it are sent right away
+   * @param onEnd called once, when the stream ends
+   */
+  public @NotNull SseEmitter subscribe(@NotNull WidgetChangeLog<Long> changeLog, long since, @NotNull Runnable onEnd) {
+    var emitter = new SseEmitter(TIMEOUT);
+    var subscription = new Subscription(changeLog, emitter, since);
+    Runnable listener = subscription::schedule;
+    changeLog.addListener(listener);
+    var ended = new AtomicBoolean();
+    Runnable unsubscribe = () -> {
+      if (ended.compareAndSet(false, true)) {
+        changeLog.removeListener(listener);
+        onEnd.run();
+      }
+    };
+    emitter.onCompletion(unsubscribe);
+    emitter.onTimeout(unsubscribe);
+    emitter.onError(e -> unsubscribe.run());
+    try {
+      // otherwise, the response headers are not sent until there is a change
+      emitter.send(SseEmitter.event().comment("changes after version " + since));
+    } catch (IOException e) {
+      unsubscribe.run();
+      emitter.completeWithError(e);
+      return emitter;
+    }
+    subscription.schedule();
+    return emitter;
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+
+  private class Subscription implements Runnable {
+    private final WidgetChangeLog<Long> changeLog;
+    private final SseEmitter emitter;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /**
+     * The last version sent
+     */
+    private long version;
+
+    Subscription(WidgetChangeLog<Long> changeLog, SseEmitter emitter, long version) {
+      this.changeLog = changeLog;
+      this.emitter = emitter;
+      this.version = version;
+    }
+
+    void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        executor.execute(this);
+      }
+    }
+
+    /**
+     * Synchronized: the subscription may be scheduled again while it is sending
+     */
+    @Override
+    public synchronized void run() {
+      scheduled.set(false);
+      try {
+        var response = changeLog.since(version);
+        var changes = new ArrayList<WidgetChange<Long>>();
+        for (var change : response.getChanges()) {
+          if (!changes.isEmpty() && changes.get(0).getVersion() != change.getVersion()) {
+            send(changes);
+            changes = new ArrayList<>();
+          }
+          changes.add(change);
+        }
+        if (!changes.isEmpty()) {
+          send(changes);
+        }
+        version = response.getVersion();
+      } catch (WidgetChangesExpiredException e) {
+        log.debug("subscriber of version {} has fallen behind: {}", version, e.getMessage());
+        try {
+          emitter.send(SseEmitter.event().name("resync").data(e.getMessage(), MediaType.TEXT_PLAIN));
+          emitter.complete();
+        } catch (IOException sendFailure) {
+          emitter.completeWithError(sendFailure);
+        }
+      } catch (IOException e) {
+        // the subscriber is gone
+        emitter.completeWithError(e);
+      } catch (IllegalStateException e) {
+        log.trace("the stream of version {} is already completed", version);
+      }
+    }
+
+    /**
+     * @param changes the changes of a version
+     */
+    private void send(List<WidgetChange<Long>> changes) throws IOException {
+      long changesVersion = changes.get(0).getVersion();
+      emitter.send(SseEmitter.event().id(Long.toString(changesVersion)).name("changes").data(changes, MediaType.APPLICATION_JSON));
+      version = changesVersion;
+    }
+  }
+}
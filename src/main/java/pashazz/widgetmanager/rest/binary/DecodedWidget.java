@@ -0,0 +1,20 @@
+package pashazz.widgetmanager.rest.binary;
+
+import lombok.Value;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+
+import java.time.LocalDateTime;
+
+/**
+ * A widget read by {@link WidgetBinaryFormat}
+ */
+@Value
+public class DecodedWidget implements Widget<Long> {
+  Long id;
+  int x;
+  int y;
+  int z;
+  int width;
+  int height;
+  LocalDateTime lastUpdatedAt;
+}
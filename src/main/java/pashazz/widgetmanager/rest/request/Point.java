@@ -0,0 +1,14 @@
+package pashazz.widgetmanager.rest.request;
+
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+/**
+ * A point of the canvas, for hit testing
+ */
+@Value
+@AllArgsConstructor
+public class Point {
+  int x;
+  int y;
+}
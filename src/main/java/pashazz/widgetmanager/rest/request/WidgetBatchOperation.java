@@ -0,0 +1,27 @@
+package pashazz.widgetmanager.rest.request;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * A single write of {@link WidgetBatchRequest}
+ * 1. CREATE - widget is the creation request, id is ignored
+ * 2. UPDATE - widget is the update request for the widget with this id
+ * 3. DELETE - deletes the widget with this id, widget is ignored
+ */
+@Value
+@AllArgsConstructor
+@Builder
+public class WidgetBatchOperation<T> {
+
+  public enum Type {
+    CREATE,
+    UPDATE,
+    DELETE
+  }
+
+  private Type type;
+  private T id;
+  private WidgetUpdateRequest widget;
+}
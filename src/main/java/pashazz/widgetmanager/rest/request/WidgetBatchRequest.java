@@ -0,0 +1,22 @@
+package pashazz.widgetmanager.rest.request;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * A batch of writes, applied in order and atomically: either all of them succeed or none.
+ * ids are the widgets to get once the writes are applied
+ */
+@Value
+@Builder
+public class WidgetBatchRequest<T> {
+  private List<WidgetBatchOperation<T>> operations;
+  private List<T> ids;
+
+  public WidgetBatchRequest(List<WidgetBatchOperation<T>> operations, List<T> ids) {
+    this.operations = operations == null ? List.of() : operations;
+    this.ids = ids == null ? List.of() : ids;
+  }
+}
@@ -0,0 +1,19 @@
+package pashazz.widgetmanager.rest.response;
+
+import lombok.Value;
+
+/**
+ * The read cache of the db storage
+ * size - the widgets held, a list counting as many as it has
+ * maxSize - the widgets it may hold
+ * hits, misses - the reads served from the cache and from the database
+ * evictions - the entries evicted to stay within maxSize
+ */
+@Value
+public class CacheStatusResponse {
+  long size;
+  long maxSize;
+  long hits;
+  long misses;
+  long evictions;
+}
@@ -0,0 +1,22 @@
+package pashazz.widgetmanager.rest.response;
+
+import lombok.Value;
+
+/**
+ * How far the database of the hybrid storage is behind its memory
+ * version - the last version of memory
+ * replicatedVersion - the last version written to the database
+ * lag - the versions between
+ * lagMillis - how long the oldest change not written to the database has waited
+ * queueDepth - the writes and shifts to be written, coalesced per widget
+ * failures - the failed attempts to write to the database
+ */
+@Value
+public class ReplicationStatusResponse {
+  long version;
+  long replicatedVersion;
+  long lag;
+  long lagMillis;
+  int queueDepth;
+  long failures;
+}
@@ -0,0 +1,19 @@
+package pashazz.widgetmanager.rest.response;
+
+import lombok.NonNull;
+import lombok.Value;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+
+import java.util.List;
+
+/**
+ * The result of {@link pashazz.widgetmanager.rest.request.WidgetBatchRequest}
+ * results - a widget per operation, in the same order: the created or updated widget, or null for a deletion.
+ * Widgets are in their state after the whole batch, as a later operation may shift them
+ * widgets - a widget per requested id, in the same order, or null if there is no widget with this id
+ */
+@Value
+public class WidgetBatchResponse<T> {
+  @NonNull List<Widget<T>> results;
+  @NonNull List<Widget<T>> widgets;
+}
@@ -0,0 +1,18 @@
+package pashazz.widgetmanager.rest.response;
+
+import lombok.NonNull;
+import lombok.Value;
+import pashazz.widgetmanager.repository.changes.WidgetChange;
+
+import java.util.List;
+
+/**
+ * The changes since a version
+ * version - the version the changes bring the client to, the since of the next request
+ * changes - in the order they are to be applied
+ */
+@Value
+public class WidgetChangesResponse<T> {
+  long version;
+  @NonNull List<WidgetChange<T>> changes;
+}
@@ -0,0 +1,18 @@
+package pashazz.widgetmanager.rest.response;
+
+import lombok.NonNull;
+import lombok.Value;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+
+import java.util.List;
+
+/**
+ * A page of widgets sorted by z-order, requested by a cursor
+ * widgets - at most limit widgets after the cursor
+ * nextAfterZ - the cursor of the next page, or null if this page is the last one
+ */
+@Value
+public class WidgetCursorPageResponse<T> {
+  @NonNull List<Widget<T>> widgets;
+  Integer nextAfterZ;
+}
@@ -0,0 +1,115 @@
+package pashazz.widgetmanager.collection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LongHashTrieTest {
+
+  private static final long NONE = Long.MIN_VALUE;
+
+  @Test
+  void shouldBehaveLikeHashMap() {
+    var random = new Random(42);
+    var trie = new LongHashTrie();
+    var expected = new HashMap<Long, Long>();
+
+    for (int i = 0; i < 100_000; ++i) {
+      // small keys collide in the low bits of ids, big ones cover the whole range
+      long key = random.nextBoolean() ? random.nextInt(20_000) : random.nextLong();
+      if (random.nextInt(3) == 0) {
+        trie.remove(key);
+        expected.remove(key);
+      } else {
+        trie.put(key, i);
+        expected.put(key, (long) i);
+      }
+    }
+
+    assertEquals(expected.size(), trie.size());
+    for (var entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), trie.get(entry.getKey(), NONE));
+    }
+    for (long key = 0; key < 20_000; ++key) {
+      assertEquals(expected.getOrDefault(key, NONE), trie.get(key, NONE));
+    }
+  }
+
+  @Test
+  void shouldKeepSnapshotsUnchangedWhenTrieIsModified() {
+    var trie = new LongHashTrie();
+    var snapshots = new ArrayList<LongHashTrie>();
+    var expected = new ArrayList<Map<Long, Long>>();
+    var current = new HashMap<Long, Long>();
+    for (long i = 0; i < 2000; ++i) {
+      trie.put(i, i);
+      current.put(i, i);
+      if (i % 3 == 0) {
+        trie.remove(i / 2);
+        current.remove(i / 2);
+      }
+      if (i % 5 == 0) {
+        trie.put(i / 3, -i);
+        current.put(i / 3, -i);
+      }
+      snapshots.add(trie.snapshot());
+      expected.add(new HashMap<>(current));
+    }
+
+    for (int i = 0; i < snapshots.size(); i += 7) {
+      var snapshot = snapshots.get(i);
+      assertEquals(expected.get(i).size(), snapshot.size());
+      for (long key = 0; key < 2000; ++key) {
+        assertEquals(expected.get(i).getOrDefault(key, NONE), snapshot.get(key, NONE));
+      }
+    }
+    assertThrows(UnsupportedOperationException.class, () -> snapshots.get(0).put(1, 1));
+  }
+
+  @Test
+  void shouldBuildTrieThatBehavesLikePutOne() {
+    var random = new Random(7);
+    int size = 50_000;
+    var keys = new long[size + 10];
+    var values = new long[size + 10];
+    var put = new LongHashTrie();
+    for (int i = 0; i < size; ++i) {
+      // ids step by 2, some keys cover the whole range
+      keys[i] = i % 10 == 0 ? random.nextLong() : 2L * i;
+      values[i] = i;
+      put.put(keys[i], i);
+    }
+    var trie = LongHashTrie.of(keys, values, size);
+
+    assertEquals(put.size(), trie.size());
+    for (int i = 0; i < size; ++i) {
+      assertEquals(i, trie.get(keys[i], NONE));
+      assertEquals(put.get(2L * i + 1, NONE), trie.get(2L * i + 1, NONE));
+    }
+    trie.put(1, 1);
+    trie.remove(keys[0]);
+    assertEquals(1, trie.get(1, NONE));
+    assertEquals(NONE, trie.get(keys[0], NONE));
+    assertEquals(0, LongHashTrie.of(keys, values, 0).size());
+    assertThrows(IllegalArgumentException.class, () -> LongHashTrie.of(new long[]{3, 3}, new long[]{1, 2}, 2));
+  }
+
+  @Test
+  void shouldShrinkBackWhenKeysAreRemoved() {
+    var trie = new LongHashTrie();
+    var keys = List.of(1L, 2L, Long.MAX_VALUE, Long.MIN_VALUE, 0L, -1L);
+    keys.forEach(key -> trie.put(key, key));
+    keys.forEach(trie::remove);
+    assertEquals(0, trie.size());
+    keys.forEach(key -> assertEquals(NONE, trie.get(key, NONE)));
+    trie.put(2, 3);
+    assertEquals(3, trie.get(2, NONE));
+  }
+}
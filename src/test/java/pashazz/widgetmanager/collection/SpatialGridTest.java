@@ -0,0 +1,191 @@
+package pashazz.widgetmanager.collection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SpatialGridTest {
+
+  private static final int CELL_SIZE = 100;
+
+  @Test
+  void shouldFindTheSameRectanglesAsFullScan() {
+    var random = new Random(42);
+    var grid = new SpatialGrid(CELL_SIZE);
+    var rectangles = new HashMap<Long, int[]>();
+
+    for (long key = 0; key < 20_000; ++key) {
+      if (!rectangles.isEmpty() && random.nextInt(3) == 0) {
+        long removed = random.nextInt((int) key);
+        var rectangle = rectangles.remove(removed);
+        if (rectangle != null) {
+          grid.remove(removed, rectangle[0], rectangle[1], rectangle[2], rectangle[3]);
+        }
+      }
+      // some rectangles are too large for the cells
+      int size = random.nextInt(20) == 0 ? 3000 : 150;
+      var rectangle = new int[]{random.nextInt(20_000) - 10_000, random.nextInt(20_000) - 10_000,
+        random.nextInt(size), random.nextInt(size)};
+      grid.add(key, rectangle[0], rectangle[1], rectangle[2], rectangle[3]);
+      rectangles.put(key, rectangle);
+    }
+
+    for (int i = 0; i < 500; ++i) {
+      int minX = random.nextInt(24_000) - 12_000;
+      int minY = random.nextInt(24_000) - 12_000;
+      // small and large queries, the latter read all cells instead
+      int size = i % 10 == 0 ? 50_000 : 1000;
+      int maxX = minX + random.nextInt(size);
+      int maxY = minY + random.nextInt(size);
+      assertEquals(scan(rectangles, minX, minY, maxX, maxY), query(grid, minX, minY, maxX, maxY));
+      var containing = new HashSet<Long>();
+      grid.forEachContaining(minX, minY, key -> assertThat(containing.add(key)).isTrue());
+      assertEquals(scan(rectangles, minX, minY, minX, minY), containing);
+    }
+  }
+
+  @Test
+  void shouldBuildGridThatBehavesLikeAddedOne() {
+    var random = new Random(7);
+    int size = 5000;
+    var keys = new long[size];
+    var bounds = new int[4 * size];
+    var rectangles = new HashMap<Long, int[]>();
+    var added = new SpatialGrid(CELL_SIZE);
+    for (int i = 0; i < size; ++i) {
+      // some rectangles are too large for the cells
+      int extent = random.nextInt(20) == 0 ? 3000 : 150;
+      var rectangle = new int[]{random.nextInt(10_000) - 5000, random.nextInt(10_000) - 5000,
+        random.nextInt(extent), random.nextInt(extent)};
+      keys[i] = 2L * i;
+      System.arraycopy(rectangle, 0, bounds, 4 * i, 4);
+      rectangles.put(keys[i], rectangle);
+      added.add(keys[i], rectangle[0], rectangle[1], rectangle[2], rectangle[3]);
+    }
+    var grid = SpatialGrid.of(CELL_SIZE, keys, bounds, size);
+
+    assertEquals(added.cellCount(), grid.cellCount());
+    for (int i = 0; i < 300; ++i) {
+      int minX = random.nextInt(12_000) - 6000;
+      int minY = random.nextInt(12_000) - 6000;
+      int maxX = minX + random.nextInt(i % 10 == 0 ? 30_000 : 1000);
+      int maxY = minY + random.nextInt(i % 10 == 0 ? 30_000 : 1000);
+      assertEquals(scan(rectangles, minX, minY, maxX, maxY), query(grid, minX, minY, maxX, maxY));
+    }
+    var rectangle = rectangles.get(0L);
+    grid.remove(0, rectangle[0], rectangle[1], rectangle[2], rectangle[3]);
+    grid.add(1, 0, 0, 10, 10);
+    assertThat(query(grid, rectangle[0], rectangle[1], rectangle[0], rectangle[1])).doesNotContain(0L);
+    assertThat(query(grid, 5, 5, 5, 5)).contains(1L);
+    assertEquals(0, SpatialGrid.of(CELL_SIZE, keys, bounds, 0).cellCount());
+  }
+
+  @Test
+  void shouldKeepCrowdedCellConsistentWithFullScan() {
+    var random = new Random(11);
+    var grid = new SpatialGrid(CELL_SIZE);
+    var rectangles = new HashMap<Long, int[]>();
+    // most of the rectangles are stacked at the same position, like widgets created without one
+    for (long key = 0; key < 5000; ++key) {
+      var rectangle = random.nextInt(4) == 0
+        ? new int[]{random.nextInt(CELL_SIZE), random.nextInt(CELL_SIZE), random.nextInt(10), random.nextInt(10)}
+        : new int[]{10, 10, 20, 20};
+      grid.add(key, rectangle[0], rectangle[1], rectangle[2], rectangle[3]);
+      rectangles.put(key, rectangle);
+    }
+    var snapshot = grid.snapshot();
+    var snapshotRectangles = new HashMap<>(rectangles);
+    for (long key = 0; key < 5000; key += 1 + random.nextInt(3)) {
+      var rectangle = rectangles.remove(key);
+      grid.remove(key, rectangle[0], rectangle[1], rectangle[2], rectangle[3]);
+    }
+
+    for (int i = 0; i < 200; ++i) {
+      int minX = random.nextInt(CELL_SIZE);
+      int minY = random.nextInt(CELL_SIZE);
+      int maxX = minX + random.nextInt(30);
+      int maxY = minY + random.nextInt(30);
+      assertEquals(scan(rectangles, minX, minY, maxX, maxY), query(grid, minX, minY, maxX, maxY));
+      assertEquals(scan(snapshotRectangles, minX, minY, maxX, maxY), query(snapshot, minX, minY, maxX, maxY));
+      var containing = new HashSet<Long>();
+      grid.forEachContaining(minX, minY, key -> assertThat(containing.add(key)).isTrue());
+      assertEquals(scan(rectangles, minX, minY, minX, minY), containing);
+    }
+    rectangles.forEach((key, rectangle) -> grid.remove(key, rectangle[0], rectangle[1], rectangle[2], rectangle[3]));
+    assertEquals(0, grid.cellCount());
+  }
+
+  @Test
+  void shouldReportRectangleOnceAndIncludeEdges() {
+    var grid = new SpatialGrid(CELL_SIZE);
+    // spans 4 x 4 cells
+    grid.add(1, 50, 50, 300, 300);
+
+    var found = new ArrayList<Long>();
+    grid.forEachIntersecting(0, 0, 1000, 1000, found::add);
+    assertThat(found).containsExactly(1L);
+    assertThat(query(grid, 350, 350, 400, 400)).containsExactly(1L);
+    assertThat(query(grid, 0, 0, 50, 50)).containsExactly(1L);
+    assertThat(query(grid, 351, 0, 400, 400)).isEmpty();
+    assertThat(query(grid, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE)).containsExactly(1L);
+    assertThat(query(grid, 100, 100, 90, 90)).isEmpty();
+
+    grid.remove(1, 50, 50, 300, 300);
+    assertThat(query(grid, 0, 0, 1000, 1000)).isEmpty();
+    assertEquals(0, grid.cellCount());
+  }
+
+  @Test
+  void shouldKeepSnapshotsUnchangedWhenGridIsModified() {
+    var grid = new SpatialGrid(CELL_SIZE);
+    var snapshots = new ArrayList<SpatialGrid>();
+    var expected = new ArrayList<Set<Long>>();
+    var current = new HashSet<Long>();
+    for (long key = 0; key < 1000; ++key) {
+      grid.add(key, (int) key * 10, 0, 50, 50);
+      current.add(key);
+      if (key % 3 == 0) {
+        grid.remove(key / 2, (int) (key / 2) * 10, 0, 50, 50);
+        current.remove(key / 2);
+      }
+      snapshots.add(grid.snapshot());
+      expected.add(new HashSet<>(current));
+    }
+
+    for (int i = 0; i < snapshots.size(); i += 7) {
+      assertEquals(expected.get(i), query(snapshots.get(i), 0, 0, 100_000, 100));
+    }
+    assertThrows(UnsupportedOperationException.class, () -> snapshots.get(0).add(5000, 0, 0, 1, 1));
+
+    var copy = snapshots.get(1).mutableCopy();
+    copy.add(5000, 0, 0, 10, 10);
+    assertThat(query(copy, 0, 0, 10, 10)).containsExactlyInAnyOrder(1L, 5000L);
+    assertThat(query(snapshots.get(1), 0, 0, 10, 10)).containsExactly(1L);
+  }
+
+  private static Set<Long> query(SpatialGrid grid, int minX, int minY, int maxX, int maxY) {
+    var found = new HashSet<Long>();
+    grid.forEachIntersecting(minX, minY, maxX, maxY, key -> assertThat(found.add(key)).isTrue());
+    return found;
+  }
+
+  private static Set<Long> scan(Map<Long, int[]> rectangles, int minX, int minY, int maxX, int maxY) {
+    var found = new HashSet<Long>();
+    rectangles.forEach((key, r) -> {
+      if (r[0] <= maxX && (long) r[0] + r[2] >= minX && r[1] <= maxY && (long) r[1] + r[3] >= minY) {
+        found.add(key);
+      }
+    });
+    return found;
+  }
+}
@@ -0,0 +1,261 @@
+package pashazz.widgetmanager.collection;
+
+import org.junit.jupiter.api.Test;
+import pashazz.widgetmanager.entity.interfaces.ZOrderable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ZOrderTreeTest {
+
+  @Test
+  void shouldBehaveLikeSortedArrayList() {
+    var random = new Random(42);
+    var tree = newTree();
+    var expected = new ArrayList<ZOrderable>();
+
+    for (int i = 0; i < 20_000; ++i) {
+      int z = random.nextInt(5000);
+      int index = tree.indexOfZOrder(z);
+      assertEquals(Collections.binarySearch(expected, zOrder(z)), index);
+      if (index >= 0 && random.nextBoolean()) {
+        assertThat(tree.remove(index).getZ()).isEqualTo(expected.remove(index).getZ());
+      } else if (index >= 0) {
+        tree.set(index, zOrder(z));
+        expected.set(index, zOrder(z));
+      } else {
+        tree.add(-index - 1, zOrder(z));
+        expected.add(-index - 1, zOrder(z));
+      }
+    }
+
+    assertThat(zOrders(tree)).containsExactlyElementsOf(zOrders(expected));
+    for (int i = 0; i < expected.size(); i += 97) {
+      assertEquals(expected.get(i).getZ(), tree.get(i).getZ());
+    }
+  }
+
+  @Test
+  void shouldKeepSnapshotsUnchangedWhenTreeIsModified() {
+    var tree = newTree();
+    var snapshots = new ArrayList<ZOrderTree<ZOrderable>>();
+    var expected = new ArrayList<List<Integer>>();
+    for (int i = 0; i < 1000; ++i) {
+      tree.add(tree.size() / 2, zOrder(i));
+      if (i % 3 == 0) {
+        tree.remove(tree.size() / 3);
+      }
+      if (i % 5 == 0 && !tree.isEmpty()) {
+        tree.set(0, zOrder(-i));
+      }
+      snapshots.add(tree.snapshot());
+      expected.add(zOrders(tree));
+    }
+
+    for (int i = 0; i < snapshots.size(); ++i) {
+      assertThat(zOrders(snapshots.get(i))).containsExactlyElementsOf(expected.get(i));
+    }
+    assertThat(zOrders(snapshots.get(999).range(10, 20))).containsExactlyElementsOf(expected.get(999).subList(10, 20));
+    assertThrows(UnsupportedOperationException.class, () -> snapshots.get(0).add(0, zOrder(1)));
+  }
+
+  @Test
+  void shouldThrowIfIndexIsOutOfBounds() {
+    var tree = newTree();
+    tree.add(0, zOrder(1));
+    assertThrows(IndexOutOfBoundsException.class, () -> tree.get(1));
+    assertThrows(IndexOutOfBoundsException.class, () -> tree.add(2, zOrder(3)));
+    assertThrows(IndexOutOfBoundsException.class, () -> tree.remove(-1));
+    assertThrows(IndexOutOfBoundsException.class, () -> tree.range(2, 2));
+  }
+
+  @Test
+  void shouldShiftRunsLikeSortedArrayList() {
+    var random = new Random(7);
+    var labels = new HashMap<ZOrderable, Long>();
+    var tree = new ZOrderTree<ZOrderable>(ZOrderTreeTest::relocate, labels::put);
+    var expected = new ArrayList<ZOrderable>();
+
+    for (int i = 0; i < 20_000; ++i) {
+      int z = random.nextInt(2000);
+      int index = tree.indexOfZOrder(z);
+      assertEquals(Collections.binarySearch(expected, zOrder(z)), index);
+      if (index >= 0 && random.nextInt(4) == 0) {
+        labels.remove(tree.get(index));
+        tree.remove(index);
+        expected.remove(index);
+        continue;
+      }
+      if (index >= 0) {
+        int runEnd = tree.runEnd(index);
+        assertEquals(expectedRunEnd(expected, index), runEnd);
+        tree.shift(index, runEnd, 1);
+        for (int j = index; j < runEnd; ++j) {
+          expected.set(j, zOrder(expected.get(j).getZ() + 1));
+        }
+      } else {
+        index = -index - 1;
+      }
+      var element = new Element(z);
+      labels.put(element, tree.insert(index, element));
+      expected.add(index, element);
+    }
+
+    assertThat(zOrders(tree)).containsExactlyElementsOf(zOrders(expected));
+    // labels follow the elements through shifts and relabeling
+    for (int i = 0; i < expected.size(); ++i) {
+      var element = tree.get(i);
+      assertEquals(i, tree.indexOfLabel(labels.get(element)));
+      assertEquals(expected.get(i).getZ(), element.getZ());
+    }
+  }
+
+  @Test
+  void shouldRelabelWhenInsertingIntoTheSamePositionRepeatedly() {
+    var labels = new HashMap<ZOrderable, Long>();
+    var tree = new ZOrderTree<ZOrderable>(ZOrderTreeTest::relocate, labels::put);
+    for (int i = 0; i < 10_000; ++i) {
+      if (!tree.isEmpty()) {
+        tree.shift(0, tree.runEnd(0), 1);
+      }
+      var element = new Element(0);
+      labels.put(element, tree.insert(0, element));
+    }
+    for (int i = 0; i < tree.size(); ++i) {
+      assertEquals(i, tree.get(i).getZ());
+      assertEquals(i, tree.indexOfLabel(labels.get(tree.get(i))));
+    }
+  }
+
+  @Test
+  void shouldKeepSnapshotsUnchangedWhenRangeIsShifted() {
+    var tree = newTree();
+    for (int i = 0; i < 100; ++i) {
+      tree.add(i, zOrder(i));
+    }
+    var snapshot = tree.snapshot();
+    tree.shift(10, 100, 1);
+    var shifted = tree.snapshot();
+    tree.add(10, zOrder(10));
+
+    assertThat(zOrders(snapshot)).containsExactlyElementsOf(rangeOf(0, 100));
+    assertThat(zOrders(shifted.range(9, 12))).containsExactly(9, 11, 12);
+    assertThat(shifted.runEnd(0)).isEqualTo(10);
+    assertThat(zOrders(tree)).containsExactlyElementsOf(rangeOf(0, 101));
+    assertThat(tree.runEnd(0)).isEqualTo(101);
+  }
+
+  @Test
+  void shouldBuildTreeThatBehavesLikeInsertedOne() {
+    var labels = new HashMap<ZOrderable, Long>();
+    var builder = new ZOrderTree.Builder<ZOrderable>(ZOrderTreeTest::relocate, labels::put);
+    var expected = new ArrayList<ZOrderable>();
+    for (int i = 0; i < 10_000; ++i) {
+      // runs of consecutive z-orders and gaps
+      var element = new Element(i + i / 7);
+      labels.put(element, builder.append(element));
+      expected.add(element);
+    }
+    assertThrows(IllegalArgumentException.class, () -> builder.append(zOrder(0)));
+    var tree = builder.build();
+
+    assertThat(zOrders(tree)).containsExactlyElementsOf(zOrders(expected));
+    for (int i = 0; i < expected.size(); i += 13) {
+      assertEquals(expected.get(i).getZ(), tree.get(i).getZ());
+      assertEquals(i, tree.indexOfZOrder(expected.get(i).getZ()));
+      assertEquals(i, tree.indexOfLabel(labels.get(expected.get(i))));
+    }
+    var snapshot = tree.snapshot();
+    int index = tree.indexOfZOrder(8);
+    int runEnd = tree.runEnd(index);
+    assertEquals(7, runEnd - index);
+    tree.shift(index, runEnd, 1);
+    var element = new Element(8);
+    labels.put(element, tree.insert(index, element));
+    assertThat(zOrders(tree.range(index - 1, runEnd + 2))).containsExactly(6, 8, 9, 10, 11, 12, 13, 14, 15, 16);
+    assertThat(zOrders(snapshot)).containsExactlyElementsOf(zOrders(expected));
+    for (int i = 0; i < tree.size(); i += 13) {
+      assertEquals(i, tree.indexOfLabel(labels.get(tree.get(i))));
+    }
+  }
+
+  private static int expectedRunEnd(List<ZOrderable> list, int index) {
+    int end = index + 1;
+    while (end < list.size() && list.get(end).getZ() == list.get(end - 1).getZ() + 1) {
+      ++end;
+    }
+    return end;
+  }
+
+  private static List<Integer> rangeOf(int from, int to) {
+    var result = new ArrayList<Integer>();
+    for (int i = from; i < to; ++i) {
+      result.add(i);
+    }
+    return result;
+  }
+
+  private static ZOrderTree<ZOrderable> newTree() {
+    return new ZOrderTree<>(ZOrderTreeTest::relocate, (element, label) -> {
+    });
+  }
+
+  /**
+   * Relocated copies keep the identity of the original element, like widgets keep their ids
+   */
+  private static ZOrderable relocate(ZOrderable element, int z) {
+    return element instanceof Element ? ((Element) element).moveTo(z) : zOrder(z);
+  }
+
+  private static class Element implements ZOrderable {
+    private final Element original;
+    private final int z;
+
+    Element(int z) {
+      this.original = this;
+      this.z = z;
+    }
+
+    private Element(Element original, int z) {
+      this.original = original;
+      this.z = z;
+    }
+
+    Element moveTo(int z) {
+      return new Element(original, z);
+    }
+
+    @Override
+    public int getZ() {
+      return z;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Element && ((Element) o).original == original;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(original);
+    }
+  }
+
+  private static ZOrderable zOrder(int z) {
+    //This lambda implements ZOrderable like Widget<T>
+    return () -> z;
+  }
+
+  private static List<Integer> zOrders(List<ZOrderable> list) {
+    var result = new ArrayList<Integer>();
+    list.forEach(element -> result.add(element.getZ()));
+    return result;
+  }
+}
@@ -1,15 +1,30 @@
 package pashazz.widgetmanager.repository.base;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import pashazz.widgetmanager.WidgetmanagerApplication;
+import pashazz.widgetmanager.rest.binary.WidgetBinaryFormat;
 import pashazz.widgetmanager.rest.entity.TestWidget;
 import pashazz.widgetmanager.utils.TestUtils;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
@@ -29,6 +44,9 @@ public abstract class AbstractRestApiTest {
   @Autowired
   private TestRestTemplate restTemplate;
 
+  @Autowired
+  private ObjectMapper objectMapper;
+
   @Test
   void shouldAddWidgetAndListItThenRemoveAndReturnEmptyList() {
     TestWidget widget1 = restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(1), TestWidget.class);
@@ -47,6 +65,190 @@ public abstract class AbstractRestApiTest {
 
   }
 
+  @Test
+  void shouldApplyBatch() {
+    Map<String, Object> batch = Map.of(
+      "operations", List.of(
+        Map.of("type", "CREATE", "widget", TestUtils.createStaticCreationQuery(7)),
+        Map.of("type", "CREATE", "widget", TestUtils.createStaticCreationQuery(7))),
+      "ids", List.of(-1));
+
+    Map<String, List<Map<String, Object>>> response = restTemplate.postForObject(getUrl("/widgets/batch"), batch, Map.class);
+
+    assertThat(response.get("results")).extracting(widget -> widget.get("z")).containsExactly(8, 7);
+    assertThat(response.get("widgets")).containsExactly((Map<String, Object>) null);
+    List<HashMap<String, Object>> allWidgets = restTemplate.getForObject("/widgets/all", List.class);
+    assertThat(allWidgets).extracting(widget -> widget.get("z")).containsExactly(7, 8);
+
+    response.get("results").forEach(widget -> restTemplate.delete(getUrl("/widgets/" + widget.get("id"))));
+  }
+
+  @Test
+  void shouldPageWithCursor() {
+    var widgets = List.of(
+      restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(-30), TestWidget.class),
+      restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(-20), TestWidget.class),
+      restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(-10), TestWidget.class));
+
+    Map<String, Object> first = restTemplate.getForObject(getUrl("/widgets?limit=2"), Map.class);
+    assertThat((List<Map<String, Object>>) first.get("widgets")).extracting(widget -> widget.get("z")).containsExactly(-30, -20);
+    assertThat(first.get("nextAfterZ")).isEqualTo(-20);
+
+    Map<String, Object> last = restTemplate.getForObject(getUrl("/widgets?afterZ=-20&limit=2"), Map.class);
+    assertThat((List<Map<String, Object>>) last.get("widgets")).extracting(widget -> widget.get("z")).containsExactly(-10);
+    assertThat(last.get("nextAfterZ")).isNull();
+
+    assertThat(restTemplate.getForEntity(getUrl("/widgets?limit=0"), Map.class).getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    assertThat(restTemplate.getForEntity(getUrl("/widgets?limit=-1"), Map.class).getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+    assertThat(restTemplate.getForEntity(getUrl("/widgets?limit=1001"), Map.class).getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+
+    widgets.forEach(widget -> restTemplate.delete(getUrl("/widgets/" + widget.getId())));
+  }
+
+  @Test
+  void shouldStreamAllWidgetsAsNdjson() throws JsonProcessingException {
+    var widgets = List.of(
+      restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(3), TestWidget.class),
+      restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(1), TestWidget.class));
+    var headers = new HttpHeaders();
+    headers.setAccept(List.of(MediaType.APPLICATION_NDJSON));
+
+    var response = restTemplate.exchange(getUrl("/widgets/all"), HttpMethod.GET, new HttpEntity<>(headers), String.class);
+
+    assertThat(response.getHeaders().getContentType()).isEqualTo(MediaType.APPLICATION_NDJSON);
+    var lines = response.getBody().split("\n");
+    assertThat(lines).hasSize(2);
+    assertWidget(objectMapper.readValue(lines[0], Map.class), widgets.get(1));
+    assertWidget(objectMapper.readValue(lines[1], Map.class), widgets.get(0));
+
+    widgets.forEach(widget -> restTemplate.delete(getUrl("/widgets/" + widget.getId())));
+  }
+
+  @Test
+  void shouldListWidgetsAsBinary() throws IOException {
+    var widgets = List.of(
+      restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(-50), TestWidget.class),
+      restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(-60), TestWidget.class));
+    var headers = new HttpHeaders();
+    headers.setAccept(List.of(WidgetBinaryFormat.MEDIA_TYPE));
+
+    var all = restTemplate.exchange(getUrl("/widgets/all"), HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+    assertThat(all.getHeaders().getContentType()).isEqualTo(WidgetBinaryFormat.MEDIA_TYPE);
+    var decoded = WidgetBinaryFormat.decode(new ByteArrayInputStream(all.getBody()));
+    assertThat(decoded).hasSize(2);
+    assertThat(decoded.get(0)).usingRecursiveComparison().isEqualTo(widgets.get(1));
+    assertThat(decoded.get(1)).usingRecursiveComparison().isEqualTo(widgets.get(0));
+
+    var first = restTemplate.exchange(getUrl("/widgets?limit=1"), HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+    var page = WidgetBinaryFormat.decodePage(new ByteArrayInputStream(first.getBody()));
+    assertThat(page.getWidgets()).extracting(widget -> widget.getZ()).containsExactly(-60);
+    assertThat(page.getNextAfterZ()).isEqualTo(-60);
+
+    widgets.forEach(widget -> restTemplate.delete(getUrl("/widgets/" + widget.getId())));
+  }
+
+  @Test
+  void shouldListWidgetsInViewport() throws IOException {
+    var widgets = List.of(
+      restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(90), TestWidget.class),
+      restTemplate.postForObject(getUrl("/widgets"), Map.of("x", 10_000, "y", 10_000, "width", 10, "height", 10, "z", 80), TestWidget.class));
+
+    List<Map<String, Object>> visible = restTemplate.getForObject(getUrl("/widgets?minX=0&minY=0&maxX=50&maxY=50"), List.class);
+    assertThat(visible).hasSize(1);
+    assertWidget(visible.get(0), widgets.get(0));
+
+    List<Map<String, Object>> both = restTemplate.getForObject(getUrl("/widgets?minX=0&minY=0&maxX=10000&maxY=10000"), List.class);
+    assertThat(both).extracting(widget -> widget.get("z")).containsExactly(80, 90);
+
+    var headers = new HttpHeaders();
+    headers.setAccept(List.of(WidgetBinaryFormat.MEDIA_TYPE));
+    var binary = restTemplate.exchange(getUrl("/widgets?minX=5000&minY=5000&maxX=20000&maxY=20000"), HttpMethod.GET,
+      new HttpEntity<>(headers), byte[].class);
+    assertThat(WidgetBinaryFormat.decode(new ByteArrayInputStream(binary.getBody())))
+      .usingRecursiveFieldByFieldElementComparator()
+      .containsExactly(widgets.get(1));
+
+    widgets.forEach(widget -> restTemplate.delete(getUrl("/widgets/" + widget.getId())));
+  }
+
+  @Test
+  void shouldFindTopmostWidgetAtPoint() {
+    var bottom = restTemplate.postForObject(getUrl("/widgets"), Map.of("x", 20_000, "y", 20_000, "width", 100, "height", 100, "z", 100), TestWidget.class);
+    var top = restTemplate.postForObject(getUrl("/widgets"), Map.of("x", 20_050, "y", 20_050, "width", 100, "height", 100, "z", 101), TestWidget.class);
+
+    assertWidget(restTemplate.getForObject(getUrl("/widgets/at?x=20060&y=20060"), Map.class), top);
+    assertWidget(restTemplate.getForObject(getUrl("/widgets/at?x=20010&y=20010"), Map.class), bottom);
+    assertThat(restTemplate.getForEntity(getUrl("/widgets/at?x=19999&y=20010"), Map.class).getStatusCode())
+      .isEqualTo(HttpStatus.NOT_FOUND);
+
+    List<Map<String, Object>> hits = restTemplate.postForObject(getUrl("/widgets/at"),
+      List.of(Map.of("x", 20_010, "y", 20_010), Map.of("x", 0, "y", -1), Map.of("x", 20_150, "y", 20_150)), List.class);
+    assertThat(hits).hasSize(3);
+    assertWidget(hits.get(0), bottom);
+    assertThat(hits.get(1)).isNull();
+    assertWidget(hits.get(2), top);
+
+    restTemplate.delete(getUrl("/widgets/" + bottom.getId()));
+    restTemplate.delete(getUrl("/widgets/" + top.getId()));
+  }
+
+  @Test
+  void shouldAnswerNotModifiedWhileVersionIsTheSame() {
+    var widget = restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(40), TestWidget.class);
+    var all = restTemplate.getForEntity(getUrl("/widgets/all"), List.class);
+    var one = restTemplate.getForEntity(getUrl("/widgets/" + widget.getId()), Map.class);
+    assertThat(all.getHeaders().getETag()).isNotNull();
+    assertThat(one.getHeaders().getETag()).isEqualTo(all.getHeaders().getETag());
+
+    var headers = new HttpHeaders();
+    headers.setIfNoneMatch(all.getHeaders().getETag());
+    var notModified = restTemplate.exchange(getUrl("/widgets/all"), HttpMethod.GET, new HttpEntity<>(headers), String.class);
+    assertThat(notModified.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+    assertThat(notModified.getBody()).isNull();
+    assertThat(restTemplate.exchange(getUrl("/widgets/" + widget.getId()), HttpMethod.GET, new HttpEntity<>(headers), String.class)
+      .getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+
+    restTemplate.put(getUrl("/widgets/" + widget.getId()), Map.of("x", 1));
+    var modified = restTemplate.exchange(getUrl("/widgets/all"), HttpMethod.GET, new HttpEntity<>(headers), String.class);
+    assertThat(modified.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(modified.getHeaders().getETag()).isNotEqualTo(all.getHeaders().getETag());
+
+    restTemplate.delete(getUrl("/widgets/" + widget.getId()));
+  }
+
+  @Test
+  void shouldServeChangesSinceVersion() throws IOException {
+    var widget = restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(70), TestWidget.class);
+    TestWidget created;
+    long version = Long.parseLong(restTemplate.getForEntity(getUrl("/widgets/all"), List.class).getHeaders().getETag().replace("\"", ""));
+
+    var connection = (HttpURLConnection) new URL(getUrl("/widgets/changes?since=" + version)).openConnection();
+    connection.setRequestProperty("Accept", MediaType.TEXT_EVENT_STREAM_VALUE);
+    connection.setReadTimeout(10_000);
+    try (var events = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+      created = restTemplate.postForObject(getUrl("/widgets"), TestUtils.createStaticCreationQuery(70), TestWidget.class);
+
+      Map<String, Object> changes = restTemplate.getForObject(getUrl("/widgets/changes?since=" + version), Map.class);
+      assertThat(((Number) changes.get("version")).longValue()).isGreaterThan(version);
+      assertThat((List<Map<String, Object>>) changes.get("changes")).extracting(change -> change.get("type"))
+        .containsExactly("SHIFTED", "CREATED");
+
+      String line;
+      do {
+        line = events.readLine();
+      } while (line != null && !line.startsWith("data:"));
+      assertThat(line).contains("\"SHIFTED\"", "\"CREATED\"");
+    } finally {
+      connection.disconnect();
+    }
+
+    var expired = restTemplate.getForEntity(getUrl("/widgets/changes?since=-1"), Map.class);
+    assertThat(expired.getStatusCode()).isEqualTo(HttpStatus.GONE);
+
+    restTemplate.delete(getUrl("/widgets/" + widget.getId()));
+    restTemplate.delete(getUrl("/widgets/" + created.getId()));
+  }
+
   private void assertWidget(Map<String, Object> m, TestWidget expected) {
     assertThat(m).containsKeys("id", "x", "y", "z", "width", "height", "lastUpdatedAt");
     assertThat(m.get("id")).isEqualTo(expected.getId().intValue());
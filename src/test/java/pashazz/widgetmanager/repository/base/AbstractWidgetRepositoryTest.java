@@ -11,12 +11,21 @@ import pashazz.widgetmanager.entity.interfaces.Widget;
 import pashazz.widgetmanager.exception.WidgetCreationException;
 import pashazz.widgetmanager.exception.WidgetNotFoundException;
 import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChange;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.rest.request.Point;
+import pashazz.widgetmanager.rest.request.WidgetBatchOperation;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
 import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+import pashazz.widgetmanager.rest.entity.TestWidget;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -32,6 +41,9 @@ public abstract class AbstractWidgetRepositoryTest {
   @Autowired
   private WidgetRepository<Long> repo;
 
+  @Autowired
+  private WidgetChangeLog<Long> changeLog;
+
 
   @Test
   void shouldReturnWidgetsInSortedOrderWhenCreated() {
@@ -106,6 +118,24 @@ public abstract class AbstractWidgetRepositoryTest {
     }
   }
 
+  @Test
+  public void shouldShiftOnlyTheRunUpToTheFirstGap() {
+    var bottom = repo.createWidget(createStaticCreationQuery(0));
+    var middle = repo.createWidget(createStaticCreationQuery(1));
+    var top = repo.createWidget(createStaticCreationQuery(3));
+
+    var inserted = repo.createWidget(createStaticCreationQuery(0));
+
+    assertThat(repo.listWidgets()).extracting(Widget::getId)
+      .containsExactly(inserted.getId(), bottom.getId(), middle.getId(), top.getId());
+    assertThat(repo.listWidgets()).extracting(Widget::getZ).containsExactly(0, 1, 2, 3);
+    var shifted = repo.getWidget(middle.getId());
+    assertEquals(2, shifted.getZ());
+    // shifting is not an update
+    assertEquals(middle.getLastUpdatedAt(), shifted.getLastUpdatedAt());
+    assertEquals(middle.getX(), shifted.getX());
+  }
+
   @Test
   public void shouldReturnCorrectOrderInPagesIfPaginationIsUsed() {
     final int ELEM_SIZE = 9000;
@@ -133,6 +163,230 @@ public abstract class AbstractWidgetRepositoryTest {
 
   }
 
+  @Test
+  void shouldListWidgetsAfterZOrder() {
+    for (int z : List.of(10, 3, 7, 1, 20, 8)) {
+      repo.createWidget(createStaticCreationQuery(z));
+    }
+
+    assertThat(repo.listWidgetsAfter(null, 2)).extracting(Widget::getZ).containsExactly(1, 3);
+    assertThat(repo.listWidgetsAfter(3, 3)).extracting(Widget::getZ).containsExactly(7, 8, 10);
+    // a z-order that is not there works as a cursor too
+    assertThat(repo.listWidgetsAfter(9, 5)).extracting(Widget::getZ).containsExactly(10, 20);
+    assertThat(repo.listWidgetsAfter(Integer.MIN_VALUE, 1)).extracting(Widget::getZ).containsExactly(1);
+    assertThat(repo.listWidgetsAfter(20, 5)).isEmpty();
+    assertThat(repo.listWidgetsAfter(100, 5)).isEmpty();
+  }
+
+  @Test
+  void shouldListWidgetsIntersectingRectangleInZOrder() {
+    var random = new Random(42);
+    var ids = new ArrayList<Long>();
+    for (int i = 0; i < 300; ++i) {
+      // mostly small widgets, some of them spanning many cells of a grid
+      int size = random.nextInt(10) == 0 ? 5000 : 300;
+      ids.add(repo.createWidget(new WidgetUpdateRequest(random.nextInt(10_000) - 5000, random.nextInt(10_000) - 5000,
+        1 + random.nextInt(size), 1 + random.nextInt(size), random.nextInt(100))).getId());
+    }
+    for (int i = 0; i < 50; ++i) {
+      repo.updateWidget(ids.get(random.nextInt(ids.size())),
+        WidgetUpdateRequest.builder().x(random.nextInt(10_000) - 5000).width(1 + random.nextInt(300)).build());
+      repo.deleteWidget(ids.remove(random.nextInt(ids.size())));
+    }
+
+    for (int i = 0; i < 50; ++i) {
+      int minX = random.nextInt(12_000) - 6000;
+      int minY = random.nextInt(12_000) - 6000;
+      // small and large rectangles, the latter of too many tiles of the db storage to list
+      int extent = i % 10 == 0 ? 50_000 : 2000;
+      int maxX = minX + random.nextInt(extent);
+      int maxY = minY + random.nextInt(extent);
+      var expected = repo.listWidgets().stream()
+        .filter(widget -> widget.getX() <= maxX && widget.getX() + widget.getWidth() >= minX
+          && widget.getY() <= maxY && widget.getY() + widget.getHeight() >= minY)
+        .collect(Collectors.toList());
+      assertThat(repo.listWidgetsIn(minX, minY, maxX, maxY))
+        .usingRecursiveFieldByFieldElementComparator()
+        .containsExactlyElementsOf(expected);
+    }
+  }
+
+  @Test
+  void shouldListWidgetsTouchingRectangle() {
+    // covers [30, 130] x [20, 220]
+    var widget = repo.createWidget(createStaticCreationQuery(1));
+
+    assertThat(repo.listWidgetsIn(130, 220, 500, 500)).extracting(Widget::getId).containsExactly(widget.getId());
+    assertThat(repo.listWidgetsIn(-500, -500, 30, 20)).extracting(Widget::getId).containsExactly(widget.getId());
+    assertThat(repo.listWidgetsIn(50, 50, 60, 60)).extracting(Widget::getId).containsExactly(widget.getId());
+    assertThat(repo.listWidgetsIn(131, 0, 500, 500)).isEmpty();
+    assertThat(repo.listWidgetsIn(0, 0, 29, 500)).isEmpty();
+    assertThat(repo.listWidgetsIn(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE)).hasSize(1);
+    // an empty rectangle
+    assertThat(repo.listWidgetsIn(60, 60, 50, 50)).isEmpty();
+  }
+
+  @Test
+  void shouldListWidgetsReachingIntoRectangleFromNextTiles() {
+    // the db storage has tiles of 1024 x 1024: a widget of a tile reaches the next one, a larger widget has no tile
+    var left = repo.createWidget(new WidgetUpdateRequest(-1024, 0, 1024, 1, 1));
+    var below = repo.createWidget(new WidgetUpdateRequest(0, -1, 1, 1024, 2));
+    var large = repo.createWidget(new WidgetUpdateRequest(-5000, -5000, 5001, 5001, 3));
+    repo.createWidget(new WidgetUpdateRequest(-2048, 0, 1023, 1, 4));
+
+    assertThat(repo.listWidgetsIn(0, 0, 0, 0)).extracting(Widget::getId)
+      .containsExactly(left.getId(), below.getId(), large.getId());
+    assertThat(repo.findWidgetAt(0, 0)).extracting(Widget::getId).isEqualTo(large.getId());
+    assertThat(repo.listWidgetsIn(1, 1024, 1, 1024)).isEmpty();
+    repo.updateWidget(large.getId(), WidgetUpdateRequest.builder().width(1).build());
+    assertThat(repo.findWidgetAt(0, 0)).extracting(Widget::getId).isEqualTo(below.getId());
+  }
+
+  @Test
+  void shouldFindTopmostWidgetAtPoint() {
+    var random = new Random(7);
+    for (int i = 0; i < 200; ++i) {
+      repo.createWidget(new WidgetUpdateRequest(random.nextInt(2000), random.nextInt(2000),
+        1 + random.nextInt(400), 1 + random.nextInt(400), random.nextInt(50)));
+    }
+    var points = new ArrayList<Point>();
+    for (int i = 0; i < 100; ++i) {
+      points.add(new Point(random.nextInt(2500) - 100, random.nextInt(2500) - 100));
+    }
+
+    var widgets = repo.listWidgets();
+    var expected = new ArrayList<Widget<Long>>();
+    for (var point : points) {
+      Widget<Long> top = null;
+      for (var widget : widgets) {
+        if (widget.getX() <= point.getX() && widget.getX() + widget.getWidth() >= point.getX()
+          && widget.getY() <= point.getY() && widget.getY() + widget.getHeight() >= point.getY()) {
+          top = widget;
+        }
+      }
+      expected.add(top);
+      assertThat(repo.findWidgetAt(point.getX(), point.getY())).usingRecursiveComparison().isEqualTo(top);
+    }
+    // both hits and misses are tested
+    assertThat(expected).containsNull().hasSizeGreaterThan(Collections.frequency(expected, null));
+    assertThat(repo.findWidgetsAt(points))
+      .usingRecursiveFieldByFieldElementComparator()
+      .containsExactlyElementsOf(expected);
+  }
+
+  @Test
+  void shouldPassWidgetsToActionInZOrder() {
+    for (int z : List.of(10, 3, 7, 3)) {
+      repo.createWidget(createStaticCreationQuery(z));
+    }
+
+    var widgets = new ArrayList<Widget<Long>>();
+    repo.forEachWidget(widgets::add);
+
+    assertThat(widgets)
+      .usingRecursiveFieldByFieldElementComparator()
+      .containsExactlyElementsOf(repo.listWidgets());
+    assertThat(widgets).extracting(Widget::getZ).containsExactly(3, 4, 7, 10);
+  }
+
+  @Test
+  void shouldIncreaseVersionOnEveryWrite() {
+    long version = repo.getVersion();
+
+    var widget = repo.createWidget(createStaticCreationQuery(1));
+    assertThat(repo.getVersion()).isGreaterThan(version);
+    version = repo.getVersion();
+
+    repo.getWidget(widget.getId());
+    repo.listWidgets();
+    repo.deleteWidget(-1L);
+    assertEquals(version, repo.getVersion());
+
+    repo.updateWidget(widget.getId(), WidgetUpdateRequest.builder().x(5).build());
+    assertThat(repo.getVersion()).isGreaterThan(version);
+    version = repo.getVersion();
+
+    repo.deleteWidget(widget.getId());
+    assertThat(repo.getVersion()).isGreaterThan(version);
+  }
+
+  @Test
+  void shouldRecordChangesThatBringTheWidgetsToTheLatestVersion() {
+    var widget = repo.createWidget(createStaticCreationQuery(1));
+    repo.createWidget(createStaticCreationQuery(2));
+    var deleted = repo.createWidget(createStaticCreationQuery(3));
+    long version = repo.getVersion();
+    var widgets = repo.listWidgets();
+
+    repo.createWidget(createStaticCreationQuery(5));
+    repo.createWidget(createStaticCreationQuery(1));
+    repo.updateWidget(widget.getId(), WidgetUpdateRequest.builder().z(3).build());
+    repo.updateWidget(widget.getId(), WidgetUpdateRequest.builder().x(-7).build());
+    repo.deleteWidget(deleted.getId());
+    var operations = new ArrayList<WidgetBatchOperation<Long>>();
+    operations.add(WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.UPDATE).id(widget.getId())
+      .widget(WidgetUpdateRequest.builder().z(2).build()).build());
+    for (int i = 0; i < 120; ++i) {
+      operations.add(WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.CREATE)
+        .widget(createStaticCreationQuery(null)).build());
+    }
+    repo.applyBatch(WidgetBatchRequest.<Long>builder().operations(operations).build());
+    repo.applyBatch(WidgetBatchRequest.<Long>builder().operations(operations.subList(1, 121)).build());
+    assertThrows(WidgetNotFoundException.class, () -> repo.applyBatch(WidgetBatchRequest.<Long>builder()
+      .operations(List.of(
+        WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.CREATE).widget(createStaticCreationQuery(1)).build(),
+        WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.DELETE).id(-3L).build(),
+        WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.UPDATE).id(-3L)
+          .widget(WidgetUpdateRequest.builder().x(-1).build()).build()))
+      .build()));
+
+    var changes = changeLog.since(version);
+    assertEquals(repo.getVersion(), changes.getVersion());
+    assertThat(changes.getChanges()).extracting(WidgetChange::getType).contains(WidgetChange.Type.SHIFTED);
+    assertThat(replay(widgets, changes.getChanges()))
+      .usingRecursiveFieldByFieldElementComparator()
+      .containsExactlyElementsOf(replay(repo.listWidgets(), List.of()));
+    assertThat(changeLog.since(changes.getVersion()).getChanges()).isEmpty();
+  }
+
+  /**
+   * Applies the changes to the widgets as a client would
+   */
+  private static List<TestWidget> replay(List<Widget<Long>> widgets, List<WidgetChange<Long>> changes) {
+    var widgetsById = new HashMap<Long, TestWidget>();
+    widgets.forEach(widget -> widgetsById.put(widget.getId(), copyOf(widget)));
+    for (var change : changes) {
+      switch (change.getType()) {
+        case CREATED:
+        case UPDATED:
+          widgetsById.put(change.getId(), copyOf(change.getWidget()));
+          break;
+        case DELETED:
+          widgetsById.remove(change.getId());
+          break;
+        default:
+          widgetsById.values().stream()
+            .filter(widget -> widget.getZ() >= change.getFromZ() && widget.getZ() <= change.getToZ())
+            .forEach(widget -> widget.setZ(widget.getZ() + 1));
+      }
+    }
+    var replayed = new ArrayList<>(widgetsById.values());
+    replayed.sort(Comparator.comparingInt(TestWidget::getZ));
+    return replayed;
+  }
+
+  private static TestWidget copyOf(Widget<Long> widget) {
+    var copy = new TestWidget();
+    copy.setId(widget.getId());
+    copy.setX(widget.getX());
+    copy.setY(widget.getY());
+    copy.setZ(widget.getZ());
+    copy.setWidth(widget.getWidth());
+    copy.setHeight(widget.getHeight());
+    copy.setLastUpdatedAt(widget.getLastUpdatedAt());
+    return copy;
+  }
+
   @Test
   void shouldDeleteItemsCorrectly() {
     // region init
@@ -160,6 +414,83 @@ public abstract class AbstractWidgetRepositoryTest {
     assertThrows(WidgetNotFoundException.class, () -> repo.getWidget(widget3.getId()));
   }
 
+  @Test
+  void shouldApplyBatchInOrder() {
+    var existing = repo.createWidget(createStaticCreationQuery(1));
+    var deleted = repo.createWidget(createStaticCreationQuery(5));
+
+    var response = repo.applyBatch(WidgetBatchRequest.<Long>builder()
+      .operations(List.of(
+        WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.CREATE).widget(createStaticCreationQuery(1)).build(),
+        WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.UPDATE).id(existing.getId())
+          .widget(WidgetUpdateRequest.builder().x(-1).build()).build(),
+        WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.DELETE).id(deleted.getId()).build()))
+      .ids(List.of(existing.getId(), deleted.getId()))
+      .build());
+
+    assertThat(response.getResults()).hasSize(3);
+    assertEquals(1, response.getResults().get(0).getZ());
+    // the update saw the shift made by the creation
+    assertEquals(2, response.getResults().get(1).getZ());
+    assertThat(response.getResults().get(2)).isNull();
+    assertEquals(2, response.getWidgets().get(0).getZ());
+    assertEquals(-1, response.getWidgets().get(0).getX());
+    assertThat(response.getWidgets().get(1)).isNull();
+    assertThat(repo.listWidgets()).extracting(Widget::getId)
+      .containsExactly(response.getResults().get(0).getId(), existing.getId());
+  }
+
+  @Test
+  void shouldApplyLargeBatchOfCreations() {
+    var existing = repo.createWidget(createStaticCreationQuery(10));
+    var operations = new ArrayList<WidgetBatchOperation<Long>>();
+    for (int i = 0; i < 1010; ++i) {
+      // every tenth widget has its own z-order above the others, the rest go on top
+      var request = i % 10 == 0 ? createStaticCreationQuery(20 + 2 * i) : WidgetUpdateRequest.builder()
+        .x(0).y(0).width(1).height(1).build();
+      operations.add(WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.CREATE).widget(request).build());
+    }
+
+    var response = repo.applyBatch(WidgetBatchRequest.<Long>builder().operations(operations).build());
+
+    assertThat(response.getResults()).hasSize(1010).doesNotContainNull();
+    assertEquals(20, response.getResults().get(0).getZ());
+    assertEquals(21, response.getResults().get(1).getZ());
+    assertEquals(29, response.getResults().get(9).getZ());
+    assertEquals(40, response.getResults().get(10).getZ());
+    var expected = new ArrayList<Widget<Long>>();
+    expected.add(existing);
+    expected.addAll(response.getResults());
+    assertThat(repo.listWidgets())
+      .usingRecursiveFieldByFieldElementComparator()
+      .containsExactlyElementsOf(expected);
+    assertThat(repo.getWidget(response.getResults().get(1009).getId()))
+      .usingRecursiveComparison()
+      .isEqualTo(response.getResults().get(1009));
+  }
+
+  @Test
+  void shouldNotApplyAnythingIfBatchFails() {
+    var existing = repo.createWidget(createStaticCreationQuery(1));
+    var before = new ArrayList<>(repo.listWidgets());
+    long versionBefore = repo.getVersion();
+
+    assertThrows(WidgetNotFoundException.class, () -> repo.applyBatch(WidgetBatchRequest.<Long>builder()
+      .operations(List.of(
+        WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.CREATE).widget(createStaticCreationQuery(1)).build(),
+        WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.DELETE).id(existing.getId()).build(),
+        WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.UPDATE).id(-3L)
+          .widget(WidgetUpdateRequest.builder().x(-1).build()).build()))
+      .build()));
+
+    assertThat(repo.listWidgets())
+      .usingRecursiveFieldByFieldElementComparator()
+      .containsExactlyElementsOf(before);
+    assertEquals(1, repo.getWidget(existing.getId()).getZ());
+    // nothing is committed, so the ETags stay valid
+    assertEquals(versionBefore, repo.getVersion());
+  }
+
   //region tests on error handling
   @Test
   void shouldNotCreateItemWithNullValues() {
@@ -180,6 +511,11 @@ public abstract class AbstractWidgetRepositoryTest {
     assertThrows(WidgetNotFoundException.class, () -> repo.getWidget(-3L));
   }
 
+  @Test
+  void shouldThrowIfUpdateByWrongId() {
+    assertThrows(WidgetNotFoundException.class, () -> repo.updateWidget(-3L, WidgetUpdateRequest.builder().x(1).build()));
+  }
+
   //endregion
 
 
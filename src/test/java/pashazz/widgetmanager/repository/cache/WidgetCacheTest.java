@@ -0,0 +1,212 @@
+package pashazz.widgetmanager.repository.cache;
+
+import org.junit.jupiter.api.Test;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryWidgetImpl;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WidgetCacheTest {
+
+  private static final LocalDateTime TIME = LocalDateTime.of(2022, 1, 1, 0, 0);
+
+  private static final int PAGE_SIZE = 5;
+
+  /**
+   * The widgets of a repository, written like DbWidgetRepository writes them
+   */
+  private final TreeMap<Integer, Widget<Long>> widgetsByZ = new TreeMap<>();
+
+  private final Map<Long, Widget<Long>> widgetsById = new HashMap<>();
+
+  @Test
+  void shouldReadLikeRepositoryWhenInvalidatedByWrites() {
+    var random = new Random(42);
+    var cache = new WidgetCache<Long>(300);
+    long nextId = 1;
+
+    for (int i = 0; i < 20_000; ++i) {
+      var invalidation = new WidgetCache.Invalidation<Long>();
+      // mostly reads
+      int operation = random.nextInt(30);
+      if (operation == 0 || widgetsById.size() < 20) {
+        create(nextId++, random.nextInt(100), invalidation);
+      } else if (operation == 1) {
+        delete(randomId(random), invalidation);
+      } else if (operation == 2) {
+        update(randomId(random), random.nextBoolean() ? null : random.nextInt(100), random.nextInt(1000), invalidation);
+      }
+      if (!invalidation.isEmpty()) {
+        cache.invalidate(invalidation);
+      }
+
+      var all = new ArrayList<>(widgetsByZ.values());
+      switch (random.nextInt(4)) {
+        case 0:
+          long id = randomId(random);
+          assertEquals(widgetsById.get(id), cache.getWidget(id, () -> widgetsById.get(id)));
+          break;
+        case 1:
+          int page = random.nextInt(all.size() / PAGE_SIZE + 2);
+          assertThat(cache.listWidgets(page, PAGE_SIZE, () -> page(all, page))).containsExactlyElementsOf(page(all, page));
+          break;
+        case 2:
+          Integer afterZ = random.nextInt(10) == 0 ? null : random.nextInt(110);
+          assertThat(cache.listWidgetsAfter(afterZ, PAGE_SIZE, () -> after(afterZ))).containsExactlyElementsOf(after(afterZ));
+          break;
+        default:
+          if (random.nextInt(20) == 0) {
+            assertThat(cache.listWidgets(() -> all)).containsExactlyElementsOf(all);
+          }
+      }
+      assertThat(cache.size()).isLessThanOrEqualTo(300);
+    }
+    assertThat(cache.getHits()).isPositive();
+    assertThat(cache.getEvictions()).isPositive();
+  }
+
+  @Test
+  void shouldKeepListsThatWriteDoesNotReach() {
+    var cache = new WidgetCache<Long>(100);
+    // z-orders 1..10 and 20..29
+    for (long id = 1; id <= 20; ++id) {
+      create(id, id <= 10 ? (int) id : (int) id + 9, new WidgetCache.Invalidation<>());
+    }
+    var all = new ArrayList<>(widgetsByZ.values());
+    cache.listWidgets(0, PAGE_SIZE, () -> page(all, 0));
+    cache.listWidgetsAfter(15, PAGE_SIZE, () -> after(15));
+    cache.getWidget(2L, () -> widgetsById.get(2L));
+    cache.getWidget(5L, () -> widgetsById.get(5L));
+
+    // above both pages
+    var created = new WidgetCache.Invalidation<Long>();
+    create(21, 40, created);
+    cache.invalidate(created);
+    // shifts the run up to 10
+    var shifted = new WidgetCache.Invalidation<Long>();
+    create(22, 4, shifted);
+    cache.invalidate(shifted);
+    long misses = cache.getMisses();
+
+    assertThat(cache.listWidgetsAfter(15, PAGE_SIZE, () -> after(15))).extracting(Widget::getZ).containsExactly(20, 21, 22, 23, 24);
+    assertThat(cache.getWidget(2L, () -> widgetsById.get(2L)).getZ()).isEqualTo(2);
+    assertEquals(misses, cache.getMisses());
+    assertThat(cache.listWidgets(0, PAGE_SIZE, () -> page(new ArrayList<>(widgetsByZ.values()), 0)))
+      .extracting(Widget::getId).containsExactly(1L, 2L, 3L, 22L, 4L);
+    assertThat(cache.getWidget(5L, () -> widgetsById.get(5L)).getZ()).isEqualTo(6);
+    assertEquals(misses + 2, cache.getMisses());
+  }
+
+  @Test
+  void shouldNotCacheReadThatOverlapsWrite() {
+    var cache = new WidgetCache<Long>(100);
+    create(1, 1, new WidgetCache.Invalidation<>());
+    var before = widgetsById.get(1L);
+
+    var read = cache.getWidget(1L, () -> {
+      // the write commits while the row is being read
+      var invalidation = new WidgetCache.Invalidation<Long>();
+      update(1, null, 50, invalidation);
+      cache.invalidate(invalidation);
+      return before;
+    });
+
+    assertThat(read).isEqualTo(before);
+    assertThat(cache.getWidget(1L, () -> widgetsById.get(1L)).getX()).isEqualTo(50);
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  void shouldEvictLeastRecentlyUsed() {
+    var cache = new WidgetCache<Long>(3);
+    for (long id = 1; id <= 4; ++id) {
+      create(id, (int) id, new WidgetCache.Invalidation<>());
+    }
+    cache.getWidget(1L, () -> widgetsById.get(1L));
+    cache.getWidget(2L, () -> widgetsById.get(2L));
+    cache.getWidget(1L, () -> widgetsById.get(1L));
+    cache.getWidget(3L, () -> widgetsById.get(3L));
+    cache.getWidget(4L, () -> widgetsById.get(4L));
+    assertEquals(1, cache.getEvictions());
+    assertEquals(3, cache.size());
+
+    // too large to be cached
+    cache.listWidgets(() -> new ArrayList<>(widgetsByZ.values()));
+    assertEquals(3, cache.size());
+    cache.getWidget(1L, () -> widgetsById.get(1L));
+    cache.getWidget(2L, () -> widgetsById.get(2L));
+    assertEquals(2, cache.getHits());
+    assertEquals(6, cache.getMisses());
+  }
+
+  private void create(long id, int z, WidgetCache.Invalidation<Long> invalidation) {
+    shift(z, invalidation);
+    put(new InMemoryWidgetImpl<>(id, 0, 0, z, 10, 10, TIME));
+    invalidation.created(id, z);
+  }
+
+  /**
+   * The shift comes before the save, while the updated widget still has its old z-order
+   */
+  private void update(long id, Integer z, int x, WidgetCache.Invalidation<Long> invalidation) {
+    var widget = widgetsById.get(id);
+    int newZ = z == null ? widget.getZ() : z;
+    if (newZ != widget.getZ()) {
+      shift(newZ, invalidation);
+    }
+    widgetsByZ.remove(widgetsById.get(id).getZ());
+    put(new InMemoryWidgetImpl<>(id, x, 0, newZ, 10, 10, TIME));
+    invalidation.updated(id, widget.getZ(), newZ);
+  }
+
+  private void delete(long id, WidgetCache.Invalidation<Long> invalidation) {
+    var widget = widgetsById.remove(id);
+    widgetsByZ.remove(widget.getZ());
+    invalidation.deleted(id, widget.getZ());
+  }
+
+  private void shift(int z, WidgetCache.Invalidation<Long> invalidation) {
+    if (!widgetsByZ.containsKey(z)) {
+      return;
+    }
+    int top = z;
+    while (widgetsByZ.containsKey(top + 1)) {
+      ++top;
+    }
+    for (int shifted = top; shifted >= z; --shifted) {
+      var widget = widgetsByZ.remove(shifted);
+      put(new InMemoryWidgetImpl<>(widget.getId(), widget.getX(), widget.getY(), shifted + 1, 10, 10, TIME));
+    }
+    invalidation.shifted(z, top);
+  }
+
+  private void put(Widget<Long> widget) {
+    widgetsByZ.put(widget.getZ(), widget);
+    widgetsById.put(widget.getId(), widget);
+  }
+
+  private long randomId(Random random) {
+    var ids = new ArrayList<>(widgetsById.keySet());
+    ids.sort(null);
+    return ids.get(random.nextInt(ids.size()));
+  }
+
+  private static List<Widget<Long>> page(List<Widget<Long>> all, int page) {
+    return all.subList(Math.min(all.size(), page * PAGE_SIZE), Math.min(all.size(), (page + 1) * PAGE_SIZE));
+  }
+
+  private List<Widget<Long>> after(Integer afterZ) {
+    var widgets = afterZ == null ? widgetsByZ.values() : widgetsByZ.tailMap(afterZ, false).values();
+    return widgets.stream().limit(PAGE_SIZE).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,175 @@
+package pashazz.widgetmanager.repository.canvas;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pashazz.widgetmanager.entity.memory.InMemoryLongWidgetBuilder;
+import pashazz.widgetmanager.entity.validator.CreationRequestValidator;
+import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
+import pashazz.widgetmanager.exception.CanvasNotFoundException;
+import pashazz.widgetmanager.exception.WidgetChangesExpiredException;
+import pashazz.widgetmanager.factory.StandardWidgetFactory;
+import pashazz.widgetmanager.generator.CounterSupplier;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.concurrent.ConcurrentWidgetRepository;
+import pashazz.widgetmanager.repository.memory.InMemoryWidgetRepository;
+import pashazz.widgetmanager.repository.wal.WriteAheadLog;
+import pashazz.widgetmanager.rest.SerializedWidgetsCache;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static pashazz.widgetmanager.utils.TestUtils.createStaticCreationQuery;
+
+class WidgetCanvasesTest {
+
+  @TempDir
+  Path directory;
+
+  private final AtomicInteger created = new AtomicInteger();
+
+  @Test
+  void shouldKeepZOrderOfEveryCanvas() {
+    try (var canvases = new WidgetCanvases(canvas("default", false), factory(false), Duration.ofHours(1))) {
+      var first = canvases.acquire("first");
+      var second = canvases.acquire("second");
+      first.getRepository().createWidget(createStaticCreationQuery(1));
+      first.getRepository().createWidget(createStaticCreationQuery(1));
+      second.getRepository().createWidget(createStaticCreationQuery(1));
+
+      assertThat(first.getRepository().listWidgets()).extracting(widget -> widget.getZ()).containsExactly(1, 2);
+      assertThat(second.getRepository().listWidgets()).extracting(widget -> widget.getZ()).containsExactly(1);
+      assertThat(canvases.acquire(null).getRepository().listWidgets()).isEmpty();
+      // created once, when first acquired
+      assertThat(canvases.acquire("first")).isSameAs(first);
+      assertThat(created).hasValue(3);
+    }
+  }
+
+  @Test
+  void shouldEvictIdleCanvasesThatLoseNothing() {
+    try (var canvases = new WidgetCanvases(canvas("default", false), factory(false), Duration.ZERO)) {
+      canvases.acquire("empty").release();
+      canvases.acquire("used").getRepository().createWidget(createStaticCreationQuery(1));
+      var full = canvases.acquire("full");
+      full.getRepository().createWidget(createStaticCreationQuery(1));
+      full.release();
+      canvases.acquire(WidgetCanvases.DEFAULT_CANVAS).release();
+
+      canvases.evictIdle();
+      // the canvas in use is kept, and so is the one that would lose its widgets
+      assertThat(canvases.getIds()).containsExactlyInAnyOrder(WidgetCanvases.DEFAULT_CANVAS, "used", "full");
+    }
+  }
+
+  @Test
+  void shouldLoadEvictedCanvasFromItsLog() {
+    try (var canvases = new WidgetCanvases(canvas("default", false), factory(true), Duration.ZERO)) {
+      var board = canvases.acquire("board");
+      var widget = board.getRepository().createWidget(createStaticCreationQuery(5));
+      board.release();
+      canvases.evictIdle();
+      assertThat(canvases.getIds()).containsExactly(WidgetCanvases.DEFAULT_CANVAS);
+
+      var loaded = canvases.acquire("board");
+      assertThat(loaded).isNotSameAs(board);
+      assertThat(loaded.getRepository().getWidget(widget.getId()).getZ()).isEqualTo(5);
+      assertThat(loaded.getRepository().createWidget(createStaticCreationQuery(null)).getId()).isGreaterThan(widget.getId());
+    }
+  }
+
+  @Test
+  void shouldRejectCanvasesUnlessStorageHasThem() {
+    try (var canvases = new WidgetCanvases(canvas("default", false), factory(false), Duration.ofHours(1))) {
+      assertThatThrownBy(() -> canvases.acquire("../widgets")).isInstanceOf(CanvasNotFoundException.class);
+    }
+    try (var canvases = new WidgetCanvases(canvas("default", false), null, Duration.ofHours(1))) {
+      assertThat(canvases.acquire(WidgetCanvases.DEFAULT_CANVAS)).isNotNull();
+      assertThatThrownBy(() -> canvases.acquire("board")).isInstanceOf(CanvasNotFoundException.class);
+    }
+  }
+
+  @Test
+  void shouldNotCreateCanvasForRead() {
+    try (var canvases = new WidgetCanvases(canvas("default", false), factory(true), Duration.ZERO)) {
+      assertThatThrownBy(() -> canvases.acquireExisting("board")).isInstanceOf(CanvasNotFoundException.class);
+      assertThat(canvases.getIds()).containsExactly(WidgetCanvases.DEFAULT_CANVAS);
+
+      var board = canvases.acquire("board");
+      board.getRepository().createWidget(createStaticCreationQuery(1));
+      board.release();
+      canvases.acquireExisting("board").release();
+      canvases.evictIdle();
+      assertThat(canvases.getIds()).containsExactly(WidgetCanvases.DEFAULT_CANVAS);
+      // loaded from its log
+      assertThat(canvases.acquireExisting("board").getRepository().listWidgets()).hasSize(1);
+    }
+  }
+
+  @Test
+  void shouldNotReuseVersionsOfEvictedCanvas() {
+    try (var canvases = new WidgetCanvases(canvas("default", false), factory(false), Duration.ZERO)) {
+      var board = canvases.acquire("board");
+      var widget = board.getRepository().createWidget(createStaticCreationQuery(1));
+      board.getRepository().updateWidget(widget.getId(), WidgetUpdateRequest.builder().x(5).build());
+      board.getRepository().deleteWidget(widget.getId());
+      board.release();
+      canvases.evictIdle();
+      assertThat(canvases.getIds()).containsExactly(WidgetCanvases.DEFAULT_CANVAS);
+
+      var created = canvases.acquire("board");
+      assertThat(created).isNotSameAs(board);
+      // empty at the last version of the evicted one, then newer versions
+      assertThat(created.getRepository().getVersion()).isEqualTo(3);
+      created.getRepository().createWidget(createStaticCreationQuery(1));
+      assertThat(created.getRepository().getVersion()).isEqualTo(4);
+      // the changes of the evicted canvas are gone
+      assertThatThrownBy(() -> created.getChangeLog().since(1)).isInstanceOf(WidgetChangesExpiredException.class);
+      assertThat(created.getChangeLog().since(3).getChanges()).hasSize(1);
+    }
+  }
+
+  private WidgetCanvases.Factory factory(boolean durable) {
+    return new WidgetCanvases.Factory() {
+      @Override
+      public @NotNull WidgetCanvas create(@NotNull String id, long version) {
+        return canvas(id, durable, version);
+      }
+
+      @Override
+      public boolean exists(@NotNull String id) {
+        return durable && Files.exists(directory.resolve(id + ".wal"));
+      }
+    };
+  }
+
+  private WidgetCanvas canvas(String id, boolean durable) {
+    return canvas(id, durable, 0);
+  }
+
+  private WidgetCanvas canvas(String id, boolean durable, long version) {
+    created.incrementAndGet();
+    var ids = new CounterSupplier();
+    var changeLog = new WidgetChangeLog<Long>(100);
+    @Nullable WriteAheadLog log = durable ? new WriteAheadLog(directory.resolve(id + ".wal"), Duration.ZERO, 1) : null;
+    var repo = new InMemoryWidgetRepository(new StandardWidgetFactory<>(
+      ids,
+      new CreationRequestValidator(),
+      new UpdateRequestValidator(),
+      InMemoryLongWidgetBuilder::new), changeLog, log);
+    if (log != null) {
+      ids.advanceTo(log.getLastId());
+    } else {
+      repo.load(version, 0, List.of());
+    }
+    return new WidgetCanvas(id, new ConcurrentWidgetRepository<>(repo), changeLog, new SerializedWidgetsCache(1000),
+      durable, log == null ? List.of() : List.of(log));
+  }
+}
@@ -0,0 +1,114 @@
+package pashazz.widgetmanager.repository.changes;
+
+import org.junit.jupiter.api.Test;
+import pashazz.widgetmanager.exception.WidgetChangesExpiredException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class WidgetChangeLogTest {
+
+  @Test
+  void shouldReturnChangesOfNewerVersionsInOrder() {
+    var log = new WidgetChangeLog<Long>(10);
+    log.startAt(3);
+    log.append(4, List.of(WidgetChange.deleted(1L)));
+    log.append(5, List.of());
+    log.append(6, List.of(WidgetChange.shifted(1, 2), WidgetChange.deleted(2L)));
+
+    var changes = log.since(4);
+    assertThat(changes.getVersion()).isEqualTo(6);
+    assertThat(changes.getChanges()).extracting(WidgetChange::getVersion).containsExactly(6L, 6L);
+    assertThat(changes.getChanges()).extracting(WidgetChange::getType)
+      .containsExactly(WidgetChange.Type.SHIFTED, WidgetChange.Type.DELETED);
+    assertThat(log.since(3).getChanges()).hasSize(3);
+    assertThat(log.since(6).getChanges()).isEmpty();
+    // a version the log has not caught up with yet
+    assertThat(log.since(7).getVersion()).isEqualTo(7);
+    assertThatThrownBy(() -> log.since(2)).isInstanceOf(WidgetChangesExpiredException.class);
+  }
+
+  @Test
+  void shouldRequireResyncOnceChangesAreDropped() {
+    var log = new WidgetChangeLog<Long>(2);
+    log.startAt(0);
+    log.append(1, List.of(WidgetChange.deleted(1L)));
+    log.append(2, List.of(WidgetChange.deleted(2L), WidgetChange.deleted(3L)));
+
+    assertThatThrownBy(() -> log.since(0)).isInstanceOf(WidgetChangesExpiredException.class);
+    assertThat(log.since(1).getChanges()).extracting(WidgetChange::getId).containsExactly(2L, 3L);
+
+    log.append(3, List.of(WidgetChange.deleted(4L)));
+    // a change of version 2 is dropped, so its other change is not enough
+    assertThatThrownBy(() -> log.since(1)).isInstanceOf(WidgetChangesExpiredException.class);
+    assertThat(log.since(2).getChanges()).extracting(WidgetChange::getId).containsExactly(4L);
+  }
+
+  @Test
+  void shouldRequireResyncAfterVersionWithMoreChangesThanRetained() {
+    var log = new WidgetChangeLog<Long>(2);
+    log.startAt(0);
+    log.append(1, List.of(WidgetChange.deleted(1L)));
+    log.append(2, List.of(WidgetChange.deleted(2L), WidgetChange.deleted(3L), WidgetChange.deleted(4L)));
+
+    assertThatThrownBy(() -> log.since(1)).isInstanceOf(WidgetChangesExpiredException.class);
+    assertThat(log.since(2).getChanges()).isEmpty();
+
+    log.append(3, List.of(WidgetChange.deleted(5L)));
+    assertThat(log.since(2).getChanges()).extracting(WidgetChange::getId).containsExactly(5L);
+  }
+
+  @Test
+  void shouldRequireResyncAfterUnknownVersions() {
+    var log = new WidgetChangeLog<Long>(10);
+    log.startAt(0);
+    log.append(1, List.of(WidgetChange.deleted(1L)));
+    // version 2 is written elsewhere
+    log.append(3, List.of(WidgetChange.deleted(2L)));
+
+    assertThatThrownBy(() -> log.since(1)).isInstanceOf(WidgetChangesExpiredException.class);
+    assertThat(log.since(2).getChanges()).extracting(WidgetChange::getId).containsExactly(2L);
+
+    log.skipTo(5);
+    assertThatThrownBy(() -> log.since(3)).isInstanceOf(WidgetChangesExpiredException.class);
+    assertThat(log.since(5).getChanges()).isEmpty();
+    // committed before the log has been moved past it
+    log.append(4, List.of(WidgetChange.deleted(3L)));
+    log.append(6, List.of(WidgetChange.deleted(4L)));
+    assertThat(log.since(5).getChanges()).extracting(WidgetChange::getId).containsExactly(4L);
+  }
+
+  @Test
+  void shouldNotifyListenersAfterAppend() {
+    var log = new WidgetChangeLog<Long>(2);
+    var calls = new AtomicInteger();
+    Runnable listener = calls::incrementAndGet;
+    log.addListener(listener);
+    log.append(1, List.of());
+    log.removeListener(listener);
+    log.append(2, List.of());
+
+    assertThat(calls).hasValue(1);
+  }
+
+  @Test
+  void shouldGiveChangesListenersEveryChange() {
+    var log = new WidgetChangeLog<Long>(2);
+    var versions = new ArrayList<Long>();
+    var ids = new ArrayList<Long>();
+    log.addChangesListener((version, changes) -> {
+      versions.add(version);
+      changes.forEach(change -> ids.add(change.getId()));
+    });
+    log.append(1, List.of(WidgetChange.deleted(1L), WidgetChange.deleted(2L), WidgetChange.deleted(3L)));
+    log.append(2, List.of());
+
+    // none is dropped, unlike from the retained changes
+    assertThat(versions).containsExactly(1L, 2L);
+    assertThat(ids).containsExactly(1L, 2L, 3L);
+  }
+}
@@ -1,8 +1,34 @@
 package pashazz.widgetmanager.repository.db;
 
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.test.context.ActiveProfiles;
 import pashazz.widgetmanager.repository.base.AbstractRestApiTest;
+import pashazz.widgetmanager.rest.entity.TestWidget;
+import pashazz.widgetmanager.rest.response.CacheStatusResponse;
+import pashazz.widgetmanager.utils.TestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
 
 @ActiveProfiles("db")
 public class DBRestApiTest extends AbstractRestApiTest {
+
+  @Autowired
+  private TestRestTemplate restTemplate;
+
+  @Test
+  void shouldCountCacheHitsAndMisses() {
+    var widget = restTemplate.postForObject("/widgets", TestUtils.createStaticCreationQuery(1), TestWidget.class);
+    var before = restTemplate.getForObject("/cache", CacheStatusResponse.class);
+
+    restTemplate.getForObject("/widgets/" + widget.getId(), TestWidget.class);
+    restTemplate.getForObject("/widgets/" + widget.getId(), TestWidget.class);
+
+    var after = restTemplate.getForObject("/cache", CacheStatusResponse.class);
+    assertThat(after.getMisses()).isEqualTo(before.getMisses() + 1);
+    assertThat(after.getHits()).isEqualTo(before.getHits() + 1);
+    assertThat(after.getSize()).isPositive();
+    restTemplate.delete("/widgets/" + widget.getId());
+  }
 }
@@ -0,0 +1,168 @@
+package pashazz.widgetmanager.repository.db;
+
+import org.h2.tools.Server;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import pashazz.widgetmanager.WidgetmanagerApplication;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.exception.WidgetChangesExpiredException;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static pashazz.widgetmanager.utils.TestUtils.createStaticCreationQuery;
+
+/**
+ * Two instances of the application, each with an application context and a connection pool of its own,
+ * on an H2 server, write at the same time
+ */
+class DbMultiInstanceTest {
+
+  private static final int INSTANCES = 2;
+
+  private static final int THREADS_PER_INSTANCE = 4;
+
+  private static final int WRITES_PER_THREAD = 150;
+
+  private Server server;
+
+  private final List<ConfigurableApplicationContext> instances = new ArrayList<>();
+
+  @BeforeEach
+  void startInstances() throws SQLException {
+    server = Server.createTcpServer("-tcpPort", "0", "-ifNotExists").start();
+    // the server runs in this JVM, so every test takes a database of its own
+    var url = "jdbc:h2:tcp://localhost:" + server.getPort() + "/mem:widgets-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000";
+    // one after another, so that the second one finds the schema of the first
+    for (int i = 0; i < INSTANCES; ++i) {
+      instances.add(new SpringApplicationBuilder(WidgetmanagerApplication.class)
+        .web(WebApplicationType.NONE)
+        .profiles("db")
+        .properties(
+          "spring.datasource.url=" + url,
+          "spring.jpa.hibernate.ddl-auto=update")
+        .run());
+    }
+  }
+
+  @AfterEach
+  void stopInstances() {
+    instances.forEach(ConfigurableApplicationContext::close);
+    server.stop();
+  }
+
+  @Test
+  @Timeout(value = 120, unit = TimeUnit.SECONDS)
+  void shouldKeepZOrdersUniqueWhenInstancesWriteConcurrently() throws Exception {
+    var writers = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < INSTANCES * THREADS_PER_INSTANCE; ++i) {
+      var repo = repository(i % INSTANCES);
+      var random = new Random(i);
+      writers.add(() -> {
+        randomWrites(repo, random);
+        return null;
+      });
+    }
+    var executor = Executors.newFixedThreadPool(writers.size());
+    try {
+      for (var result : executor.invokeAll(writers)) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    var widgets = repository(0).listWidgets();
+    assertThat(widgets).extracting(Widget::getZ).doesNotHaveDuplicates().isSorted();
+    assertThat(repository(1).listWidgets()).extracting(Widget::getId)
+      .containsExactlyElementsOf(widgets.stream().map(Widget::getId).collect(Collectors.toList()));
+    // every write has a version of its own
+    assertEquals(INSTANCES * THREADS_PER_INSTANCE * WRITES_PER_THREAD, repository(1).getVersion());
+  }
+
+  @Test
+  void shouldNotServeWidgetsWrittenByAnotherInstanceFromCache() {
+    var widget = repository(0).createWidget(createStaticCreationQuery(1));
+    assertEquals(1, repository(1).getWidget(widget.getId()).getZ());
+    assertThat(repository(1).listWidgets()).extracting(Widget::getZ).containsExactly(1);
+
+    repository(0).updateWidget(widget.getId(), WidgetUpdateRequest.builder().z(5).build());
+    assertEquals(5, repository(1).getWidget(widget.getId()).getZ());
+    assertThat(repository(1).listWidgets()).extracting(Widget::getZ).containsExactly(5);
+  }
+
+  @Test
+  void shouldExpireChangesOnceAnotherInstanceHasWritten() throws InterruptedException {
+    var changeLog = changeLog(1);
+    long version = repository(1).getVersion();
+    repository(1).createWidget(createStaticCreationQuery(1));
+    assertThat(changeLog.since(version).getChanges()).hasSize(1);
+
+    // the change log of the second instance misses the version in between
+    repository(0).createWidget(createStaticCreationQuery(2));
+    repository(1).createWidget(createStaticCreationQuery(3));
+    assertThrows(WidgetChangesExpiredException.class, () -> changeLog.since(version + 1));
+    assertThat(changeLog.since(version + 2).getChanges()).hasSize(1);
+
+    // or learns of it by syncing with the database
+    repository(0).createWidget(createStaticCreationQuery(4));
+    repository(1).syncWithStorage();
+    assertThrows(WidgetChangesExpiredException.class, () -> changeLog.since(version + 3));
+    assertThat(changeLog.since(version + 4).getChanges()).isEmpty();
+
+    // which the poller does without a request
+    repository(0).createWidget(createStaticCreationQuery(5));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (changeLog.getVersion() < version + 5 && System.nanoTime() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(version + 5, changeLog.getVersion());
+    assertThrows(WidgetChangesExpiredException.class, () -> changeLog.since(version + 4));
+  }
+
+  /**
+   * Creations, updates and deletions with z-orders close to each other, so many of them shift the same widgets
+   * A thread updates and deletes the widgets it has created only, so every write changes something
+   */
+  private static void randomWrites(WidgetRepository<Long> repo, Random random) {
+    var ids = new ArrayList<Long>();
+    for (int i = 0; i < WRITES_PER_THREAD; ++i) {
+      int operation = random.nextInt(10);
+      if (operation < 5 || ids.isEmpty()) {
+        ids.add(repo.createWidget(createStaticCreationQuery(random.nextInt(5) == 0 ? null : random.nextInt(20))).getId());
+      } else if (operation < 9) {
+        repo.updateWidget(ids.get(random.nextInt(ids.size())), WidgetUpdateRequest.builder().z(random.nextInt(20)).build());
+      } else {
+        repo.deleteWidget(ids.remove(random.nextInt(ids.size())));
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private WidgetRepository<Long> repository(int instance) {
+    return instances.get(instance).getBean(WidgetRepository.class);
+  }
+
+  @SuppressWarnings("unchecked")
+  private WidgetChangeLog<Long> changeLog(int instance) {
+    return instances.get(instance).getBean(WidgetChangeLog.class);
+  }
+}
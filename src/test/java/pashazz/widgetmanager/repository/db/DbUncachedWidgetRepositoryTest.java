@@ -0,0 +1,10 @@
+package pashazz.widgetmanager.repository.db;
+
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import pashazz.widgetmanager.repository.base.AbstractWidgetRepositoryTest;
+
+@ActiveProfiles("db")
+@TestPropertySource(properties = "widgetmanager.db-cache-size=0")
+public class DbUncachedWidgetRepositoryTest extends AbstractWidgetRepositoryTest {
+}
@@ -0,0 +1,200 @@
+package pashazz.widgetmanager.repository.hybrid;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.PlatformTransactionManager;
+import pashazz.widgetmanager.WidgetmanagerApplication;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryLongWidgetBuilder;
+import pashazz.widgetmanager.entity.memory.InMemoryWidgetImpl;
+import pashazz.widgetmanager.entity.validator.CreationRequestValidator;
+import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
+import pashazz.widgetmanager.factory.StandardWidgetFactory;
+import pashazz.widgetmanager.generator.CounterSupplier;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChange;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.db.jpa.JpaWidgetRepository;
+import pashazz.widgetmanager.repository.db.jpa.JpaWidgetsVersionRepository;
+import pashazz.widgetmanager.repository.memory.InMemoryWidgetRepository;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.assertj.core.api.Assertions.within;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static pashazz.widgetmanager.utils.TestUtils.createStaticCreationQuery;
+
+/**
+ * A small batch size, so the writes are split into many transactions
+ */
+@SpringBootTest(classes = WidgetmanagerApplication.class)
+@ActiveProfiles("hybrid")
+@TestPropertySource(properties = {
+  "widgetmanager.write-behind-batch-size=7",
+  "widgetmanager.write-behind-interval=5ms"
+})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+class DbWriteBehindTest {
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+  private static final LocalDateTime TIME = LocalDateTime.of(2022, 1, 1, 0, 0);
+
+  @Autowired
+  private WidgetRepository<Long> repo;
+
+  @Autowired
+  private DbWriteBehind writeBehind;
+
+  @Autowired
+  private JpaWidgetRepository jpaWidgetRepository;
+
+  @Autowired
+  private JpaWidgetsVersionRepository jpaWidgetsVersionRepository;
+
+  @Autowired
+  private EntityManager entityManager;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @Test
+  void shouldWriteWidgetsOfMemoryToDatabase() throws InterruptedException {
+    randomWrites(new Random(42), 500);
+
+    assertTrue(writeBehind.awaitReplicated(repo.getVersion(), TIMEOUT));
+    assertSameWidgets(repo.listWidgets(), new ArrayList<>(jpaWidgetRepository.findAllOrderByZAsc()));
+    var status = writeBehind.getStatus();
+    assertEquals(repo.getVersion(), status.getReplicatedVersion());
+    assertEquals(0, status.getLag());
+    assertEquals(0, status.getQueueDepth());
+    assertEquals(repo.getVersion(), (long) jpaWidgetsVersionRepository.findVersion());
+  }
+
+  @Test
+  void shouldHydrateMemoryFromDatabase() throws InterruptedException {
+    randomWrites(new Random(7), 300);
+    // the greatest id is deleted, and must not be given again
+    var top = repo.createWidget(createStaticCreationQuery(null));
+    repo.deleteWidget(top.getId());
+    assertTrue(writeBehind.awaitReplicated(repo.getVersion(), TIMEOUT));
+
+    var ids = new CounterSupplier();
+    var hydrated = new InMemoryWidgetRepository(new StandardWidgetFactory<>(
+      ids,
+      new CreationRequestValidator(),
+      new UpdateRequestValidator(),
+      InMemoryLongWidgetBuilder::new), new WidgetChangeLog<>(100));
+    var other = new DbWriteBehind(jpaWidgetRepository, jpaWidgetsVersionRepository, entityManager, transactionManager,
+      10, Duration.ZERO);
+    // in chunks of 3
+    ids.advanceTo(other.hydrate(hydrated, 3));
+
+    assertEquals(repo.getVersion(), hydrated.getVersion());
+    assertSameWidgets(repo.listWidgets(), hydrated.listWidgets());
+    assertThat(hydrated.createWidget(createStaticCreationQuery(null)).getId()).isGreaterThan(top.getId());
+  }
+
+  @Test
+  void shouldCoalesceWritesOfWidget() throws InterruptedException {
+    var other = new DbWriteBehind(jpaWidgetRepository, jpaWidgetsVersionRepository, entityManager, transactionManager,
+      10, Duration.ZERO);
+    long first = 1_000_000;
+    long second = 1_000_001;
+    other.enqueue(1, List.of(WidgetChange.created(widget(first, 1, 0))));
+    other.enqueue(2, List.of(WidgetChange.updated(widget(first, 1, 10))));
+    assertEquals(1, other.getStatus().getQueueDepth());
+    // the shift moves the first widget up, the second takes its place
+    other.enqueue(3, List.of(WidgetChange.shifted(1, 1), WidgetChange.created(widget(second, 1, 0))));
+    other.enqueue(4, List.of(WidgetChange.updated(widget(first, 2, 20))));
+    var status = other.getStatus();
+    assertEquals(3, status.getQueueDepth());
+    assertEquals(4, status.getLag());
+
+    other.start();
+    assertTrue(other.awaitReplicated(4, TIMEOUT));
+    other.close();
+    assertThat(jpaWidgetRepository.findAllOrderByZAsc())
+      .extracting(Widget::getId, Widget::getZ, Widget::getX)
+      .containsExactly(tuple(second, 1, 0), tuple(first, 2, 20));
+  }
+
+  @Test
+  void shouldLeaveDatabaseAtVersionOfMemoryAfterEveryBatch() throws InterruptedException {
+    var other = new DbWriteBehind(jpaWidgetRepository, jpaWidgetsVersionRepository, entityManager, transactionManager,
+      2, Duration.ZERO);
+    long a = 1_000_000;
+    long b = 1_000_001;
+    long c = 1_000_002;
+    other.enqueue(1, List.of(WidgetChange.created(widget(a, 1, 0)), WidgetChange.created(widget(b, 5, 0))));
+    assertTrue(other.writeBatch());
+    other.enqueue(2, List.of(WidgetChange.updated(widget(a, 10, 0))));
+    other.enqueue(3, List.of(WidgetChange.updated(widget(b, 1, 0))));
+    // the shift moves the first widget up, the third takes its place
+    other.enqueue(4, List.of(WidgetChange.shifted(10, 10), WidgetChange.created(widget(c, 10, 0))));
+    // the last state of the first widget goes after the shift, so the batch does not end before it
+    other.enqueue(5, List.of(WidgetChange.updated(widget(a, 11, 5))));
+
+    while (other.getStatus().getLag() > 0) {
+      assertTrue(other.writeBatch());
+      assertThat(jpaWidgetRepository.findAllOrderByZAsc()).extracting(Widget::getZ).doesNotHaveDuplicates();
+    }
+    assertThat(jpaWidgetRepository.findAllOrderByZAsc())
+      .extracting(Widget::getId, Widget::getZ, Widget::getX)
+      .containsExactly(tuple(b, 1, 0), tuple(c, 10, 0), tuple(a, 11, 5));
+  }
+
+  /**
+   * Creations, updates and deletions with z-orders close to each other, so many of them shift
+   */
+  private void randomWrites(Random random, int count) {
+    var ids = new ArrayList<Long>();
+    for (int i = 0; i < count; ++i) {
+      int operation = random.nextInt(10);
+      if (operation < 5 || ids.size() < 10) {
+        ids.add(repo.createWidget(createStaticCreationQuery(random.nextInt(5) == 0 ? null : random.nextInt(100))).getId());
+      } else if (operation < 9) {
+        var id = ids.get(random.nextInt(ids.size()));
+        repo.updateWidget(id, WidgetUpdateRequest.builder()
+          .x(random.nextInt(1000))
+          .z(random.nextBoolean() ? null : random.nextInt(100))
+          .build());
+      } else {
+        repo.deleteWidget(ids.remove(random.nextInt(ids.size())));
+      }
+    }
+  }
+
+  /**
+   * The database may keep the time less precisely
+   */
+  private static void assertSameWidgets(List<? extends Widget<Long>> expected, List<? extends Widget<Long>> actual) {
+    assertThat(actual)
+      .extracting(Widget::getId, Widget::getX, Widget::getY, Widget::getZ, Widget::getWidth, Widget::getHeight)
+      .containsExactlyElementsOf(expected.stream()
+        .map(widget -> tuple(widget.getId(), widget.getX(), widget.getY(), widget.getZ(), widget.getWidth(), widget.getHeight()))
+        .collect(Collectors.toList()));
+    for (int i = 0; i < expected.size(); ++i) {
+      assertThat(actual.get(i).getLastUpdatedAt()).isCloseTo(expected.get(i).getLastUpdatedAt(), within(1, ChronoUnit.MILLIS));
+    }
+  }
+
+  private static Widget<Long> widget(long id, int z, int x) {
+    return new InMemoryWidgetImpl<>(id, x, 0, z, 10, 10, TIME);
+  }
+}
@@ -0,0 +1,8 @@
+package pashazz.widgetmanager.repository.hybrid;
+
+import org.springframework.test.context.ActiveProfiles;
+import pashazz.widgetmanager.repository.base.AbstractWidgetRepositoryMultithreadedTest;
+
+@ActiveProfiles("hybrid")
+public class HybridWidgetRepositoryMultithreadedTest extends AbstractWidgetRepositoryMultithreadedTest {
+}
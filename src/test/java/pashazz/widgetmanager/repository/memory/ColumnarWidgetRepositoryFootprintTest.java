@@ -0,0 +1,87 @@
+package pashazz.widgetmanager.repository.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryLongWidgetBuilder;
+import pashazz.widgetmanager.entity.validator.CreationRequestValidator;
+import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
+import pashazz.widgetmanager.factory.StandardWidgetFactory;
+import pashazz.widgetmanager.generator.CounterSupplier;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.rest.request.WidgetBatchOperation;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Heap taken by a canvas: the size of the live objects, so it includes everything the repository retains.
+ * Counted by the class histogram of the JVM rather than the used heap, which counts whole G1 regions for large arrays
+ */
+@Slf4j
+class ColumnarWidgetRepositoryFootprintTest {
+
+  private static final int CANVAS_SIZE = 100_000;
+
+  @Test
+  void shouldTakeLessThan40BytesPerWidget() throws JMException {
+    // loads the classes, so that they are not counted
+    filledRepository(MemoryEngine.COLUMNS, 1000);
+    filledRepository(MemoryEngine.TREE, 1000);
+
+    double columns = bytesPerWidget(MemoryEngine.COLUMNS);
+    double tree = bytesPerWidget(MemoryEngine.TREE);
+    log.info("bytes per widget: {} columns, {} tree", columns, tree);
+
+    assertThat(columns).isLessThan(40);
+    assertThat(tree).isGreaterThan(3 * columns);
+  }
+
+  private static double bytesPerWidget(MemoryEngine engine) throws JMException {
+    long before = usedHeap();
+    var repo = filledRepository(engine, CANVAS_SIZE);
+    long after = usedHeap();
+    assertThat(repo.listWidgetsAfter(null, 1)).hasSize(1);
+    return (double) (after - before) / CANVAS_SIZE;
+  }
+
+  /**
+   * The change log keeps a single change, so it does not count
+   */
+  private static WidgetRepository<Long> filledRepository(MemoryEngine engine, int canvasSize) {
+    var repo = engine.create(new StandardWidgetFactory<Long, Widget<Long>>(
+      new CounterSupplier(),
+      new CreationRequestValidator(),
+      new UpdateRequestValidator(),
+      InMemoryLongWidgetBuilder::new), new WidgetChangeLog<>(1));
+    var operations = new ArrayList<WidgetBatchOperation<Long>>(canvasSize);
+    for (int i = 0; i < canvasSize; ++i) {
+      operations.add(WidgetBatchOperation.<Long>builder()
+        .type(WidgetBatchOperation.Type.CREATE)
+        .widget(new WidgetUpdateRequest(i % 1000, i / 1000, 100, 200, null))
+        .build());
+    }
+    repo.applyBatch(WidgetBatchRequest.<Long>builder().operations(operations).build());
+    return repo;
+  }
+
+  /**
+   * The histogram runs a full GC first, and ends with the line "Total {instances} {bytes}".
+   * The serial and parallel collectors may leave dead objects in place rather than compact them,
+   * which the build turns off with -XX:MarkSweepDeadRatio=0
+   */
+  private static long usedHeap() throws JMException {
+    var histogram = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+      new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+      new Object[]{new String[0]}, new String[]{String[].class.getName()});
+    var total = histogram.lines().filter(line -> line.startsWith("Total")).findFirst().orElseThrow().trim().split("\\s+");
+    return Long.parseLong(total[2]);
+  }
+}
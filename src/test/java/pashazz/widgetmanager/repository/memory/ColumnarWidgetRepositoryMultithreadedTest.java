@@ -0,0 +1,10 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import pashazz.widgetmanager.repository.base.AbstractWidgetRepositoryMultithreadedTest;
+
+@ActiveProfiles("memory")
+@TestPropertySource(properties = "widgetmanager.memory-engine=columns")
+public class ColumnarWidgetRepositoryMultithreadedTest extends AbstractWidgetRepositoryMultithreadedTest {
+}
@@ -0,0 +1,71 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+import pashazz.widgetmanager.WidgetmanagerApplication;
+import pashazz.widgetmanager.repository.canvas.WidgetCanvases;
+import pashazz.widgetmanager.rest.entity.TestWidget;
+import pashazz.widgetmanager.utils.TestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+  classes = WidgetmanagerApplication.class)
+@ActiveProfiles("memory")
+public class InMemoryCanvasRestApiTest {
+
+  @Autowired
+  private TestRestTemplate restTemplate;
+
+  @Autowired
+  private WidgetCanvases canvases;
+
+  @Test
+  void shouldKeepWidgetsOfEveryCanvasApart() {
+    var first = restTemplate.postForObject("/canvases/first/widgets", TestUtils.createStaticCreationQuery(1), TestWidget.class);
+    restTemplate.postForObject("/canvases/first/widgets", TestUtils.createStaticCreationQuery(1), TestWidget.class);
+    var second = restTemplate.postForObject("/canvases/second/widgets", TestUtils.createStaticCreationQuery(1), TestWidget.class);
+
+    // no shift across the canvases
+    assertThat(second.getZ()).isEqualTo(1);
+    List<Map<String, Object>> firstWidgets = restTemplate.getForObject("/canvases/first/widgets/all", List.class);
+    assertThat(firstWidgets).extracting(widget -> widget.get("z")).containsExactly(1, 2);
+    assertThat(restTemplate.getForObject("/canvases/first/widgets/" + first.getId(), TestWidget.class).getZ()).isEqualTo(2);
+
+    Map<String, Object> changes = restTemplate.getForObject("/canvases/second/widgets/changes?since=0", Map.class);
+    assertThat((List<?>) changes.get("changes")).hasSize(1);
+
+    restTemplate.delete("/canvases/second/widgets/" + second.getId());
+    assertThat(restTemplate.getForObject("/canvases/second/widgets/all", List.class)).isEmpty();
+  }
+
+  @Test
+  void shouldServeDefaultCanvasUnderWidgets() {
+    var widget = restTemplate.postForObject("/canvases/default/widgets", TestUtils.createStaticCreationQuery(1), TestWidget.class);
+
+    assertThat(restTemplate.getForObject("/widgets/" + widget.getId(), TestWidget.class).getId()).isEqualTo(widget.getId());
+    restTemplate.delete("/widgets/" + widget.getId());
+  }
+
+  @Test
+  void shouldNotCreateCanvasForRead() {
+    assertThat(restTemplate.getForEntity("/canvases/ghost/widgets/all", String.class).getStatusCode())
+      .isEqualTo(HttpStatus.NOT_FOUND);
+    assertThat(restTemplate.getForEntity("/canvases/ghost/widgets/changes?since=0", String.class).getStatusCode())
+      .isEqualTo(HttpStatus.NOT_FOUND);
+    assertThat(canvases.getIds()).doesNotContain("ghost");
+  }
+
+  @Test
+  void shouldRejectInvalidCanvasId() {
+    var response = restTemplate.getForEntity("/canvases/" + "x".repeat(65) + "/widgets/all", String.class);
+    assertThat(response.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+  }
+}
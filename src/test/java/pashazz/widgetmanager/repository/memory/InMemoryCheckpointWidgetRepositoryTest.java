@@ -0,0 +1,18 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import pashazz.widgetmanager.repository.base.AbstractWidgetRepositoryTest;
+
+/**
+ * Checkpoints are taken while the tests write. Every context gets files of its own,
+ * as the last checkpoint is taken when the context is closed, after the test
+ */
+@ActiveProfiles("memory")
+@TestPropertySource(properties = {
+  "widgetmanager.wal-path=target/checkpoint-test/${random.uuid}.wal",
+  "widgetmanager.checkpoint-path=target/checkpoint-test/${random.uuid}.checkpoint",
+  "widgetmanager.checkpoint-interval=10ms"
+})
+public class InMemoryCheckpointWidgetRepositoryTest extends AbstractWidgetRepositoryTest {
+}
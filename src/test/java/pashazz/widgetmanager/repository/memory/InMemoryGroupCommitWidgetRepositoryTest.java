@@ -0,0 +1,10 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import pashazz.widgetmanager.repository.base.AbstractWidgetRepositoryTest;
+
+@ActiveProfiles("memory")
+@TestPropertySource(properties = "widgetmanager.write-mode=group-commit")
+public class InMemoryGroupCommitWidgetRepositoryTest extends AbstractWidgetRepositoryTest {
+}
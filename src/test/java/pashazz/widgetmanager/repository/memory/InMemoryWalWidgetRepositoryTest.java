@@ -0,0 +1,25 @@
+package pashazz.widgetmanager.repository.memory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import pashazz.widgetmanager.repository.base.AbstractWidgetRepositoryTest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Every test gets a new context, which would replay the log of the previous test, so the log is deleted after a test
+ */
+@ActiveProfiles("memory")
+@TestPropertySource(properties = "widgetmanager.wal-path=" + InMemoryWalWidgetRepositoryTest.WAL_PATH)
+public class InMemoryWalWidgetRepositoryTest extends AbstractWidgetRepositoryTest {
+
+  static final String WAL_PATH = "target/wal-test/widgets.wal";
+
+  @AfterEach
+  void deleteLog() throws IOException {
+    Files.deleteIfExists(Path.of(WAL_PATH));
+  }
+}
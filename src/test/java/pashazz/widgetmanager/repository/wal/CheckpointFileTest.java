@@ -0,0 +1,140 @@
+package pashazz.widgetmanager.repository.wal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryLongWidgetBuilder;
+import pashazz.widgetmanager.entity.validator.CreationRequestValidator;
+import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
+import pashazz.widgetmanager.factory.StandardWidgetFactory;
+import pashazz.widgetmanager.generator.CounterSupplier;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.memory.InMemoryWidgetRepository;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static pashazz.widgetmanager.utils.TestUtils.createStaticCreationQuery;
+
+class CheckpointFileTest {
+
+  @TempDir
+  Path directory;
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void shouldRestoreCheckpointAndLogAfterIt(boolean compress) throws IOException {
+    var walPath = directory.resolve("widgets.wal");
+    List<Widget<Long>> widgets;
+    long version;
+    long lastId;
+    Long movedId;
+    try (var log = new WriteAheadLog(walPath, Duration.ZERO, 1);
+         var checkpoint = new CheckpointFile(directory.resolve("widgets.checkpoint"), Duration.ZERO, compress)) {
+      var ids = new CounterSupplier();
+      var repo = repository(log, checkpoint, ids);
+      for (int i = 0; i < 100; ++i) {
+        repo.createWidget(createStaticCreationQuery(i % 10 == 0 ? null : i));
+      }
+      var deleted = repo.createWidget(createStaticCreationQuery(null));
+      repo.deleteWidget(deleted.getId());
+      repo.checkpoint();
+      long logSize = Files.size(walPath);
+      // the first write after the checkpoint discards the log up to it
+      movedId = repo.listWidgets().get(0).getId();
+      repo.updateWidget(movedId, WidgetUpdateRequest.builder().z(50).x(-200).build());
+      assertThat(Files.size(walPath)).isLessThan(logSize / 10);
+      repo.createWidget(createStaticCreationQuery(3));
+      widgets = new ArrayList<>(repo.listWidgets());
+      version = repo.getVersion();
+      lastId = deleted.getId();
+    }
+
+    try (var log = new WriteAheadLog(walPath, Duration.ZERO, 1);
+         var checkpoint = new CheckpointFile(directory.resolve("widgets.checkpoint"), Duration.ZERO, compress)) {
+      var ids = new CounterSupplier();
+      var repo = repository(log, checkpoint, ids);
+      ids.advanceTo(checkpoint.getLastId());
+      ids.advanceTo(log.getLastId());
+
+      assertThat(repo.getVersion()).isEqualTo(version);
+      assertThat(repo.listWidgets()).usingRecursiveFieldByFieldElementComparator().containsExactlyElementsOf(widgets);
+      assertThat(repo.listWidgetsIn(-200, 20, -150, 20)).extracting(Widget::getId).containsExactly(movedId);
+      assertThat(repo.createWidget(createStaticCreationQuery(null)).getId()).isGreaterThan(lastId);
+    }
+  }
+
+  @Test
+  void shouldTakeCheckpointOnCloseWithoutLog() {
+    var path = directory.resolve("widgets.checkpoint");
+    List<Widget<Long>> widgets;
+    try (var checkpoint = new CheckpointFile(path, Duration.ZERO, false)) {
+      var repo = repository(null, checkpoint, new CounterSupplier());
+      repo.createWidget(createStaticCreationQuery(1));
+      repo.createWidget(createStaticCreationQuery(1));
+      widgets = new ArrayList<>(repo.listWidgets());
+    }
+
+    try (var checkpoint = new CheckpointFile(path, Duration.ZERO, false)) {
+      var repo = repository(null, checkpoint, new CounterSupplier());
+      assertThat(repo.getVersion()).isEqualTo(2);
+      assertThat(repo.listWidgets()).usingRecursiveFieldByFieldElementComparator().containsExactlyElementsOf(widgets);
+    }
+  }
+
+  @Test
+  void shouldRefuseDamagedCheckpoint() throws IOException {
+    var path = directory.resolve("widgets.checkpoint");
+    try (var checkpoint = new CheckpointFile(path, Duration.ZERO, false)) {
+      var repo = repository(null, checkpoint, new CounterSupplier());
+      repo.createWidget(createStaticCreationQuery(1));
+    }
+    try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[]{1}), channel.size() - 10);
+    }
+
+    assertThatThrownBy(() -> repository(null, new CheckpointFile(path, Duration.ZERO, false), new CounterSupplier()))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageContaining("CRC");
+  }
+
+  @Test
+  void shouldRefuseLogThatMissesVersionsAfterCheckpoint() throws IOException {
+    var walPath = directory.resolve("widgets.wal");
+    var path = directory.resolve("widgets.checkpoint");
+    try (var log = new WriteAheadLog(walPath, Duration.ZERO, 1);
+         var checkpoint = new CheckpointFile(path, Duration.ZERO, false)) {
+      var repo = repository(log, checkpoint, new CounterSupplier());
+      repo.createWidget(createStaticCreationQuery(1));
+      repo.checkpoint();
+      repo.createWidget(createStaticCreationQuery(1));
+    }
+    Files.delete(path);
+
+    try (var log = new WriteAheadLog(walPath, Duration.ZERO, 1)) {
+      assertThatThrownBy(() -> repository(log, new CheckpointFile(path, Duration.ZERO, false), new CounterSupplier()))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("lost");
+    }
+  }
+
+  private static InMemoryWidgetRepository repository(WriteAheadLog log, CheckpointFile checkpoint, CounterSupplier ids) {
+    return new InMemoryWidgetRepository(new StandardWidgetFactory<>(
+      ids,
+      new CreationRequestValidator(),
+      new UpdateRequestValidator(),
+      InMemoryLongWidgetBuilder::new), new WidgetChangeLog<>(100), log, checkpoint);
+  }
+}
@@ -0,0 +1,121 @@
+package pashazz.widgetmanager.repository.wal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pashazz.widgetmanager.entity.interfaces.Widget;
+import pashazz.widgetmanager.entity.memory.InMemoryLongWidgetBuilder;
+import pashazz.widgetmanager.entity.validator.CreationRequestValidator;
+import pashazz.widgetmanager.entity.validator.UpdateRequestValidator;
+import pashazz.widgetmanager.factory.StandardWidgetFactory;
+import pashazz.widgetmanager.generator.CounterSupplier;
+import pashazz.widgetmanager.repository.WidgetRepository;
+import pashazz.widgetmanager.repository.changes.WidgetChange;
+import pashazz.widgetmanager.repository.changes.WidgetChangeLog;
+import pashazz.widgetmanager.repository.memory.InMemoryWidgetRepository;
+import pashazz.widgetmanager.rest.request.WidgetBatchOperation;
+import pashazz.widgetmanager.rest.request.WidgetBatchRequest;
+import pashazz.widgetmanager.rest.request.WidgetUpdateRequest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static pashazz.widgetmanager.utils.TestUtils.createStaticCreationQuery;
+
+class WriteAheadLogTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void shouldRestoreWidgetsAndVersionOnReplay() throws IOException {
+    var path = directory.resolve("widgets.wal");
+    List<Widget<Long>> widgets;
+    long version;
+    try (var log = new WriteAheadLog(path, Duration.ZERO, 1)) {
+      var ids = new CounterSupplier();
+      var repo = repository(log, ids);
+      var bottom = repo.createWidget(createStaticCreationQuery(1));
+      var middle = repo.createWidget(createStaticCreationQuery(2));
+      // shifts the two above
+      repo.createWidget(createStaticCreationQuery(1));
+      var top = repo.createWidget(createStaticCreationQuery(null));
+      // 4 is free once the widget leaves it, so the widget at 3 is shifted into its old z-order
+      repo.updateWidget(top.getId(), WidgetUpdateRequest.builder().z(3).build());
+      repo.updateWidget(middle.getId(), WidgetUpdateRequest.builder().x(-500).width(1000).build());
+      repo.deleteWidget(bottom.getId());
+      repo.applyBatch(WidgetBatchRequest.<Long>builder().operations(List.of(
+        WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.CREATE).widget(createStaticCreationQuery(3)).build(),
+        WidgetBatchOperation.<Long>builder().type(WidgetBatchOperation.Type.DELETE).id(middle.getId()).build()
+      )).build());
+      widgets = new ArrayList<>(repo.listWidgets());
+      version = repo.getVersion();
+    }
+
+    try (var log = new WriteAheadLog(path, Duration.ZERO, 1)) {
+      var ids = new CounterSupplier();
+      var repo = repository(log, ids);
+      ids.advanceTo(log.getLastId());
+
+      assertThat(repo.getVersion()).isEqualTo(version);
+      assertThat(repo.listWidgets()).usingRecursiveFieldByFieldElementComparator().containsExactlyElementsOf(widgets);
+      assertThat(repo.listWidgetsIn(-500, 0, -400, 100)).isEmpty();
+      var created = repo.createWidget(createStaticCreationQuery(null));
+      assertThat(widgets).allSatisfy(widget -> assertThat(widget.getId()).isLessThan(created.getId()));
+    }
+  }
+
+  @Test
+  void shouldDropIncompleteRecordAndAppendAfterLastComplete() throws IOException {
+    var path = directory.resolve("widgets.wal");
+    try (var log = new WriteAheadLog(path, Duration.ZERO, 1)) {
+      assertThat(log.replay((changes, version) -> {
+      })).isZero();
+      log.append(1, List.of(WidgetChange.deleted(1L)));
+      log.append(2, List.of(WidgetChange.shifted(1, 3), WidgetChange.deleted(2L)));
+    }
+    try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 3);
+    }
+
+    try (var log = new WriteAheadLog(path, Duration.ZERO, 1)) {
+      var versions = new ArrayList<Long>();
+      assertThat(log.replay((changes, version) -> versions.add(version))).isEqualTo(1);
+      assertThat(versions).containsExactly(1L);
+      log.append(2, List.of(WidgetChange.deleted(3L)));
+    }
+
+    try (var log = new WriteAheadLog(path, Duration.ZERO, 1)) {
+      var changes = new ArrayList<WidgetChange<Long>>();
+      assertThat(log.replay((versionChanges, version) -> changes.addAll(versionChanges))).isEqualTo(2);
+      assertThat(changes).extracting(WidgetChange::getId).containsExactly(1L, 3L);
+    }
+  }
+
+  @Test
+  void shouldRollBackWriteThatIsNotLogged() throws IOException {
+    var log = new WriteAheadLog(directory.resolve("widgets.wal"), Duration.ofMillis(10), 100);
+    var repo = repository(log, new CounterSupplier());
+    var widget = repo.createWidget(createStaticCreationQuery(1));
+    log.close();
+
+    assertThatThrownBy(() -> repo.createWidget(createStaticCreationQuery(1))).isInstanceOf(UncheckedIOException.class);
+    assertThat(repo.getVersion()).isEqualTo(1);
+    assertThat(repo.listWidgets()).usingRecursiveFieldByFieldElementComparator().containsExactly(widget);
+  }
+
+  private static WidgetRepository<Long> repository(WriteAheadLog log, CounterSupplier ids) {
+    return new InMemoryWidgetRepository(new StandardWidgetFactory<>(
+      ids,
+      new CreationRequestValidator(),
+      new UpdateRequestValidator(),
+      InMemoryLongWidgetBuilder::new), new WidgetChangeLog<>(100), log);
+  }
+}
@@ -0,0 +1,47 @@
+package pashazz.widgetmanager.rest;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SerializedWidgetsCacheTest {
+
+  @Test
+  void shouldServeResponsesOfTheLatestVersionOnly() {
+    var cache = new SerializedWidgetsCache(100);
+    cache.put(1, "all", new byte[]{1});
+    cache.put(1, "page", new byte[]{2});
+
+    assertThat(cache.get(1, "all")).containsExactly(1);
+    assertThat(cache.get(2, "all")).isNull();
+
+    cache.put(2, "all", new byte[]{3});
+    assertThat(cache.get(2, "all")).containsExactly(3);
+    assertThat(cache.get(1, "page")).isNull();
+    assertThat(cache.get(2, "page")).isNull();
+    assertThat(cache.size()).isEqualTo(1);
+
+    // a response of an older version, read while a newer one was being committed
+    cache.put(1, "page", new byte[]{4});
+    assertThat(cache.get(1, "page")).isNull();
+    assertThat(cache.get(2, "page")).isNull();
+  }
+
+  @Test
+  void shouldEvictLeastRecentlyUsedResponsesToStayWithinSize() {
+    var cache = new SerializedWidgetsCache(10);
+    cache.put(1, "a", new byte[4]);
+    cache.put(1, "b", new byte[4]);
+    cache.get(1, "a");
+    cache.put(1, "c", new byte[4]);
+
+    assertThat(cache.get(1, "a")).isNotNull();
+    assertThat(cache.get(1, "b")).isNull();
+    assertThat(cache.get(1, "c")).isNotNull();
+    assertThat(cache.size()).isEqualTo(8);
+
+    cache.put(1, "d", new byte[11]);
+    assertThat(cache.get(1, "d")).isNull();
+    assertThat(cache.size()).isEqualTo(8);
+  }
+}
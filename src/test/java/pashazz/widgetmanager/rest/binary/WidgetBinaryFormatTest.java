@@ -0,0 +1,50 @@
+package pashazz.widgetmanager.rest.binary;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class WidgetBinaryFormatTest {
+
+  private final List<DecodedWidget> widgets = List.of(
+    new DecodedWidget(1L, 0, 0, 0, 1, 1, LocalDateTime.of(2022, 2, 7, 4, 8, 51, 564290000)),
+    new DecodedWidget(Long.MAX_VALUE, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, 20,
+      LocalDateTime.of(1900, 1, 1, 0, 0, 0, 999999999)));
+
+  @Test
+  void shouldDecodeWhatIsEncoded() throws IOException {
+    var bytes = WidgetBinaryFormat.encode(widgets);
+
+    assertThat(WidgetBinaryFormat.decode(new ByteArrayInputStream(bytes))).containsExactlyElementsOf(widgets);
+    assertThat(WidgetBinaryFormat.decode(new ByteArrayInputStream(WidgetBinaryFormat.encode(List.of())))).isEmpty();
+    // id, x, y, z, width, height take a byte each, the seconds and the nanoseconds take 5 each
+    assertThat(WidgetBinaryFormat.encode(widgets.subList(0, 1))).hasSize(16);
+  }
+
+  @Test
+  void shouldDecodeCursorOfPage() throws IOException {
+    var page = WidgetBinaryFormat.decodePage(new ByteArrayInputStream(WidgetBinaryFormat.encodePage(widgets, -5)));
+    assertThat(page.getWidgets()).containsExactlyElementsOf(widgets);
+    assertThat(page.getNextAfterZ()).isEqualTo(-5);
+
+    var last = WidgetBinaryFormat.decodePage(new ByteArrayInputStream(WidgetBinaryFormat.encodePage(List.of(), null)));
+    assertThat(last.getWidgets()).isEmpty();
+    assertThat(last.getNextAfterZ()).isNull();
+  }
+
+  @Test
+  void shouldFailOnTruncatedRecord() {
+    var bytes = WidgetBinaryFormat.encode(widgets);
+    var truncated = new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1));
+
+    assertThatThrownBy(() -> WidgetBinaryFormat.decode(truncated)).isInstanceOf(EOFException.class);
+  }
+}